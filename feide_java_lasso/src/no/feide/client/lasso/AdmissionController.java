@@ -0,0 +1,296 @@
+package no.feide.client.lasso;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Limits the number of concurrent requests to each endpoint of the servlet, so that a burst of
+ * logins fails fast instead of piling up in the servlet container.
+ *
+ * The limit of each endpoint adapts to the measured latency. While the smoothed latency stays
+ * close to the lowest latency we have seen, the limit grows. When requests start to queue up
+ * somewhere and the latency rises, the limit shrinks.
+ *
+ * The assertion consumer and the logout endpoint finish work which has already been started,
+ * so they have priority over the login endpoint. A request to a priority endpoint which is at
+ * its limit may wait a short while for a slot. A request to the login endpoint never waits,
+ * and is rejected while priority requests are waiting.
+ */
+class AdmissionController {
+
+    /**
+     * How much the latency may rise above the lowest latency before the limit shrinks.
+     */
+    private static final double TOLERANCE = 2.0;
+
+    /**
+     * The weight of a new latency sample in the smoothed latency.
+     */
+    private static final double SMOOTHING = 0.1;
+
+    /**
+     * The number of samples after which the lowest latency is measured again, so that the
+     * limit follows a permanent change in latency.
+     */
+    private static final int PROBE_INTERVAL = 1000;
+
+    /**
+     * An endpoint with its own limit.
+     */
+    final class Endpoint {
+
+        /**
+         * The name of the endpoint, used in the metrics.
+         */
+        private final String name;
+
+        /**
+         * Whether requests to this endpoint have priority.
+         */
+        private final boolean priority;
+
+        /**
+         * The current limit.
+         */
+        private double limit;
+
+        /**
+         * The number of requests in progress.
+         */
+        private int inflight = 0;
+
+        /**
+         * The number of requests waiting for a slot.
+         */
+        private int waiting = 0;
+
+        /**
+         * The lowest latency we have seen since the last probe, in milliseconds.
+         */
+        private double minLatency = 0;
+
+        /**
+         * The smoothed latency, in milliseconds.
+         */
+        private double latency = 0;
+
+        /**
+         * The number of latency samples.
+         */
+        private long samples = 0;
+
+        private final AtomicLong shed;
+        private final AtomicLong queued;
+
+        /**
+         * Creates an endpoint, and registers its metrics.
+         *
+         * @param config the configuration of the servlet, which names the metrics of a tenant.
+         * @param name the name of the endpoint.
+         * @param priority whether requests to this endpoint have priority.
+         */
+        private Endpoint(Config config, String name, boolean priority) {
+            this.name = name;
+            this.priority = priority;
+            this.limit = AdmissionController.this.initialLimit;
+
+            Metrics metrics = Metrics.getInstance();
+            String prefix = config.getMetricName("admission." + name + ".");
+            this.shed = metrics.counter(prefix + "shed");
+            this.queued = metrics.counter(prefix + "queued");
+            AdmissionController.this.gauges.put(prefix + "limit", new Metrics.Gauge() {
+                public long getValue() {
+                    synchronized(AdmissionController.this) {
+                        return (long)Endpoint.this.limit;
+                    }
+                }
+            });
+            AdmissionController.this.gauges.put(prefix + "inflight", new Metrics.Gauge() {
+                public long getValue() {
+                    synchronized(AdmissionController.this) {
+                        return Endpoint.this.inflight;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Retrieves the name of this endpoint.
+         *
+         * @return the name.
+         */
+        String getName() {
+            return this.name;
+        }
+    }
+
+    /**
+     * The limit each endpoint starts with.
+     */
+    private final double initialLimit;
+
+    /**
+     * The lowest limit of an endpoint.
+     */
+    private final double minLimit;
+
+    /**
+     * The highest limit of an endpoint.
+     */
+    private final double maxLimit;
+
+    /**
+     * The number of milliseconds a priority request may wait for a slot.
+     */
+    private final long queueTimeout;
+
+    /**
+     * The maximum number of priority requests waiting for a slot on each endpoint.
+     */
+    private final int maxQueue;
+
+    /**
+     * The number of seconds rejected clients are told to wait before they retry.
+     */
+    private final int retryAfter;
+
+    /**
+     * The endpoints, by path info.
+     */
+    private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+
+    /**
+     * The gauges of the endpoints, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * The number of priority requests waiting for a slot, on all endpoints.
+     */
+    private int priorityWaiting = 0;
+
+    /**
+     * Creates the admission controller from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    AdmissionController(Config config) throws ServletException {
+        this.initialLimit = config.getLongProperty("no.feide.test.admission.limit", 20);
+        this.minLimit = config.getLongProperty("no.feide.test.admission.limit.min", 4);
+        this.maxLimit = config.getLongProperty("no.feide.test.admission.limit.max", 200);
+        this.queueTimeout = config.getLongProperty("no.feide.test.admission.queue.timeout", 100);
+        this.maxQueue = (int)config.getLongProperty("no.feide.test.admission.queue", 50);
+        this.retryAfter = (int)config.getLongProperty("no.feide.test.admission.retryafter", 2);
+
+        if(this.minLimit < 1 || this.minLimit > this.maxLimit) {
+            throw new ServletException("no.feide.test.admission.limit.min must be between 1 and limit.max.");
+        }
+
+        this.endpoints.put("/login", new Endpoint(config, "login", false));
+        this.endpoints.put("/assertion", new Endpoint(config, "assertion", true));
+        this.endpoints.put("/logout", new Endpoint(config, "logout", true));
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            Metrics.getInstance().gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Removes the gauges of the endpoints.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+    }
+
+    /**
+     * Finds the endpoint a request is for.
+     *
+     * @param pathInfo the path info of the request.
+     * @return the endpoint, or null if requests to this path aren't limited.
+     */
+    Endpoint getEndpoint(String pathInfo) {
+        return this.endpoints.get(pathInfo);
+    }
+
+    /**
+     * Retrieves the number of seconds rejected clients should wait before they retry.
+     *
+     * @return the number of seconds.
+     */
+    int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    /**
+     * Admits a request to an endpoint. If true is returned, release() must be called when the
+     * request is finished.
+     *
+     * @param endpoint the endpoint.
+     * @return true if the request is admitted, false if it should be rejected.
+     */
+    synchronized boolean acquire(Endpoint endpoint) {
+        if(endpoint.inflight < (int)endpoint.limit && (endpoint.priority || this.priorityWaiting == 0)) {
+            endpoint.inflight++;
+            return true;
+        }
+        if(!endpoint.priority || endpoint.waiting >= this.maxQueue) {
+            endpoint.shed.incrementAndGet();
+            return false;
+        }
+
+        endpoint.queued.incrementAndGet();
+        endpoint.waiting++;
+        this.priorityWaiting++;
+        try {
+            Deadline deadline = Deadline.after(this.queueTimeout);
+            while(endpoint.inflight >= (int)endpoint.limit) {
+                long remaining = deadline.remainingMillis();
+                if(remaining == 0) {
+                    endpoint.shed.incrementAndGet();
+                    return false;
+                }
+                this.wait(remaining);
+            }
+            endpoint.inflight++;
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            endpoint.shed.incrementAndGet();
+            return false;
+        } finally {
+            endpoint.waiting--;
+            this.priorityWaiting--;
+        }
+    }
+
+    /**
+     * Releases the slot of a finished request, and adjusts the limit of the endpoint.
+     *
+     * @param endpoint the endpoint.
+     * @param nanos the time the request took, in nanoseconds.
+     */
+    synchronized void release(Endpoint endpoint, long nanos) {
+        endpoint.inflight--;
+
+        double millis = nanos / 1000000.0;
+        if(endpoint.samples++ % PROBE_INTERVAL == 0 || millis < endpoint.minLatency) {
+            endpoint.minLatency = millis;
+        }
+        endpoint.latency = endpoint.latency == 0 ? millis
+                : endpoint.latency * (1 - SMOOTHING) + millis * SMOOTHING;
+
+        double gradient = endpoint.latency <= 0 ? 1.0
+                : Math.max(0.5, Math.min(1.0, TOLERANCE * endpoint.minLatency / endpoint.latency));
+        if(gradient < 1.0 || endpoint.inflight + 1 >= endpoint.limit / 2) {
+            // Only grow the limit when it is actually being used.
+            double target = endpoint.limit * gradient + Math.sqrt(endpoint.limit);
+            double limit = endpoint.limit * (1 - SMOOTHING) + target * SMOOTHING;
+            endpoint.limit = Math.max(this.minLimit, Math.min(this.maxLimit, limit));
+        }
+
+        this.notifyAll();
+    }
+}
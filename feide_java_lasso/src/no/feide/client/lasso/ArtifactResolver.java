@@ -0,0 +1,403 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Sends ArtifactResolve messages to the ArtifactResolutionService of the IdP. Every call is
+ * bounded by the deadline of the login it belongs to. If the IdP lists more than one endpoint
+ * in its meta data, a failed call is retried against the next endpoint, and a slow call can
+ * optionally be hedged by sending the same message to the next endpoint once the first call
+ * has taken longer than the 95th percentile latency of its endpoint.
+ *
+ * Each endpoint has a circuit breaker, so that calls fail fast while an endpoint is unhealthy,
+ * and a latency histogram which is exported through {@link Metrics}.
+ */
+class ArtifactResolver {
+
+    /**
+     * Number of samples we need before we trust the 95th percentile of an endpoint.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The client we send SOAP requests with.
+     */
+    private final SoapClient soapClient;
+
+    /**
+     * The endpoints listed in the meta data for the IdP, with the default endpoint first.
+     */
+    private final List<String> endpointURLs;
+
+    /**
+     * The state we keep for each endpoint, by URL.
+     */
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    /**
+     * Whether we send hedged requests to alternate endpoints.
+     */
+    private final boolean hedge;
+
+    /**
+     * The hedging delay we use until we have enough samples from an endpoint, in milliseconds.
+     */
+    private final long defaultHedgeDelay;
+
+    /**
+     * Number of consecutive failures which opens the circuit breaker of an endpoint.
+     */
+    private final int breakerFailures;
+
+    /**
+     * Number of milliseconds the circuit breaker of an endpoint stays open.
+     */
+    private final long breakerOpenMillis;
+
+    /**
+     * The threads which execute the SOAP calls.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of hedged requests we have sent.
+     */
+    private final AtomicLong hedged;
+
+    /**
+     * Number of times we have failed over to an alternate endpoint after an error.
+     */
+    private final AtomicLong failovers;
+
+    /**
+     * Number of calls which failed because the deadline expired.
+     */
+    private final AtomicLong timeouts;
+
+    /**
+     * Number of calls which failed fast because every circuit breaker was open.
+     */
+    private final AtomicLong rejected;
+
+    /**
+     * The prefix of the names of our metrics.
+     */
+    private final String metricPrefix;
+
+    /**
+     * The gauges of the endpoints, by name.
+     */
+    private final ConcurrentMap<String, Metrics.Gauge> gauges =
+        new ConcurrentHashMap<String, Metrics.Gauge>();
+
+    /**
+     * Creates an artifact resolver for the IdP in the given configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @param soapClient the client we send SOAP requests with.
+     * @throws ServletException if the configuration is invalid.
+     */
+    ArtifactResolver(Config config, SoapClient soapClient) throws ServletException {
+        this.soapClient = soapClient;
+        this.endpointURLs = config.getArtifactResolutionServiceURLs();
+        this.hedge = config.getBooleanProperty("no.feide.test.artifact.hedge", false);
+        this.defaultHedgeDelay = config.getLongProperty("no.feide.test.artifact.hedge.delay", 500);
+        this.breakerFailures = (int)config.getLongProperty("no.feide.test.artifact.breaker.failures", 5);
+        this.breakerOpenMillis = config.getLongProperty("no.feide.test.artifact.breaker.open", 30000);
+
+        int threads = (int)config.getLongProperty("no.feide.test.artifact.threads", 32);
+        this.executor = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new DaemonThreadFactory("artifact-resolver"));
+
+        Metrics metrics = Metrics.getInstance();
+        this.metricPrefix = config.getMetricName("artifact.");
+        this.hedged = metrics.counter(this.metricPrefix + "hedged");
+        this.failovers = metrics.counter(this.metricPrefix + "failovers");
+        this.timeouts = metrics.counter(this.metricPrefix + "timeouts");
+        this.rejected = metrics.counter(this.metricPrefix + "rejected");
+
+        for(String url : this.endpointURLs) {
+            this.getEndpoint(url);
+        }
+    }
+
+    /**
+     * Sends an ArtifactResolve message and returns the reply from the IdP.
+     *
+     * @param url the endpoint Lasso has selected for the message.
+     * @param message the SOAP envelope with the ArtifactResolve message.
+     * @param deadline the deadline of the login this message belongs to.
+     * @return the SOAP envelope we received from the IdP.
+     * @throws ServletException if every endpoint failed, or if the deadline expired.
+     */
+    String resolve(String url, byte[] message, Deadline deadline) throws ServletException {
+        Iterator<Endpoint> candidates = this.getCandidates(url).iterator();
+        Endpoint first = nextAvailable(candidates);
+        if(first == null) {
+            this.rejected.incrementAndGet();
+            throw new ServletException("Every ArtifactResolutionService endpoint is unavailable.");
+        }
+
+        CompletionService<String> completion = new ExecutorCompletionService<String>(this.executor);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        Throwable lastError = null;
+        boolean expired = false;
+
+        try {
+            futures.add(this.submit(completion, first, message, deadline, attempts));
+            int pending = 1;
+
+            while(true) {
+                long remaining = deadline.remainingMillis();
+                if(remaining == 0) {
+                    expired = true;
+                    this.timeouts.incrementAndGet();
+                    throw new ServletException("Deadline expired while resolving artifact against " + url,
+                            lastError);
+                }
+
+                boolean canHedge = this.hedge && candidates.hasNext();
+                long wait = canHedge ? Math.min(remaining, first.getHedgeDelay()) : remaining;
+
+                Future<String> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if(done != null) {
+                    pending--;
+                    try {
+                        return done.get();
+                    } catch(ExecutionException e) {
+                        lastError = e.getCause();
+                    }
+
+                    if(pending == 0) {
+                        Endpoint next = nextAvailable(candidates);
+                        if(next == null) {
+                            throw new ServletException("Error executing SOAP request against " + url, lastError);
+                        }
+
+                        this.failovers.incrementAndGet();
+                        futures.add(this.submit(completion, next, message, deadline, attempts));
+                        pending++;
+                    }
+                } else if(canHedge) {
+                    Endpoint next = nextAvailable(candidates);
+                    if(next != null) {
+                        if(this.debug.messageEnabled()) {
+                            this.debug.message("Hedging artifact resolution against " + next.url);
+                        }
+
+                        this.hedged.incrementAndGet();
+                        futures.add(this.submit(completion, next, message, deadline, attempts));
+                        pending++;
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while resolving artifact.", e);
+        } catch(RejectedExecutionException e) {
+            throw new ServletException("Too many concurrent artifact resolution requests.", e);
+        } finally {
+            // The calls still running lost the race, unless the deadline expired while every
+            // one of them was waiting for its endpoint. Then their endpoints are to blame.
+            for(Attempt a : attempts) {
+                a.abandoned = !expired;
+            }
+            for(Future<String> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Stops the threads used by this artifact resolver, and removes the gauges of the endpoints.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Finds the endpoints we may send a message to, in the order we should try them. The
+     * endpoint selected by Lasso comes first.
+     *
+     * @param url the endpoint Lasso has selected.
+     * @return the endpoints we may try.
+     */
+    private List<Endpoint> getCandidates(String url) {
+        List<Endpoint> candidates = new ArrayList<Endpoint>();
+        candidates.add(this.getEndpoint(url));
+        for(String u : this.endpointURLs) {
+            if(!u.equals(url)) {
+                candidates.add(this.getEndpoint(u));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Finds the next endpoint whose circuit breaker lets a request through. The circuit
+     * breaker is only asked when we are about to send a request, since asking it may
+     * start a trial request.
+     *
+     * @param candidates the remaining endpoints.
+     * @return the next available endpoint, or null if there are none left.
+     */
+    private static Endpoint nextAvailable(Iterator<Endpoint> candidates) {
+        while(candidates.hasNext()) {
+            Endpoint e = candidates.next();
+            if(e.breaker.allowRequest()) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds or creates the state of an endpoint.
+     *
+     * @param url the URL of the endpoint.
+     * @return the state of the endpoint.
+     */
+    private Endpoint getEndpoint(String url) {
+        Endpoint e = this.endpoints.get(url);
+        if(e == null) {
+            Endpoint created = new Endpoint(url);
+            e = this.endpoints.putIfAbsent(url, created);
+            if(e == null) {
+                e = created;
+                e.registerMetrics();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Submits a SOAP call to an endpoint.
+     *
+     * @param completion the completion service of the current resolution.
+     * @param endpoint the endpoint we should call.
+     * @param message the message we should send.
+     * @param deadline the deadline of the current login.
+     * @param attempts the calls of the current resolution, which the new call is added to.
+     * @return the future of the call.
+     */
+    private Future<String> submit(CompletionService<String> completion, final Endpoint endpoint,
+            final byte[] message, final Deadline deadline, List<Attempt> attempts) {
+
+        final Attempt attempt = new Attempt();
+        attempts.add(attempt);
+        return completion.submit(new Callable<String>() {
+            public String call() throws IOException {
+                return endpoint.call(message, deadline, attempt);
+            }
+        });
+    }
+
+    /**
+     * A call to an endpoint, made for one resolution.
+     */
+    private static final class Attempt {
+
+        /**
+         * Set by resolve() before it cancels the call because another call won the race, or the
+         * login gave up for a reason of its own. A call cancelled since the deadline expired isn't
+         * abandoned: the endpoint was too slow, and that counts as a failure.
+         */
+        volatile boolean abandoned = false;
+    }
+
+    /**
+     * The state we keep for a single ArtifactResolutionService endpoint.
+     */
+    private class Endpoint {
+        final String url;
+        final LatencyHistogram latency;
+        final CircuitBreaker breaker;
+        final AtomicLong errors;
+
+        Endpoint(String url) {
+            this.url = url;
+            String prefix = ArtifactResolver.this.metricPrefix + "endpoint." + url + ".";
+            this.latency = Metrics.getInstance().histogram(prefix + "latency");
+            this.errors = Metrics.getInstance().counter(prefix + "errors");
+            this.breaker = new CircuitBreaker(ArtifactResolver.this.breakerFailures,
+                    ArtifactResolver.this.breakerOpenMillis);
+        }
+
+        void registerMetrics() {
+            String name = ArtifactResolver.this.metricPrefix + "endpoint." + this.url + ".breaker_open";
+            Metrics.Gauge gauge = new Metrics.Gauge() {
+                public long getValue() {
+                    return Endpoint.this.breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1;
+                }
+            };
+            ArtifactResolver.this.gauges.put(name, gauge);
+            Metrics.getInstance().gauge(name, gauge);
+        }
+
+        /**
+         * Returns the number of milliseconds we wait for this endpoint before we hedge.
+         */
+        long getHedgeDelay() {
+            if(this.latency.getWindowCount() < MIN_SAMPLES) {
+                return ArtifactResolver.this.defaultHedgeDelay;
+            }
+            return Math.max(this.latency.getPercentile(95) / 1000, 1);
+        }
+
+        String call(byte[] message, Deadline deadline, Attempt attempt) throws IOException {
+            long start = System.nanoTime();
+            try {
+                String reply = ArtifactResolver.this.soapClient.call(this.url, message,
+                        deadline.remainingMillis());
+                this.breaker.recordSuccess();
+                this.latency.record(System.nanoTime() - start);
+                return reply;
+            } catch(IOException e) {
+                this.recordFailure(start, attempt);
+                throw e;
+            } catch(RuntimeException e) {
+                this.recordFailure(start, attempt);
+                throw e;
+            }
+        }
+
+        /**
+         * Records a failed call, unless it was abandoned because another call won the race or
+         * the login gave up. An abandoned call says nothing about the endpoint, so it counts
+         * neither against the circuit breaker nor in the latency we hedge on. A call which ran
+         * into the deadline is recorded, so that an endpoint which stalls opens its breaker.
+         */
+        private void recordFailure(long start, Attempt attempt) {
+            if(attempt.abandoned) {
+                return;
+            }
+            this.errors.incrementAndGet();
+            this.breaker.recordFailure();
+            this.latency.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package no.feide.client.lasso;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -7,7 +8,21 @@ import java.util.List;
 /**
  * This class is used for storing attributes which are received in a SAML2 Response.
  */
-class Attribute implements Iterable<String> {
+class Attribute implements Iterable<String>, Serializable {
+
+    /**
+     * Serial version UID, default value.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The name of an Attribute which holds the NameID of a subject. Its values are the NameID,
+     * the Format, the NameQualifier and the SPNameQualifier, with an empty string for the ones
+     * which are missing. Such an Attribute is always kept apart from the attributes of the
+     * user, as in {@link LassoBackend.LoginResult}.
+     */
+    static final String NAME_ID = "urn:oasis:names:tc:SAML:2.0:assertion:NameID";
+
     /**
      * The name of this attribute.
      */
@@ -0,0 +1,311 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs AttributeQueryService against a local stand-in for the attribute service of the IdP,
+ * and checks the caching:
+ *
+ * 1. Many concurrent queries for a subject which isn't cached send a single AttributeQuery.
+ * 2. A query within the TTL is answered from the cache.
+ * 3. A query after the TTL gets the stale result at once, while it is refreshed in the
+ *    background.
+ * 4. The next query gets the refreshed result.
+ *
+ * The stand-in answers with a signed response, after a delay, with an attribute which counts
+ * the queries it has answered.
+ *
+ * Usage: java no.feide.client.lasso.AttributeAuthorityStandIn &lt;context root&gt; &lt;IdP private key&gt;
+ *     [concurrent queries]
+ *
+ * The context root is laid out like for StandaloneServer. The IdP meta data, or the IdP public
+ * key, must match the private key. The exit status is 1 if a check fails.
+ */
+public final class AttributeAuthorityStandIn {
+
+    /**
+     * The number of milliseconds the stand-in takes to answer.
+     */
+    private static final long DELAY = 200;
+
+    /**
+     * The TTL of the cache in this run.
+     */
+    private static final long TTL = 1000;
+
+    /**
+     * The entity ID of the IdP, which the stand-in uses as issuer.
+     */
+    private final String idpEntityId;
+
+    /**
+     * Signs the responses of the stand-in.
+     */
+    private final SamlCrypto idpCrypto;
+
+    /**
+     * Generates the IDs of the responses.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The number of queries the stand-in has answered.
+     */
+    private final AtomicLong answered = new AtomicLong();
+
+    /**
+     * Creates the stand-in.
+     *
+     * @param config the configuration of the servlet.
+     * @param idpKeyPath the path to the private key of the IdP.
+     * @throws ServletException if we fail to load the key.
+     */
+    private AttributeAuthorityStandIn(Config config, String idpKeyPath) throws ServletException {
+        this.idpEntityId = config.getIdPEntityID();
+        this.idpCrypto = new SamlCrypto(null, new File(idpKeyPath).getAbsolutePath());
+    }
+
+    /**
+     * Runs the checks.
+     *
+     * @param args the context root, the private key of the IdP, and the number of concurrent
+     *        queries.
+     * @throws Exception if the stand-in fails to start.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java " + AttributeAuthorityStandIn.class.getName()
+                    + " <context root> <IdP private key> [concurrent queries]");
+            System.exit(2);
+        }
+        int concurrency = args.length == 3 ? Integer.parseInt(args[2]) : 50;
+
+        Config config = new Config(new File(args[0]).getAbsoluteFile());
+        final AttributeAuthorityStandIn standIn = new AttributeAuthorityStandIn(config, args[1]);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 50);
+        server.createContext("/aa", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                standIn.handle(e);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory("stand-in")));
+        server.start();
+
+        final AttributeQueryService service = new AttributeQueryService(config, new SoapClient(),
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/aa", TTL, 60000);
+        final Attribute subject = new Attribute(Attribute.NAME_ID);
+        subject.addValue("stand-in-subject");
+        subject.addValue("urn:oasis:names:tc:SAML:2.0:nameid-format:persistent");
+        subject.addValue(config.getIdPEntityID());
+        subject.addValue("");
+
+        boolean ok = true;
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("client"));
+        try {
+            List<Future<AttributeQueryService.Result>> futures = new ArrayList<Future<AttributeQueryService.Result>>();
+            for(int i = 0; i < concurrency; i++) {
+                futures.add(clients.submit(new Callable<AttributeQueryService.Result>() {
+                    public AttributeQueryService.Result call() throws ServletException {
+                        return service.query(subject);
+                    }
+                }));
+            }
+            String tag = futures.get(0).get().getTag();
+            boolean same = true;
+            for(Future<AttributeQueryService.Result> f : futures) {
+                same &= tag.equals(f.get().getTag());
+            }
+            ok &= check(same, "every concurrent query got the same result");
+            ok &= check(standIn.answered.get() == 1, concurrency + " concurrent queries sent "
+                    + standIn.answered.get() + " AttributeQuery");
+
+            AttributeQueryService.Result cached = service.query(subject);
+            ok &= check(cached.getTag().equals(tag) && standIn.answered.get() == 1,
+                    "a query within the TTL was answered from the cache");
+
+            Thread.sleep(TTL + 50);
+            long start = System.nanoTime();
+            AttributeQueryService.Result stale = service.query(subject);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            ok &= check(stale.getTag().equals(tag) && elapsed < DELAY, "a query after the TTL got the stale result in "
+                    + elapsed + " ms");
+
+            Thread.sleep(DELAY * 3);
+            AttributeQueryService.Result fresh = service.query(subject);
+            ok &= check(!fresh.getTag().equals(tag) && standIn.answered.get() == 2,
+                    "the result was refreshed in the background: " + fresh.getAttributes().values());
+        } finally {
+            clients.shutdownNow();
+            service.shutdown();
+            server.stop(0);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Prints the outcome of a check.
+     *
+     * @param passed whether the check passed.
+     * @param description what was checked.
+     * @return whether the check passed.
+     */
+    private static boolean check(boolean passed, String description) {
+        System.out.println((passed ? "ok   " : "FAIL ") + description);
+        return passed;
+    }
+
+    /**
+     * Answers an AttributeQuery with a signed response.
+     *
+     * @param e the exchange of the request.
+     * @throws IOException if we fail to send the response.
+     */
+    private void handle(HttpExchange e) throws IOException {
+        try {
+            Element envelope = JavaBackend.parse(new String(readAll(e.getRequestBody()), "UTF-8"))
+                .getDocumentElement();
+            Element body = JavaBackend.child(envelope, JavaBackend.SOAP_NS, "Body");
+            Element query = body == null ? null : JavaBackend.child(body, JavaBackend.PROTOCOL_NS, "AttributeQuery");
+            Element subject = query == null ? null : JavaBackend.child(query, JavaBackend.ASSERTION_NS, "Subject");
+            Element nameId = subject == null ? null : JavaBackend.child(subject, JavaBackend.ASSERTION_NS, "NameID");
+            Element issuer = query == null ? null : JavaBackend.child(query, JavaBackend.ASSERTION_NS, "Issuer");
+            if(nameId == null || issuer == null) {
+                throw new ServletException("Expected an AttributeQuery with an Issuer and a NameID.");
+            }
+
+            Thread.sleep(DELAY);
+            long count = this.answered.incrementAndGet();
+            byte[] out = Utf8Output.encode(this.buildResponse(query.getAttributeNS(null, "ID"),
+                    issuer.getTextContent().trim(), nameId.getTextContent().trim(), count));
+            e.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            e.sendResponseHeaders(200, out.length);
+            OutputStream os = e.getResponseBody();
+            os.write(out);
+            os.close();
+        } catch(ServletException ex) {
+            System.out.println("Stand-in: " + ex.getMessage());
+            e.sendResponseHeaders(500, -1);
+        } catch(InterruptedException ex) {
+            e.sendResponseHeaders(503, -1);
+        } finally {
+            e.close();
+        }
+    }
+
+    /**
+     * Builds the SOAP envelope with the signed response to a query.
+     *
+     * @param inResponseTo the ID of the query.
+     * @param sp the entity ID of the service provider.
+     * @param nameId the NameID of the subject.
+     * @param count the number of queries answered, including this one.
+     * @return the envelope.
+     * @throws ServletException if we fail to sign the response.
+     */
+    private String buildResponse(String inResponseTo, String sp, String nameId, long count)
+    throws ServletException {
+        long now = System.currentTimeMillis();
+        String issueInstant = formatTime(now);
+        String issuer = "<saml:Issuer>" + JavaBackend.escape(this.idpEntityId) + "</saml:Issuer>";
+
+        StringBuilder xml = new StringBuilder(2048);
+        xml.append("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"").append(JavaBackend.SOAP_NS).append("\"><SOAP-ENV:Body>")
+            .append("<samlp:Response xmlns:samlp=\"").append(JavaBackend.PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(JavaBackend.ASSERTION_NS)
+            .append("\" ID=\"").append(this.newId()).append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant)
+            .append("\" InResponseTo=\"").append(JavaBackend.escape(inResponseTo)).append("\">").append(issuer)
+            .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>")
+            .append("</samlp:Status><saml:Assertion ID=\"").append(this.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant).append("\">").append(issuer)
+            .append("<saml:Subject><saml:NameID>").append(JavaBackend.escape(nameId)).append("</saml:NameID>")
+            .append("</saml:Subject><saml:Conditions NotBefore=\"").append(issueInstant)
+            .append("\" NotOnOrAfter=\"").append(formatTime(now + 5 * 60 * 1000))
+            .append("\"><saml:AudienceRestriction><saml:Audience>").append(JavaBackend.escape(sp))
+            .append("</saml:Audience></saml:AudienceRestriction></saml:Conditions><saml:AttributeStatement>")
+            .append("<saml:Attribute Name=\"queryCount\"><saml:AttributeValue>")
+            .append(Base64.encodeBytes(Utf8Output.encode(Long.toString(count)), Base64.DONT_BREAK_LINES))
+            .append("</saml:AttributeValue></saml:Attribute>")
+            .append("</saml:AttributeStatement></saml:Assertion></samlp:Response>")
+            .append("</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+
+        Document d = JavaBackend.parse(xml.toString());
+        Element body = JavaBackend.child(d.getDocumentElement(), JavaBackend.SOAP_NS, "Body");
+        Element response = JavaBackend.child(body, JavaBackend.PROTOCOL_NS, "Response");
+        this.idpCrypto.sign(response, JavaBackend.child(response, JavaBackend.ASSERTION_NS, "Issuer").getNextSibling());
+        return JavaBackend.serialize(d);
+    }
+
+    /**
+     * Reads a stream to the end, and closes it.
+     *
+     * @param in the stream.
+     * @return the bytes read.
+     * @throws IOException if we fail to read the stream.
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Generates an ID for a message or assertion.
+     *
+     * @return the ID.
+     */
+    private String newId() {
+        byte[] bytes = new byte[20];
+        this.random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder("_");
+        for(byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Formats a time as an xs:dateTime in UTC.
+     *
+     * @param time the time, in milliseconds since the epoch.
+     * @return the formatted time.
+     */
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
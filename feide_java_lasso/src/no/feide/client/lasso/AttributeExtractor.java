@@ -54,13 +54,14 @@ class AttributeExtractor {
 
         // Lasso doesn't currently validate more than the first assertion-element. Therefore we
         // throw an exception if more than one assertion is included in the reply.
-        if(response.getAssertion().length() > 1) {
+        NodeList nl = LassoFacade.getAssertion(response);
+        int length = LassoFacade.length(nl);
+        if(length > 1) {
             throw new ServletException("More than one assertion in SAML2 response.");            
         }
 
-        NodeList nl = response.getAssertion();
-        for(int i = 0; i < nl.length(); i++) {
-            Saml2Assertion assertion = (Saml2Assertion)nl.getItem(i);
+        for(int i = 0; i < length; i++) {
+            Saml2Assertion assertion = (Saml2Assertion)LassoFacade.getItem(nl, i);
             this.handleAssertion(assertion);
         }
     }
@@ -71,9 +72,10 @@ class AttributeExtractor {
      * @param assertion the SAML2 Assertion node.
      */
     private void handleAssertion(Saml2Assertion assertion) {
-        NodeList nl = assertion.getAttributeStatement();
-        for(int i = 0; i < nl.length(); i++) {
-            Saml2AttributeStatement attributeStatement = (Saml2AttributeStatement)nl.getItem(i);
+        NodeList nl = LassoFacade.getAttributeStatement(assertion);
+        int length = LassoFacade.length(nl);
+        for(int i = 0; i < length; i++) {
+            Saml2AttributeStatement attributeStatement = (Saml2AttributeStatement)LassoFacade.getItem(nl, i);
             this.handleAttributeStatement(attributeStatement);
         }
     }
@@ -85,9 +87,10 @@ class AttributeExtractor {
      * @param attributeStatement the AttributeStatement node.
      */
     private void handleAttributeStatement(Saml2AttributeStatement attributeStatement) {
-        NodeList nl = attributeStatement.getAttribute();
-        for(int i = 0; i < nl.length(); i++) {
-            Saml2Attribute attribute = (Saml2Attribute)nl.getItem(i);
+        NodeList nl = LassoFacade.getAttribute(attributeStatement);
+        int length = LassoFacade.length(nl);
+        for(int i = 0; i < length; i++) {
+            Saml2Attribute attribute = (Saml2Attribute)LassoFacade.getItem(nl, i);
             this.handleAttribute(attribute);
         }
     }
@@ -98,12 +101,12 @@ class AttributeExtractor {
      * @param attribute the SAML2 Attribute node.
      */
     private void handleAttribute(Saml2Attribute attribute) {
-        String name = attribute.getName();
+        String name = LassoFacade.getName(attribute);
         Attribute attributeStore = this.findAttribute(name);
 
         List<String> values = this.getAttributeValues(attribute);
         for(String value : values) {
-            this.addFeideAttributeValue(attributeStore, value);
+            addFeideAttributeValue(attributeStore, value, this.attributeSeparator);
         }
     }
 
@@ -116,10 +119,11 @@ class AttributeExtractor {
      *
      * @param attributeStore Attribute object where we should store the values we find.
      * @param value the string with the encoded values.
+     * @param separator the separator between the values.
      */
-    private void addFeideAttributeValue(Attribute attributeStore, String value) {
+    static void addFeideAttributeValue(Attribute attributeStore, String value, String separator) {
         // Split into multiple values at '_'.
-        String[] values = value.split(this.attributeSeparator);
+        String[] values = value.split(separator);
         for(String v : values) {
             try {
                 attributeStore.addValue(new String(Base64.decode(v), "UTF-8"));
@@ -140,8 +144,6 @@ class AttributeExtractor {
      * @return list of attribute values in the Saml2Attribute object.
      */
     private List<String> getAttributeValues(Saml2Attribute attribute) {
-        List<String> values = new ArrayList<String>();
-
         /*
          * Currently, there is no way to extract the AttributeValue from the Java binding to
          * the lasso library. Instead, we serialize the Saml2Attribute object, and parses the
@@ -151,8 +153,21 @@ class AttributeExtractor {
          * </saml:Attribute>
          */
 
-        // Dump the attribute and build a DOM Document object from it.
-        Document d = this.parseXML(attribute.dump());
+        return parseAttributeValues(LassoFacade.dump(attribute));
+    }
+
+    /**
+     * Extracts the string value of every AttributeValue element in a serialized SAML2
+     * Attribute element, as Lasso serializes it.
+     *
+     * @param xml the serialized Attribute element.
+     * @return list of attribute values in the element.
+     */
+    static List<String> parseAttributeValues(String xml) {
+        List<String> values = new ArrayList<String>();
+
+        // Build a DOM Document object from the dump.
+        Document d = parseXML(xml);
 
         // The first child will be a saml:Attribute node.
         Node attrNode = d.getFirstChild();
@@ -200,7 +215,7 @@ class AttributeExtractor {
      * @param xml the string with the XML-document.
      * @return the Document which is created from the xml string.
      */
-    private Document parseXML(String xml) {
+    private static Document parseXML(String xml) {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 
         try {
@@ -0,0 +1,417 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Fetches fresh attributes of a subject from the attribute service of the IdP, with SAML2
+ * AttributeQuery requests over SOAP. The results are cached by NameID:
+ *
+ * - A result younger than the TTL is returned as it is.
+ * - A result which is older than the TTL, but not older than the TTL plus the stale period, is
+ *   returned at once, while a background thread fetches a new one.
+ * - Otherwise the caller waits for a new result.
+ *
+ * Concurrent queries for the same subject share a single request to the IdP.
+ */
+class AttributeQueryService {
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * Builds the queries and checks the responses.
+     */
+    private final JavaBackend saml;
+
+    /**
+     * The client we send the queries with.
+     */
+    private final SoapClient soapClient;
+
+    /**
+     * The location of the attribute service.
+     */
+    private final String url;
+
+    /**
+     * The names of the attributes we ask for, or an empty list for all of them.
+     */
+    private final List<String> names;
+
+    /**
+     * The number of milliseconds a result is fresh.
+     */
+    private final long ttl;
+
+    /**
+     * The number of milliseconds a result may be used after it has expired, while it is
+     * refreshed.
+     */
+    private final long stale;
+
+    /**
+     * The number of milliseconds we wait for the attribute service.
+     */
+    private final long timeout;
+
+    /**
+     * The maximum number of subjects we keep results for.
+     */
+    private final int maxEntries;
+
+    /**
+     * The results, by subject.
+     */
+    private final ConcurrentMap<String, Result> cache = new ConcurrentHashMap<String, Result>();
+
+    /**
+     * The queries which are running, by subject.
+     */
+    private final ConcurrentMap<String, Query> inFlight = new ConcurrentHashMap<String, Query>();
+
+    /**
+     * The threads which refresh expired results.
+     */
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * Numbers the results, so that each result gets its own tag.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong hits;
+    private final AtomicLong staleHits;
+    private final AtomicLong misses;
+    private final AtomicLong coalesced;
+    private final AtomicLong requests;
+    private final AtomicLong failures;
+    private final AtomicLong evicted;
+    private final LatencyHistogram latency;
+
+    /**
+     * The gauges of this service, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * The result of a query.
+     */
+    static final class Result {
+
+        /**
+         * The attributes of the subject.
+         */
+        private final Map<String, Attribute> attributes;
+
+        /**
+         * The time the result was received, in milliseconds since the epoch.
+         */
+        private final long time;
+
+        /**
+         * A string which is different for every result.
+         */
+        private final String tag;
+
+        /**
+         * Creates a result.
+         *
+         * @param attributes the attributes of the subject.
+         * @param time the time the result was received.
+         * @param tag the tag of the result.
+         */
+        Result(Map<String, Attribute> attributes, long time, String tag) {
+            this.attributes = attributes;
+            this.time = time;
+            this.tag = tag;
+        }
+
+        /**
+         * Gets the attributes of the subject.
+         *
+         * @return the attributes.
+         */
+        Map<String, Attribute> getAttributes() {
+            return this.attributes;
+        }
+
+        /**
+         * Gets the tag of this result.
+         *
+         * @return the tag.
+         */
+        String getTag() {
+            return this.tag;
+        }
+    }
+
+    /**
+     * A query which is running. It removes itself from the queries in flight when it is done.
+     */
+    private final class Query extends FutureTask<Result> {
+        private final String key;
+
+        Query(final String key, final Attribute subject) {
+            super(new Callable<Result>() {
+                public Result call() throws ServletException {
+                    return AttributeQueryService.this.fetch(key, subject);
+                }
+            });
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            AttributeQueryService.this.inFlight.remove(this.key, this);
+        }
+    }
+
+    /**
+     * Creates the service from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @param soapClient the client we send the queries with.
+     * @throws ServletException if the configuration is invalid, or the IdP has no attribute
+     *         service.
+     */
+    AttributeQueryService(Config config, SoapClient soapClient) throws ServletException {
+        this(config, soapClient, config.getProperty("no.feide.test.attributequery.url"),
+                config.getLongProperty("no.feide.test.attributequery.ttl", 300000),
+                config.getLongProperty("no.feide.test.attributequery.stale", 3600000));
+    }
+
+    /**
+     * Creates the service with the given attribute service and cache periods, and the rest of
+     * the configuration from the configuration of the servlet.
+     *
+     * @param config the configuration of the servlet.
+     * @param soapClient the client we send the queries with.
+     * @param location the location of the attribute service, or null to use the one in the
+     *        IdP meta data.
+     * @param ttl the number of milliseconds a result is fresh.
+     * @param stale the number of milliseconds an expired result may be used while it is
+     *        refreshed.
+     * @throws ServletException if the configuration is invalid, or the IdP has no attribute
+     *         service.
+     */
+    AttributeQueryService(Config config, SoapClient soapClient, String location, long ttl, long stale)
+    throws ServletException {
+        this.saml = new JavaBackend(config);
+        this.soapClient = soapClient;
+
+        this.url = location == null ? this.saml.getAttributeServiceUrl() : location;
+        if(this.url == null) {
+            throw new ServletException("The IdP meta data has no SOAP AttributeService, and "
+                    + "no.feide.test.attributequery.url isn't set.");
+        }
+
+        List<String> list = new ArrayList<String>();
+        String attributes = config.getProperty("no.feide.test.attributequery.attributes");
+        if(attributes != null) {
+            for(String name : attributes.split(",")) {
+                if(name.trim().length() > 0) {
+                    list.add(name.trim());
+                }
+            }
+        }
+        this.names = Collections.unmodifiableList(list);
+
+        this.ttl = ttl;
+        this.stale = stale;
+        this.timeout = config.getLongProperty("no.feide.test.attributequery.timeout", 5000);
+        this.maxEntries = (int)config.getLongProperty("no.feide.test.attributequery.maxentries", 10000);
+
+        // A refresh which doesn't fit is dropped. The stale result is used until a later
+        // request starts another refresh.
+        int threads = (int)config.getLongProperty("no.feide.test.attributequery.threads", 4);
+        this.refresher = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16), new DaemonThreadFactory("attribute-query"));
+
+        Metrics metrics = Metrics.getInstance();
+        this.hits = metrics.counter(config.getMetricName("attributequery.hits"));
+        this.staleHits = metrics.counter(config.getMetricName("attributequery.stale"));
+        this.misses = metrics.counter(config.getMetricName("attributequery.misses"));
+        this.coalesced = metrics.counter(config.getMetricName("attributequery.coalesced"));
+        this.requests = metrics.counter(config.getMetricName("attributequery.requests"));
+        this.failures = metrics.counter(config.getMetricName("attributequery.failures"));
+        this.evicted = metrics.counter(config.getMetricName("attributequery.evicted"));
+        this.latency = metrics.histogram(config.getMetricName("attributequery.latency"));
+        this.gauges.put(config.getMetricName("attributequery.entries"), new Metrics.Gauge() {
+            public long getValue() {
+                return AttributeQueryService.this.cache.size();
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Finds the attributes of a subject.
+     *
+     * @param subject the NameID of the subject, as stored under {@link Attribute#NAME_ID}.
+     * @return the attributes, from the cache or from the attribute service.
+     * @throws ServletException if there is no usable result in the cache, and the query fails.
+     */
+    Result query(Attribute subject) throws ServletException {
+        String key = key(subject);
+        Result result = this.cache.get(key);
+        if(result != null) {
+            long age = System.currentTimeMillis() - result.time;
+            if(age < this.ttl) {
+                this.hits.incrementAndGet();
+                return result;
+            }
+            if(age < this.ttl + this.stale) {
+                this.staleHits.incrementAndGet();
+                this.refresh(key, subject);
+                return result;
+            }
+            this.cache.remove(key, result);
+        }
+
+        this.misses.incrementAndGet();
+        Query query = new Query(key, subject);
+        Query running = this.inFlight.putIfAbsent(key, query);
+        if(running != null) {
+            this.coalesced.incrementAndGet();
+            query = running;
+        } else {
+            // The first caller runs the query itself, and the others wait for it.
+            query.run();
+        }
+
+        try {
+            return query.get(this.timeout, TimeUnit.MILLISECONDS);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof ServletException) {
+                throw (ServletException)e.getCause();
+            }
+            throw new ServletException("Attribute query failed.", e.getCause());
+        } catch(TimeoutException e) {
+            throw new ServletException("Timed out waiting for the attribute query of another request.");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for an attribute query.", e);
+        }
+    }
+
+    /**
+     * Starts a background query for a subject, unless one is already running.
+     *
+     * @param key the key of the subject.
+     * @param subject the NameID of the subject.
+     */
+    private void refresh(String key, Attribute subject) {
+        Query query = new Query(key, subject);
+        if(this.inFlight.putIfAbsent(key, query) != null) {
+            return;
+        }
+        try {
+            this.refresher.execute(query);
+        } catch(RejectedExecutionException e) {
+            this.inFlight.remove(key, query);
+        }
+    }
+
+    /**
+     * Sends a query to the attribute service, and caches the result.
+     *
+     * @param key the key of the subject.
+     * @param subject the NameID of the subject.
+     * @return the result.
+     * @throws ServletException if the query fails, or the response isn't accepted.
+     */
+    private Result fetch(String key, Attribute subject) throws ServletException {
+        this.requests.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            String id = this.saml.newId();
+            String message = this.saml.buildAttributeQuery(id, subject, this.names);
+            String reply = this.soapClient.call(this.url, message.getBytes("UTF-8"), this.timeout);
+            Map<String, Attribute> attributes = this.saml.processAttributeResponse(reply, id, subject);
+
+            long now = System.currentTimeMillis();
+            Result result = new Result(attributes, now,
+                    Long.toString(now, 36) + "-" + Long.toString(this.sequence.incrementAndGet(), 36));
+            this.store(key, result, now);
+            return result;
+        } catch(IOException e) {
+            this.failures.incrementAndGet();
+            this.debug.warning("Attribute query to " + this.url + " failed: " + e);
+            throw new ServletException("Attribute query to " + this.url + " failed.", e);
+        } catch(ServletException e) {
+            this.failures.incrementAndGet();
+            this.debug.warning("Attribute query to " + this.url + " failed: " + e.getMessage());
+            throw e;
+        } finally {
+            this.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Caches a result. When the cache is full, the results which can no longer be used are
+     * removed first. If the cache is still full, the result isn't cached.
+     *
+     * @param key the key of the subject.
+     * @param result the result.
+     * @param now the current time.
+     */
+    private void store(String key, Result result, long now) {
+        if(this.cache.size() >= this.maxEntries && !this.cache.containsKey(key)) {
+            for(Iterator<Result> i = this.cache.values().iterator(); i.hasNext(); ) {
+                if(now - i.next().time >= this.ttl + this.stale) {
+                    i.remove();
+                    this.evicted.incrementAndGet();
+                }
+            }
+            if(this.cache.size() >= this.maxEntries) {
+                return;
+            }
+        }
+        this.cache.put(key, result);
+    }
+
+    /**
+     * Stops the threads which refresh results, and removes the gauges of the service.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.refresher.shutdownNow();
+    }
+
+    /**
+     * Builds the cache key of a subject from every part of its NameID.
+     *
+     * @param subject the NameID.
+     * @return the key.
+     */
+    private static String key(Attribute subject) {
+        StringBuilder sb = new StringBuilder();
+        for(String value : subject) {
+            sb.append(value).append('\n');
+        }
+        return sb.toString();
+    }
+}
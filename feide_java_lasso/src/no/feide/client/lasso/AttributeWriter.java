@@ -0,0 +1,227 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Writes the attributes of a user as JSON or CBOR, straight to an output stream. Both formats
+ * are a map from the attribute name to an array of the values:
+ *
+ * {"cn": ["Ola Nordmann"], "isMemberOf": ["group1", "group2"]}
+ */
+final class AttributeWriter {
+
+    static final String JSON = "application/json";
+    static final String CBOR = "application/cbor";
+
+    private static final byte[] COMMA = Utf8Output.encode(",");
+    private static final byte[] COLON = Utf8Output.encode(":");
+
+    /**
+     * The escaped form of the characters which must be escaped in JSON strings.
+     */
+    private static final byte[][] JSON_ESCAPES = new byte[128][];
+    static {
+        for(int c = 0; c < 0x20; c++) {
+            JSON_ESCAPES[c] = Utf8Output.encode(String.format("\\u%04x", c));
+        }
+        JSON_ESCAPES['"'] = Utf8Output.encode("\\\"");
+        JSON_ESCAPES['\\'] = Utf8Output.encode("\\\\");
+        JSON_ESCAPES['\n'] = Utf8Output.encode("\\n");
+        JSON_ESCAPES['\r'] = Utf8Output.encode("\\r");
+        JSON_ESCAPES['\t'] = Utf8Output.encode("\\t");
+    }
+
+    /**
+     * CBOR major types.
+     */
+    private static final int CBOR_TEXT = 3 << 5;
+    private static final int CBOR_ARRAY = 4 << 5;
+    private static final int CBOR_MAP = 5 << 5;
+
+    /**
+     * This class only has static methods.
+     */
+    private AttributeWriter() {
+    }
+
+    /**
+     * Chooses the format of the attributes from the Accept header of a request. The format with
+     * the highest quality value wins, and JSON wins a tie.
+     *
+     * @param accept the Accept header, or null if the request has none.
+     * @return JSON or CBOR, or null if the client accepts neither.
+     */
+    static String selectFormat(String accept) {
+        if(accept == null) {
+            return JSON;
+        }
+
+        // A quality value given for the type itself takes precedence over a wildcard.
+        float json = -1;
+        float cbor = -1;
+        float wildcard = 0;
+        for(String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase();
+            float q = 1;
+            for(int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if(p.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(p.substring(2));
+                    } catch(NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+
+            if(type.equals(JSON)) {
+                json = Math.max(json, q);
+            } else if(type.equals(CBOR)) {
+                cbor = Math.max(cbor, q);
+            } else if(type.equals("*/*") || type.equals("application/*")) {
+                wildcard = Math.max(wildcard, q);
+            }
+        }
+        if(json < 0) {
+            json = wildcard;
+        }
+        if(cbor < 0) {
+            cbor = wildcard;
+        }
+
+        if(json <= 0 && cbor <= 0) {
+            return null;
+        }
+        return cbor > json ? CBOR : JSON;
+    }
+
+    /**
+     * Writes attributes in the given format.
+     *
+     * @param out the stream we write to. The stream isn't closed.
+     * @param format JSON or CBOR.
+     * @param attributes the attributes.
+     * @throws IOException if we fail to write to the stream.
+     */
+    static void write(OutputStream out, String format, Map<String, Attribute> attributes) throws IOException {
+        Utf8Output output = Utf8Output.start(out);
+        boolean done = false;
+        try {
+            if(CBOR.equals(format)) {
+                writeCbor(output, attributes);
+            } else {
+                writeJson(output, attributes);
+            }
+            output.finish();
+            done = true;
+        } finally {
+            if(!done) {
+                output.discard();
+            }
+        }
+    }
+
+    /**
+     * Writes attributes as a JSON object.
+     *
+     * @param output the output.
+     * @param attributes the attributes.
+     * @throws IOException if we fail to write to the stream.
+     */
+    private static void writeJson(Utf8Output output, Map<String, Attribute> attributes) throws IOException {
+        output.write('{');
+        boolean firstAttribute = true;
+        for(Map.Entry<String, Attribute> a : attributes.entrySet()) {
+            if(!firstAttribute) {
+                output.write(COMMA);
+            }
+            writeJsonString(output, a.getKey());
+            output.write(COLON);
+            output.write('[');
+            boolean firstValue = true;
+            for(String value : a.getValue()) {
+                if(!firstValue) {
+                    output.write(COMMA);
+                }
+                writeJsonString(output, value);
+                firstValue = false;
+            }
+            output.write(']');
+            firstAttribute = false;
+        }
+        output.write('}');
+    }
+
+    /**
+     * Writes a JSON string.
+     *
+     * @param output the output.
+     * @param s the string.
+     * @throws IOException if we fail to write to the stream.
+     */
+    private static void writeJsonString(Utf8Output output, String s) throws IOException {
+        output.write('"');
+        output.writeEscaped(s, JSON_ESCAPES);
+        output.write('"');
+    }
+
+    /**
+     * Writes attributes as a CBOR map.
+     *
+     * @param output the output.
+     * @param attributes the attributes.
+     * @throws IOException if we fail to write to the stream.
+     */
+    private static void writeCbor(Utf8Output output, Map<String, Attribute> attributes) throws IOException {
+        writeCborHead(output, CBOR_MAP, attributes.size());
+        for(Map.Entry<String, Attribute> a : attributes.entrySet()) {
+            writeCborString(output, a.getKey());
+            writeCborHead(output, CBOR_ARRAY, a.getValue().getValueCount());
+            for(String value : a.getValue()) {
+                writeCborString(output, value);
+            }
+        }
+    }
+
+    /**
+     * Writes a CBOR text string.
+     *
+     * @param output the output.
+     * @param s the string.
+     * @throws IOException if we fail to write to the stream.
+     */
+    private static void writeCborString(Utf8Output output, String s) throws IOException {
+        writeCborHead(output, CBOR_TEXT, Utf8Output.length(s));
+        output.writeText(s);
+    }
+
+    /**
+     * Writes the head of a CBOR data item.
+     *
+     * @param output the output.
+     * @param major the major type, shifted into place.
+     * @param length the length or count of the item.
+     * @throws IOException if we fail to write to the stream.
+     */
+    private static void writeCborHead(Utf8Output output, int major, int length) throws IOException {
+        if(length < 24) {
+            output.write(major | length);
+        } else if(length < 0x100) {
+            output.write(major | 24);
+            output.write(length);
+        } else if(length < 0x10000) {
+            output.write(major | 25);
+            output.write(length >> 8);
+            output.write(length);
+        } else {
+            output.write(major | 26);
+            output.write(length >> 24);
+            output.write(length >> 16);
+            output.write(length >> 8);
+            output.write(length);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package no.feide.client.lasso;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletException;
+
+/**
+ * A pool of ready-to-use authentication request redirect URLs. Building an authentication
+ * request means creating a Lasso Login object, building the request and possibly signing it.
+ * A background thread does this ahead of time, so that a login only has to take a URL from the
+ * pool and redirect to it.
+ *
+ * Each URL contains a unique request ID and the IssueInstant of the moment it was built.
+ * URLs are discarded when they reach the maximum age, so the IdP never receives a stale request.
+ * The pool keeps a separate queue for each binding, and fills the queue for the binding
+ * currently selected by the {@link BindingSelector}.
+ *
+ * The pool is only refilled while it is used. When no login has taken an URL since the
+ * previous fill, the old URLs are dropped and the background thread sleeps until the next
+ * login, so an idle tenant doesn't keep building requests nobody asks for.
+ */
+class AuthnRequestPool {
+
+    /**
+     * Builds authentication request redirect URLs.
+     */
+    interface Builder {
+        /**
+         * Builds the redirect URL of a new authentication request.
+         *
+         * @param binding the binding the IdP should use for its response.
+         * @return the URL we should redirect the user to.
+         * @throws ServletException if we fail to build the request.
+         */
+        String build(String binding) throws ServletException;
+    }
+
+    /**
+     * A prebuilt redirect URL.
+     */
+    private static class Entry {
+        final String url;
+        final long created;
+
+        Entry(String url) {
+            this.url = url;
+            this.created = System.nanoTime();
+        }
+    }
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * Builds the URLs.
+     */
+    private final Builder builder;
+
+    /**
+     * Tells us which binding to build URLs for.
+     */
+    private final BindingSelector bindingSelector;
+
+    /**
+     * Maximum number of URLs we keep for each binding.
+     */
+    private final int capacity;
+
+    /**
+     * Maximum age of an URL, in nanoseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * The URLs, by binding.
+     */
+    private final ConcurrentMap<String, BlockingQueue<Entry>> queues =
+        new ConcurrentHashMap<String, BlockingQueue<Entry>>();
+
+    /**
+     * The thread which fills the pool.
+     */
+    private final Thread producer;
+
+    /**
+     * Set when the pool is shut down.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The last time a login took an URL, or the time the pool was created, as returned by
+     * System.nanoTime().
+     */
+    private volatile long lastTake = System.nanoTime();
+
+    /**
+     * Number of logins which got an URL from the pool.
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of logins which found the pool empty.
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Number of URLs which were discarded because they were too old.
+     */
+    private final AtomicLong expired;
+
+    /**
+     * Number of URLs the background thread has failed to build.
+     */
+    private final AtomicLong errors;
+
+    /**
+     * The gauges of this pool, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * Creates and starts a pool.
+     *
+     * @param config the configuration of the servlet, which names the metrics of a tenant.
+     * @param builder builds the URLs.
+     * @param bindingSelector tells us which binding to build URLs for.
+     * @param capacity maximum number of URLs we keep for each binding.
+     * @param maxAgeMillis maximum age of an URL, in milliseconds.
+     */
+    AuthnRequestPool(Config config, Builder builder, BindingSelector bindingSelector, int capacity,
+            long maxAgeMillis) {
+        this.builder = builder;
+        this.bindingSelector = bindingSelector;
+        this.capacity = capacity;
+        this.maxAge = maxAgeMillis * 1000 * 1000;
+
+        Metrics metrics = Metrics.getInstance();
+        this.hits = metrics.counter(config.getMetricName("authnrequest.pool.hits"));
+        this.misses = metrics.counter(config.getMetricName("authnrequest.pool.misses"));
+        this.expired = metrics.counter(config.getMetricName("authnrequest.pool.expired"));
+        this.errors = metrics.counter(config.getMetricName("authnrequest.pool.errors"));
+        this.gauges.put(config.getMetricName("authnrequest.pool.size"), new Metrics.Gauge() {
+            public long getValue() {
+                long size = 0;
+                for(BlockingQueue<Entry> q : AuthnRequestPool.this.queues.values()) {
+                    size += q.size();
+                }
+                return size;
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+
+        this.producer = new DaemonThreadFactory("authnrequest-pool").newThread(new Runnable() {
+            public void run() {
+                AuthnRequestPool.this.produce();
+            }
+        });
+        this.producer.start();
+    }
+
+    /**
+     * Takes a prebuilt URL from the pool.
+     *
+     * @param binding the binding the IdP should use for its response.
+     * @return the URL we should redirect the user to, or null if the pool is empty.
+     */
+    String take(String binding) {
+        BlockingQueue<Entry> queue = this.getQueue(binding);
+
+        Entry e;
+        while((e = queue.poll()) != null) {
+            if(System.nanoTime() - e.created < this.maxAge) {
+                break;
+            }
+            this.expired.incrementAndGet();
+        }
+
+        // Wake up the producer, so that it replaces the URL we took, or starts filling the
+        // pool again if it was idle.
+        this.lastTake = System.nanoTime();
+        LockSupport.unpark(this.producer);
+
+        if(e == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+
+        this.hits.incrementAndGet();
+        return e.url;
+    }
+
+    /**
+     * Stops the background thread, and removes the gauges of the pool.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.stopped = true;
+        this.producer.interrupt();
+    }
+
+    /**
+     * Finds or creates the queue for a binding.
+     *
+     * @param binding the binding.
+     * @return the queue for the binding.
+     */
+    private BlockingQueue<Entry> getQueue(String binding) {
+        BlockingQueue<Entry> queue = this.queues.get(binding);
+        if(queue == null) {
+            BlockingQueue<Entry> created = new LinkedBlockingQueue<Entry>(this.capacity);
+            queue = this.queues.putIfAbsent(binding, created);
+            if(queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * The main loop of the background thread. Removes old URLs, and fills the queue of the
+     * current binding. Sleeps while the queue is full, and while no login uses the pool.
+     */
+    private void produce() {
+        while(!this.stopped) {
+            try {
+                this.removeOld();
+
+                String binding = this.bindingSelector.getBinding();
+                BlockingQueue<Entry> queue = this.getQueue(binding);
+                if(queue.remainingCapacity() > 0) {
+                    if(System.nanoTime() - this.lastTake >= this.maxAge / 2) {
+                        // No login since the previous fill. Sleep until take() wakes us.
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    queue.offer(new Entry(this.builder.build(binding)));
+                    continue;
+                }
+
+                // The queue is full. Sleep until a login takes an URL, or until the oldest
+                // URL should be replaced.
+                LockSupport.parkNanos(this, this.maxAge / 2);
+            } catch(Exception e) {
+                // Don't let a failing build spin the thread.
+                this.errors.incrementAndGet();
+                this.debug.error("Failed to build authentication request for the pool: " + e);
+                try {
+                    Thread.sleep(1000);
+                } catch(InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes URLs which are more than half their maximum age from every queue, so that the
+     * URLs we hand out always have plenty of time left.
+     */
+    private void removeOld() {
+        long limit = System.nanoTime() - this.maxAge / 2;
+        for(BlockingQueue<Entry> queue : this.queues.values()) {
+            Entry e;
+            while((e = queue.peek()) != null && e.created - limit < 0) {
+                if(queue.remove(e)) {
+                    this.expired.incrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+
+/**
+ * Feeds a corpus of SAML responses to the Lasso backend and the pure-Java backend, and compares
+ * the results and the throughput. Each file in the corpus directory holds one response, either
+ * as XML or base64 encoded as it is posted to the assertion consumer.
+ *
+ * Usage: java no.feide.client.lasso.BackendComparison &lt;context root&gt; &lt;corpus directory&gt; [iterations]
+ *
+ * The exit status is 1 if the backends disagree about any response.
+ */
+public final class BackendComparison {
+
+    /**
+     * This class only has a main method.
+     */
+    private BackendComparison() {
+    }
+
+    /**
+     * Runs the comparison.
+     *
+     * @param args the context root, the corpus directory and the number of iterations.
+     * @throws Exception if the backends fail to start.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java " + BackendComparison.class.getName()
+                    + " <context root> <corpus directory> [iterations]");
+            System.exit(2);
+        }
+        int iterations = args.length == 3 ? Integer.parseInt(args[2]) : 100;
+
+        Config config = new Config(new File(args[0]));
+        LassoBackend lasso = new InProcessBackend(config);
+        LassoBackend java = new JavaBackend(config);
+
+        File[] files = new File(args[1]).listFiles();
+        if(files == null) {
+            System.err.println("Not a directory: " + args[1]);
+            System.exit(2);
+        }
+        Arrays.sort(files);
+        List<String> corpus = new ArrayList<String>();
+        for(File f : files) {
+            if(f.isFile()) {
+                corpus.add(readResponse(f));
+            }
+        }
+
+        int differences = 0;
+        for(int i = 0; i < corpus.size(); i++) {
+            String expected = outcome(lasso, corpus.get(i));
+            String actual = outcome(java, corpus.get(i));
+            boolean same = expected.startsWith("rejected") ? actual.startsWith("rejected") : expected.equals(actual);
+            if(!same) {
+                differences++;
+            }
+            System.out.println((same ? "same " : "DIFF ") + files[i].getName());
+            System.out.println("    lasso: " + expected);
+            System.out.println("    java:  " + actual);
+        }
+
+        System.out.println();
+        System.out.println("lasso: " + throughput(lasso, corpus, iterations) + " responses/s");
+        System.out.println("java:  " + throughput(java, corpus, iterations) + " responses/s");
+        System.out.println(differences + " of " + corpus.size() + " responses differ.");
+
+        lasso.shutdown();
+        java.shutdown();
+        System.exit(differences == 0 ? 0 : 1);
+    }
+
+    /**
+     * Reads a response from the corpus.
+     *
+     * @param f the file.
+     * @return the decoded response.
+     * @throws IOException if we fail to read the file.
+     */
+    private static String readResponse(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        String content = new String(out.toByteArray(), "UTF-8").trim();
+        if(content.startsWith("<")) {
+            return content;
+        }
+        return new String(Base64.decode(content), "UTF-8");
+    }
+
+    /**
+     * Processes a response, and describes the outcome so that outcomes can be compared.
+     *
+     * @param backend the backend.
+     * @param response the response.
+     * @return "accepted" and the attributes in a fixed order, the NameID and the SessionIndex,
+     *         or "rejected" and the reason.
+     */
+    private static String outcome(LassoBackend backend, String response) {
+        try {
+            LassoBackend.LoginResult login = backend.processAuthnResponse(response);
+            Map<String, List<String>> sorted = new TreeMap<String, List<String>>();
+            for(Attribute a : login.getAttributes().values()) {
+                sorted.put(a.getName(), values(a));
+            }
+            return "accepted " + sorted + " nameId=" + (login.getNameId() == null ? null : values(login.getNameId()))
+                + " sessionIndex=" + login.getSessionIndex();
+        } catch(ServletException e) {
+            return "rejected: " + e.getMessage();
+        } catch(RuntimeException e) {
+            return "rejected: " + e;
+        }
+    }
+
+    /**
+     * Lists the values of an attribute.
+     *
+     * @param a the attribute.
+     * @return the values.
+     */
+    private static List<String> values(Attribute a) {
+        List<String> values = new ArrayList<String>();
+        for(String v : a) {
+            values.add(v);
+        }
+        return values;
+    }
+
+    /**
+     * Measures how many responses a backend processes each second.
+     *
+     * @param backend the backend.
+     * @param corpus the responses.
+     * @param iterations the number of times each response is processed.
+     * @return the number of responses each second.
+     */
+    private static long throughput(LassoBackend backend, List<String> corpus, int iterations) {
+        if(corpus.isEmpty()) {
+            return 0;
+        }
+
+        // Warm up, so that we measure compiled code.
+        for(int i = 0; i < Math.min(iterations, 10); i++) {
+            for(String response : corpus) {
+                outcome(backend, response);
+            }
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            for(String response : corpus) {
+                outcome(backend, response);
+            }
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        return (long)iterations * corpus.size() * 1000000000L / elapsed;
+    }
+}
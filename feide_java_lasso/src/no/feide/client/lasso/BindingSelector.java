@@ -0,0 +1,254 @@
+package no.feide.client.lasso;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import com.entrouvert.lasso.lassoConstants;
+
+/**
+ * Selects the protocol binding we ask the IdP to use for the response to a login. The
+ * HTTP-Artifact binding costs an extra back-channel round trip to the IdP, so we use it while
+ * artifact resolution is fast and reliable, and switch to the HTTP-POST binding when it
+ * degrades.
+ *
+ * The decision is based on exponentially weighted moving averages of the latency and the
+ * failure rate of artifact resolution. Separate thresholds for degrading and recovering keep
+ * the selection from flapping. While we use HTTP-POST, no artifacts are resolved, so we let a
+ * single login use HTTP-Artifact now and then as a probe, to find out when the IdP recovers.
+ */
+class BindingSelector {
+
+    /**
+     * The weight of a new sample in the moving averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The binding we use when the selection isn't adaptive, or null if it is adaptive.
+     */
+    private final String fixedBinding;
+
+    /**
+     * Average latency (in microseconds) above which we switch to HTTP-POST.
+     */
+    private final long degradeMicros;
+
+    /**
+     * Average latency (in microseconds) below which we switch back to HTTP-Artifact.
+     */
+    private final long recoverMicros;
+
+    /**
+     * Average failure rate above which we switch to HTTP-POST.
+     */
+    private final double maxFailureRate;
+
+    /**
+     * Number of milliseconds between each probe while we use HTTP-POST.
+     */
+    private final long probeInterval;
+
+    /**
+     * The binding we currently use.
+     */
+    private volatile String binding = lassoConstants.SAML2_METADATA_BINDING_ARTIFACT;
+
+    /**
+     * The moving average of the artifact resolution latency, in microseconds.
+     */
+    private double latency = 0;
+
+    /**
+     * The moving average of the artifact resolution failure rate, between 0 and 1.
+     */
+    private double failureRate = 0;
+
+    /**
+     * The last time we sent a probe, as returned by System.currentTimeMillis().
+     */
+    private long lastProbe = 0;
+
+    /**
+     * Number of times we have switched binding.
+     */
+    private final AtomicLong switches;
+
+    /**
+     * Number of probes we have sent.
+     */
+    private final AtomicLong probes;
+
+    /**
+     * Number of logins which have used HTTP-Artifact.
+     */
+    private final AtomicLong artifactLogins;
+
+    /**
+     * Number of logins which have used HTTP-POST.
+     */
+    private final AtomicLong postLogins;
+
+    /**
+     * The gauges of this selector, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * Creates a binding selector from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    BindingSelector(Config config) throws ServletException {
+        String mode = config.getProperty("no.feide.test.binding");
+        if(mode == null || "adaptive".equals(mode)) {
+            this.fixedBinding = null;
+        } else if("artifact".equals(mode)) {
+            this.fixedBinding = lassoConstants.SAML2_METADATA_BINDING_ARTIFACT;
+        } else if("post".equals(mode)) {
+            this.fixedBinding = lassoConstants.SAML2_METADATA_BINDING_POST;
+        } else {
+            throw new ServletException("no.feide.test.binding must be adaptive, artifact or post. Was: \""
+                    + mode + "\"");
+        }
+
+        if(this.fixedBinding != null) {
+            this.binding = this.fixedBinding;
+        }
+
+        this.degradeMicros = config.getLongProperty("no.feide.test.binding.degrade", 1000) * 1000;
+        this.recoverMicros = config.getLongProperty("no.feide.test.binding.recover", 300) * 1000;
+        this.maxFailureRate = config.getLongProperty("no.feide.test.binding.failures", 20) / 100.0;
+        this.probeInterval = config.getLongProperty("no.feide.test.binding.probe", 10000);
+
+        Metrics metrics = Metrics.getInstance();
+        this.switches = metrics.counter(config.getMetricName("binding.switches"));
+        this.probes = metrics.counter(config.getMetricName("binding.probes"));
+        this.artifactLogins = metrics.counter(config.getMetricName("binding.logins.artifact"));
+        this.postLogins = metrics.counter(config.getMetricName("binding.logins.post"));
+        this.gauges.put(config.getMetricName("binding.artifact"), new Metrics.Gauge() {
+            public long getValue() {
+                return isArtifact(BindingSelector.this.binding) ? 1 : 0;
+            }
+        });
+        this.gauges.put(config.getMetricName("binding.artifact_latency_avg_us"), new Metrics.Gauge() {
+            public long getValue() {
+                synchronized(BindingSelector.this) {
+                    return (long)BindingSelector.this.latency;
+                }
+            }
+        });
+        this.gauges.put(config.getMetricName("binding.artifact_failure_rate_percent"), new Metrics.Gauge() {
+            public long getValue() {
+                synchronized(BindingSelector.this) {
+                    return Math.round(BindingSelector.this.failureRate * 100);
+                }
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Removes the gauges of this selector.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+    }
+
+    /**
+     * Selects the binding for a new login.
+     *
+     * @return the SAML2 binding the IdP should use for its response.
+     */
+    String selectBinding() {
+        String selected = this.binding;
+        if(this.fixedBinding == null && !isArtifact(selected)) {
+            synchronized(this) {
+                long now = System.currentTimeMillis();
+                if(now - this.lastProbe >= this.probeInterval) {
+                    this.lastProbe = now;
+                    this.probes.incrementAndGet();
+                    selected = lassoConstants.SAML2_METADATA_BINDING_ARTIFACT;
+                }
+            }
+        }
+
+        if(isArtifact(selected)) {
+            this.artifactLogins.incrementAndGet();
+        } else {
+            this.postLogins.incrementAndGet();
+        }
+
+        return selected;
+    }
+
+    /**
+     * Retrieves the binding we currently use, without counting it as a login or sending a probe.
+     *
+     * @return the SAML2 binding we currently use.
+     */
+    String getBinding() {
+        return this.binding;
+    }
+
+    /**
+     * Records the outcome of an artifact resolution.
+     *
+     * @param nanos the time the artifact resolution took, in nanoseconds.
+     * @param success whether the artifact was resolved.
+     */
+    synchronized void recordArtifactResolution(long nanos, boolean success) {
+        this.latency += ALPHA * (nanos / 1000 - this.latency);
+        this.failureRate += ALPHA * ((success ? 0 : 1) - this.failureRate);
+
+        if(this.fixedBinding != null) {
+            return;
+        }
+
+        if(isArtifact(this.binding)) {
+            if(this.latency > this.degradeMicros || this.failureRate > this.maxFailureRate) {
+                this.switchTo(lassoConstants.SAML2_METADATA_BINDING_POST);
+                this.lastProbe = System.currentTimeMillis();
+            }
+        } else {
+            if(this.latency < this.recoverMicros && this.failureRate < this.maxFailureRate / 2) {
+                this.switchTo(lassoConstants.SAML2_METADATA_BINDING_ARTIFACT);
+            }
+        }
+    }
+
+    /**
+     * Switches to a new binding.
+     *
+     * @param newBinding the new binding.
+     */
+    private void switchTo(String newBinding) {
+        if(this.debug.messageEnabled()) {
+            this.debug.message("Switching login binding to " + newBinding + ". Artifact latency: "
+                    + (long)this.latency + " us, failure rate: " + this.failureRate);
+        }
+
+        this.binding = newBinding;
+        this.switches.incrementAndGet();
+    }
+
+    /**
+     * Checks whether a binding is the HTTP-Artifact binding.
+     *
+     * @param binding the binding.
+     * @return true if the binding is HTTP-Artifact.
+     */
+    private static boolean isArtifact(String binding) {
+        return lassoConstants.SAML2_METADATA_BINDING_ARTIFACT.equals(binding);
+    }
+}
@@ -0,0 +1,156 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * A bounded thread pool for one kind of work, so that work which gets stuck, like calls to an
+ * IdP which has stopped answering, can only use up the threads and queue of its own bulkhead.
+ * Work which doesn't fit in the pool or the queue is rejected at once.
+ *
+ * The request thread waits for the work to finish, and writes the response itself. Lasso
+ * calls made by the work are counted with the request.
+ */
+class Bulkhead {
+
+    /**
+     * The name of this bulkhead, used in the metrics.
+     */
+    private final String name;
+
+    /**
+     * The threads which execute the work.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of tasks rejected because the pool and the queue were full.
+     */
+    private final AtomicLong rejected;
+
+    /**
+     * Number of tasks which didn't finish in time.
+     */
+    private final AtomicLong timeouts;
+
+    /**
+     * The time tasks wait in the queue.
+     */
+    private final LatencyHistogram queueTime;
+
+    /**
+     * The gauges of this bulkhead, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * Creates a bulkhead, and registers its metrics.
+     *
+     * @param config the configuration of the servlet, which names the metrics of a tenant.
+     * @param name the name of the bulkhead.
+     * @param threads the number of threads.
+     * @param queue the number of tasks which may wait for a thread.
+     */
+    Bulkhead(Config config, String name, int threads, int queue) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)), new DaemonThreadFactory("bulkhead-" + name));
+        this.executor.allowCoreThreadTimeOut(true);
+
+        Metrics metrics = Metrics.getInstance();
+        String prefix = config.getMetricName("bulkhead." + name + ".");
+        this.rejected = metrics.counter(prefix + "rejected");
+        this.timeouts = metrics.counter(prefix + "timeouts");
+        this.queueTime = metrics.histogram(prefix + "queue_time");
+        this.gauges.put(prefix + "active", new Metrics.Gauge() {
+            public long getValue() {
+                return Bulkhead.this.executor.getActiveCount();
+            }
+        });
+        this.gauges.put(prefix + "queued", new Metrics.Gauge() {
+            public long getValue() {
+                return Bulkhead.this.executor.getQueue().size();
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Executes a task in this bulkhead, and waits for it to finish.
+     *
+     * @param task the task.
+     * @param timeout the number of milliseconds we wait for the task.
+     * @return the result of the task.
+     * @throws ServletException if the task fails, or a RetryableException if it is rejected or
+     *         doesn't finish in time.
+     * @throws IOException if the task fails with an IOException.
+     */
+    <T> T call(final Callable<T> task, long timeout) throws ServletException, IOException {
+        final long[] request = LassoFacade.currentRequest();
+        final long submitted = System.nanoTime();
+
+        Future<T> future;
+        try {
+            future = this.executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    Bulkhead.this.queueTime.record(System.nanoTime() - submitted);
+                    LassoFacade.joinRequest(request);
+                    try {
+                        return task.call();
+                    } finally {
+                        LassoFacade.joinRequest(null);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            throw new RetryableException("The " + this.name + " bulkhead is full.", e);
+        }
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            future.cancel(true);
+            this.timeouts.incrementAndGet();
+            throw new RetryableException("Timed out waiting for the " + this.name + " bulkhead.", e);
+        } catch(InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RetryableException("Interrupted while waiting for the " + this.name + " bulkhead.", e);
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof ServletException) {
+                throw (ServletException)cause;
+            } else if(cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new ServletException("Error in the " + this.name + " bulkhead.", cause);
+        }
+    }
+
+    /**
+     * Stops the threads of this bulkhead, and removes its gauges.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.executor.shutdownNow();
+    }
+}
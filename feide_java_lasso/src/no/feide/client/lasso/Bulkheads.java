@@ -0,0 +1,194 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.servlet.ServletException;
+
+/**
+ * The bulkheads of the servlet: one for building authentication requests, one for processing
+ * POSTed responses, one for logout, and one for artifact resolution against each IdP. A slow
+ * IdP back channel fills up the artifact bulkhead of that IdP, while logins with the POST
+ * binding, logouts and artifacts from other IdPs keep their own threads.
+ */
+class Bulkheads {
+
+    static final String LOGIN = "login";
+    static final String ASSERTION = "assertion";
+    static final String LOGOUT = "logout";
+
+    /**
+     * The bulkheads, by name.
+     */
+    private final Map<String, Bulkhead> bulkheads = new HashMap<String, Bulkhead>();
+
+    /**
+     * The artifact resolution bulkheads, by the SourceID of the IdP. The SourceID is the
+     * SHA-1 hash of the entity ID of the IdP, and is found in every artifact from the IdP.
+     */
+    private final Map<String, Bulkhead> artifactBulkheads = new HashMap<String, Bulkhead>();
+
+    /**
+     * The number of milliseconds a request waits for its task.
+     */
+    private final long timeout;
+
+    /**
+     * Creates the bulkheads from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    Bulkheads(Config config) throws ServletException {
+        this.timeout = config.getLongProperty("no.feide.test.bulkhead.timeout", 30000);
+
+        this.add(config, LOGIN, 8, 32);
+        this.add(config, ASSERTION, 16, 64);
+        this.add(config, LOGOUT, 4, 16);
+
+        String idp = config.getIdPEntityID();
+        Bulkhead artifact = this.create(config, "artifact", "artifact." + metricName(idp), 16, 32);
+        this.artifactBulkheads.put(sourceID(idp), artifact);
+    }
+
+    /**
+     * Creates a bulkhead, sized from the configuration, and adds it to the bulkheads by name.
+     *
+     * @param config the configuration of the servlet.
+     * @param name the name of the bulkhead.
+     * @param threads the default number of threads.
+     * @param queue the default queue size.
+     * @throws ServletException if the configuration is invalid.
+     */
+    private void add(Config config, String name, int threads, int queue) throws ServletException {
+        this.bulkheads.put(name, this.create(config, name, name, threads, queue));
+    }
+
+    /**
+     * Creates a bulkhead, sized from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @param kind the kind of bulkhead, used in the property names.
+     * @param name the name of the bulkhead, used in the metrics.
+     * @param threads the default number of threads.
+     * @param queue the default queue size.
+     * @return the bulkhead.
+     * @throws ServletException if the configuration is invalid.
+     */
+    private Bulkhead create(Config config, String kind, String name, int threads, int queue)
+    throws ServletException {
+        int t = (int)config.getLongProperty("no.feide.test.bulkhead." + kind + ".threads", threads);
+        int q = (int)config.getLongProperty("no.feide.test.bulkhead." + kind + ".queue", queue);
+        if(t < 1) {
+            throw new ServletException("no.feide.test.bulkhead." + kind + ".threads must be at least 1.");
+        }
+        return new Bulkhead(config, name, t, q);
+    }
+
+    /**
+     * Executes a task in the bulkhead with the given name, and waits for it to finish.
+     *
+     * @param name the name of the bulkhead.
+     * @param task the task.
+     * @return the result of the task.
+     * @throws ServletException if the task fails, is rejected or doesn't finish in time.
+     * @throws IOException if the task fails with an IOException.
+     */
+    <T> T call(String name, Callable<T> task) throws ServletException, IOException {
+        return this.bulkheads.get(name).call(task, this.timeout);
+    }
+
+    /**
+     * Executes an artifact resolution task in the bulkhead of the IdP which issued the
+     * artifact, and waits for it to finish.
+     *
+     * @param artifact the SAML artifact.
+     * @param task the task.
+     * @return the result of the task.
+     * @throws ServletException if the artifact is from an unknown IdP, or if the task fails,
+     *         is rejected or doesn't finish in time.
+     * @throws IOException if the task fails with an IOException.
+     */
+    <T> T callArtifact(String artifact, Callable<T> task) throws ServletException, IOException {
+        // A type 0004 artifact is the type code, the endpoint index, the SourceID and a
+        // message handle.
+        byte[] decoded = Base64.decode(artifact);
+        if(decoded == null || decoded.length != 44) {
+            throw new ServletException("Invalid SAML artifact.");
+        }
+        String source = toHex(Arrays.copyOfRange(decoded, 4, 24));
+
+        Bulkhead bulkhead = this.artifactBulkheads.get(source);
+        if(bulkhead == null) {
+            throw new ServletException("SAML artifact from unknown IdP.");
+        }
+        return bulkhead.call(task, this.timeout);
+    }
+
+    /**
+     * Stops the threads of every bulkhead, and removes their gauges.
+     */
+    void shutdown() {
+        for(Bulkhead b : this.bulkheads.values()) {
+            b.shutdown();
+        }
+        for(Bulkhead b : this.artifactBulkheads.values()) {
+            b.shutdown();
+        }
+    }
+
+    /**
+     * Calculates the SourceID of an IdP.
+     *
+     * @param entityID the entity ID of the IdP.
+     * @return the SourceID, as a hex string.
+     */
+    private static String sourceID(String entityID) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(entityID.getBytes("UTF-8")));
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("This java implementation doesn't implement SHA-1.", e);
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding is unsupported.", e);
+        }
+    }
+
+    /**
+     * Converts bytes to a hex string.
+     *
+     * @param bytes the bytes.
+     * @return the hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Turns an entity ID into something which can be part of a metric name.
+     *
+     * @param entityID the entity ID.
+     * @return the entity ID, with every character other than letters, digits, '.' and '-'
+     *         replaced by '_'.
+     */
+    private static String metricName(String entityID) {
+        StringBuilder sb = new StringBuilder(entityID.length());
+        for(int i = 0; i < entityID.length(); i++) {
+            char c = entityID.charAt(i);
+            boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-';
+            sb.append(plain ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package no.feide.client.lasso;
+
+/**
+ * A circuit breaker for a remote endpoint. After a number of consecutive failures the breaker
+ * opens, and requests to the endpoint fail fast. When the breaker has been open for a while, a
+ * single trial request is let through. If it succeeds, the breaker closes again.
+ */
+class CircuitBreaker {
+
+    /**
+     * The states of a circuit breaker.
+     */
+    enum State {
+        /** Requests are let through. */
+        CLOSED,
+        /** Requests fail fast. */
+        OPEN,
+        /** A single trial request is in progress. */
+        HALF_OPEN
+    }
+
+    /**
+     * Number of consecutive failures which opens the breaker.
+     */
+    private final int failureThreshold;
+
+    /**
+     * Number of milliseconds the breaker stays open before a trial request is let through.
+     */
+    private final long openMillis;
+
+    /**
+     * The current state.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * Number of consecutive failures.
+     */
+    private int failures = 0;
+
+    /**
+     * The time the breaker was opened, as returned by System.currentTimeMillis().
+     */
+    private long openedAt;
+
+    /**
+     * Creates a circuit breaker.
+     *
+     * @param failureThreshold number of consecutive failures which opens the breaker.
+     * @param openMillis number of milliseconds the breaker stays open.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Checks whether a request may be sent. If the breaker has been open long enough, the
+     * caller is allowed to send a trial request.
+     *
+     * @return true if the request may be sent, false if it should fail fast.
+     */
+    synchronized boolean allowRequest() {
+        if(this.state == State.CLOSED) {
+            return true;
+        }
+
+        // In the HALF_OPEN state, openedAt is the time the trial request was let through.
+        // If it never reports back, we let another trial request through.
+        long now = System.currentTimeMillis();
+        if(now - this.openedAt >= this.openMillis) {
+            this.state = State.HALF_OPEN;
+            this.openedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a successful request. Closes the breaker.
+     */
+    synchronized void recordSuccess() {
+        this.failures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed request. Opens the breaker if the trial request failed, or if we have
+     * reached the failure threshold.
+     */
+    synchronized void recordFailure() {
+        this.failures++;
+        if(this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Retrieves the current state of the breaker.
+     *
+     * @return the current state.
+     */
+    synchronized State getState() {
+        return this.state;
+    }
+}
@@ -1,12 +1,24 @@
 package no.feide.client.lasso;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Properties;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 /**
  * This class handles loading of configuration for this service.
@@ -17,16 +29,37 @@ class Config {
      */
     private static final String configFile = "conf/LassoTestServlet.properties";
 
+    /**
+     * The namespace of SAML2 meta data.
+     */
+    private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+    /**
+     * The SAML2 SOAP binding.
+     */
+    private static final String SOAP_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:SOAP";
+
     /**
      * The properties file we have loaded.
      */
     private Properties configProperties;
 
     /**
-     * The servlet context this configuration belongs in.
+     * The servlet context this configuration belongs in, or null if the configuration was loaded
+     * from a directory.
      */
     private ServletContext context;
 
+    /**
+     * The context root. Relative paths in the configuration are relative to this directory.
+     */
+    private File root;
+
+    /**
+     * The name of the tenant this configuration belongs to, or null if it isn't a tenant.
+     */
+    private String tenant;
+
     /**
      * The separator we use to separate multiple attributes in a single AttributeValue node.
      */
@@ -51,6 +84,16 @@ class Config {
      */
     private String idpPublicKeyFile;
 
+    /**
+     * The SOAP endpoints of the ArtifactResolutionService of the IdP, with the default endpoint first.
+     */
+    private List<String> artifactResolutionServiceURLs;
+
+    /**
+     * The entity ID of the IdP.
+     */
+    private String idpEntityID;
+
     /**
      * Loads and validates the configuration for this servlet.
      * @param servletContext 
@@ -59,12 +102,43 @@ class Config {
      */
     Config(ServletContext servletContext) throws ServletException {
         this.context = servletContext;
+        String rootPath = servletContext.getRealPath("/");
+        this.root = rootPath == null ? null : new File(rootPath);
 
         this.loadServletProperties();
 
         this.parseProperties();
     }
 
+    /**
+     * Loads and validates the configuration from a directory laid out like the context root of
+     * the servlet. This is used by processes which run outside the servlet container, like the
+     * Lasso workers.
+     *
+     * @param root the directory.
+     * @throws ServletException if the configuration is invalid.
+     */
+    Config(File root) throws ServletException {
+        this(root, null);
+    }
+
+    /**
+     * Loads and validates the configuration of a tenant from its directory. This is used by
+     * TenantRegistry.
+     *
+     * @param root the directory of the tenant.
+     * @param tenant the name of the tenant, or null if it isn't a tenant.
+     * @throws ServletException if the configuration is invalid.
+     */
+    Config(File root, String tenant) throws ServletException {
+        this.root = root;
+        this.tenant = tenant;
+
+        this.loadFileProperties();
+
+        this.parseProperties();
+    }
+
     /**
      * Loads LassoTestServlet.properties. This file is expected to be stored in a
      * directory on the current class path.
@@ -88,6 +162,27 @@ class Config {
         }
     }
 
+    /**
+     * Loads LassoTestServlet.properties from the conf directory below the root directory.
+     *
+     * @throws ServletException if we don't find LassoTestServlet.properties.
+     */
+    private void loadFileProperties() throws ServletException {
+        this.configProperties = new Properties();
+
+        File file = new File(this.root, Config.configFile);
+        try {
+            InputStream configStream = new FileInputStream(file);
+            try {
+                this.configProperties.load(configStream);
+            } finally {
+                configStream.close();
+            }
+        } catch (IOException e) {
+            throw new ServletException("Could not load configuration file: " + file.getAbsolutePath());
+        }
+    }
+
     /**
      * Parses the properties into fields, and validates the data.
      *
@@ -101,6 +196,87 @@ class Config {
 
         this.idpMetadataFile = this.findRequiredFilePath(this.getRequiredProperty("no.feide.test.lasso.meta.idp"));
         this.idpPublicKeyFile= this.findFilePath(this.getProperty("no.feide.test.lasso.meta.idp.pubkey"));
+
+        Document idpMetadata = parseMetadata(this.idpMetadataFile);
+        this.idpEntityID = idpMetadata.getDocumentElement().getAttribute("entityID");
+        this.artifactResolutionServiceURLs = findArtifactResolutionServices(idpMetadata);
+    }
+
+    /**
+     * Parses the meta data for the IdP.
+     *
+     * @param metadataFile the absolute path to the meta data for the IdP.
+     * @return the meta data.
+     * @throws ServletException if we are unable to parse the meta data.
+     */
+    private static Document parseMetadata(String metadataFile) throws ServletException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(new File(metadataFile));
+        } catch(SAXException e) {
+            throw new ServletException("Unable to parse the meta data for the IdP: " + metadataFile, e);
+        } catch(IOException e) {
+            throw new ServletException("Unable to read the meta data for the IdP: " + metadataFile, e);
+        } catch(ParserConfigurationException e) {
+            throw new ServletException("ParserConfigurationException while creating a DocumentBuilder", e);
+        }
+    }
+
+    /**
+     * Finds the SOAP endpoints of the ArtifactResolutionService in the meta data for the IdP. The
+     * default endpoint is returned first, followed by the rest in order of their index.
+     *
+     * @param d the meta data for the IdP.
+     * @return the locations of the endpoints.
+     */
+    private static List<String> findArtifactResolutionServices(Document d) {
+        final List<Element> endpoints = new ArrayList<Element>();
+        NodeList nl = d.getElementsByTagNameNS(METADATA_NS, "ArtifactResolutionService");
+        for(int i = 0; i < nl.getLength(); i++) {
+            Element e = (Element)nl.item(i);
+            if(SOAP_BINDING.equals(e.getAttribute("Binding")) && e.getAttribute("Location").length() > 0) {
+                endpoints.add(e);
+            }
+        }
+
+        // Sort by isDefault, then by index.
+        final List<String> urls = new ArrayList<String>();
+        for(Element e : endpoints) {
+            if("true".equals(e.getAttribute("isDefault"))) {
+                urls.add(e.getAttribute("Location"));
+            }
+        }
+        List<Element> rest = new ArrayList<Element>();
+        for(Element e : endpoints) {
+            if(!"true".equals(e.getAttribute("isDefault"))) {
+                rest.add(e);
+            }
+        }
+        Collections.sort(rest, new Comparator<Element>() {
+            public int compare(Element a, Element b) {
+                return parseIndex(a) - parseIndex(b);
+            }
+        });
+        for(Element e : rest) {
+            urls.add(e.getAttribute("Location"));
+        }
+
+        return Collections.unmodifiableList(urls);
+    }
+
+    /**
+     * Parses the index attribute of an indexed endpoint in meta data.
+     *
+     * @param endpoint the endpoint element.
+     * @return the index, or Integer.MAX_VALUE if the element has no valid index.
+     */
+    private static int parseIndex(Element endpoint) {
+        try {
+            return Integer.parseInt(endpoint.getAttribute("index"));
+        } catch(NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
     }
 
     /**
@@ -130,6 +306,50 @@ class Config {
         return ret;
     }
 
+    /**
+     * Retrieves a numeric property. Returns the default value if the property isn't set.
+     *
+     * @param name name of the property.
+     * @param defaultValue the value we return if the property isn't set.
+     * @return value of the given property.
+     * @throws ServletException if the property isn't a valid number.
+     */
+    public long getLongProperty(String name, long defaultValue) throws ServletException {
+        String value = this.getProperty(name);
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch(NumberFormatException e) {
+            throw new ServletException("Property " + name + " must be a number. Was: \"" + value + "\"");
+        }
+    }
+
+    /**
+     * Retrieves a boolean property. Returns the default value if the property isn't set.
+     *
+     * @param name name of the property.
+     * @param defaultValue the value we return if the property isn't set.
+     * @return value of the given property.
+     * @throws ServletException if the property isn't "true" or "false".
+     */
+    public boolean getBooleanProperty(String name, boolean defaultValue) throws ServletException {
+        String value = this.getProperty(name);
+        if(value == null) {
+            return defaultValue;
+        }
+
+        value = value.trim();
+        if("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new ServletException("Property " + name + " must be true or false. Was: \"" + value + "\"");
+    }
+
     /**
      * Attempts to find the absolute path of a given file. 
      *
@@ -149,7 +369,11 @@ class Config {
         }
 
         // Get the path relative to the context root.
-        workPath = this.context.getRealPath(workPath);
+        if(this.context != null) {
+            workPath = this.context.getRealPath(workPath);
+        } else {
+            workPath = new File(this.root, workPath).getPath();
+        }
 
         // Make sure that the 
         File f = new File(workPath);
@@ -168,7 +392,7 @@ class Config {
      * @return absolute path to the given file.
      * @throws ServletException if path=null or we don't find a file at the given path.
      */
-    private String findRequiredFilePath(String path) throws ServletException {
+    String findRequiredFilePath(String path) throws ServletException {
         if(path == null) {
             throw new ServletException("No path given.");
         }
@@ -176,6 +400,36 @@ class Config {
         return this.findFilePath(path);
     }
 
+    /**
+     * Retrieves the absolute path to the context root.
+     *
+     * @return the absolute path to the context root, or null if the servlet container doesn't
+     *         unpack the servlet to a directory.
+     */
+    public String getRootPath() {
+        return this.root == null ? null : this.root.getAbsolutePath();
+    }
+
+    /**
+     * Retrieves the name of the tenant this configuration belongs to.
+     *
+     * @return the name of the tenant, or null if the servlet serves a single SP.
+     */
+    String getTenant() {
+        return this.tenant;
+    }
+
+    /**
+     * Names a metric of the SP this configuration belongs to. The metrics of a tenant are
+     * prefixed with "tenant.&lt;name&gt;.", so that tenants don't replace each other's gauges.
+     *
+     * @param name the name of the metric.
+     * @return the name of the metric of this SP.
+     */
+    String getMetricName(String name) {
+        return this.tenant == null ? name : "tenant." + this.tenant + "." + name;
+    }
+
     /**
      * Retrieves the attribute separator which is set in the configuration file.
      * 
@@ -223,4 +477,23 @@ class Config {
     public String getIdpPublicKeyPath() {
         return this.idpPublicKeyFile;
     }
+
+    /**
+     * Retrieves the SOAP endpoints of the ArtifactResolutionService of the IdP, as listed in
+     * the meta data for the IdP. The default endpoint is listed first.
+     *
+     * @return the locations of the endpoints. The list may be empty.
+     */
+    public List<String> getArtifactResolutionServiceURLs() {
+        return this.artifactResolutionServiceURLs;
+    }
+
+    /**
+     * Retrieves the entity ID of the IdP, as listed in the meta data for the IdP.
+     *
+     * @return the entity ID.
+     */
+    public String getIdPEntityID() {
+        return this.idpEntityID;
+    }
 }
@@ -0,0 +1,39 @@
+package no.feide.client.lasso;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that the thread pools of this servlet never keep the
+ * servlet container from shutting down.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * The prefix of the thread names.
+     */
+    private final String prefix;
+
+    /**
+     * The number of the last thread we created.
+     */
+    private final AtomicInteger number = new AtomicInteger();
+
+    /**
+     * Creates a thread factory.
+     *
+     * @param prefix the prefix of the thread names.
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Creates a daemon thread which runs the given task.
+     */
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, this.prefix + "-" + this.number.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
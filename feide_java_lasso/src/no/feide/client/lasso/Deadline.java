@@ -0,0 +1,56 @@
+package no.feide.client.lasso;
+
+/**
+ * A point in time by which an operation must be finished. A deadline is created when a request
+ * arrives, and is passed along to every blocking call made while handling the request.
+ */
+class Deadline {
+
+    /**
+     * The time this deadline expires, as returned by System.nanoTime().
+     */
+    private final long expiresAt;
+
+    /**
+     * Creates a deadline which expires at the given time.
+     *
+     * @param expiresAt the time this deadline expires, as returned by System.nanoTime().
+     */
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Creates a deadline which expires after the given number of milliseconds.
+     *
+     * @param millis number of milliseconds until the deadline expires.
+     * @return the deadline.
+     */
+    static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + millis * 1000 * 1000);
+    }
+
+    /**
+     * Retrieves the time left until this deadline expires.
+     *
+     * @return the number of milliseconds left, or 0 if the deadline has expired.
+     */
+    long remainingMillis() {
+        long remaining = this.expiresAt - System.nanoTime();
+        if(remaining <= 0) {
+            return 0;
+        }
+
+        // Round up, so that we don't report 0 before the deadline has expired.
+        return (remaining + 999999) / 1000000;
+    }
+
+    /**
+     * Checks whether this deadline has expired.
+     *
+     * @return true if the deadline has expired, false if not.
+     */
+    boolean isExpired() {
+        return this.expiresAt - System.nanoTime() <= 0;
+    }
+}
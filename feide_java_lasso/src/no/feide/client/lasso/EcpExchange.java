@@ -0,0 +1,394 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.servlet.ServletException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Drives a full ECP login against the servlet, with a fake IdP on the loopback interface. The
+ * servlet runs in this process on the standalone server. The exchange plays the ECP client: it
+ * asks for /login as a PAOS client, passes the authentication request on to the fake IdP,
+ * checks that the IdP answers to the assertion consumer the servlet asked for, and posts the
+ * response back to the servlet. Finally it reads the attributes of the new session.
+ *
+ * Usage: java no.feide.client.lasso.EcpExchange &lt;context root&gt; &lt;IdP private key&gt;
+ *
+ * The context root is laid out like for StandaloneServer. The IdP meta data, or the IdP public
+ * key, must match the private key, which is a PEM file like the private key of the service
+ * provider. The SP meta data must have a PAOS AssertionConsumerService.
+ *
+ * The exit status is 1 if the login fails.
+ */
+public final class EcpExchange {
+
+    private static final String PAOS_MEDIA_TYPE = "application/vnd.paos+xml";
+    private static final String PAOS_HEADER = "ver=\"" + JavaBackend.PAOS_NS + "\";\"" + JavaBackend.ECP_NS + "\"";
+    private static final String ECP_USER = "ecp@example.org";
+
+    /**
+     * The entity ID of the IdP, which the fake IdP uses as issuer.
+     */
+    private final String idpEntityId;
+
+    /**
+     * Signs the responses of the fake IdP.
+     */
+    private final SamlCrypto idpCrypto;
+
+    /**
+     * Generates the IDs of the responses.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The number of HTTP requests the client has made.
+     */
+    private int roundTrips = 0;
+
+    /**
+     * Creates the fake IdP.
+     *
+     * @param config the configuration of the servlet.
+     * @param idpKeyPath the path to the private key of the IdP.
+     * @throws ServletException if we fail to load the key.
+     */
+    private EcpExchange(Config config, String idpKeyPath) throws ServletException {
+        this.idpEntityId = config.getIdPEntityID();
+        this.idpCrypto = new SamlCrypto(null, new File(idpKeyPath).getAbsolutePath());
+    }
+
+    /**
+     * Runs the exchange.
+     *
+     * @param args the context root and the private key of the IdP.
+     * @throws Exception if the servlet or the fake IdP fails to start.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length != 2) {
+            System.err.println("Usage: java " + EcpExchange.class.getName() + " <context root> <IdP private key>");
+            System.exit(2);
+        }
+
+        Config config = new Config(new File(args[0]).getAbsoluteFile());
+        final EcpExchange exchange = new EcpExchange(config, args[1]);
+
+        HttpServer idp = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 10);
+        idp.createContext("/ecp", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                exchange.handleIdP(e);
+            }
+        });
+        idp.start();
+        String idpUrl = "http://127.0.0.1:" + idp.getAddress().getPort() + "/ecp";
+
+        StandaloneServer sp = new StandaloneServer(config);
+        boolean ok;
+        try {
+            ok = exchange.login(sp.getEndpointUrl(), idpUrl);
+        } finally {
+            sp.stop();
+            idp.stop(0);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Logs in as an ECP client.
+     *
+     * @param endpoint the URL of the /endpoint of the servlet.
+     * @param idpUrl the URL of the fake IdP.
+     * @return true if the login succeeded.
+     * @throws Exception if a message is malformed.
+     */
+    private boolean login(String endpoint, String idpUrl) throws Exception {
+        long start = System.nanoTime();
+
+        // 1. Ask the servlet for the protected resource, telling it that we speak PAOS.
+        HttpURLConnection c = this.open(endpoint + "/login", "GET", null);
+        c.setRequestProperty("Accept", "text/html; " + PAOS_MEDIA_TYPE);
+        c.setRequestProperty("PAOS", PAOS_HEADER);
+        String paosRequest = this.receive(c);
+        if(paosRequest == null || !String.valueOf(c.getContentType()).startsWith(PAOS_MEDIA_TYPE)) {
+            System.out.println("The servlet didn't answer with a PAOS request.");
+            return false;
+        }
+        Element envelope = JavaBackend.parse(paosRequest).getDocumentElement();
+        Element header = JavaBackend.child(envelope, JavaBackend.SOAP_NS, "Header");
+        Element paos = header == null ? null : JavaBackend.child(header, JavaBackend.PAOS_NS, "Request");
+        Element body = JavaBackend.child(envelope, JavaBackend.SOAP_NS, "Body");
+        if(paos == null || body == null) {
+            System.out.println("The PAOS request has no paos:Request header or no Body.");
+            return false;
+        }
+        String responseConsumer = paos.getAttributeNS(null, "responseConsumerURL");
+
+        // 2. Pass the authentication request on to the IdP, without the headers meant for us.
+        envelope.removeChild(header);
+        c = this.open(idpUrl, "POST", "text/xml; charset=utf-8");
+        this.send(c, JavaBackend.serialize(envelope.getOwnerDocument()));
+        String idpResponse = this.receive(c);
+        if(idpResponse == null) {
+            return false;
+        }
+        envelope = JavaBackend.parse(idpResponse).getDocumentElement();
+        header = JavaBackend.child(envelope, JavaBackend.SOAP_NS, "Header");
+        Element ecp = header == null ? null : JavaBackend.child(header, JavaBackend.ECP_NS, "Response");
+        if(ecp == null || !responseConsumer.equals(ecp.getAttributeNS(null, "AssertionConsumerServiceURL"))) {
+            // The IdP would send the response somewhere the servlet didn't ask for.
+            System.out.println("The AssertionConsumerServiceURL of the IdP doesn't match " + responseConsumer);
+            return false;
+        }
+
+        // 3. Relay the response to the assertion consumer. The meta data names the public
+        // host, so the response is posted to the local server on the same path.
+        envelope.removeChild(header);
+        c = this.open(endpoint + "/assertion", "POST", PAOS_MEDIA_TYPE);
+        c.setRequestProperty("Accept", "application/json");
+        this.send(c, JavaBackend.serialize(envelope.getOwnerDocument()));
+        String attributes = this.receive(c);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if(attributes == null) {
+            return false;
+        }
+        System.out.println("Logged in after " + this.roundTrips + " round trips in " + elapsed + " ms.");
+        System.out.println("Attributes: " + attributes);
+
+        // The session cookie lets the client in without another login.
+        String cookie = c.getHeaderField("Set-Cookie");
+        if(cookie != null) {
+            c = this.open(endpoint + "/attributes", "GET", null);
+            c.setRequestProperty("Accept", "application/json");
+            c.setRequestProperty("Cookie", cookie.split(";")[0]);
+            String session = this.receive(c);
+            System.out.println("Session attributes: " + session);
+            return session != null;
+        }
+        return true;
+    }
+
+    /**
+     * Answers an authentication request from the ECP client with a signed response for a
+     * fixed user.
+     *
+     * @param e the exchange of the request.
+     * @throws IOException if we fail to send the response.
+     */
+    private void handleIdP(HttpExchange e) throws IOException {
+        try {
+            String message = new String(readAll(e.getRequestBody()), "UTF-8");
+            Element envelope = JavaBackend.parse(message).getDocumentElement();
+            Element body = JavaBackend.child(envelope, JavaBackend.SOAP_NS, "Body");
+            Element request = body == null ? null
+                    : JavaBackend.child(body, JavaBackend.PROTOCOL_NS, "AuthnRequest");
+            if(request == null) {
+                throw new ServletException("No AuthnRequest in the message from the client.");
+            }
+            Element issuer = JavaBackend.child(request, JavaBackend.ASSERTION_NS, "Issuer");
+            if(issuer == null) {
+                throw new ServletException("The AuthnRequest has no Issuer.");
+            }
+
+            byte[] out = Utf8Output.encode(this.buildResponse(request.getAttributeNS(null, "ID"),
+                    request.getAttributeNS(null, "AssertionConsumerServiceURL"), issuer.getTextContent().trim()));
+            e.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+            e.sendResponseHeaders(200, out.length);
+            OutputStream os = e.getResponseBody();
+            os.write(out);
+            os.close();
+        } catch(ServletException ex) {
+            System.out.println("IdP: " + ex.getMessage());
+            e.sendResponseHeaders(500, -1);
+        } finally {
+            e.close();
+        }
+    }
+
+    /**
+     * Builds the SOAP envelope the IdP sends the client, with a signed response.
+     *
+     * @param inResponseTo the ID of the authentication request.
+     * @param acs the assertion consumer the response is meant for.
+     * @param sp the entity ID of the service provider.
+     * @return the envelope.
+     * @throws ServletException if we fail to sign the response.
+     */
+    private String buildResponse(String inResponseTo, String acs, String sp) throws ServletException {
+        long now = System.currentTimeMillis();
+        String issueInstant = formatTime(now);
+        String notOnOrAfter = formatTime(now + 5 * 60 * 1000);
+        String issuer = "<saml:Issuer>" + JavaBackend.escape(this.idpEntityId) + "</saml:Issuer>";
+
+        StringBuilder xml = new StringBuilder(2048);
+        xml.append("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"").append(JavaBackend.SOAP_NS).append("\"><SOAP-ENV:Header>")
+            .append("<ecp:Response xmlns:ecp=\"").append(JavaBackend.ECP_NS)
+            .append("\" SOAP-ENV:mustUnderstand=\"1\" SOAP-ENV:actor=\"http://schemas.xmlsoap.org/soap/actor/next\"")
+            .append(" AssertionConsumerServiceURL=\"").append(JavaBackend.escape(acs)).append("\"/>")
+            .append("</SOAP-ENV:Header><SOAP-ENV:Body>")
+            .append("<samlp:Response xmlns:samlp=\"").append(JavaBackend.PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(JavaBackend.ASSERTION_NS)
+            .append("\" ID=\"").append(this.newId()).append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant)
+            .append("\" Destination=\"").append(JavaBackend.escape(acs))
+            .append("\" InResponseTo=\"").append(JavaBackend.escape(inResponseTo)).append("\">").append(issuer)
+            .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>")
+            .append("</samlp:Status><saml:Assertion ID=\"").append(this.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant).append("\">").append(issuer)
+            .append("<saml:Subject><saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">")
+            .append(this.newId()).append("</saml:NameID>")
+            .append("<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">")
+            .append("<saml:SubjectConfirmationData NotOnOrAfter=\"").append(notOnOrAfter)
+            .append("\" Recipient=\"").append(JavaBackend.escape(acs))
+            .append("\" InResponseTo=\"").append(JavaBackend.escape(inResponseTo)).append("\"/>")
+            .append("</saml:SubjectConfirmation></saml:Subject>")
+            .append("<saml:Conditions NotBefore=\"").append(issueInstant)
+            .append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\"><saml:AudienceRestriction><saml:Audience>")
+            .append(JavaBackend.escape(sp)).append("</saml:Audience></saml:AudienceRestriction></saml:Conditions>")
+            .append("<saml:AuthnStatement AuthnInstant=\"").append(issueInstant).append("\"><saml:AuthnContext>")
+            .append("<saml:AuthnContextClassRef>urn:oasis:names:tc:SAML:2.0:ac:classes:Password")
+            .append("</saml:AuthnContextClassRef></saml:AuthnContext></saml:AuthnStatement>")
+            .append("<saml:AttributeStatement>");
+        appendAttribute(xml, "eduPersonPrincipalName", ECP_USER);
+        appendAttribute(xml, "cn", "ECP Test User");
+        xml.append("</saml:AttributeStatement></saml:Assertion></samlp:Response>")
+            .append("</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+
+        Document d = JavaBackend.parse(xml.toString());
+        Element body = JavaBackend.child(d.getDocumentElement(), JavaBackend.SOAP_NS, "Body");
+        Element response = JavaBackend.child(body, JavaBackend.PROTOCOL_NS, "Response");
+        Element responseIssuer = JavaBackend.child(response, JavaBackend.ASSERTION_NS, "Issuer");
+        this.idpCrypto.sign(response, responseIssuer.getNextSibling());
+        return JavaBackend.serialize(d);
+    }
+
+    /**
+     * Adds an attribute, with the value encoded the way FEIDE encodes it.
+     *
+     * @param xml the attribute statement.
+     * @param name the name of the attribute.
+     * @param value the value.
+     * @throws ServletException if the value can't be encoded.
+     */
+    private static void appendAttribute(StringBuilder xml, String name, String value) throws ServletException {
+        xml.append("<saml:Attribute Name=\"").append(name).append("\"><saml:AttributeValue>")
+            .append(Base64.encodeBytes(Utf8Output.encode(value), Base64.DONT_BREAK_LINES))
+            .append("</saml:AttributeValue></saml:Attribute>");
+    }
+
+    /**
+     * Opens a request, and counts it as a round trip.
+     *
+     * @param url the URL.
+     * @param method the HTTP method.
+     * @param contentType the content type of the body, or null if there is no body.
+     * @return the connection.
+     * @throws IOException if the URL is invalid.
+     */
+    private HttpURLConnection open(String url, String method, String contentType) throws IOException {
+        this.roundTrips++;
+        HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+        c.setRequestMethod(method);
+        c.setInstanceFollowRedirects(false);
+        if(contentType != null) {
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", contentType);
+        }
+        return c;
+    }
+
+    /**
+     * Sends the body of a request.
+     *
+     * @param c the connection.
+     * @param body the body.
+     * @throws IOException if we fail to send the body.
+     */
+    private void send(HttpURLConnection c, String body) throws IOException {
+        OutputStream out = c.getOutputStream();
+        out.write(Utf8Output.encode(body));
+        out.close();
+    }
+
+    /**
+     * Reads the response to a request.
+     *
+     * @param c the connection.
+     * @return the body of the response, or null if the status wasn't 200 OK.
+     * @throws IOException if we fail to read the response.
+     */
+    private String receive(HttpURLConnection c) throws IOException {
+        int status = c.getResponseCode();
+        InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+        String body = in == null ? "" : new String(readAll(in), "UTF-8");
+        if(status != HttpURLConnection.HTTP_OK) {
+            System.out.println(c.getRequestMethod() + " " + c.getURL() + " returned " + status + ": " + body);
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * Reads a stream to the end, and closes it.
+     *
+     * @param in the stream.
+     * @return the bytes read.
+     * @throws IOException if we fail to read the stream.
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Generates an ID for a message or assertion.
+     *
+     * @return the ID.
+     */
+    private String newId() {
+        byte[] bytes = new byte[20];
+        this.random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder("_");
+        for(byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Formats a time as an xs:dateTime in UTC.
+     *
+     * @param time the time, in milliseconds since the epoch.
+     * @return the formatted time.
+     */
+    private static String formatTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+}
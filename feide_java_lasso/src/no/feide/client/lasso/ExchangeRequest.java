@@ -0,0 +1,516 @@
+package no.feide.client.lasso;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Lets the servlet read a request from an exchange of the JDK HTTP server, for StandaloneServer.
+ * Only what the servlet needs is implemented with any care: the path, the headers, the
+ * parameters, the body and the session.
+ */
+class ExchangeRequest implements HttpServletRequest {
+
+    /**
+     * The exchange.
+     */
+    private final HttpExchange exchange;
+
+    /**
+     * The response, which gets the session cookie.
+     */
+    private final ExchangeResponse response;
+
+    /**
+     * The context path and the servlet path, like "/feide_java_lasso" and "/endpoint".
+     */
+    private final String contextPath;
+    private final String servletPath;
+
+    /**
+     * The sessions of the server.
+     */
+    private final MemorySessions sessions;
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private String characterEncoding = null;
+
+    /**
+     * The parameters, or null if they haven't been parsed yet.
+     */
+    private Map<String, String[]> parameters = null;
+
+    /**
+     * Whether the servlet has read the body through getInputStream() or getReader().
+     */
+    private boolean bodyRead = false;
+
+    /**
+     * The session ID from the cookie of the request, or null if the request has none.
+     */
+    private final String requestedSessionId;
+
+    /**
+     * The session of this request, or null if it hasn't been looked up yet.
+     */
+    private HttpSession session = null;
+
+    /**
+     * Creates a request.
+     *
+     * @param exchange the exchange.
+     * @param response the response to the request.
+     * @param contextPath the context path.
+     * @param servletPath the servlet path.
+     * @param sessions the sessions of the server.
+     */
+    ExchangeRequest(HttpExchange exchange, ExchangeResponse response, String contextPath, String servletPath,
+            MemorySessions sessions) {
+        this.exchange = exchange;
+        this.response = response;
+        this.contextPath = contextPath;
+        this.servletPath = servletPath;
+        this.sessions = sessions;
+
+        String id = null;
+        Cookie[] cookies = this.getCookies();
+        if(cookies != null) {
+            for(Cookie c : cookies) {
+                if(MemorySessions.COOKIE.equals(c.getName())) {
+                    id = c.getValue();
+                }
+            }
+        }
+        this.requestedSessionId = id;
+    }
+
+    /**
+     * Parses the parameters from the query string and, unless the servlet has read the body
+     * itself, from a form encoded body.
+     *
+     * @return the parameters.
+     */
+    private Map<String, String[]> parameters() {
+        if(this.parameters != null) {
+            return this.parameters;
+        }
+
+        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        try {
+            parse(this.getQueryString(), values);
+            String contentType = this.getContentType();
+            if(!this.bodyRead && "POST".equals(this.getMethod()) && contentType != null
+                    && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded")) {
+                InputStream in = this.getInputStream();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while((n = in.read(buf)) >= 0) {
+                    body.write(buf, 0, n);
+                }
+                parse(body.toString("US-ASCII"), values);
+            }
+        } catch(IOException e) {
+            // Like a servlet container, we leave out the parameters of a body we fail to read.
+        }
+
+        this.parameters = new LinkedHashMap<String, String[]>();
+        for(Map.Entry<String, List<String>> e : values.entrySet()) {
+            this.parameters.put(e.getKey(), e.getValue().toArray(new String[0]));
+        }
+        return this.parameters;
+    }
+
+    /**
+     * Parses URL encoded parameters.
+     *
+     * @param s the parameters, or null.
+     * @param values the map we add the parameters to.
+     * @throws UnsupportedEncodingException if the character encoding is unsupported.
+     */
+    private void parse(String s, Map<String, List<String>> values) throws UnsupportedEncodingException {
+        if(s == null || s.length() == 0) {
+            return;
+        }
+        String encoding = this.characterEncoding == null ? "UTF-8" : this.characterEncoding;
+        for(String pair : s.split("&")) {
+            if(pair.length() == 0) {
+                continue;
+            }
+            int i = pair.indexOf('=');
+            String name;
+            String value;
+            try {
+                name = URLDecoder.decode(i < 0 ? pair : pair.substring(0, i), encoding);
+                value = i < 0 ? "" : URLDecoder.decode(pair.substring(i + 1), encoding);
+            } catch(IllegalArgumentException e) {
+                // A malformed escape. Skip the parameter.
+                continue;
+            }
+            List<String> list = values.get(name);
+            if(list == null) {
+                list = new ArrayList<String>();
+                values.put(name, list);
+            }
+            list.add(value);
+        }
+    }
+
+    public String getAuthType() {
+        return null;
+    }
+
+    public Cookie[] getCookies() {
+        List<String> headers = this.exchange.getRequestHeaders().get("Cookie");
+        if(headers == null) {
+            return null;
+        }
+        List<Cookie> cookies = new ArrayList<Cookie>();
+        for(String header : headers) {
+            for(String pair : header.split(";")) {
+                int i = pair.indexOf('=');
+                if(i <= 0) {
+                    continue;
+                }
+                String value = pair.substring(i + 1).trim();
+                if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                try {
+                    cookies.add(new Cookie(pair.substring(0, i).trim(), value));
+                } catch(IllegalArgumentException e) {
+                    // Not a valid cookie name.
+                }
+            }
+        }
+        return cookies.isEmpty() ? null : cookies.toArray(new Cookie[cookies.size()]);
+    }
+
+    public long getDateHeader(String name) {
+        String value = this.getHeader(name);
+        if(value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime();
+        } catch(ParseException e) {
+            throw new IllegalArgumentException("Not a date: " + value);
+        }
+    }
+
+    public String getHeader(String name) {
+        return this.exchange.getRequestHeaders().getFirst(name);
+    }
+
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = this.exchange.getRequestHeaders().get(name);
+        return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+    }
+
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(this.exchange.getRequestHeaders().keySet());
+    }
+
+    public int getIntHeader(String name) {
+        String value = this.getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value.trim());
+    }
+
+    public String getMethod() {
+        return this.exchange.getRequestMethod();
+    }
+
+    public String getPathInfo() {
+        String path = this.exchange.getRequestURI().getPath();
+        int prefix = this.contextPath.length() + this.servletPath.length();
+        return path.length() > prefix ? path.substring(prefix) : null;
+    }
+
+    public String getPathTranslated() {
+        return null;
+    }
+
+    public String getContextPath() {
+        return this.contextPath;
+    }
+
+    public String getQueryString() {
+        return this.exchange.getRequestURI().getRawQuery();
+    }
+
+    public String getRemoteUser() {
+        return null;
+    }
+
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    public String getRequestedSessionId() {
+        return this.requestedSessionId;
+    }
+
+    public String getRequestURI() {
+        return this.exchange.getRequestURI().getRawPath();
+    }
+
+    public StringBuffer getRequestURL() {
+        StringBuffer url = new StringBuffer(this.getScheme()).append("://");
+        String host = this.getHeader("Host");
+        if(host != null) {
+            url.append(host);
+        } else {
+            url.append(this.getServerName()).append(':').append(this.getServerPort());
+        }
+        return url.append(this.getRequestURI());
+    }
+
+    public String getServletPath() {
+        return this.servletPath;
+    }
+
+    public HttpSession getSession(boolean create) {
+        if(this.session != null) {
+            try {
+                // Throws IllegalStateException if the session has been invalidated.
+                this.session.getLastAccessedTime();
+                return this.session;
+            } catch(IllegalStateException e) {
+                this.session = null;
+            }
+        } else if(this.requestedSessionId != null) {
+            this.session = this.sessions.find(this.requestedSessionId);
+            if(this.session != null) {
+                return this.session;
+            }
+        }
+
+        if(create) {
+            this.session = this.sessions.create();
+            Cookie cookie = new Cookie(MemorySessions.COOKIE, this.session.getId());
+            cookie.setPath(this.contextPath.length() == 0 ? "/" : this.contextPath);
+            this.response.addCookie(cookie);
+        }
+        return this.session;
+    }
+
+    public HttpSession getSession() {
+        return this.getSession(true);
+    }
+
+    public boolean isRequestedSessionIdValid() {
+        return this.requestedSessionId != null && this.sessions.find(this.requestedSessionId) != null;
+    }
+
+    public boolean isRequestedSessionIdFromCookie() {
+        return this.requestedSessionId != null;
+    }
+
+    public boolean isRequestedSessionIdFromURL() {
+        return false;
+    }
+
+    @SuppressWarnings("deprecation")
+    public boolean isRequestedSessionIdFromUrl() {
+        return false;
+    }
+
+    public Object getAttribute(String name) {
+        return this.attributes.get(name);
+    }
+
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(this.attributes.keySet());
+    }
+
+    public String getCharacterEncoding() {
+        return this.characterEncoding;
+    }
+
+    public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+        try {
+            if(!Charset.isSupported(env)) {
+                throw new UnsupportedEncodingException(env);
+            }
+        } catch(IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(env);
+        }
+        this.characterEncoding = env;
+    }
+
+    public int getContentLength() {
+        String length = this.getHeader("Content-Length");
+        if(length == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(length.trim());
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getContentType() {
+        return this.getHeader("Content-Type");
+    }
+
+    public ServletInputStream getInputStream() {
+        this.bodyRead = true;
+        final InputStream in = this.exchange.getRequestBody();
+        return new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return in.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    public String getParameter(String name) {
+        String[] values = this.parameters().get(name);
+        return values == null ? null : values[0];
+    }
+
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(this.parameters().keySet());
+    }
+
+    public String[] getParameterValues(String name) {
+        return this.parameters().get(name);
+    }
+
+    public Map<String, String[]> getParameterMap() {
+        return Collections.unmodifiableMap(this.parameters());
+    }
+
+    public String getProtocol() {
+        return this.exchange.getProtocol();
+    }
+
+    public String getScheme() {
+        return "http";
+    }
+
+    public String getServerName() {
+        String host = this.getHeader("Host");
+        if(host == null) {
+            return this.getLocalName();
+        }
+        int i = host.lastIndexOf(':');
+        return i > host.lastIndexOf(']') ? host.substring(0, i) : host;
+    }
+
+    public int getServerPort() {
+        return this.getLocalPort();
+    }
+
+    public BufferedReader getReader() throws IOException {
+        String encoding = this.characterEncoding == null ? "ISO-8859-1" : this.characterEncoding;
+        return new BufferedReader(new InputStreamReader(this.getInputStream(), encoding));
+    }
+
+    public String getRemoteAddr() {
+        return this.exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    public String getRemoteHost() {
+        return this.getRemoteAddr();
+    }
+
+    public void setAttribute(String name, Object o) {
+        if(o == null) {
+            this.attributes.remove(name);
+        } else {
+            this.attributes.put(name, o);
+        }
+    }
+
+    public void removeAttribute(String name) {
+        this.attributes.remove(name);
+    }
+
+    public Locale getLocale() {
+        return Locale.getDefault();
+    }
+
+    public Enumeration<Locale> getLocales() {
+        return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+    }
+
+    public boolean isSecure() {
+        return false;
+    }
+
+    public RequestDispatcher getRequestDispatcher(String path) {
+        // There is nothing to dispatch to without a servlet container.
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String getRealPath(String path) {
+        return null;
+    }
+
+    public int getRemotePort() {
+        return this.exchange.getRemoteAddress().getPort();
+    }
+
+    public String getLocalName() {
+        return this.exchange.getLocalAddress().getHostName();
+    }
+
+    public String getLocalAddr() {
+        InetSocketAddress local = this.exchange.getLocalAddress();
+        return local.getAddress().getHostAddress();
+    }
+
+    public int getLocalPort() {
+        return this.exchange.getLocalAddress().getPort();
+    }
+}
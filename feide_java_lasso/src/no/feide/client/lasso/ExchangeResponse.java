@@ -0,0 +1,434 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Lets the servlet write a response to an exchange of the JDK HTTP server, for StandaloneServer.
+ * The response is buffered like in a servlet container, so a small response is sent with a
+ * Content-Length, and a response which outgrows the buffer is sent chunked.
+ */
+class ExchangeResponse implements HttpServletResponse {
+
+    /**
+     * The default size of the response buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The exchange.
+     */
+    private final HttpExchange exchange;
+
+    private int status = SC_OK;
+    private String contentType = null;
+    private String characterEncoding = "ISO-8859-1";
+    private Locale locale = Locale.getDefault();
+    private int bufferSize = BUFFER_SIZE;
+
+    /**
+     * The body of the response, or null if it hasn't been written to.
+     */
+    private Output output = null;
+
+    /**
+     * The writer of the body, or null if the body isn't written as text.
+     */
+    private PrintWriter writer = null;
+
+    /**
+     * Whether the status and the headers have been sent.
+     */
+    private boolean committed = false;
+
+    /**
+     * Creates a response.
+     *
+     * @param exchange the exchange.
+     */
+    ExchangeResponse(HttpExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    /**
+     * Sends what is left of the response. Called when the servlet is done with the response.
+     *
+     * @throws IOException if we fail to send the response.
+     */
+    void finish() throws IOException {
+        if(this.writer != null) {
+            this.writer.flush();
+        }
+        this.output().close();
+    }
+
+    /**
+     * Sends the status and the headers.
+     *
+     * @param length the length of the body, 0 if the body is sent chunked, or -1 if there is
+     *        no body.
+     * @throws IOException if we fail to send the headers.
+     */
+    private void commit(long length) throws IOException {
+        if(this.status == SC_NO_CONTENT || this.status == SC_NOT_MODIFIED) {
+            length = -1;
+        }
+        this.committed = true;
+        this.exchange.sendResponseHeaders(this.status, length);
+    }
+
+    /**
+     * Gets the buffered body of the response.
+     *
+     * @return the body.
+     */
+    private Output output() {
+        if(this.output == null) {
+            this.output = new Output(this.bufferSize);
+        }
+        return this.output;
+    }
+
+    /**
+     * Throws IllegalStateException if the response has been committed.
+     */
+    private void checkNotCommitted() {
+        if(this.committed) {
+            throw new IllegalStateException("The response has already been committed.");
+        }
+    }
+
+    /**
+     * The body of the response.
+     */
+    private final class Output extends ServletOutputStream {
+        private final byte[] buffer;
+        private int count = 0;
+        private OutputStream body = null;
+        private boolean closed = false;
+
+        /**
+         * Creates the body.
+         *
+         * @param size the size of the buffer.
+         */
+        Output(int size) {
+            this.buffer = new byte[size];
+        }
+
+        /**
+         * Commits the response with a chunked body, and sends what is in the buffer.
+         *
+         * @throws IOException if we fail to send the buffer.
+         */
+        private void drain() throws IOException {
+            if(this.body == null) {
+                ExchangeResponse.this.commit(0);
+                this.body = ExchangeResponse.this.exchange.getResponseBody();
+            }
+            this.body.write(this.buffer, 0, this.count);
+            this.count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(this.closed) {
+                throw new IOException("The response has been closed.");
+            }
+            if(this.count == this.buffer.length) {
+                this.drain();
+            }
+            this.buffer[this.count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(this.closed) {
+                throw new IOException("The response has been closed.");
+            }
+            if(len > this.buffer.length - this.count) {
+                this.drain();
+                if(len > this.buffer.length) {
+                    this.body.write(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, this.buffer, this.count, len);
+            this.count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(this.closed) {
+                return;
+            }
+            this.drain();
+            this.body.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(this.closed) {
+                return;
+            }
+            this.closed = true;
+            if(this.body == null) {
+                ExchangeResponse.this.commit(this.count == 0 ? -1 : this.count);
+                this.body = ExchangeResponse.this.exchange.getResponseBody();
+            }
+            this.body.write(this.buffer, 0, this.count);
+            this.count = 0;
+            this.body.close();
+        }
+
+        /**
+         * Throws away what is in the buffer.
+         */
+        void reset() {
+            this.count = 0;
+        }
+    }
+
+    public void addCookie(Cookie cookie) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(cookie.getName()).append('=').append(cookie.getValue() == null ? "" : cookie.getValue());
+        if(cookie.getPath() != null) {
+            sb.append("; Path=").append(cookie.getPath());
+        }
+        if(cookie.getDomain() != null) {
+            sb.append("; Domain=").append(cookie.getDomain());
+        }
+        if(cookie.getMaxAge() >= 0) {
+            sb.append("; Max-Age=").append(cookie.getMaxAge());
+        }
+        if(cookie.getSecure()) {
+            sb.append("; Secure");
+        }
+        sb.append("; HttpOnly");
+        this.addHeader("Set-Cookie", sb.toString());
+    }
+
+    public boolean containsHeader(String name) {
+        return this.exchange.getResponseHeaders().containsKey(name);
+    }
+
+    public String encodeURL(String url) {
+        // Sessions are only tracked with cookies.
+        return url;
+    }
+
+    public String encodeRedirectURL(String url) {
+        return url;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String encodeUrl(String url) {
+        return url;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String encodeRedirectUrl(String url) {
+        return url;
+    }
+
+    public void sendError(int sc, String msg) throws IOException {
+        this.checkNotCommitted();
+        this.resetBuffer();
+        this.status = sc;
+        this.setContentType("text/html;charset=UTF-8");
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><title>Error ").append(sc).append("</title></head><body><h1>Error ");
+        sb.append(sc).append("</h1>");
+        if(msg != null) {
+            sb.append("<p>");
+            for(int i = 0; i < msg.length(); i++) {
+                char c = msg.charAt(i);
+                byte[] escaped = c < 128 ? LoginPage.HTML_ESCAPES[c] : null;
+                if(escaped == null) {
+                    sb.append(c);
+                } else {
+                    sb.append(new String(escaped, "UTF-8"));
+                }
+            }
+            sb.append("</p>");
+        }
+        sb.append("</body></html>\n");
+
+        Output out = this.output();
+        out.write(Utf8Output.encode(sb.toString()));
+        out.close();
+    }
+
+    public void sendError(int sc) throws IOException {
+        this.sendError(sc, null);
+    }
+
+    public void sendRedirect(String location) throws IOException {
+        this.checkNotCommitted();
+        this.resetBuffer();
+        this.status = SC_MOVED_TEMPORARILY;
+        this.setHeader("Location", location);
+        this.output().close();
+    }
+
+    public void setDateHeader(String name, long date) {
+        this.setHeader(name, formatDate(date));
+    }
+
+    public void addDateHeader(String name, long date) {
+        this.addHeader(name, formatDate(date));
+    }
+
+    public void setHeader(String name, String value) {
+        if(!this.committed) {
+            this.exchange.getResponseHeaders().set(name, value);
+        }
+    }
+
+    public void addHeader(String name, String value) {
+        if(!this.committed) {
+            this.exchange.getResponseHeaders().add(name, value);
+        }
+    }
+
+    public void setIntHeader(String name, int value) {
+        this.setHeader(name, String.valueOf(value));
+    }
+
+    public void addIntHeader(String name, int value) {
+        this.addHeader(name, String.valueOf(value));
+    }
+
+    public void setStatus(int sc) {
+        if(!this.committed) {
+            this.status = sc;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        this.setStatus(sc);
+    }
+
+    public String getCharacterEncoding() {
+        return this.characterEncoding;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    public ServletOutputStream getOutputStream() {
+        if(this.writer != null) {
+            throw new IllegalStateException("getWriter() has already been called.");
+        }
+        return this.output();
+    }
+
+    public PrintWriter getWriter() throws IOException {
+        if(this.writer == null) {
+            if(this.output != null) {
+                throw new IllegalStateException("getOutputStream() has already been called.");
+            }
+            this.writer = new PrintWriter(new OutputStreamWriter(this.output(), this.characterEncoding));
+        }
+        return this.writer;
+    }
+
+    public void setCharacterEncoding(String charset) {
+        if(this.writer != null || this.committed) {
+            return;
+        }
+        this.characterEncoding = charset;
+        if(this.contentType != null) {
+            int i = this.contentType.indexOf(';');
+            this.setContentType((i < 0 ? this.contentType : this.contentType.substring(0, i))
+                    + ";charset=" + charset);
+        }
+    }
+
+    public void setContentLength(int len) {
+        // The length is known when the response is sent, or the response is chunked.
+    }
+
+    public void setContentType(String type) {
+        if(this.committed) {
+            return;
+        }
+        this.contentType = type;
+        int i = type.toLowerCase().indexOf("charset=");
+        if(i >= 0 && this.writer == null) {
+            this.characterEncoding = type.substring(i + 8).trim();
+        }
+        this.setHeader("Content-Type", type);
+    }
+
+    public void setBufferSize(int size) {
+        if(this.output != null) {
+            throw new IllegalStateException("The response has already been written to.");
+        }
+        this.bufferSize = Math.max(size, 1);
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public void flushBuffer() throws IOException {
+        if(this.writer != null) {
+            this.writer.flush();
+        }
+        this.output().flush();
+    }
+
+    public void resetBuffer() {
+        this.checkNotCommitted();
+        if(this.output != null) {
+            this.output.reset();
+        }
+    }
+
+    public boolean isCommitted() {
+        return this.committed;
+    }
+
+    public void reset() {
+        this.resetBuffer();
+        this.status = SC_OK;
+        this.contentType = null;
+        this.exchange.getResponseHeaders().clear();
+    }
+
+    public void setLocale(Locale loc) {
+        this.locale = loc;
+    }
+
+    public Locale getLocale() {
+        return this.locale;
+    }
+
+    /**
+     * Formats a date for an HTTP header.
+     *
+     * @param date the date, in milliseconds since the epoch.
+     * @return the formatted date.
+     */
+    private static String formatDate(long date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+}
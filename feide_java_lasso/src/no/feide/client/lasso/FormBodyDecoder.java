@@ -0,0 +1,558 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads one base64 encoded parameter from a form posted to the servlet. The body is read from
+ * the input stream in small chunks, and the parameter is URL-decoded and base64-decoded as it
+ * arrives, straight into a buffer taken from a pool. This avoids the copies made by
+ * getParameter(): the decoded form, the base64 string and the decoded bytes.
+ *
+ * The size of the body is limited, and a client which takes longer than the timeout to send
+ * the body is dropped as soon as we notice. A client which stops sending altogether is left to
+ * the connection timeout of the servlet container, since a servlet can't time out a blocking
+ * read.
+ */
+class FormBodyDecoder {
+
+    /**
+     * A decoded parameter. The buffer must be released when the caller is done with it.
+     */
+    final class Decoded {
+
+        /**
+         * The buffer the parameter was decoded into.
+         */
+        private byte[] buffer;
+
+        /**
+         * The number of bytes in the buffer.
+         */
+        private final int length;
+
+        /**
+         * Whether the buffer was taken from the pool.
+         */
+        private final boolean pooled;
+
+        /**
+         * Creates a decoded parameter.
+         *
+         * @param buffer the buffer.
+         * @param length the number of bytes in the buffer.
+         * @param pooled whether the buffer was taken from the pool.
+         */
+        private Decoded(byte[] buffer, int length, boolean pooled) {
+            this.buffer = buffer;
+            this.length = length;
+            this.pooled = pooled;
+        }
+
+        /**
+         * Retrieves the buffer the parameter was decoded into. Only the first getLength() bytes
+         * are part of the parameter.
+         *
+         * @return the buffer.
+         */
+        byte[] getBuffer() {
+            return this.buffer;
+        }
+
+        /**
+         * Retrieves the length of the parameter.
+         *
+         * @return the number of bytes in the buffer.
+         */
+        int getLength() {
+            return this.length;
+        }
+
+        /**
+         * Returns the buffer to the pool. The parameter can't be used after this.
+         */
+        void release() {
+            if(this.buffer != null && this.pooled) {
+                FormBodyDecoder.this.release(this.buffer);
+            }
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * The decoded value of each base64 character, or -1 for characters outside the alphabet.
+     */
+    private static final byte[] BASE64 = new byte[128];
+    static {
+        for(int i = 0; i < BASE64.length; i++) {
+            BASE64[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for(int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte)i;
+        }
+    }
+
+    /**
+     * The longest parameter name we look at. Longer names can't match.
+     */
+    private static final int MAX_NAME = 64;
+
+    /**
+     * The largest body we read, in bytes.
+     */
+    private final long maxBody;
+
+    /**
+     * The number of milliseconds a client may spend sending the body.
+     */
+    private final long timeout;
+
+    /**
+     * The size of the decode buffers. A base64 value of a body of maxBody bytes always fits.
+     */
+    private final int bufferSize;
+
+    /**
+     * Decode buffers which aren't in use.
+     */
+    private final BlockingQueue<byte[]> pool;
+
+    private final AtomicLong tooLarge;
+    private final AtomicLong timedOut;
+    private final AtomicLong malformed;
+    private final AtomicLong allocated;
+
+    /**
+     * The gauges of this decoder, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * Creates the decoder from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    FormBodyDecoder(Config config) throws ServletException {
+        this.maxBody = config.getLongProperty("no.feide.test.post.maxsize", 524288);
+        this.timeout = config.getLongProperty("no.feide.test.post.timeout", 30000);
+        this.bufferSize = (int)(this.maxBody / 4 * 3 + 3);
+        this.pool = new ArrayBlockingQueue<byte[]>(
+                (int)config.getLongProperty("no.feide.test.post.buffers", 16));
+
+        Metrics metrics = Metrics.getInstance();
+        this.tooLarge = metrics.counter(config.getMetricName("post.rejected.too_large"));
+        this.timedOut = metrics.counter(config.getMetricName("post.rejected.timeout"));
+        this.malformed = metrics.counter(config.getMetricName("post.rejected.malformed"));
+        this.allocated = metrics.counter(config.getMetricName("post.buffers.allocated"));
+        this.gauges.put(config.getMetricName("post.buffers.free"), new Metrics.Gauge() {
+            public long getValue() {
+                return FormBodyDecoder.this.pool.size();
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Removes the gauges of this decoder, and lets go of the free decode buffers.
+     */
+    void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.pool.clear();
+    }
+
+    /**
+     * Reads and decodes a base64 encoded parameter from the body of a POST request. The body
+     * is consumed, so getParameter() can't be used on the request afterwards.
+     *
+     * @param request the request.
+     * @param name the name of the parameter.
+     * @return the decoded parameter, or null if the body doesn't contain the parameter.
+     * @throws ServletException if the body is too large, malformed, or too slow to arrive.
+     * @throws IOException if we fail to read the body.
+     */
+    Decoded decode(HttpServletRequest request, String name) throws ServletException, IOException {
+        String contentType = request.getContentType();
+        if(contentType == null || !contentType.toLowerCase().startsWith("application/x-www-form-urlencoded")) {
+            // Leave other encodings to the container.
+            return this.decodeString(request.getParameter(name));
+        }
+        return this.decode(request.getInputStream(), request.getContentLength(), name);
+    }
+
+    /**
+     * Reads and decodes a base64 encoded parameter from a form encoded body.
+     *
+     * @param in the body.
+     * @param contentLength the length of the body, or -1 if it isn't known.
+     * @param name the name of the parameter.
+     * @return the decoded parameter, or null if the body doesn't contain the parameter.
+     * @throws ServletException if the body is too large, malformed, or too slow to arrive.
+     * @throws IOException if we fail to read the body.
+     */
+    Decoded decode(InputStream in, int contentLength, String name) throws ServletException, IOException {
+        if(contentLength > this.maxBody) {
+            this.tooLarge.incrementAndGet();
+            throw new ServletException("POST body is too large: " + contentLength + " bytes.");
+        }
+
+        Deadline deadline = Deadline.after(this.timeout);
+        byte[] out = this.borrow();
+        boolean done = false;
+        try {
+            Parser parser = new Parser(name, out);
+            byte[] chunk = new byte[4096];
+            long total = 0;
+            int n;
+            while(!parser.isComplete() && (n = in.read(chunk)) > 0) {
+                total += n;
+                if(total > this.maxBody) {
+                    this.tooLarge.incrementAndGet();
+                    throw new ServletException("POST body is larger than " + this.maxBody + " bytes.");
+                }
+                if(deadline.isExpired()) {
+                    this.timedOut.incrementAndGet();
+                    throw new ServletException("Client took more than " + this.timeout + " ms to send the POST body.");
+                }
+                parser.parse(chunk, n);
+            }
+
+            int length = parser.finish();
+            if(length < 0) {
+                return null;
+            }
+            done = true;
+            return new Decoded(out, length, true);
+        } finally {
+            if(!done) {
+                this.release(out);
+            }
+        }
+    }
+
+    /**
+     * Reads a body which isn't form encoded, like the SOAP envelope an ECP client posts, into a
+     * buffer from the pool. Such a body holds the response as it is, so it may be as large as
+     * the largest decoded parameter.
+     *
+     * @param request the request.
+     * @return the body.
+     * @throws ServletException if the body is too large, or too slow to arrive.
+     * @throws IOException if we fail to read the body.
+     */
+    Decoded read(HttpServletRequest request) throws ServletException, IOException {
+        if(request.getContentLength() > this.bufferSize) {
+            this.tooLarge.incrementAndGet();
+            throw new ServletException("POST body is too large: " + request.getContentLength() + " bytes.");
+        }
+
+        Deadline deadline = Deadline.after(this.timeout);
+        byte[] out = this.borrow();
+        boolean done = false;
+        try {
+            InputStream in = request.getInputStream();
+            int length = 0;
+            int n;
+            while((n = in.read(out, length, out.length - length)) > 0) {
+                length += n;
+                if(deadline.isExpired()) {
+                    this.timedOut.incrementAndGet();
+                    throw new ServletException("Client took more than " + this.timeout + " ms to send the POST body.");
+                }
+                if(length == out.length && in.read() >= 0) {
+                    this.tooLarge.incrementAndGet();
+                    throw new ServletException("POST body is larger than " + out.length + " bytes.");
+                }
+            }
+            done = true;
+            return new Decoded(out, length, true);
+        } finally {
+            if(!done) {
+                this.release(out);
+            }
+        }
+    }
+
+    /**
+     * Decodes a parameter which has already been read by the container.
+     *
+     * @param value the base64 encoded value, or null.
+     * @return the decoded parameter, or null if the value is null.
+     * @throws ServletException if the value isn't valid base64.
+     */
+    private Decoded decodeString(String value) throws ServletException {
+        if(value == null) {
+            return null;
+        }
+        byte[] decoded = Base64.decode(value);
+        if(decoded == null) {
+            this.malformed.incrementAndGet();
+            throw new ServletException("Parameter isn't valid base64.");
+        }
+        return new Decoded(decoded, decoded.length, false);
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return the buffer.
+     */
+    private byte[] borrow() {
+        byte[] buffer = this.pool.poll();
+        if(buffer == null) {
+            this.allocated.incrementAndGet();
+            buffer = new byte[this.bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer is dropped if the pool is full.
+     *
+     * @param buffer the buffer.
+     */
+    private void release(byte[] buffer) {
+        this.pool.offer(buffer);
+    }
+
+    /**
+     * The state of the parser for one body.
+     */
+    private final class Parser {
+
+        /**
+         * The name of the parameter we are looking for.
+         */
+        private final String name;
+
+        /**
+         * The buffer the value is decoded into.
+         */
+        private final byte[] out;
+
+        /**
+         * The name of the current parameter, while it is being read.
+         */
+        private final StringBuilder currentName = new StringBuilder();
+
+        /**
+         * Whether we are reading a value. If not, we are reading a name.
+         */
+        private boolean inValue = false;
+
+        /**
+         * Whether the current value is the one we are looking for.
+         */
+        private boolean decoding = false;
+
+        /**
+         * Whether we have decoded the whole value.
+         */
+        private boolean complete = false;
+
+        /**
+         * The number of hex digits left of a %XX escape, or 0 if we aren't in an escape.
+         */
+        private int escapeDigits = 0;
+
+        /**
+         * The value of the %XX escape so far.
+         */
+        private int escape = 0;
+
+        /**
+         * The base64 characters we have decoded, packed into an int.
+         */
+        private int quantum = 0;
+
+        /**
+         * The number of base64 characters in the quantum.
+         */
+        private int quantumLength = 0;
+
+        /**
+         * The number of '=' padding characters we have seen.
+         */
+        private int padding = 0;
+
+        /**
+         * The number of bytes in the buffer.
+         */
+        private int length = 0;
+
+        /**
+         * Creates a parser.
+         *
+         * @param name the name of the parameter we are looking for.
+         * @param out the buffer the value is decoded into.
+         */
+        Parser(String name, byte[] out) {
+            this.name = name;
+            this.out = out;
+        }
+
+        /**
+         * Checks whether we have decoded the whole value, so that the rest of the body can be
+         * left unread.
+         *
+         * @return true if the value is decoded.
+         */
+        boolean isComplete() {
+            return this.complete;
+        }
+
+        /**
+         * Parses a chunk of the body.
+         *
+         * @param chunk the chunk.
+         * @param n the number of bytes in the chunk.
+         * @throws ServletException if the value is malformed.
+         */
+        void parse(byte[] chunk, int n) throws ServletException {
+            for(int i = 0; i < n && !this.complete; i++) {
+                int c = chunk[i] & 0xff;
+
+                if(this.escapeDigits > 0) {
+                    int digit = Character.digit(c, 16);
+                    if(digit < 0) {
+                        throw FormBodyDecoder.this.malformed("Invalid escape in POST body.");
+                    }
+                    this.escape = this.escape * 16 + digit;
+                    if(--this.escapeDigits == 0) {
+                        this.character(this.escape);
+                    }
+                } else if(c == '%') {
+                    this.escapeDigits = 2;
+                    this.escape = 0;
+                } else if(c == '&') {
+                    this.endParameter();
+                } else if(c == '=' && !this.inValue) {
+                    this.inValue = true;
+                    this.decoding = this.name.contentEquals(this.currentName);
+                } else if(c == '+') {
+                    this.character(' ');
+                } else {
+                    this.character(c);
+                }
+            }
+        }
+
+        /**
+         * Handles a character of the body, after URL decoding.
+         *
+         * @param c the character.
+         * @throws ServletException if the value is malformed.
+         */
+        private void character(int c) throws ServletException {
+            if(!this.inValue) {
+                if(this.currentName.length() <= MAX_NAME) {
+                    this.currentName.append((char)c);
+                }
+                return;
+            }
+            if(!this.decoding) {
+                return;
+            }
+
+            if(c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                return;
+            }
+            if(c == '=') {
+                this.padding++;
+                return;
+            }
+            int value = c < 128 ? BASE64[c] : -1;
+            if(value < 0 || this.padding > 0) {
+                throw FormBodyDecoder.this.malformed("Parameter isn't valid base64.");
+            }
+
+            this.quantum = (this.quantum << 6) | value;
+            if(++this.quantumLength == 4) {
+                this.out[this.length++] = (byte)(this.quantum >> 16);
+                this.out[this.length++] = (byte)(this.quantum >> 8);
+                this.out[this.length++] = (byte)this.quantum;
+                this.quantum = 0;
+                this.quantumLength = 0;
+            }
+        }
+
+        /**
+         * Handles the end of a parameter.
+         *
+         * @throws ServletException if the value is malformed.
+         */
+        private void endParameter() throws ServletException {
+            if(this.decoding) {
+                this.finishValue();
+                this.complete = true;
+            }
+            this.currentName.setLength(0);
+            this.inValue = false;
+            this.decoding = false;
+        }
+
+        /**
+         * Decodes the last, partial quantum of the value.
+         *
+         * @throws ServletException if the value is malformed.
+         */
+        private void finishValue() throws ServletException {
+            if(this.escapeDigits > 0) {
+                throw FormBodyDecoder.this.malformed("Truncated escape in POST body.");
+            }
+            switch(this.quantumLength) {
+            case 0:
+                break;
+            case 2:
+                this.out[this.length++] = (byte)(this.quantum >> 4);
+                break;
+            case 3:
+                this.out[this.length++] = (byte)(this.quantum >> 10);
+                this.out[this.length++] = (byte)(this.quantum >> 2);
+                break;
+            default:
+                throw FormBodyDecoder.this.malformed("Parameter isn't valid base64.");
+            }
+        }
+
+        /**
+         * Handles the end of the body.
+         *
+         * @return the length of the decoded value, or -1 if the body doesn't contain the
+         *         parameter.
+         * @throws ServletException if the value is malformed.
+         */
+        int finish() throws ServletException {
+            if(!this.complete) {
+                if(!this.inValue) {
+                    this.inValue = true;
+                    this.decoding = this.name.contentEquals(this.currentName);
+                }
+                this.endParameter();
+            }
+            return this.complete ? this.length : -1;
+        }
+    }
+
+    /**
+     * Counts a malformed body, and creates the exception which rejects it.
+     *
+     * @param message the reason the body was rejected.
+     * @return the exception.
+     */
+    private ServletException malformed(String message) {
+        this.malformed.incrementAndGet();
+        return new ServletException(message);
+    }
+}
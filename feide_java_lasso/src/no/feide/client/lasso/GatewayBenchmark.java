@@ -0,0 +1,357 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the latency and throughput GatewayProxy adds, by sending the same requests to a
+ * local stand-in backend directly and through the gateway. The stand-in reads the request body,
+ * checks the signature of the attribute headers, and answers with a body of the same size.
+ *
+ * The gateway runs on the HTTP server built into the JDK, like StandaloneServer, with a fixed
+ * logged in user, so the login isn't measured.
+ *
+ * Usage: java no.feide.client.lasso.GatewayBenchmark &lt;context root&gt; [threads] [requests]
+ *     [body size]
+ *
+ * The context root is laid out like for StandaloneServer. The attribute headers are taken from
+ * no.feide.test.gateway.headers, and the key is generated for the run. With a body size of 0,
+ * the requests are GET requests, otherwise they are POST requests.
+ */
+public final class GatewayBenchmark {
+
+    /**
+     * The context path of the gateway.
+     */
+    private static final String CONTEXT_PATH = "/gw";
+
+    /**
+     * The names of the attribute headers, in the order they are signed.
+     */
+    private final String[] headerNames;
+
+    /**
+     * The key the headers are signed with.
+     */
+    private final byte[] key;
+
+    /**
+     * The number of requests the stand-in got with a valid signature.
+     */
+    private final AtomicLong signed = new AtomicLong();
+
+    /**
+     * Creates the benchmark.
+     *
+     * @param proxy the proxy.
+     * @param key the key of the proxy.
+     */
+    private GatewayBenchmark(GatewayProxy proxy, byte[] key) {
+        this.headerNames = proxy.getHeaderNames().toArray(new String[0]);
+        this.key = key;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the context root, the number of client threads, the number of requests for
+     *        each run, and the size of the bodies.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1 || args.length > 4) {
+            System.err.println("Usage: java " + GatewayBenchmark.class.getName()
+                    + " <context root> [threads] [requests] [body size]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int bodySize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+
+        // Both the clients and the gateway keep a connection to the other side for each thread.
+        if(System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(threads * 2));
+        }
+        // Without this, the HTTP server waits for delayed ACKs between the headers and the body.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        Config config = new Config(new File(args[0]).getAbsoluteFile());
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+
+        HttpServer backend = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 128);
+        String backendUrl = "http://127.0.0.1:" + backend.getAddress().getPort();
+        final GatewayProxy proxy = new GatewayProxy(config, backendUrl, key);
+        final GatewayBenchmark benchmark = new GatewayBenchmark(proxy, key);
+        backend.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                benchmark.handleBackend(e);
+            }
+        });
+        backend.setExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory("gateway-backend")));
+        backend.start();
+
+        final Map<String, Attribute> attributes = new LinkedHashMap<String, Attribute>();
+        add(attributes, "eduPersonPrincipalName", "olanormann@uninett.no");
+        add(attributes, "mail", "ola.nordmann@uninett.no");
+        add(attributes, "cn", "\u00d8la N\u00f8rdmann");
+        Attribute affiliation = new Attribute("eduPersonAffiliation");
+        affiliation.addValue("employee");
+        affiliation.addValue("member");
+        attributes.put(affiliation.getName(), affiliation);
+
+        final MemorySessions sessions = new MemorySessions(config);
+        HttpServer front = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 128);
+        front.createContext(CONTEXT_PATH + GatewayServlet.SERVLET_PATH + "/", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                ExchangeResponse response = new ExchangeResponse(e);
+                ExchangeRequest request = new ExchangeRequest(e, response, CONTEXT_PATH, GatewayServlet.SERVLET_PATH,
+                        sessions);
+                try {
+                    proxy.proxy(request, response, GatewayProxy.backendPath(request), attributes);
+                } finally {
+                    try {
+                        response.finish();
+                    } finally {
+                        e.close();
+                    }
+                }
+            }
+        });
+        front.setExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory("gateway-front")));
+        front.start();
+        String gatewayUrl = "http://127.0.0.1:" + front.getAddress().getPort() + CONTEXT_PATH
+            + GatewayServlet.SERVLET_PATH;
+
+        byte[] body = new byte[bodySize];
+        new SecureRandom().nextBytes(body);
+
+        System.out.println(threads + " threads, " + requests + " requests, " + bodySize + " byte bodies, "
+                + benchmark.headerNames.length + " attribute headers");
+        try {
+            // Warm up, so that we measure compiled code.
+            run(backendUrl, body, threads, requests / 4);
+            run(gatewayUrl, body, threads, requests / 4);
+
+            Run direct = run(backendUrl, body, threads, requests);
+            Run gateway = run(gatewayUrl, body, threads, requests);
+            print("direct ", direct);
+            print("gateway", gateway);
+            System.out.println("overhead: p50 +" + (gateway.latency.getPercentile(50) - direct.latency.getPercentile(50))
+                    + " us, p99 +" + (gateway.latency.getPercentile(99) - direct.latency.getPercentile(99))
+                    + " us, throughput " + (gateway.throughput() * 100 / Math.max(direct.throughput(), 1))
+                    + "% of direct");
+            // Only the requests through the gateway are signed.
+            int proxied = requests / 4 + requests;
+            System.out.println("signatures: " + benchmark.signed.get() + " of " + proxied
+                    + " requests through the gateway were signed");
+            if(direct.failures.get() + gateway.failures.get() > 0 || benchmark.signed.get() != proxied) {
+                System.exit(1);
+            }
+        } finally {
+            front.stop(0);
+            backend.stop(0);
+            sessions.shutdown();
+        }
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    private static final class Run {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger failures = new AtomicInteger();
+        long elapsed;
+        int requests;
+
+        long throughput() {
+            return this.requests * 1000000000L / Math.max(this.elapsed, 1);
+        }
+    }
+
+    /**
+     * Sends requests to a URL from several threads.
+     *
+     * @param url the base URL.
+     * @param body the body of each request, or an empty array for GET requests.
+     * @param threads the number of threads.
+     * @param requests the total number of requests.
+     * @return the outcome.
+     * @throws InterruptedException if we are interrupted while waiting for the threads.
+     */
+    private static Run run(final String url, final byte[] body, int threads, final int requests)
+    throws InterruptedException {
+        final Run run = new Run();
+        run.requests = requests;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[16384];
+                    try {
+                        int i;
+                        while((i = next.getAndIncrement()) < requests) {
+                            long s = System.nanoTime();
+                            if(!send(url + "/app/item/" + i + "?view=full", body, buffer)) {
+                                run.failures.incrementAndGet();
+                            }
+                            run.latency.record(System.nanoTime() - s);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "gateway-client-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        run.elapsed = System.nanoTime() - start;
+        return run;
+    }
+
+    /**
+     * Sends a request, and reads the response.
+     *
+     * @param url the URL.
+     * @param body the body, or an empty array for a GET request.
+     * @param buffer the buffer the response is read into.
+     * @return whether the response was 200 OK with a body of the same size.
+     */
+    private static boolean send(String url, byte[] body, byte[] buffer) {
+        try {
+            HttpURLConnection c = (HttpURLConnection)new URL(url).openConnection();
+            if(body.length > 0) {
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setFixedLengthStreamingMode(body.length);
+                c.setRequestProperty("Content-Type", "application/octet-stream");
+                OutputStream out = c.getOutputStream();
+                out.write(body);
+                out.close();
+            }
+            int status = c.getResponseCode();
+            InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+            long total = 0;
+            if(in != null) {
+                int n;
+                while((n = in.read(buffer)) >= 0) {
+                    total += n;
+                }
+                in.close();
+            }
+            return status == 200 && total == body.length;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Answers a request to the stand-in backend with a body of the same size as the request
+     * body, after checking the signature of the attribute headers.
+     *
+     * @param e the exchange of the request.
+     * @throws IOException if we fail to send the response.
+     */
+    private void handleBackend(HttpExchange e) throws IOException {
+        InputStream in = e.getRequestBody();
+        byte[] buffer = new byte[16384];
+        long total = 0;
+        int n;
+        while((n = in.read(buffer)) >= 0) {
+            total += n;
+        }
+        in.close();
+
+        if(this.verify(e)) {
+            this.signed.incrementAndGet();
+        }
+
+        e.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        e.sendResponseHeaders(200, total == 0 ? -1 : total);
+        OutputStream out = e.getResponseBody();
+        for(long left = total; left > 0; left -= n) {
+            n = (int)Math.min(left, buffer.length);
+            out.write(buffer, 0, n);
+        }
+        out.close();
+    }
+
+    /**
+     * Checks the signature of the attribute headers, as a backend would.
+     *
+     * @param e the exchange of the request.
+     * @return whether the signature is valid.
+     */
+    private boolean verify(HttpExchange e) {
+        String timestamp = e.getRequestHeaders().getFirst(GatewayProxy.TIMESTAMP_HEADER);
+        String signature = e.getRequestHeaders().getFirst(GatewayProxy.SIGNATURE_HEADER);
+        if(timestamp == null || signature == null) {
+            return false;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(e.getRequestMethod()).append('\n').append(e.getRequestURI().toString()).append('\n').append(timestamp);
+        for(String name : this.headerNames) {
+            String value = e.getRequestHeaders().getFirst(name);
+            sb.append('\n').append(name).append(": ").append(value == null ? "" : value);
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(this.key, "HmacSHA256"));
+            String expected = Base64.encodeBytes(mac.doFinal(Utf8Output.encode(sb.toString())),
+                    Base64.DONT_BREAK_LINES);
+            return expected.equals(signature);
+        } catch(Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Prints the outcome of a run.
+     *
+     * @param name the name of the run.
+     * @param run the run.
+     */
+    private static void print(String name, Run run) {
+        System.out.println(name + ": " + run.throughput() + " requests/s, p50 " + run.latency.getPercentile(50)
+                + " us, p99 " + run.latency.getPercentile(99) + " us, mean " + run.latency.getMean() + " us, "
+                + run.failures.get() + " failures");
+    }
+
+    /**
+     * Adds a single valued attribute.
+     *
+     * @param attributes the attributes.
+     * @param name the name of the attribute.
+     * @param value the value of the attribute.
+     */
+    private static void add(Map<String, Attribute> attributes, String name, String value) {
+        Attribute a = new Attribute(name);
+        a.addValue(value);
+        attributes.put(name, a);
+    }
+}
@@ -0,0 +1,509 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Forwards a request of a logged in user to a backend application, with selected attributes of
+ * the user in request headers. The headers are signed with HMAC-SHA256, so that the backend can
+ * check that they come from the gateway:
+ *
+ * X-Feide-Timestamp: the time of the request, in seconds since the epoch.
+ * X-Feide-Signature: the base64 encoded HMAC of the method, the path and query of the request
+ *     to the backend, the timestamp, and "name: value" for each attribute header in the
+ *     configured order, separated by newlines. A missing attribute has an empty value.
+ *
+ * The values of an attribute are percent encoded as UTF-8, and separated by ';'. Headers with
+ * the same names sent by the client are removed, and so are the session cookies of the servlet.
+ *
+ * Connections to the backend are kept alive and reused by HttpURLConnection, which keeps up to
+ * http.maxConnections idle connections to each backend. Bodies are streamed through a buffer
+ * kept by each thread, and are never held in memory as a whole.
+ */
+class GatewayProxy {
+
+    /**
+     * The header with the time of the request.
+     */
+    static final String TIMESTAMP_HEADER = "X-Feide-Timestamp";
+
+    /**
+     * The header with the signature of the attribute headers.
+     */
+    static final String SIGNATURE_HEADER = "X-Feide-Signature";
+
+    /**
+     * The size of the buffer bodies are copied through.
+     */
+    private static final int BUFFER_SIZE = 16384;
+
+    /**
+     * Headers which only apply to one connection, and are never forwarded. Lower case.
+     */
+    private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+            "proxy-authenticate", "proxy-authorization", "te", "trailer", "trailers", "transfer-encoding",
+            "upgrade", "host", "content-length"));
+
+    /**
+     * The methods HttpURLConnection can send.
+     */
+    private static final Set<String> METHODS = new HashSet<String>(Arrays.asList("GET", "POST", "HEAD",
+            "OPTIONS", "PUT", "DELETE"));
+
+    /**
+     * The buffer of each thread.
+     */
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The URL of the backend, without a trailing slash.
+     */
+    private final String target;
+
+    /**
+     * The request headers, by the name of the attribute they hold.
+     */
+    private final Map<String, String> headers;
+
+    /**
+     * The request headers the client may not send, and the headers we sign. Lower case.
+     */
+    private final Set<String> reserved = new HashSet<String>();
+
+    /**
+     * A Mac for each thread, initialized with the key.
+     */
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * The connect timeout and read timeout, in milliseconds.
+     */
+    private final int timeout;
+
+    private final AtomicLong requests = Metrics.getInstance().counter("gateway.requests");
+    private final AtomicLong errors = Metrics.getInstance().counter("gateway.errors");
+    private final AtomicLong bytesIn = Metrics.getInstance().counter("gateway.request_bytes");
+    private final AtomicLong bytesOut = Metrics.getInstance().counter("gateway.response_bytes");
+    private final LatencyHistogram latency = Metrics.getInstance().histogram("gateway.latency");
+    private final LatencyHistogram backendLatency = Metrics.getInstance().histogram("gateway.backend_latency");
+
+    /**
+     * Creates a proxy to a backend.
+     *
+     * @param config the configuration of the servlet.
+     * @param target the URL of the backend.
+     * @param key the key the headers are signed with.
+     * @throws ServletException if the configuration is invalid.
+     */
+    GatewayProxy(Config config, String target, final byte[] key) throws ServletException {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        this.timeout = (int)config.getLongProperty("no.feide.test.gateway.timeout", 30000);
+
+        this.headers = new LinkedHashMap<String, String>();
+        String mapping = config.getProperty("no.feide.test.gateway.headers");
+        if(mapping != null) {
+            for(String pair : mapping.split(",")) {
+                int colon = pair.indexOf(':');
+                if(colon <= 0 || colon == pair.trim().length() - 1) {
+                    throw new ServletException("no.feide.test.gateway.headers must be a list of attribute:header. "
+                            + "Was: \"" + mapping + "\"");
+                }
+                this.headers.put(pair.substring(0, colon).trim(), pair.substring(colon + 1).trim());
+            }
+        }
+        for(String header : this.headers.values()) {
+            this.reserved.add(header.toLowerCase());
+        }
+        this.reserved.add(TIMESTAMP_HEADER.toLowerCase());
+        this.reserved.add(SIGNATURE_HEADER.toLowerCase());
+
+        try {
+            Mac.getInstance("HmacSHA256").init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch(GeneralSecurityException e) {
+            throw new ServletException("Unable to use the gateway key with HmacSHA256.", e);
+        }
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                    return mac;
+                } catch(GeneralSecurityException e) {
+                    // Checked in the constructor.
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the key the headers are signed with, from the file named by no.feide.test.gateway.key.
+     * The file holds the base64 encoded key.
+     *
+     * @param config the configuration of the servlet.
+     * @return the key.
+     * @throws ServletException if the key is missing, or can't be read.
+     */
+    static byte[] readKey(Config config) throws ServletException {
+        String path = config.findRequiredFilePath(config.getRequiredProperty("no.feide.test.gateway.key"));
+        byte[] key = Base64.decode(SamlCrypto.readFile(path).trim());
+        if(key == null || key.length < 16) {
+            throw new ServletException("The gateway key in " + path + " must be at least 16 base64 encoded bytes.");
+        }
+        return key;
+    }
+
+    /**
+     * Gets the names of the attribute headers, in the order they are signed.
+     *
+     * @return the header names.
+     */
+    Collection<String> getHeaderNames() {
+        return Collections.unmodifiableCollection(this.headers.values());
+    }
+
+    /**
+     * Forwards a request to the backend, and the response back to the client.
+     *
+     * @param request the request.
+     * @param response the response.
+     * @param path the path of the request below the gateway, with a leading slash.
+     * @param attributes the attributes of the user.
+     * @throws IOException if we fail to send the response to the client.
+     */
+    void proxy(HttpServletRequest request, HttpServletResponse response, String path,
+            Map<String, Attribute> attributes) throws IOException {
+        long start = System.nanoTime();
+        this.requests.incrementAndGet();
+
+        String method = request.getMethod();
+        if(!METHODS.contains(method)) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
+            return;
+        }
+        String pathAndQuery = request.getQueryString() == null ? path : path + "?" + request.getQueryString();
+
+        HttpURLConnection c = null;
+        try {
+            c = (HttpURLConnection)new URL(this.target + pathAndQuery).openConnection();
+            c.setRequestMethod(method);
+            c.setInstanceFollowRedirects(false);
+            c.setUseCaches(false);
+            c.setConnectTimeout(this.timeout);
+            c.setReadTimeout(this.timeout);
+
+            this.copyRequestHeaders(request, c);
+            this.addAttributeHeaders(c, method, pathAndQuery, attributes);
+
+            // Only stream a body if the client sent one. Otherwise HttpURLConnection would
+            // buffer it to find the length.
+            int length = request.getContentLength();
+            boolean chunked = request.getHeader("Transfer-Encoding") != null;
+            if(length > 0 || chunked) {
+                c.setDoOutput(true);
+                if(length > 0) {
+                    c.setFixedLengthStreamingMode(length);
+                } else {
+                    c.setChunkedStreamingMode(BUFFER_SIZE);
+                }
+                OutputStream out = c.getOutputStream();
+                try {
+                    this.bytesIn.addAndGet(copy(request.getInputStream(), out));
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = c.getResponseCode();
+            this.backendLatency.record(System.nanoTime() - start);
+            this.copyResponse(request, c, status, response);
+        } catch(IOException e) {
+            this.errors.incrementAndGet();
+            this.debug.warning("Gateway request to " + this.target + pathAndQuery + " failed: " + e);
+            if(c != null) {
+                c.disconnect();
+            }
+            if(!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+            }
+        } finally {
+            this.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copies the end-to-end headers of the client to the request to the backend, except the
+     * headers the gateway sets, and the session cookies.
+     *
+     * @param request the request from the client.
+     * @param c the request to the backend.
+     */
+    private void copyRequestHeaders(HttpServletRequest request, HttpURLConnection c) {
+        for(Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements(); ) {
+            String name = (String)names.nextElement();
+            String lower = name.toLowerCase();
+            if(HOP_BY_HOP.contains(lower) || this.reserved.contains(lower) || lower.startsWith("x-forwarded-")) {
+                continue;
+            }
+            for(Enumeration<?> values = request.getHeaders(name); values.hasMoreElements(); ) {
+                String value = (String)values.nextElement();
+                if("cookie".equals(lower)) {
+                    value = removeSessionCookies(value);
+                    if(value.length() == 0) {
+                        continue;
+                    }
+                }
+                c.addRequestProperty(name, value);
+            }
+        }
+
+        c.setRequestProperty("X-Forwarded-For", request.getRemoteAddr());
+        c.setRequestProperty("X-Forwarded-Proto", request.getScheme());
+        String host = request.getHeader("Host");
+        if(host != null) {
+            c.setRequestProperty("X-Forwarded-Host", host);
+        }
+    }
+
+    /**
+     * Removes the cookies of the servlet from a Cookie header, so that the backend never sees
+     * them: the session cookies, the cookie with the ID of a login in the session file, the
+     * cookies of tenants, which add their name to these, and the cookie with the page to return
+     * to after the login.
+     *
+     * @param header the Cookie header.
+     * @return the header without the cookies of the servlet.
+     */
+    private static String removeSessionCookies(String header) {
+        StringBuilder sb = new StringBuilder(header.length());
+        for(String cookie : header.split(";")) {
+            String trimmed = cookie.trim();
+            int eq = trimmed.indexOf('=');
+            String name = eq < 0 ? trimmed : trimmed.substring(0, eq).trim();
+            if(trimmed.length() == 0 || name.equals(MemorySessions.COOKIE) || name.equals(SessionCookie.COOKIE)
+                    || name.startsWith(SessionCookie.COOKIE + "_") || name.equals(LocalSessions.FILE_COOKIE)
+                    || name.equals(GatewayServlet.RETURN_COOKIE)) {
+                continue;
+            }
+            if(sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(trimmed);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds the attribute headers, the timestamp and the signature to the request to the
+     * backend.
+     *
+     * @param c the request to the backend.
+     * @param method the method of the request.
+     * @param pathAndQuery the path and query of the request to the backend.
+     * @param attributes the attributes of the user.
+     */
+    private void addAttributeHeaders(HttpURLConnection c, String method, String pathAndQuery,
+            Map<String, Attribute> attributes) {
+        String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+        StringBuilder signed = new StringBuilder(256);
+        signed.append(method).append('\n').append(pathAndQuery).append('\n').append(timestamp);
+        for(Map.Entry<String, String> e : this.headers.entrySet()) {
+            String value = encodeValues(attributes.get(e.getKey()));
+            if(value.length() > 0) {
+                c.setRequestProperty(e.getValue(), value);
+            }
+            signed.append('\n').append(e.getValue()).append(": ").append(value);
+        }
+        c.setRequestProperty(TIMESTAMP_HEADER, timestamp);
+        c.setRequestProperty(SIGNATURE_HEADER, this.sign(signed.toString()));
+    }
+
+    /**
+     * Signs a string with the key.
+     *
+     * @param s the string.
+     * @return the base64 encoded HMAC-SHA256 of the UTF-8 encoded string.
+     */
+    String sign(String s) {
+        Mac mac = this.macs.get();
+        return Base64.encodeBytes(mac.doFinal(Utf8Output.encode(s)), Base64.DONT_BREAK_LINES);
+    }
+
+    /**
+     * Encodes the values of an attribute for a header.
+     *
+     * @param attribute the attribute, or null if the user doesn't have it.
+     * @return the percent encoded values separated by ';', or an empty string.
+     */
+    private static String encodeValues(Attribute attribute) {
+        if(attribute == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for(String value : attribute) {
+            if(sb.length() > 0) {
+                sb.append(';');
+            }
+            for(byte b : Utf8Output.encode(value)) {
+                int c = b & 0xff;
+                if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '-' || c == '.' || c == '_' || c == '~' || c == '@') {
+                    sb.append((char)c);
+                } else {
+                    sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copies the status, the end-to-end headers and the body of the response of the backend
+     * to the client. Redirects to the backend are rewritten to go through the gateway.
+     *
+     * @param request the request from the client.
+     * @param c the request to the backend.
+     * @param status the status of the response.
+     * @param response the response to the client.
+     * @throws IOException if we fail to read the response, or to send it.
+     */
+    private void copyResponse(HttpServletRequest request, HttpURLConnection c, int status,
+            HttpServletResponse response) throws IOException {
+        response.setStatus(status);
+        String gateway = request.getContextPath() + request.getServletPath();
+        for(Map.Entry<String, List<String>> e : c.getHeaderFields().entrySet()) {
+            String name = e.getKey();
+            if(name == null || HOP_BY_HOP.contains(name.toLowerCase())) {
+                // The status line has no name.
+                continue;
+            }
+            List<String> values = new ArrayList<String>(e.getValue());
+            if("location".equals(name.toLowerCase())) {
+                for(int i = 0; i < values.size(); i++) {
+                    if(values.get(i).startsWith(this.target)) {
+                        values.set(i, gateway + values.get(i).substring(this.target.length()));
+                    }
+                }
+            }
+            // HttpURLConnection lists the values of a header in reverse order.
+            for(int i = values.size() - 1; i >= 0; i--) {
+                response.addHeader(name, values.get(i));
+            }
+        }
+        if(c.getContentLength() >= 0) {
+            response.setContentLength(c.getContentLength());
+        }
+
+        InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+        if(in == null) {
+            return;
+        }
+        try {
+            // Reading the body to the end lets HttpURLConnection reuse the connection.
+            this.bytesOut.addAndGet(copy(in, response.getOutputStream()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a stream through the buffer of this thread.
+     *
+     * @param in the stream we read.
+     * @param out the stream we write.
+     * @return the number of bytes copied.
+     * @throws IOException if we fail to read or write.
+     */
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = buffers.get();
+        long total = 0;
+        int n;
+        while((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Builds the path of the request to the backend.
+     *
+     * @param request the request from the client.
+     * @return the normalized raw path below the gateway, with a leading slash, or null if the
+     *         path is rejected by normalizePath().
+     */
+    static String backendPath(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        int prefix = request.getContextPath().length() + request.getServletPath().length();
+        return normalizePath(uri.length() > prefix ? uri.substring(prefix) : "/");
+    }
+
+    /**
+     * Normalizes a raw path, by collapsing repeated slashes. A path with a dot-segment, also
+     * when the dots are percent-encoded or followed by path parameters, or with an encoded
+     * slash or backslash, a backslash or an encoded NUL, is rejected. The backend, or a proxy in
+     * front of it, could resolve such a path to a resource outside the gateway.
+     *
+     * @param raw the raw path, as sent by the client.
+     * @return the normalized path, or null if the path is rejected.
+     */
+    static String normalizePath(String raw) {
+        if(raw.length() == 0 || raw.charAt(0) != '/' || raw.indexOf('\\') >= 0) {
+            return null;
+        }
+        String lower = raw.toLowerCase();
+        if(lower.indexOf("%2f") >= 0 || lower.indexOf("%5c") >= 0 || lower.indexOf("%00") >= 0) {
+            return null;
+        }
+
+        StringBuilder path = new StringBuilder(raw.length());
+        for(String segment : raw.split("/")) {
+            if(segment.length() == 0) {
+                continue;
+            }
+            int semicolon = segment.indexOf(';');
+            String name = (semicolon < 0 ? segment : segment.substring(0, semicolon)).toLowerCase().replace("%2e", ".");
+            if(".".equals(name) || "..".equals(name)) {
+                return null;
+            }
+            path.append('/').append(segment);
+        }
+        if(path.length() == 0 || raw.endsWith("/")) {
+            path.append('/');
+        }
+        return path.toString();
+    }
+}
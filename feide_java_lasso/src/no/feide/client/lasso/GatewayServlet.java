@@ -0,0 +1,196 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Puts the login of TestServlet in front of a backend application. A request to /gateway/...
+ * from a logged in user is forwarded to the same path on the backend, with the attributes of
+ * the user in signed request headers, as described in GatewayProxy.
+ *
+ * A GET request from a user who isn't logged in is redirected to /endpoint/login, and the user
+ * is sent back to the requested page after the login. Other requests get 401 Unauthorized.
+ *
+ * The gateway is disabled, and every request gets 404 Not Found, unless
+ * no.feide.test.gateway.url is set.
+ *
+ * The gateway is a servlet rather than a Filter since it answers every request below /gateway
+ * itself: there is no resource behind it for a Filter to pass the request on to. Like
+ * TestServlet, it has SessionCookieFilter in front of it.
+ */
+public class GatewayServlet extends HttpServlet {
+
+    /**
+     * Serial version UID, default value.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The servlet path of the gateway, from web.xml.
+     */
+    static final String SERVLET_PATH = "/gateway";
+
+    /**
+     * The cookie which holds the page the user is sent back to after the login.
+     */
+    static final String RETURN_COOKIE = "feide_gateway_return";
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * Finds the login of the user.
+     */
+    private LocalSessions localSessions;
+
+    /**
+     * Forwards the requests, or null if the gateway is disabled.
+     */
+    private GatewayProxy proxy;
+
+    private final AtomicLong unauthenticated = Metrics.getInstance().counter("gateway.unauthenticated");
+    private final AtomicLong rejectedPaths = Metrics.getInstance().counter("gateway.rejected.path");
+
+    /**
+     * Reads the configuration.
+     */
+    @Override
+    public void init() throws ServletException {
+        this.init(new Config(this.getServletContext()));
+    }
+
+    /**
+     * Initializes the gateway with a configuration which is already loaded. This is used when
+     * the gateway runs without a servlet container, in StandaloneServer.
+     *
+     * @param config the configuration.
+     * @throws ServletException if the configuration is invalid.
+     */
+    void init(Config config) throws ServletException {
+        this.localSessions = new LocalSessions(config);
+        String url = config.getProperty("no.feide.test.gateway.url");
+        if(url != null) {
+            this.proxy = new GatewayProxy(config, url, GatewayProxy.readKey(config));
+        }
+    }
+
+    /**
+     * Forwards a request of a logged in user to the backend.
+     *
+     * @see javax.servlet.http.HttpServlet#service(HttpServletRequest, HttpServletResponse)
+     */
+    @Override
+    public void service(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+        if(this.proxy == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // A path the backend could resolve outside the gateway is never sent to it, nor kept
+        // as the page to return to.
+        String path = GatewayProxy.backendPath(request);
+        if(path == null) {
+            this.rejectedPaths.incrementAndGet();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        LocalSessions.Login login = this.localSessions.current(request);
+        if(login == null) {
+            this.unauthenticated.incrementAndGet();
+            if(!"GET".equals(request.getMethod())) {
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+
+            String page = request.getRequestURI();
+            if(request.getQueryString() != null) {
+                page = page + "?" + request.getQueryString();
+            }
+            Cookie cookie = new Cookie(RETURN_COOKIE, URLEncoder.encode(page, "UTF-8"));
+            cookie.setPath(cookiePath(request));
+            response.addCookie(cookie);
+            response.sendRedirect(request.getContextPath() + "/endpoint/login");
+            return;
+        }
+
+        if(this.debug.messageEnabled()) {
+            this.debug.message("Gateway request to " + request.getRequestURI());
+        }
+        this.proxy.proxy(request, response, path, login.getAttributes());
+    }
+
+    /**
+     * Releases the registry of logins.
+     *
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    @Override
+    public void destroy() {
+        if(this.localSessions != null) {
+            this.localSessions.shutdown();
+        }
+    }
+
+    /**
+     * Finds the page a user should be sent back to after the login, and forgets it. Only
+     * pages below the gateway are accepted, so that the cookie can't send the user elsewhere.
+     *
+     * @param request the request which finished the login.
+     * @param response the response, which clears the cookie.
+     * @return the path and query of the page, or null if the user didn't come from the gateway.
+     */
+    static String takeReturnPath(HttpServletRequest request, HttpServletResponse response) {
+        Cookie[] cookies = request.getCookies();
+        if(cookies == null) {
+            return null;
+        }
+        for(Cookie cookie : cookies) {
+            if(!RETURN_COOKIE.equals(cookie.getName())) {
+                continue;
+            }
+
+            Cookie clear = new Cookie(RETURN_COOKIE, "");
+            clear.setPath(cookiePath(request));
+            clear.setMaxAge(0);
+            response.addCookie(clear);
+
+            String page;
+            try {
+                page = URLDecoder.decode(cookie.getValue(), "UTF-8");
+            } catch(IOException e) {
+                return null;
+            } catch(IllegalArgumentException e) {
+                return null;
+            }
+            if(!page.startsWith(request.getContextPath() + SERVLET_PATH + "/") || page.indexOf("//") >= 0
+                    || page.indexOf('\r') >= 0 || page.indexOf('\n') >= 0) {
+                return null;
+            }
+            return page;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the path of the return cookie, which must reach both the gateway and the assertion
+     * consumer.
+     *
+     * @param request the request.
+     * @return the context path, or "/".
+     */
+    private static String cookiePath(HttpServletRequest request) {
+        return request.getContextPath().length() == 0 ? "/" : request.getContextPath();
+    }
+}
@@ -0,0 +1,385 @@
+package no.feide.client.lasso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+import com.entrouvert.lasso.Login;
+import com.entrouvert.lasso.Logout;
+import com.entrouvert.lasso.NodeList;
+import com.entrouvert.lasso.Saml2Assertion;
+import com.entrouvert.lasso.Saml2AuthnStatement;
+import com.entrouvert.lasso.Saml2NameID;
+import com.entrouvert.lasso.Samlp2AuthnRequest;
+import com.entrouvert.lasso.Samlp2LogoutRequest;
+import com.entrouvert.lasso.Samlp2Response;
+import com.entrouvert.lasso.lassoConstants;
+
+/**
+ * Runs Lasso in the current process. Every operation borrows a Lasso Server from a pool, and
+ * destroys the Lasso objects it creates when it is done.
+ */
+class InProcessBackend implements LassoBackend {
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The configuration of the servlet.
+     */
+    private final Config config;
+
+    /**
+     * The Lasso servers. Every operation borrows a server from this pool while it uses Lasso.
+     */
+    private final ServerPool serverPool;
+
+    /**
+     * The state of an artifact resolution request.
+     */
+    private static class ArtifactState {
+        final LassoServer server;
+        final Login login;
+        final NativeResources resources;
+
+        ArtifactState(LassoServer server, Login login, NativeResources resources) {
+            this.server = server;
+            this.login = login;
+            this.resources = resources;
+        }
+    }
+
+    /**
+     * Initializes the pool of Lasso servers with meta data.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    InProcessBackend(Config config) throws ServletException {
+        this.config = config;
+        this.serverPool = new ServerPool(config);
+    }
+
+    /**
+     * Destroys the Lasso servers.
+     */
+    public void shutdown() {
+        this.serverPool.shutdown();
+    }
+
+    /**
+     * Creates a Lasso login attempt based on meta data, and builds an authentication request.
+     *
+     * @param binding the binding the IdP should use for the response.
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the URL we should redirect the user to.
+     * @throws ServletException if Lasso fails to build the request.
+     */
+    public String buildAuthnRequestURL(String binding, boolean forceAuthn) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        try {
+            // Create a Lasso login attempt.
+            Login loginAttempt = resources.track(LassoFacade.newLogin(server), NativeResources.PROFILE_SIZE);
+            // The provider ID of the IdP is read once, when the server is created.
+            LassoFacade.initAuthnRequest(loginAttempt, server.getIdPProviderId(), lassoConstants.HTTP_METHOD_REDIRECT);
+
+            Samlp2AuthnRequest authnRequest = resources.track((Samlp2AuthnRequest)LassoFacade.getRequest(loginAttempt), 0);
+            LassoFacade.setProtocolBinding(authnRequest, binding);
+            if(forceAuthn) {
+                LassoFacade.setForceAuthn(authnRequest, true);
+            }
+
+            if (debug.messageEnabled()) {
+                debug.message("login: Authentication request: " + LassoFacade.dump(authnRequest));
+            }
+
+            // Build the request message.
+            int rc = LassoFacade.buildAuthnRequestMsg(loginAttempt);
+            if(rc != 0) {
+                throw new ServletException("Failed to build authentication request. Lasso error code: " + rc);
+            }
+
+            // Get the URL we should redirect to.
+            return LassoFacade.getMsgUrl(loginAttempt);
+        } finally {
+            resources.close();
+            this.serverPool.release(server);
+        }
+    }
+
+    /**
+     * Creates a Lasso login attempt for an artifact, and builds the artifact resolution request.
+     * The server is released while we wait for the IdP, so other requests may use it.
+     *
+     * @param artifact the SAML artifact we received.
+     * @return the artifact resolution request.
+     * @throws ServletException if Lasso fails to build the request.
+     */
+    public ArtifactRequest initArtifactRequest(String artifact) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        boolean done = false;
+        try {
+            Login loginAttempt = resources.track(LassoFacade.newLogin(server), NativeResources.PROFILE_SIZE);
+            LassoFacade.initRequest(loginAttempt, artifact, lassoConstants.HTTP_METHOD_REDIRECT);
+            LassoFacade.buildRequestMsg(loginAttempt);
+
+            ArtifactRequest request = new ArtifactRequest(LassoFacade.getMsgUrl(loginAttempt),
+                    LassoFacade.getMsgBody(loginAttempt),
+                    new ArtifactState(server, loginAttempt, resources));
+            done = true;
+            return request;
+        } finally {
+            this.serverPool.release(server);
+            if(!done) {
+                resources.close();
+            }
+        }
+    }
+
+    /**
+     * Lets Lasso check the response to an artifact resolution request.
+     *
+     * @param request the artifact resolution request.
+     * @param samlResponse the SOAP response from the IdP.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processArtifactResponse(ArtifactRequest request, String samlResponse)
+    throws ServletException {
+        ArtifactState state = (ArtifactState)request.getState();
+
+        // The login attempt belongs to the server it was created from.
+        this.serverPool.borrow(state.server);
+        try {
+            LassoFacade.processResponseMsg(state.login, samlResponse);
+            state.resources.grow(state.login, NativeResources.estimateXml(samlResponse));
+
+            return this.handleLoginResponse(state.login, state.resources);
+        } finally {
+            this.serverPool.release(state.server);
+        }
+    }
+
+    /**
+     * Destroys the Lasso objects of an artifact resolution request.
+     *
+     * @param request the artifact resolution request.
+     */
+    public void releaseArtifactRequest(ArtifactRequest request) {
+        ((ArtifactState)request.getState()).resources.close();
+    }
+
+    /**
+     * Lets Lasso check a response we received through the HTTP-POST binding.
+     *
+     * @param samlResponse the decoded SAML response.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processAuthnResponse(String samlResponse) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        try {
+            Login loginAttempt = resources.track(LassoFacade.newLogin(server), NativeResources.PROFILE_SIZE);
+            LassoFacade.processAuthnResponseMsg(loginAttempt, samlResponse);
+            resources.grow(loginAttempt, NativeResources.estimateXml(samlResponse));
+
+            return this.handleLoginResponse(loginAttempt, resources);
+        } finally {
+            resources.close();
+            this.serverPool.release(server);
+        }
+    }
+
+    /**
+     * Creates a Lasso login attempt for an ECP client. Lasso wraps the authentication request in
+     * a PAOS request when it is built for the SOAP binding.
+     *
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the SOAP envelope we send to the client.
+     * @throws ServletException if Lasso fails to build the request.
+     */
+    public String buildPaosRequest(boolean forceAuthn) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        try {
+            Login loginAttempt = resources.track(LassoFacade.newLogin(server), NativeResources.PROFILE_SIZE);
+            int rc = LassoFacade.initAuthnRequest(loginAttempt, server.getIdPProviderId(),
+                    lassoConstants.HTTP_METHOD_SOAP);
+            if(rc != 0) {
+                throw new ServletException("Failed to create ECP authentication request. Lasso error code: " + rc);
+            }
+
+            Samlp2AuthnRequest authnRequest = resources.track((Samlp2AuthnRequest)LassoFacade.getRequest(loginAttempt), 0);
+            LassoFacade.setProtocolBinding(authnRequest, lassoConstants.SAML2_METADATA_BINDING_PAOS);
+            if(forceAuthn) {
+                LassoFacade.setForceAuthn(authnRequest, true);
+            }
+
+            rc = LassoFacade.buildAuthnRequestMsg(loginAttempt);
+            if(rc != 0) {
+                throw new ServletException("Failed to build ECP authentication request. Lasso error code: " + rc);
+            }
+
+            return LassoFacade.getMsgBody(loginAttempt);
+        } finally {
+            resources.close();
+            this.serverPool.release(server);
+        }
+    }
+
+    /**
+     * Lets Lasso check a response an ECP client relayed to us.
+     *
+     * @param soapMessage the SOAP envelope the client posted.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processPaosResponse(String soapMessage) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        try {
+            Login loginAttempt = resources.track(LassoFacade.newLogin(server), NativeResources.PROFILE_SIZE);
+            int rc = LassoFacade.processPaosResponseMsg(loginAttempt, soapMessage);
+            resources.grow(loginAttempt, NativeResources.estimateXml(soapMessage));
+            if(rc != 0) {
+                throw new ServletException("Error processing PAOS response. Lasso error code: " + rc);
+            }
+
+            return this.handleLoginResponse(loginAttempt, resources);
+        } finally {
+            resources.close();
+            this.serverPool.release(server);
+        }
+    }
+
+    /**
+     * Processes a logout request from the IdP, and builds the response. Unlike Lasso, we don't
+     * accept an unsigned request, since it names the sessions we log out.
+     *
+     * @param queryString the query string of the logout request.
+     * @return the logout, with the URL we should redirect the user to.
+     * @throws ServletException if the request isn't accepted.
+     */
+    public LogoutResult processLogoutRequest(String queryString) throws ServletException {
+        NativeResources resources = new NativeResources();
+        LassoServer server = this.serverPool.borrow();
+        try {
+            Logout logout = resources.track(LassoFacade.newLogout(server), NativeResources.PROFILE_SIZE);
+
+            int rc;
+
+            // Parse and process the logout message. Lasso returns DS_ERROR_SIGNATURE_NOT_FOUND
+            // for an unsigned request, which we reject like any other error.
+            rc = LassoFacade.processRequestMsg(logout, queryString);
+            if(rc != 0) {
+                throw new ServletException("Error processing logout request message. Lasso error: " + rc);
+            }
+            String issuer = LassoFacade.getRemoteProviderId(logout);
+            if(!server.getIdPProviderId().equals(issuer)) {
+                throw new ServletException("Unexpected issuer of logout request: " + issuer);
+            }
+
+            // These nodes are owned by the logout.
+            Samlp2LogoutRequest request = resources.track((Samlp2LogoutRequest)LassoFacade.getRequest(logout), 0);
+            Saml2NameID nameId = request == null ? null
+                : resources.track(LassoFacade.getNameID(request), 0);
+            List<String> sessionIndexes = new ArrayList<String>();
+            String sessionIndex = request == null ? null : LassoFacade.getSessionIndex(request);
+            if(sessionIndex != null) {
+                sessionIndexes.add(sessionIndex);
+            }
+
+            // Create a response to the IdP.
+            rc = LassoFacade.buildResponseMsg(logout);
+            if(rc != 0) {
+                throw new ServletException("Error creating logout response message. Lasso error: " + rc);
+            }
+
+            return new LogoutResult(LassoFacade.getMsgUrl(logout),
+                    nameId == null ? null : LassoFacade.getContent(nameId), sessionIndexes);
+        } finally {
+            resources.close();
+            this.serverPool.release(server);
+        }
+    }
+
+    /**
+     * This method handles the parts of the request to the assertion consumer which is common between
+     * the GET request and the POST request. The caller must have borrowed the Lasso server of the
+     * login attempt.
+     *
+     * @param loginAttempt the lasso Login object, with information about the user.
+     * @param resources the Lasso objects of the current request.
+     * @return the login.
+     * @throws ServletException
+     */
+    private LoginResult handleLoginResponse(Login loginAttempt, NativeResources resources)
+    throws ServletException {
+
+        int rc;
+        // More Lasso preparations.
+        rc = LassoFacade.acceptSso(loginAttempt);
+        if(rc != 0) {
+            throw new ServletException("Failed to accept SSO. Lasso error code: " + rc);
+        }
+
+        // These nodes are owned by the login attempt.
+        Samlp2Response r = resources.track((Samlp2Response)LassoFacade.getResponse(loginAttempt), 0);
+
+        Saml2NameID nameId = resources.track((Saml2NameID)LassoFacade.getNameIdentifier(loginAttempt), 0);
+        String content = nameId == null ? null : LassoFacade.getContent(nameId);
+        if(this.debug.messageEnabled()) {
+            this.debug.message("Got name id: " + content);
+        }
+
+        Map<String, Attribute> attributes = AttributeExtractor.extractAttributes(this.config, r);
+        Attribute subject = null;
+        if(content != null) {
+            // Lets the session query the attribute service for this subject later.
+            subject = new Attribute(Attribute.NAME_ID);
+            subject.addValue(content);
+            subject.addValue(emptyIfNull(LassoFacade.getFormat(nameId)));
+            subject.addValue(emptyIfNull(LassoFacade.getNameQualifier(nameId)));
+            subject.addValue(emptyIfNull(LassoFacade.getSpNameQualifier(nameId)));
+        }
+        // The SessionIndex lets a logout request from the IdP find this login.
+        return new LoginResult(attributes, subject, getSessionIndex(r));
+    }
+
+    /**
+     * Finds the SessionIndex of the first AuthnStatement of the first assertion in a response.
+     *
+     * @param response the response.
+     * @return the SessionIndex, or null if the response has none.
+     */
+    private static String getSessionIndex(Samlp2Response response) {
+        NodeList assertions = LassoFacade.getAssertion(response);
+        if(assertions == null || LassoFacade.length(assertions) == 0) {
+            return null;
+        }
+        NodeList statements = LassoFacade.getAuthnStatement((Saml2Assertion)LassoFacade.getItem(assertions, 0));
+        if(statements == null || LassoFacade.length(statements) == 0) {
+            return null;
+        }
+        return LassoFacade.getSessionIndex((Saml2AuthnStatement)LassoFacade.getItem(statements, 0));
+    }
+
+    /**
+     * Replaces null with an empty string.
+     *
+     * @param s the string, or null.
+     * @return the string, or an empty string if it was null.
+     */
+    private static String emptyIfNull(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,1170 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.servlet.ServletException;
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Processes SAML2 messages in Java, without Lasso. Signatures are verified with the JDK XML
+ * signature API against the public key of the IdP, which is loaded once. Attributes are read
+ * from the same parsed document the signature was verified on, instead of being serialized and
+ * parsed again.
+ *
+ * This backend implements the same subset of the Web Browser SSO and Single Logout profiles as
+ * the servlet uses from Lasso: authentication requests and logout responses are sent with the
+ * HTTP-Redirect binding, responses are received with the HTTP-POST or HTTP-Artifact binding,
+ * and logout requests are received with the HTTP-Redirect binding. ECP clients get the
+ * authentication request in a PAOS request, and relay the response back to us in a PAOS
+ * response. Encrypted assertions are not supported.
+ *
+ * AttributeQuery requests to the attribute service of the IdP are also built and processed
+ * here, whichever backend handles the logins, since the version of Lasso we use doesn't
+ * implement the Assertion Query profile.
+ */
+class JavaBackend implements LassoBackend {
+
+    static final String PROTOCOL_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+    static final String ASSERTION_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+    private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+    static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String REDIRECT_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect";
+    private static final String SOAP_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:SOAP";
+    private static final String PAOS_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:PAOS";
+    static final String PAOS_NS = "urn:liberty:paos:2003-08";
+    static final String ECP_NS = "urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp";
+    private static final String SOAP_ACTOR_NEXT = "http://schemas.xmlsoap.org/soap/actor/next";
+    private static final String STATUS_SUCCESS = "urn:oasis:names:tc:SAML:2.0:status:Success";
+    private static final String BEARER = "urn:oasis:names:tc:SAML:2.0:cm:bearer";
+
+    /**
+     * The clock skew we accept between us and the IdP, in milliseconds.
+     */
+    private static final long CLOCK_SKEW = 180000;
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The separator between multiple values in an AttributeValue element.
+     */
+    private final String attributeSeparator;
+
+    /**
+     * The entity ID of this service provider.
+     */
+    private final String spEntityId;
+
+    /**
+     * The AssertionConsumerService locations of this service provider.
+     */
+    private final List<String> spAssertionConsumers;
+
+    /**
+     * The PAOS AssertionConsumerService location of this service provider, or null.
+     */
+    private final String spPaosConsumer;
+
+    /**
+     * The entity ID of the IdP.
+     */
+    private final String idpEntityId;
+
+    /**
+     * The SHA-1 hash of the entity ID of the IdP, which is the source ID of its artifacts.
+     */
+    private final byte[] idpSourceId;
+
+    /**
+     * The HTTP-Redirect SingleSignOnService location of the IdP.
+     */
+    private final String idpSsoUrl;
+
+    /**
+     * The HTTP-Redirect SingleLogoutService response location of the IdP, or null.
+     */
+    private final String idpSloResponseUrl;
+
+    /**
+     * The SOAP AttributeService location of the IdP, or null if it has none.
+     */
+    private final String idpAttributeService;
+
+    /**
+     * The SOAP ArtifactResolutionService locations of the IdP, by index.
+     */
+    private final Map<Integer, String> idpArtifactResolvers = new HashMap<Integer, String>();
+
+    /**
+     * The keys of the IdP and the service provider.
+     */
+    private final SamlCrypto crypto;
+
+    /**
+     * The random numbers used for message IDs.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * A document builder for each thread. Building the factory is far more expensive than parsing
+     * a message.
+     */
+    private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setExpandEntityReferences(false);
+            try {
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                return factory.newDocumentBuilder();
+            } catch(ParserConfigurationException e) {
+                throw new RuntimeException("Unable to create a secure DocumentBuilder.", e);
+            }
+        }
+    };
+
+    /**
+     * Parses xs:dateTime values.
+     */
+    private final DatatypeFactory datatypeFactory;
+
+    /**
+     * Loads the meta data and keys of the service provider and the IdP.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    JavaBackend(Config config) throws ServletException {
+        this(config, null);
+    }
+
+    /**
+     * Loads the meta data of the service provider and the IdP, and trusts the given key
+     * instead of the key of the IdP. The warm-up uses this to accept the responses it signs.
+     *
+     * @param config the configuration of the servlet.
+     * @param idpKey the key the IdP signs with, or null to load the key of the IdP.
+     * @throws ServletException if the configuration is invalid.
+     */
+    JavaBackend(Config config, PublicKey idpKey) throws ServletException {
+        this.attributeSeparator = config.getAttributeSeparator();
+
+        try {
+            this.datatypeFactory = DatatypeFactory.newInstance();
+        } catch(DatatypeConfigurationException e) {
+            throw new ServletException("Unable to create a DatatypeFactory.", e);
+        }
+
+        Element sp = parseFile(config.getSPMetadataPath());
+        this.spEntityId = sp.getAttributeNS(null, "entityID");
+        this.spAssertionConsumers = new ArrayList<String>();
+        Element spDescriptor = child(sp, METADATA_NS, "SPSSODescriptor");
+        if(spDescriptor == null) {
+            throw new ServletException("No SPSSODescriptor in " + config.getSPMetadataPath());
+        }
+        String paosConsumer = null;
+        for(Element acs : children(spDescriptor, METADATA_NS, "AssertionConsumerService")) {
+            this.spAssertionConsumers.add(acs.getAttributeNS(null, "Location"));
+            if(paosConsumer == null && PAOS_BINDING.equals(acs.getAttributeNS(null, "Binding"))) {
+                paosConsumer = acs.getAttributeNS(null, "Location");
+            }
+        }
+        this.spPaosConsumer = paosConsumer;
+
+        Element idp = parseFile(config.getIdPMetadataPath());
+        this.idpEntityId = idp.getAttributeNS(null, "entityID");
+        Element idpDescriptor = child(idp, METADATA_NS, "IDPSSODescriptor");
+        if(idpDescriptor == null) {
+            throw new ServletException("No IDPSSODescriptor in " + config.getIdPMetadataPath());
+        }
+        this.idpSsoUrl = findLocation(idpDescriptor, "SingleSignOnService", false);
+        if(this.idpSsoUrl == null) {
+            throw new ServletException("The IdP has no HTTP-Redirect SingleSignOnService.");
+        }
+        this.idpSloResponseUrl = findLocation(idpDescriptor, "SingleLogoutService", true);
+        String attributeService = null;
+        Element aaDescriptor = child(idp, METADATA_NS, "AttributeAuthorityDescriptor");
+        if(aaDescriptor != null) {
+            for(Element as : children(aaDescriptor, METADATA_NS, "AttributeService")) {
+                if(SOAP_BINDING.equals(as.getAttributeNS(null, "Binding"))) {
+                    attributeService = as.getAttributeNS(null, "Location");
+                    break;
+                }
+            }
+        }
+        this.idpAttributeService = attributeService;
+        for(Element ars : children(idpDescriptor, METADATA_NS, "ArtifactResolutionService")) {
+            if(SOAP_BINDING.equals(ars.getAttributeNS(null, "Binding"))) {
+                try {
+                    this.idpArtifactResolvers.put(Integer.valueOf(ars.getAttributeNS(null, "index")),
+                            ars.getAttributeNS(null, "Location"));
+                } catch(NumberFormatException e) {
+                    throw new ServletException("Invalid ArtifactResolutionService index in IdP meta data.");
+                }
+            }
+        }
+
+        try {
+            this.idpSourceId = MessageDigest.getInstance("SHA-1").digest(this.idpEntityId.getBytes("UTF-8"));
+        } catch(NoSuchAlgorithmException e) {
+            throw new ServletException("SHA-1 is unsupported.", e);
+        } catch(UnsupportedEncodingException e) {
+            throw new ServletException("UTF-8 encoding is unsupported.", e);
+        }
+
+        if(idpKey == null && config.getIdpPublicKeyPath() != null) {
+            idpKey = SamlCrypto.loadPublicKey(config.getIdpPublicKeyPath());
+        } else if(idpKey == null) {
+            idpKey = findSigningKey(idpDescriptor);
+        }
+        this.crypto = new SamlCrypto(idpKey, config.getSPPrivateKeyPath());
+    }
+
+    /**
+     * Nothing to release.
+     */
+    public void shutdown() {
+    }
+
+    /**
+     * Builds an authentication request for the HTTP-Redirect binding.
+     *
+     * @param binding the binding the IdP should use for the response.
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the URL we should redirect the user to.
+     * @throws ServletException if we fail to build the request.
+     */
+    public String buildAuthnRequestURL(String binding, boolean forceAuthn) throws ServletException {
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<samlp:AuthnRequest xmlns:samlp=\"").append(PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(ASSERTION_NS)
+            .append("\" ID=\"").append(this.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(now())
+            .append("\" Destination=\"").append(escape(this.idpSsoUrl))
+            .append("\" ProtocolBinding=\"").append(escape(binding))
+            .append(forceAuthn ? "\" ForceAuthn=\"true" : "")
+            .append("\"><saml:Issuer>").append(escape(this.spEntityId))
+            .append("</saml:Issuer><samlp:NameIDPolicy AllowCreate=\"true\"/></samlp:AuthnRequest>");
+
+        if(this.debug.messageEnabled()) {
+            this.debug.message("login: Authentication request: " + xml);
+        }
+
+        return this.encodeRedirect(this.idpSsoUrl, "SAMLRequest", xml.toString(), null);
+    }
+
+    /**
+     * Builds the SOAP request which resolves an artifact.
+     *
+     * @param artifact the SAML artifact we received.
+     * @return the artifact resolution request.
+     * @throws ServletException if the artifact is invalid.
+     */
+    public ArtifactRequest initArtifactRequest(String artifact) throws ServletException {
+        byte[] decoded = Base64.decode(artifact);
+        if(decoded == null || decoded.length != 44 || decoded[0] != 0 || decoded[1] != 4) {
+            throw new ServletException("Invalid SAML2 artifact.");
+        }
+        if(!Arrays.equals(Arrays.copyOfRange(decoded, 4, 24), this.idpSourceId)) {
+            throw new ServletException("The artifact wasn't issued by the IdP.");
+        }
+        int index = ((decoded[2] & 0xff) << 8) | (decoded[3] & 0xff);
+        String url = this.idpArtifactResolvers.get(index);
+        if(url == null) {
+            throw new ServletException("The IdP has no ArtifactResolutionService with index " + index);
+        }
+
+        String id = this.newId();
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"").append(SOAP_NS).append("\"><SOAP-ENV:Body>")
+            .append("<samlp:ArtifactResolve xmlns:samlp=\"").append(PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(ASSERTION_NS)
+            .append("\" ID=\"").append(id)
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(now())
+            .append("\" Destination=\"").append(escape(url))
+            .append("\"><saml:Issuer>").append(escape(this.spEntityId))
+            .append("</saml:Issuer><samlp:Artifact>").append(escape(artifact))
+            .append("</samlp:Artifact></samlp:ArtifactResolve></SOAP-ENV:Body></SOAP-ENV:Envelope>");
+
+        String message = xml.toString();
+        if(this.crypto.canSign()) {
+            Document d = parse(message);
+            Element resolve = child(child(d.getDocumentElement(), SOAP_NS, "Body"), PROTOCOL_NS, "ArtifactResolve");
+            Element issuer = child(resolve, ASSERTION_NS, "Issuer");
+            this.crypto.sign(resolve, issuer.getNextSibling());
+            message = serialize(d);
+        }
+
+        return new ArtifactRequest(url, message, id);
+    }
+
+    /**
+     * Processes the response to an artifact resolution request.
+     *
+     * @param request the artifact resolution request.
+     * @param samlResponse the SOAP response from the IdP.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processArtifactResponse(ArtifactRequest request, String samlResponse)
+    throws ServletException {
+        Document d = parse(samlResponse);
+        Element body = child(d.getDocumentElement(), SOAP_NS, "Body");
+        Element artifactResponse = body == null ? null : child(body, PROTOCOL_NS, "ArtifactResponse");
+        if(artifactResponse == null) {
+            throw new ServletException("No ArtifactResponse in the reply from the IdP.");
+        }
+
+        this.checkIssuer(artifactResponse);
+        this.checkStatus(artifactResponse);
+        if(!request.getState().equals(artifactResponse.getAttributeNS(null, "InResponseTo"))) {
+            throw new ServletException("The ArtifactResponse doesn't answer our ArtifactResolve.");
+        }
+        boolean signed = this.crypto.verify(artifactResponse);
+
+        Element response = child(artifactResponse, PROTOCOL_NS, "Response");
+        if(response == null) {
+            throw new ServletException("No Response in the ArtifactResponse.");
+        }
+
+        // The response came directly from the IdP over the back channel, so it needn't be signed.
+        return this.processResponse(response, true, signed);
+    }
+
+    /**
+     * Nothing to release. The state of the request is only its ID.
+     *
+     * @param request the artifact resolution request.
+     */
+    public void releaseArtifactRequest(ArtifactRequest request) {
+    }
+
+    /**
+     * Processes a response we received through the HTTP-POST binding.
+     *
+     * @param samlResponse the decoded SAML response.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processAuthnResponse(String samlResponse) throws ServletException {
+        Element response = parse(samlResponse).getDocumentElement();
+        return this.processResponse(response, false, false);
+    }
+
+    /**
+     * Builds an authentication request for an ECP client, wrapped in a PAOS request. The
+     * request has no Destination, since the client chooses the IdP.
+     *
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the SOAP envelope we send to the client.
+     * @throws ServletException if we fail to build the request.
+     */
+    public String buildPaosRequest(boolean forceAuthn) throws ServletException {
+        if(this.spPaosConsumer == null) {
+            throw new ServletException("The SP meta data has no PAOS AssertionConsumerService.");
+        }
+
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"").append(SOAP_NS).append("\"><SOAP-ENV:Header>")
+            .append("<paos:Request xmlns:paos=\"").append(PAOS_NS)
+            .append("\" responseConsumerURL=\"").append(escape(this.spPaosConsumer))
+            .append("\" service=\"").append(ECP_NS)
+            .append("\" SOAP-ENV:mustUnderstand=\"1\" SOAP-ENV:actor=\"").append(SOAP_ACTOR_NEXT).append("\"/>")
+            .append("<ecp:Request xmlns:ecp=\"").append(ECP_NS)
+            .append("\" IsPassive=\"0\" SOAP-ENV:mustUnderstand=\"1\" SOAP-ENV:actor=\"").append(SOAP_ACTOR_NEXT)
+            .append("\"><saml:Issuer xmlns:saml=\"").append(ASSERTION_NS).append("\">")
+            .append(escape(this.spEntityId)).append("</saml:Issuer></ecp:Request></SOAP-ENV:Header><SOAP-ENV:Body>")
+            .append("<samlp:AuthnRequest xmlns:samlp=\"").append(PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(ASSERTION_NS)
+            .append("\" ID=\"").append(this.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(now())
+            .append("\" ProtocolBinding=\"").append(PAOS_BINDING)
+            .append("\" AssertionConsumerServiceURL=\"").append(escape(this.spPaosConsumer))
+            .append(forceAuthn ? "\" ForceAuthn=\"true" : "")
+            .append("\"><saml:Issuer>").append(escape(this.spEntityId))
+            .append("</saml:Issuer><samlp:NameIDPolicy AllowCreate=\"true\"/></samlp:AuthnRequest>")
+            .append("</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+
+        String message = xml.toString();
+        if(this.crypto.canSign()) {
+            Document d = parse(message);
+            Element request = child(child(d.getDocumentElement(), SOAP_NS, "Body"), PROTOCOL_NS, "AuthnRequest");
+            Element issuer = child(request, ASSERTION_NS, "Issuer");
+            this.crypto.sign(request, issuer.getNextSibling());
+            message = serialize(d);
+        }
+
+        if(this.debug.messageEnabled()) {
+            this.debug.message("login: PAOS request: " + message);
+        }
+        return message;
+    }
+
+    /**
+     * Processes a response an ECP client relayed to us. The response passed through the
+     * client, so it must be signed like a response received through the HTTP-POST binding.
+     *
+     * @param soapMessage the SOAP envelope the client posted.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processPaosResponse(String soapMessage) throws ServletException {
+        Element envelope = parse(soapMessage).getDocumentElement();
+        if(!SOAP_NS.equals(envelope.getNamespaceURI()) || !"Envelope".equals(envelope.getLocalName())) {
+            throw new ServletException("Expected a SOAP Envelope. Was: " + envelope.getLocalName());
+        }
+        Element body = child(envelope, SOAP_NS, "Body");
+        Element response = body == null ? null : child(body, PROTOCOL_NS, "Response");
+        if(response == null) {
+            throw new ServletException("No Response in the PAOS response.");
+        }
+        return this.processResponse(response, false, false);
+    }
+
+    /**
+     * Gets the SOAP AttributeService location of the IdP.
+     *
+     * @return the location, or null if the IdP meta data has none.
+     */
+    String getAttributeServiceUrl() {
+        return this.idpAttributeService;
+    }
+
+    /**
+     * Builds an AttributeQuery for a subject, in a SOAP envelope.
+     *
+     * @param id the ID of the query, which the response must be in response to.
+     * @param subject the NameID of the subject, as stored under {@link Attribute#NAME_ID}.
+     * @param names the names of the attributes we ask for, or an empty list for all of them.
+     * @return the SOAP envelope.
+     * @throws ServletException if we fail to sign the query.
+     */
+    String buildAttributeQuery(String id, Attribute subject, List<String> names) throws ServletException {
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"").append(SOAP_NS).append("\"><SOAP-ENV:Body>")
+            .append("<samlp:AttributeQuery xmlns:samlp=\"").append(PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(ASSERTION_NS)
+            .append("\" ID=\"").append(id)
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(now())
+            .append("\"><saml:Issuer>").append(escape(this.spEntityId)).append("</saml:Issuer>")
+            .append("<saml:Subject><saml:NameID");
+        appendOptional(xml, "Format", subject, 1);
+        appendOptional(xml, "NameQualifier", subject, 2);
+        appendOptional(xml, "SPNameQualifier", subject, 3);
+        xml.append('>').append(escape(subject.getValue(0))).append("</saml:NameID></saml:Subject>");
+        for(String name : names) {
+            xml.append("<saml:Attribute Name=\"").append(escape(name)).append("\"/>");
+        }
+        xml.append("</samlp:AttributeQuery></SOAP-ENV:Body></SOAP-ENV:Envelope>");
+
+        String message = xml.toString();
+        if(this.crypto.canSign()) {
+            Document d = parse(message);
+            Element query = child(child(d.getDocumentElement(), SOAP_NS, "Body"), PROTOCOL_NS, "AttributeQuery");
+            Element issuer = child(query, ASSERTION_NS, "Issuer");
+            this.crypto.sign(query, issuer.getNextSibling());
+            message = serialize(d);
+        }
+        return message;
+    }
+
+    /**
+     * Adds an attribute of the NameID to an AttributeQuery, if the NameID has the value.
+     *
+     * @param xml the query.
+     * @param name the name of the XML attribute.
+     * @param subject the NameID.
+     * @param index the index of the value in the NameID.
+     */
+    private static void appendOptional(StringBuilder xml, String name, Attribute subject, int index) {
+        if(subject.getValueCount() > index && subject.getValue(index).length() > 0) {
+            xml.append(' ').append(name).append("=\"").append(escape(subject.getValue(index))).append('"');
+        }
+    }
+
+    /**
+     * Processes the response from the attribute service of the IdP. The response came directly
+     * from the IdP over the back channel, so it needn't be signed, but a signature which is
+     * present must be valid.
+     *
+     * @param soapMessage the SOAP envelope we received.
+     * @param id the ID of our AttributeQuery.
+     * @param subject the NameID we asked about.
+     * @return the attributes of the subject.
+     * @throws ServletException if the response isn't accepted.
+     */
+    Map<String, Attribute> processAttributeResponse(String soapMessage, String id, Attribute subject)
+    throws ServletException {
+        Element body = child(parse(soapMessage).getDocumentElement(), SOAP_NS, "Body");
+        Element response = body == null ? null : child(body, PROTOCOL_NS, "Response");
+        if(response == null) {
+            throw new ServletException("No Response in the reply from the attribute service.");
+        }
+        this.checkStatus(response);
+        this.checkIssuer(response);
+        if(!id.equals(response.getAttributeNS(null, "InResponseTo"))) {
+            throw new ServletException("The Response doesn't answer our AttributeQuery.");
+        }
+        this.crypto.verify(response);
+
+        List<Element> assertions = children(response, ASSERTION_NS, "Assertion");
+        if(assertions.size() != 1) {
+            throw new ServletException("Expected one assertion in the attribute response. Got: "
+                    + assertions.size());
+        }
+        Element assertion = assertions.get(0);
+        this.crypto.verify(assertion);
+        this.checkIssuer(assertion);
+        this.checkConditions(assertion, System.currentTimeMillis());
+
+        Element subjectElement = child(assertion, ASSERTION_NS, "Subject");
+        Element nameId = subjectElement == null ? null : child(subjectElement, ASSERTION_NS, "NameID");
+        if(nameId == null || !subject.getValue(0).equals(nameId.getTextContent().trim())) {
+            throw new ServletException("The attribute response is about another subject.");
+        }
+        return this.extractAttributes(assertion);
+    }
+
+    /**
+     * Processes a logout request from the IdP, and builds the response. The request must be
+     * signed with the HTTP-Redirect binding, and issued by the IdP, since it names the sessions
+     * we log out.
+     *
+     * @param queryString the query string of the logout request.
+     * @return the logout, with the URL we should redirect the user to.
+     * @throws ServletException if the request isn't accepted.
+     */
+    public LogoutResult processLogoutRequest(String queryString) throws ServletException {
+        // Keep the parameters as they were received, since the signature covers them.
+        Map<String, String> raw = new HashMap<String, String>();
+        if(queryString != null) {
+            for(String pair : queryString.split("&")) {
+                int eq = pair.indexOf('=');
+                if(eq > 0 && raw.put(pair.substring(0, eq), pair.substring(eq + 1)) != null) {
+                    // Otherwise the signature may cover another copy than the one we read.
+                    throw new ServletException("Repeated parameter in logout request: " + pair.substring(0, eq));
+                }
+            }
+        }
+        String samlRequest = raw.get("SAMLRequest");
+        if(samlRequest == null) {
+            throw new ServletException("No SAMLRequest in logout request.");
+        }
+
+        if(raw.get("Signature") == null || raw.get("SigAlg") == null) {
+            throw new ServletException("The logout request isn't signed.");
+        }
+        String signed = "SAMLRequest=" + samlRequest
+            + (raw.get("RelayState") != null ? "&RelayState=" + raw.get("RelayState") : "")
+            + "&SigAlg=" + raw.get("SigAlg");
+        byte[] signature = Base64.decode(urlDecode(raw.get("Signature")));
+        if(signature == null) {
+            throw new ServletException("The Signature of the logout request isn't valid base64.");
+        }
+        this.crypto.verifyRedirect(signed, urlDecode(raw.get("SigAlg")), signature);
+
+        byte[] deflated = Base64.decode(urlDecode(samlRequest));
+        if(deflated == null) {
+            throw new ServletException("The SAMLRequest of the logout request isn't valid base64.");
+        }
+        Element request = parse(inflate(deflated)).getDocumentElement();
+        if(!PROTOCOL_NS.equals(request.getNamespaceURI()) || !"LogoutRequest".equals(request.getLocalName())) {
+            throw new ServletException("Expected a LogoutRequest. Was: " + request.getLocalName());
+        }
+        if(child(request, ASSERTION_NS, "Issuer") == null) {
+            throw new ServletException("The logout request has no Issuer.");
+        }
+        this.checkIssuer(request);
+
+        String url = this.idpSloResponseUrl;
+        if(url == null) {
+            throw new ServletException("The IdP has no HTTP-Redirect SingleLogoutService.");
+        }
+
+        // An encrypted or other kind of identifier, which we never index, names no sessions.
+        Element nameId = child(request, ASSERTION_NS, "NameID");
+        List<String> sessionIndexes = new ArrayList<String>();
+        for(Element e : children(request, PROTOCOL_NS, "SessionIndex")) {
+            sessionIndexes.add(e.getTextContent().trim());
+        }
+
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<samlp:LogoutResponse xmlns:samlp=\"").append(PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(ASSERTION_NS)
+            .append("\" ID=\"").append(this.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(now())
+            .append("\" Destination=\"").append(escape(url))
+            .append("\" InResponseTo=\"").append(escape(request.getAttributeNS(null, "ID")))
+            .append("\"><saml:Issuer>").append(escape(this.spEntityId))
+            .append("</saml:Issuer><samlp:Status><samlp:StatusCode Value=\"").append(STATUS_SUCCESS)
+            .append("\"/></samlp:Status></samlp:LogoutResponse>");
+
+        String relayState = raw.get("RelayState");
+        return new LogoutResult(this.encodeRedirect(url, "SAMLResponse", xml.toString(),
+                relayState == null ? null : urlDecode(relayState)),
+                nameId == null ? null : nameId.getTextContent().trim(), sessionIndexes);
+    }
+
+    /**
+     * Checks a Response and its assertion, and extracts the attributes.
+     *
+     * @param response the Response element.
+     * @param backChannel whether the response came directly from the IdP.
+     * @param signed whether the message which contained the response was signed.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    private LoginResult processResponse(Element response, boolean backChannel, boolean signed)
+    throws ServletException {
+        if(!PROTOCOL_NS.equals(response.getNamespaceURI()) || !"Response".equals(response.getLocalName())) {
+            throw new ServletException("Expected a Response. Was: " + response.getLocalName());
+        }
+        if(!"2.0".equals(response.getAttributeNS(null, "Version"))) {
+            throw new ServletException("Unsupported SAML version: " + response.getAttributeNS(null, "Version"));
+        }
+        this.checkStatus(response);
+        this.checkIssuer(response);
+        String destination = response.getAttributeNS(null, "Destination");
+        if(destination.length() > 0 && !this.spAssertionConsumers.contains(destination)) {
+            throw new ServletException("The response was sent to another destination: " + destination);
+        }
+        boolean responseSigned = this.crypto.verify(response);
+
+        if(child(response, ASSERTION_NS, "EncryptedAssertion") != null) {
+            throw new ServletException("Encrypted assertions are not supported.");
+        }
+        // Lasso doesn't currently validate more than the first assertion-element, and we do the same.
+        List<Element> assertions = children(response, ASSERTION_NS, "Assertion");
+        if(assertions.size() != 1) {
+            throw new ServletException("Expected one assertion in SAML2 response. Got: " + assertions.size());
+        }
+        Element assertion = assertions.get(0);
+        boolean assertionSigned = this.crypto.verify(assertion);
+
+        if(!signed && !responseSigned && !assertionSigned && !backChannel) {
+            throw new ServletException("Neither the response nor the assertion is signed.");
+        }
+
+        this.checkIssuer(assertion);
+        long now = System.currentTimeMillis();
+        this.checkConditions(assertion, now);
+        this.checkSubject(assertion, now);
+
+        Map<String, Attribute> attributes = this.extractAttributes(assertion);
+        Element nameId = child(child(assertion, ASSERTION_NS, "Subject"), ASSERTION_NS, "NameID");
+        Attribute subject = null;
+        if(nameId != null) {
+            // Lets the session query the attribute service for this subject later.
+            subject = new Attribute(Attribute.NAME_ID);
+            subject.addValue(nameId.getTextContent().trim());
+            subject.addValue(nameId.getAttributeNS(null, "Format"));
+            subject.addValue(nameId.getAttributeNS(null, "NameQualifier"));
+            subject.addValue(nameId.getAttributeNS(null, "SPNameQualifier"));
+        }
+        // The SessionIndex lets a logout request from the IdP find this login.
+        Element authnStatement = child(assertion, ASSERTION_NS, "AuthnStatement");
+        String sessionIndex = null;
+        if(authnStatement != null && authnStatement.hasAttributeNS(null, "SessionIndex")) {
+            sessionIndex = authnStatement.getAttributeNS(null, "SessionIndex");
+        }
+        return new LoginResult(attributes, subject, sessionIndex);
+    }
+
+    /**
+     * Reads the attributes in the attribute statements of an assertion.
+     *
+     * @param assertion the assertion.
+     * @return the attributes.
+     */
+    private Map<String, Attribute> extractAttributes(Element assertion) {
+        Map<String, Attribute> attributes = new HashMap<String, Attribute>();
+        for(Element statement : children(assertion, ASSERTION_NS, "AttributeStatement")) {
+            for(Element a : children(statement, ASSERTION_NS, "Attribute")) {
+                String name = a.getAttributeNS(null, "Name");
+                Attribute attribute = attributes.get(name);
+                if(attribute == null) {
+                    attribute = new Attribute(name);
+                    attributes.put(name, attribute);
+                }
+                for(Element value : children(a, ASSERTION_NS, "AttributeValue")) {
+                    AttributeExtractor.addFeideAttributeValue(attribute, value.getTextContent(),
+                            this.attributeSeparator);
+                }
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Checks that the Issuer of a message or assertion, if present, is the IdP.
+     *
+     * @param element the message or assertion.
+     * @throws ServletException if the issuer is another entity.
+     */
+    private void checkIssuer(Element element) throws ServletException {
+        Element issuer = child(element, ASSERTION_NS, "Issuer");
+        if(issuer != null && !this.idpEntityId.equals(issuer.getTextContent().trim())) {
+            throw new ServletException("Unexpected issuer: " + issuer.getTextContent());
+        }
+    }
+
+    /**
+     * Checks that the status of a response is Success.
+     *
+     * @param response the response.
+     * @throws ServletException if the status is missing or not Success.
+     */
+    private void checkStatus(Element response) throws ServletException {
+        Element status = child(response, PROTOCOL_NS, "Status");
+        Element code = status == null ? null : child(status, PROTOCOL_NS, "StatusCode");
+        String value = code == null ? null : code.getAttributeNS(null, "Value");
+        if(!STATUS_SUCCESS.equals(value)) {
+            throw new ServletException("The IdP returned status " + value);
+        }
+    }
+
+    /**
+     * Checks the validity period and audience of an assertion.
+     *
+     * @param assertion the assertion.
+     * @param now the current time.
+     * @throws ServletException if the assertion isn't valid for us now.
+     */
+    private void checkConditions(Element assertion, long now) throws ServletException {
+        Element conditions = child(assertion, ASSERTION_NS, "Conditions");
+        if(conditions == null) {
+            return;
+        }
+        String notBefore = conditions.getAttributeNS(null, "NotBefore");
+        if(notBefore.length() > 0 && now + CLOCK_SKEW < this.parseTime(notBefore)) {
+            throw new ServletException("The assertion isn't valid yet.");
+        }
+        String notOnOrAfter = conditions.getAttributeNS(null, "NotOnOrAfter");
+        if(notOnOrAfter.length() > 0 && now - CLOCK_SKEW >= this.parseTime(notOnOrAfter)) {
+            throw new ServletException("The assertion has expired.");
+        }
+        for(Element restriction : children(conditions, ASSERTION_NS, "AudienceRestriction")) {
+            boolean found = false;
+            for(Element audience : children(restriction, ASSERTION_NS, "Audience")) {
+                if(this.spEntityId.equals(audience.getTextContent().trim())) {
+                    found = true;
+                }
+            }
+            if(!found) {
+                throw new ServletException("The assertion is meant for another audience.");
+            }
+        }
+    }
+
+    /**
+     * Checks the bearer subject confirmation of an assertion, and logs the name id. As in the
+     * SAML 2.0 Web Browser SSO profile, a bearer confirmation only counts if its
+     * SubjectConfirmationData names one of our assertion consumers as the Recipient, and has
+     * a NotOnOrAfter which hasn't passed.
+     *
+     * @param assertion the assertion.
+     * @param now the current time.
+     * @throws ServletException if the subject can't be confirmed.
+     */
+    private void checkSubject(Element assertion, long now) throws ServletException {
+        Element subject = child(assertion, ASSERTION_NS, "Subject");
+        if(subject == null) {
+            throw new ServletException("The assertion has no Subject.");
+        }
+        if(this.debug.messageEnabled()) {
+            Element nameId = child(subject, ASSERTION_NS, "NameID");
+            if(nameId != null) {
+                this.debug.message("Got name id: " + nameId.getTextContent());
+            }
+        }
+
+        for(Element confirmation : children(subject, ASSERTION_NS, "SubjectConfirmation")) {
+            if(!BEARER.equals(confirmation.getAttributeNS(null, "Method"))) {
+                continue;
+            }
+            Element data = child(confirmation, ASSERTION_NS, "SubjectConfirmationData");
+            if(data == null) {
+                continue;
+            }
+            String notOnOrAfter = data.getAttributeNS(null, "NotOnOrAfter");
+            if(notOnOrAfter.length() == 0 || now - CLOCK_SKEW >= this.parseTime(notOnOrAfter)) {
+                continue;
+            }
+            String recipient = data.getAttributeNS(null, "Recipient");
+            if(!this.spAssertionConsumers.contains(recipient)) {
+                continue;
+            }
+            return;
+        }
+        throw new ServletException("No valid bearer SubjectConfirmation in the assertion.");
+    }
+
+    /**
+     * Deflates, encodes and optionally signs a message for the HTTP-Redirect binding.
+     *
+     * @param url the endpoint of the IdP.
+     * @param parameter SAMLRequest or SAMLResponse.
+     * @param xml the message.
+     * @param relayState the RelayState, or null.
+     * @return the URL we should redirect the user to.
+     * @throws ServletException if we fail to sign the message.
+     */
+    private String encodeRedirect(String url, String parameter, String xml, String relayState)
+    throws ServletException {
+        StringBuilder query = new StringBuilder(1024);
+        query.append(parameter).append('=')
+            .append(urlEncode(Base64.encodeBytes(deflate(xml), Base64.DONT_BREAK_LINES)));
+        if(relayState != null) {
+            query.append("&RelayState=").append(urlEncode(relayState));
+        }
+        if(this.crypto.canSign()) {
+            query.append("&SigAlg=").append(urlEncode(SamlCrypto.RSA_SHA256));
+            String signature = this.crypto.signRedirect(query.toString());
+            query.append("&Signature=").append(urlEncode(signature));
+        }
+        return url + (url.indexOf('?') >= 0 ? '&' : '?') + query;
+    }
+
+    /**
+     * Finds the HTTP-Redirect location of an endpoint of the IdP.
+     *
+     * @param descriptor the IDPSSODescriptor.
+     * @param name the name of the endpoint element.
+     * @param response whether we want the ResponseLocation, if it is set.
+     * @return the location, or null if there is no such endpoint.
+     */
+    private static String findLocation(Element descriptor, String name, boolean response) {
+        for(Element e : children(descriptor, METADATA_NS, name)) {
+            if(REDIRECT_BINDING.equals(e.getAttributeNS(null, "Binding"))) {
+                String location = response ? e.getAttributeNS(null, "ResponseLocation") : "";
+                return location.length() > 0 ? location : e.getAttributeNS(null, "Location");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the signing key of the IdP in its meta data.
+     *
+     * @param descriptor the IDPSSODescriptor.
+     * @return the public key.
+     * @throws ServletException if there is no usable key.
+     */
+    private static PublicKey findSigningKey(Element descriptor) throws ServletException {
+        for(Element kd : children(descriptor, METADATA_NS, "KeyDescriptor")) {
+            String use = kd.getAttributeNS(null, "use");
+            if(use.length() > 0 && !"signing".equals(use)) {
+                continue;
+            }
+            NodeList certificates = kd.getElementsByTagNameNS(SamlCrypto.DSIG_NS, "X509Certificate");
+            if(certificates.getLength() > 0) {
+                try {
+                    return SamlCrypto.parseCertificate(
+                            Base64.decode(certificates.item(0).getTextContent().replaceAll("\\s", "")));
+                } catch(GeneralSecurityException e) {
+                    throw new ServletException("Invalid certificate in IdP meta data.", e);
+                }
+            }
+        }
+        throw new ServletException("No signing certificate in IdP meta data, and no "
+                + "no.feide.test.lasso.meta.idp.pubkey.");
+    }
+
+    /**
+     * Creates a new message ID.
+     *
+     * @return the ID.
+     */
+    String newId() {
+        byte[] bytes = new byte[16];
+        this.random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(33);
+        sb.append('_');
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Formats the current time as an xs:dateTime in UTC.
+     *
+     * @return the current time.
+     */
+    private static String now() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    /**
+     * Parses an xs:dateTime.
+     *
+     * @param value the time.
+     * @return the time, in milliseconds since the epoch.
+     * @throws ServletException if the time is invalid.
+     */
+    private long parseTime(String value) throws ServletException {
+        try {
+            // DatatypeFactory isn't required to be thread safe.
+            synchronized(this.datatypeFactory) {
+                return this.datatypeFactory.newXMLGregorianCalendar(value.trim())
+                    .toGregorianCalendar().getTimeInMillis();
+            }
+        } catch(IllegalArgumentException e) {
+            throw new ServletException("Invalid time: " + value);
+        }
+    }
+
+    /**
+     * Parses a message.
+     *
+     * @param xml the message.
+     * @return the document.
+     * @throws ServletException if the message isn't well formed.
+     */
+    static Document parse(String xml) throws ServletException {
+        DocumentBuilder builder = builders.get();
+        try {
+            return builder.parse(new InputSource(new StringReader(xml)));
+        } catch(SAXException e) {
+            throw new ServletException("Malformed SAML message.", e);
+        } catch(IOException e) {
+            throw new ServletException("Got an IOException from a StringReader.", e);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    /**
+     * Parses a meta data file.
+     *
+     * @param path the absolute path to the file.
+     * @return the document element.
+     * @throws ServletException if the file isn't well formed.
+     */
+    private static Element parseFile(String path) throws ServletException {
+        DocumentBuilder builder = builders.get();
+        try {
+            return builder.parse(new File(path)).getDocumentElement();
+        } catch(SAXException e) {
+            throw new ServletException("Unable to parse meta data: " + path, e);
+        } catch(IOException e) {
+            throw new ServletException("Unable to read meta data: " + path, e);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    /**
+     * Serializes a document.
+     *
+     * @param d the document.
+     * @return the XML.
+     * @throws ServletException if we fail to serialize the document.
+     */
+    static String serialize(Document d) throws ServletException {
+        try {
+            Transformer t = TransformerFactory.newInstance().newTransformer();
+            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter out = new StringWriter();
+            t.transform(new DOMSource(d), new StreamResult(out));
+            return out.toString();
+        } catch(TransformerException e) {
+            throw new ServletException("Unable to serialize SAML message.", e);
+        }
+    }
+
+    /**
+     * Finds the first child element with the given name.
+     *
+     * @param parent the parent element.
+     * @param ns the namespace of the child.
+     * @param name the local name of the child.
+     * @return the child, or null.
+     */
+    static Element child(Element parent, String ns, String name) {
+        for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if(n.getNodeType() == Node.ELEMENT_NODE && ns.equals(n.getNamespaceURI()) && name.equals(n.getLocalName())) {
+                return (Element)n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the child elements with the given name.
+     *
+     * @param parent the parent element.
+     * @param ns the namespace of the children.
+     * @param name the local name of the children.
+     * @return the children.
+     */
+    static List<Element> children(Element parent, String ns, String name) {
+        List<Element> result = new ArrayList<Element>();
+        for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if(n.getNodeType() == Node.ELEMENT_NODE && ns.equals(n.getNamespaceURI()) && name.equals(n.getLocalName())) {
+                result.add((Element)n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Escapes a string for use in XML text and attribute values.
+     *
+     * @param s the string.
+     * @return the escaped string.
+     */
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '<': sb.append("&lt;"); break;
+            case '>': sb.append("&gt;"); break;
+            case '&': sb.append("&amp;"); break;
+            case '"': sb.append("&quot;"); break;
+            default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compresses a message with raw DEFLATE, as the HTTP-Redirect binding requires.
+     *
+     * @param xml the message.
+     * @return the compressed message.
+     */
+    private static byte[] deflate(String xml) {
+        Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+        try {
+            deflater.setInput(xml.getBytes("UTF-8"));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length());
+            byte[] buffer = new byte[1024];
+            while(!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("This java implementation doesn't implement the UTF-8 encoding.", e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a message received with the HTTP-Redirect binding.
+     *
+     * @param data the compressed message.
+     * @return the message.
+     * @throws ServletException if the message isn't valid DEFLATE data, or is too large.
+     */
+    static String inflate(byte[] data) throws ServletException {
+        if(data == null) {
+            throw new ServletException("Invalid base64 data in redirect message.");
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[1024];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                if(out.size() > WorkerProtocol.MAX_FRAME) {
+                    throw new ServletException("Redirect message is too large.");
+                }
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } catch(DataFormatException e) {
+            throw new ServletException("Invalid DEFLATE data in redirect message.", e);
+        } catch(UnsupportedEncodingException e) {
+            throw new ServletException("UTF-8 encoding is unsupported.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * URL encodes a string with UTF-8.
+     *
+     * @param s the string.
+     * @return the encoded string.
+     */
+    private static String urlEncode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("This java implementation doesn't implement the UTF-8 encoding.", e);
+        }
+    }
+
+    /**
+     * URL decodes a string with UTF-8.
+     *
+     * @param s the string.
+     * @return the decoded string.
+     */
+    static String urlDecode(String s) throws ServletException {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("This java implementation doesn't implement the UTF-8 encoding.", e);
+        } catch(IllegalArgumentException e) {
+            throw new ServletException("Invalid URL encoding: " + s);
+        }
+    }
+}
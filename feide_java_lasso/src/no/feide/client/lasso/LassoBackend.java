@@ -0,0 +1,288 @@
+package no.feide.client.lasso;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+/**
+ * The SAML operations the servlet needs from Lasso. Each operation is coarse, so that a backend
+ * which runs Lasso in another process only needs one round trip per operation.
+ */
+interface LassoBackend {
+
+    /**
+     * Builds an authentication request.
+     *
+     * @param binding the binding the IdP should use for the response.
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the URL we should redirect the user to.
+     * @throws ServletException if Lasso fails to build the request.
+     */
+    String buildAuthnRequestURL(String binding, boolean forceAuthn) throws ServletException;
+
+    /**
+     * Builds the request which resolves an artifact. The request must be released with
+     * {@link #releaseArtifactRequest(ArtifactRequest)} when the login is finished.
+     *
+     * @param artifact the SAML artifact we received.
+     * @return the artifact resolution request.
+     * @throws ServletException if Lasso fails to build the request.
+     */
+    ArtifactRequest initArtifactRequest(String artifact) throws ServletException;
+
+    /**
+     * Processes the response to an artifact resolution request, and accepts the login.
+     *
+     * @param request the artifact resolution request.
+     * @param samlResponse the SOAP response from the IdP.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    LoginResult processArtifactResponse(ArtifactRequest request, String samlResponse)
+        throws ServletException;
+
+    /**
+     * Releases the Lasso objects of an artifact resolution request.
+     *
+     * @param request the artifact resolution request.
+     */
+    void releaseArtifactRequest(ArtifactRequest request);
+
+    /**
+     * Processes a response we received through the HTTP-POST binding, and accepts the login.
+     *
+     * @param samlResponse the decoded SAML response.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    LoginResult processAuthnResponse(String samlResponse) throws ServletException;
+
+    /**
+     * Builds an authentication request for the Enhanced Client or Proxy profile, wrapped in the
+     * PAOS request we send to the client.
+     *
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the SOAP envelope we send to the client.
+     * @throws ServletException if we fail to build the request.
+     */
+    String buildPaosRequest(boolean forceAuthn) throws ServletException;
+
+    /**
+     * Processes a response an ECP client relayed to us in a PAOS response, and accepts the
+     * login.
+     *
+     * @param soapMessage the SOAP envelope the client posted.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    LoginResult processPaosResponse(String soapMessage) throws ServletException;
+
+    /**
+     * Processes a logout request from the IdP, and builds the response. Only a request signed by
+     * the configured IdP is accepted.
+     *
+     * @param queryString the query string of the logout request.
+     * @return the logout, with the URL we should redirect the user to.
+     * @throws ServletException if the request isn't accepted.
+     */
+    LogoutResult processLogoutRequest(String queryString) throws ServletException;
+
+    /**
+     * Releases the resources of this backend. Must only be called when no requests are running.
+     */
+    void shutdown();
+
+    /**
+     * A request which resolves an artifact, together with the state the backend needs to
+     * process the response.
+     */
+    final class ArtifactRequest {
+
+        /**
+         * The URL we should send the request to.
+         */
+        private final String msgUrl;
+
+        /**
+         * The SOAP request.
+         */
+        private final String msgBody;
+
+        /**
+         * The state of the backend.
+         */
+        private final Object state;
+
+        /**
+         * Creates an artifact resolution request.
+         *
+         * @param msgUrl the URL we should send the request to.
+         * @param msgBody the SOAP request.
+         * @param state the state the backend needs to process the response.
+         */
+        ArtifactRequest(String msgUrl, String msgBody, Object state) {
+            this.msgUrl = msgUrl;
+            this.msgBody = msgBody;
+            this.state = state;
+        }
+
+        /**
+         * Retrieves the URL we should send the request to.
+         *
+         * @return the URL.
+         */
+        String getMsgUrl() {
+            return this.msgUrl;
+        }
+
+        /**
+         * Retrieves the SOAP request.
+         *
+         * @return the SOAP request.
+         */
+        String getMsgBody() {
+            return this.msgBody;
+        }
+
+        /**
+         * Retrieves the state of the backend.
+         *
+         * @return the state.
+         */
+        Object getState() {
+            return this.state;
+        }
+    }
+
+    /**
+     * An accepted login: the attributes of the user, and the NameID and SessionIndex from the
+     * assertion. The NameID and the SessionIndex are kept apart from the attributes, so that an
+     * attribute from the IdP can never be taken for them.
+     */
+    final class LoginResult {
+
+        /**
+         * The attributes of the user.
+         */
+        private final Map<String, Attribute> attributes;
+
+        /**
+         * The NameID of the user, or null.
+         */
+        private final Attribute nameId;
+
+        /**
+         * The SessionIndex of the login, or null.
+         */
+        private final String sessionIndex;
+
+        /**
+         * Creates the result of a login.
+         *
+         * @param attributes the attributes of the user.
+         * @param nameId the NameID of the user, as described in {@link Attribute#NAME_ID}, or
+         *        null if the assertion has none.
+         * @param sessionIndex the SessionIndex of the login, or null if the assertion has none.
+         */
+        LoginResult(Map<String, Attribute> attributes, Attribute nameId, String sessionIndex) {
+            this.attributes = attributes;
+            this.nameId = nameId;
+            this.sessionIndex = sessionIndex;
+        }
+
+        /**
+         * Retrieves the attributes of the user.
+         *
+         * @return the attributes, by name.
+         */
+        Map<String, Attribute> getAttributes() {
+            return this.attributes;
+        }
+
+        /**
+         * Retrieves the NameID of the user.
+         *
+         * @return the NameID, or null if the assertion has none.
+         */
+        Attribute getNameId() {
+            return this.nameId;
+        }
+
+        /**
+         * Retrieves the SessionIndex the IdP gave the login.
+         *
+         * @return the SessionIndex, or null if the assertion has none.
+         */
+        String getSessionIndex() {
+            return this.sessionIndex;
+        }
+    }
+
+    /**
+     * An accepted logout request: the URL of the response to the IdP, and the NameID and the
+     * SessionIndexes from the request. They are only taken from a request whose signature and
+     * issuer the backend has checked, so that no one but the IdP can log out a user.
+     */
+    final class LogoutResult {
+
+        /**
+         * The URL we should redirect the user to.
+         */
+        private final String redirectUrl;
+
+        /**
+         * The NameID the request names, or null.
+         */
+        private final String nameId;
+
+        /**
+         * The SessionIndexes the request names.
+         */
+        private final List<String> sessionIndexes;
+
+        /**
+         * Creates the result of a logout request.
+         *
+         * @param redirectUrl the URL we should redirect the user to.
+         * @param nameId the value of the NameID in the request, or null if the request has an
+         *        encrypted or other kind of identifier.
+         * @param sessionIndexes the SessionIndexes in the request, which may be empty.
+         */
+        LogoutResult(String redirectUrl, String nameId, List<String> sessionIndexes) {
+            this.redirectUrl = redirectUrl;
+            this.nameId = nameId;
+            this.sessionIndexes = sessionIndexes;
+        }
+
+        /**
+         * Retrieves the URL of the response to the IdP.
+         *
+         * @return the URL we should redirect the user to.
+         */
+        String getRedirectUrl() {
+            return this.redirectUrl;
+        }
+
+        /**
+         * Retrieves the NameID the request names.
+         *
+         * @return the value of the NameID, or null if the request has none.
+         */
+        String getNameId() {
+            return this.nameId;
+        }
+
+        /**
+         * Retrieves the SessionIndexes the request names. If there are none, every session of
+         * the user is logged out.
+         *
+         * @return the SessionIndexes.
+         */
+        List<String> getSessionIndexes() {
+            return this.sessionIndexes;
+        }
+    }
+}
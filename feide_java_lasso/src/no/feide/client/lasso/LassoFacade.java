@@ -0,0 +1,566 @@
+package no.feide.client.lasso;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.entrouvert.lasso.DowncastableNode;
+import com.entrouvert.lasso.Login;
+import com.entrouvert.lasso.Logout;
+import com.entrouvert.lasso.Node;
+import com.entrouvert.lasso.NodeList;
+import com.entrouvert.lasso.Saml2Assertion;
+import com.entrouvert.lasso.Saml2Attribute;
+import com.entrouvert.lasso.Saml2AttributeStatement;
+import com.entrouvert.lasso.Saml2AuthnStatement;
+import com.entrouvert.lasso.Saml2NameID;
+import com.entrouvert.lasso.Samlp2AuthnRequest;
+import com.entrouvert.lasso.Samlp2LogoutRequest;
+import com.entrouvert.lasso.Samlp2Response;
+import com.entrouvert.lasso.Server;
+
+/**
+ * A thin facade over the Lasso Java bindings. Every call into Lasso crosses JNI, so every call
+ * goes through this class, which counts the calls and the time spent in native code for each
+ * method. The totals are exported through {@link Metrics}.
+ *
+ * The calls are also counted for the current request, so that we can see how many JNI
+ * crossings and how much native time a single login costs. A request calls
+ * {@link #startRequest()} when it starts and {@link #endRequest()} when it ends.
+ */
+final class LassoFacade {
+
+    /**
+     * The counts of a single Lasso method.
+     */
+    private static final class Call {
+        final AtomicLong calls;
+        final AtomicLong nanos = new AtomicLong();
+
+        Call(String name) {
+            this.calls = Metrics.getInstance().counter("lasso.jni." + name + ".calls");
+            Metrics.getInstance().gauge("lasso.jni." + name + ".time_us", new Metrics.Gauge() {
+                public long getValue() {
+                    return Call.this.nanos.get() / 1000;
+                }
+            });
+        }
+
+        void end(long start) {
+            long elapsed = System.nanoTime() - start;
+            this.calls.incrementAndGet();
+            this.nanos.addAndGet(elapsed);
+
+            long[] request = currentRequest.get();
+            request[0]++;
+            request[1] += elapsed;
+        }
+    }
+
+    /**
+     * The number of calls and the native time, in nanoseconds, of the current request.
+     */
+    private static final ThreadLocal<long[]> currentRequest = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /**
+     * Number of requests which have called into Lasso.
+     */
+    private static final AtomicLong requests = Metrics.getInstance().counter("lasso.jni.requests");
+
+    /**
+     * Total number of calls made by those requests.
+     */
+    private static final AtomicLong requestCalls = Metrics.getInstance().counter("lasso.jni.request_calls");
+
+    /**
+     * The native time of each request.
+     */
+    private static final LatencyHistogram requestTime =
+        Metrics.getInstance().histogram("lasso.jni.request_time");
+
+    private static final Call NEW_SERVER = new Call("Server.new");
+    private static final Call ADD_PROVIDER = new Call("Server.addProvider");
+    private static final Call GET_PROVIDER_IDS = new Call("Server.getProviderIds");
+    private static final Call NEW_LOGIN = new Call("Login.new");
+    private static final Call INIT_AUTHN_REQUEST = new Call("Login.initAuthnRequest");
+    private static final Call BUILD_AUTHN_REQUEST_MSG = new Call("Login.buildAuthnRequestMsg");
+    private static final Call INIT_REQUEST = new Call("Login.initRequest");
+    private static final Call BUILD_REQUEST_MSG = new Call("Login.buildRequestMsg");
+    private static final Call PROCESS_RESPONSE_MSG = new Call("Login.processResponseMsg");
+    private static final Call PROCESS_AUTHN_RESPONSE_MSG = new Call("Login.processAuthnResponseMsg");
+    private static final Call PROCESS_PAOS_RESPONSE_MSG = new Call("Login.processPaosResponseMsg");
+    private static final Call ACCEPT_SSO = new Call("Login.acceptSso");
+    private static final Call GET_REQUEST = new Call("Login.getRequest");
+    private static final Call GET_RESPONSE = new Call("Login.getResponse");
+    private static final Call GET_NAME_IDENTIFIER = new Call("Login.getNameIdentifier");
+    private static final Call GET_MSG_URL = new Call("Profile.getMsgUrl");
+    private static final Call GET_MSG_BODY = new Call("Profile.getMsgBody");
+    private static final Call NEW_LOGOUT = new Call("Logout.new");
+    private static final Call PROCESS_REQUEST_MSG = new Call("Logout.processRequestMsg");
+    private static final Call BUILD_RESPONSE_MSG = new Call("Logout.buildResponseMsg");
+    private static final Call GET_LOGOUT_REQUEST = new Call("Logout.getRequest");
+    private static final Call GET_REMOTE_PROVIDER_ID = new Call("Profile.getRemoteProviderId");
+    private static final Call GET_NAME_ID = new Call("Samlp2LogoutRequest.getNameID");
+    private static final Call GET_LOGOUT_SESSION_INDEX = new Call("Samlp2LogoutRequest.getSessionIndex");
+    private static final Call SET_PROTOCOL_BINDING = new Call("Samlp2AuthnRequest.setProtocolBinding");
+    private static final Call SET_FORCE_AUTHN = new Call("Samlp2AuthnRequest.setForceAuthn");
+    private static final Call GET_CONTENT = new Call("Saml2NameID.getContent");
+    private static final Call GET_FORMAT = new Call("Saml2NameID.getFormat");
+    private static final Call GET_NAME_QUALIFIER = new Call("Saml2NameID.getNameQualifier");
+    private static final Call GET_SP_NAME_QUALIFIER = new Call("Saml2NameID.getSpNameQualifier");
+    private static final Call GET_ASSERTION = new Call("Samlp2Response.getAssertion");
+    private static final Call GET_ATTRIBUTE_STATEMENT = new Call("Saml2Assertion.getAttributeStatement");
+    private static final Call GET_ATTRIBUTE = new Call("Saml2AttributeStatement.getAttribute");
+    private static final Call GET_AUTHN_STATEMENT = new Call("Saml2Assertion.getAuthnStatement");
+    private static final Call GET_SESSION_INDEX = new Call("Saml2AuthnStatement.getSessionIndex");
+    private static final Call GET_NAME = new Call("Saml2Attribute.getName");
+    private static final Call NODE_LIST_LENGTH = new Call("NodeList.length");
+    private static final Call NODE_LIST_GET_ITEM = new Call("NodeList.getItem");
+    private static final Call DUMP = new Call("Node.dump");
+    private static final Call DELETE = new Call("delete");
+
+    /**
+     * This class only has static methods.
+     */
+    private LassoFacade() {
+    }
+
+    /**
+     * Starts counting the calls of a new request on the current thread.
+     */
+    static void startRequest() {
+        long[] request = currentRequest.get();
+        request[0] = 0;
+        request[1] = 0;
+    }
+
+    /**
+     * Stops counting the calls of the current request, and records the totals.
+     *
+     * @return the number of calls the request made into Lasso.
+     */
+    static long endRequest() {
+        long[] request = currentRequest.get();
+        long calls = request[0];
+        if(calls > 0) {
+            requests.incrementAndGet();
+            requestCalls.addAndGet(calls);
+            requestTime.record(request[1]);
+        }
+        request[0] = 0;
+        request[1] = 0;
+        return calls;
+    }
+
+    /**
+     * Retrieves the counts of the request on the current thread, so that calls made for the
+     * request on another thread can be counted with it.
+     *
+     * @return the counts of the current request.
+     */
+    static long[] currentRequest() {
+        return currentRequest.get();
+    }
+
+    /**
+     * Counts the calls made on the current thread with another request, or stops doing so.
+     *
+     * @param request the counts returned by currentRequest() on the thread of the request, or
+     *        null to go back to counting the calls of this thread separately.
+     */
+    static void joinRequest(long[] request) {
+        if(request == null) {
+            currentRequest.remove();
+        } else {
+            currentRequest.set(request);
+        }
+    }
+
+    static Server newServer(String metadata, String privateKey) {
+        long start = System.nanoTime();
+        try {
+            return new Server(metadata, privateKey, null, null);
+        } finally {
+            NEW_SERVER.end(start);
+        }
+    }
+
+    static int addProvider(Server server, int role, String metadata, String publicKey) {
+        long start = System.nanoTime();
+        try {
+            return server.addProvider(role, metadata, publicKey, null);
+        } finally {
+            ADD_PROVIDER.end(start);
+        }
+    }
+
+    static String getFirstProviderId(Server server) {
+        long start = System.nanoTime();
+        try {
+            return server.getProviderIds().getItem(0);
+        } finally {
+            GET_PROVIDER_IDS.end(start);
+        }
+    }
+
+    static Login newLogin(LassoServer server) {
+        long start = System.nanoTime();
+        try {
+            return new Login(server.getServer());
+        } finally {
+            NEW_LOGIN.end(start);
+        }
+    }
+
+    static int initAuthnRequest(Login login, String providerId, int httpMethod) {
+        long start = System.nanoTime();
+        try {
+            return login.initAuthnRequest(providerId, httpMethod);
+        } finally {
+            INIT_AUTHN_REQUEST.end(start);
+        }
+    }
+
+    static int buildAuthnRequestMsg(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.buildAuthnRequestMsg();
+        } finally {
+            BUILD_AUTHN_REQUEST_MSG.end(start);
+        }
+    }
+
+    static int initRequest(Login login, String artifact, int httpMethod) {
+        long start = System.nanoTime();
+        try {
+            return login.initRequest(artifact, httpMethod);
+        } finally {
+            INIT_REQUEST.end(start);
+        }
+    }
+
+    static int buildRequestMsg(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.buildRequestMsg();
+        } finally {
+            BUILD_REQUEST_MSG.end(start);
+        }
+    }
+
+    static int processResponseMsg(Login login, String message) {
+        long start = System.nanoTime();
+        try {
+            return login.processResponseMsg(message);
+        } finally {
+            PROCESS_RESPONSE_MSG.end(start);
+        }
+    }
+
+    static int processAuthnResponseMsg(Login login, String message) {
+        long start = System.nanoTime();
+        try {
+            return login.processAuthnResponseMsg(message);
+        } finally {
+            PROCESS_AUTHN_RESPONSE_MSG.end(start);
+        }
+    }
+
+    static int processPaosResponseMsg(Login login, String message) {
+        long start = System.nanoTime();
+        try {
+            return login.processPaosResponseMsg(message);
+        } finally {
+            PROCESS_PAOS_RESPONSE_MSG.end(start);
+        }
+    }
+
+    static int acceptSso(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.acceptSso();
+        } finally {
+            ACCEPT_SSO.end(start);
+        }
+    }
+
+    static Node getRequest(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.getRequest();
+        } finally {
+            GET_REQUEST.end(start);
+        }
+    }
+
+    static Node getResponse(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.getResponse();
+        } finally {
+            GET_RESPONSE.end(start);
+        }
+    }
+
+    static Node getNameIdentifier(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.getNameIdentifier();
+        } finally {
+            GET_NAME_IDENTIFIER.end(start);
+        }
+    }
+
+    static String getMsgUrl(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.getMsgUrl();
+        } finally {
+            GET_MSG_URL.end(start);
+        }
+    }
+
+    static String getMsgBody(Login login) {
+        long start = System.nanoTime();
+        try {
+            return login.getMsgBody();
+        } finally {
+            GET_MSG_BODY.end(start);
+        }
+    }
+
+    static Logout newLogout(LassoServer server) {
+        long start = System.nanoTime();
+        try {
+            return new Logout(server.getServer());
+        } finally {
+            NEW_LOGOUT.end(start);
+        }
+    }
+
+    static int processRequestMsg(Logout logout, String message) {
+        long start = System.nanoTime();
+        try {
+            return logout.processRequestMsg(message);
+        } finally {
+            PROCESS_REQUEST_MSG.end(start);
+        }
+    }
+
+    static int buildResponseMsg(Logout logout) {
+        long start = System.nanoTime();
+        try {
+            return logout.buildResponseMsg();
+        } finally {
+            BUILD_RESPONSE_MSG.end(start);
+        }
+    }
+
+    static String getMsgUrl(Logout logout) {
+        long start = System.nanoTime();
+        try {
+            return logout.getMsgUrl();
+        } finally {
+            GET_MSG_URL.end(start);
+        }
+    }
+
+    static Node getRequest(Logout logout) {
+        long start = System.nanoTime();
+        try {
+            return logout.getRequest();
+        } finally {
+            GET_LOGOUT_REQUEST.end(start);
+        }
+    }
+
+    static String getRemoteProviderId(Logout logout) {
+        long start = System.nanoTime();
+        try {
+            return logout.getRemoteProviderId();
+        } finally {
+            GET_REMOTE_PROVIDER_ID.end(start);
+        }
+    }
+
+    static Saml2NameID getNameID(Samlp2LogoutRequest request) {
+        long start = System.nanoTime();
+        try {
+            return request.getNameID();
+        } finally {
+            GET_NAME_ID.end(start);
+        }
+    }
+
+    static String getSessionIndex(Samlp2LogoutRequest request) {
+        long start = System.nanoTime();
+        try {
+            return request.getSessionIndex();
+        } finally {
+            GET_LOGOUT_SESSION_INDEX.end(start);
+        }
+    }
+
+    static void setProtocolBinding(Samlp2AuthnRequest request, String binding) {
+        long start = System.nanoTime();
+        try {
+            request.setProtocolBinding(binding);
+        } finally {
+            SET_PROTOCOL_BINDING.end(start);
+        }
+    }
+
+    static void setForceAuthn(Samlp2AuthnRequest request, boolean forceAuthn) {
+        long start = System.nanoTime();
+        try {
+            request.setForceAuthn(forceAuthn);
+        } finally {
+            SET_FORCE_AUTHN.end(start);
+        }
+    }
+
+    static String getContent(Saml2NameID nameId) {
+        long start = System.nanoTime();
+        try {
+            return nameId.getContent();
+        } finally {
+            GET_CONTENT.end(start);
+        }
+    }
+
+    static String getFormat(Saml2NameID nameId) {
+        long start = System.nanoTime();
+        try {
+            return nameId.getFormat();
+        } finally {
+            GET_FORMAT.end(start);
+        }
+    }
+
+    static String getNameQualifier(Saml2NameID nameId) {
+        long start = System.nanoTime();
+        try {
+            return nameId.getNameQualifier();
+        } finally {
+            GET_NAME_QUALIFIER.end(start);
+        }
+    }
+
+    static String getSpNameQualifier(Saml2NameID nameId) {
+        long start = System.nanoTime();
+        try {
+            return nameId.getSpNameQualifier();
+        } finally {
+            GET_SP_NAME_QUALIFIER.end(start);
+        }
+    }
+
+    static NodeList getAssertion(Samlp2Response response) {
+        long start = System.nanoTime();
+        try {
+            return response.getAssertion();
+        } finally {
+            GET_ASSERTION.end(start);
+        }
+    }
+
+    static NodeList getAttributeStatement(Saml2Assertion assertion) {
+        long start = System.nanoTime();
+        try {
+            return assertion.getAttributeStatement();
+        } finally {
+            GET_ATTRIBUTE_STATEMENT.end(start);
+        }
+    }
+
+    static NodeList getAuthnStatement(Saml2Assertion assertion) {
+        long start = System.nanoTime();
+        try {
+            return assertion.getAuthnStatement();
+        } finally {
+            GET_AUTHN_STATEMENT.end(start);
+        }
+    }
+
+    static String getSessionIndex(Saml2AuthnStatement statement) {
+        long start = System.nanoTime();
+        try {
+            return statement.getSessionIndex();
+        } finally {
+            GET_SESSION_INDEX.end(start);
+        }
+    }
+
+    static NodeList getAttribute(Saml2AttributeStatement statement) {
+        long start = System.nanoTime();
+        try {
+            return statement.getAttribute();
+        } finally {
+            GET_ATTRIBUTE.end(start);
+        }
+    }
+
+    static String getName(Saml2Attribute attribute) {
+        long start = System.nanoTime();
+        try {
+            return attribute.getName();
+        } finally {
+            GET_NAME.end(start);
+        }
+    }
+
+    static int length(NodeList list) {
+        long start = System.nanoTime();
+        try {
+            return list.length();
+        } finally {
+            NODE_LIST_LENGTH.end(start);
+        }
+    }
+
+    static Object getItem(NodeList list, int index) {
+        long start = System.nanoTime();
+        try {
+            return list.getItem(index);
+        } finally {
+            NODE_LIST_GET_ITEM.end(start);
+        }
+    }
+
+    static String dump(Node node) {
+        long start = System.nanoTime();
+        try {
+            return node.dump();
+        } finally {
+            DUMP.end(start);
+        }
+    }
+
+    /**
+     * Destroys a Lasso object.
+     *
+     * @param object the object.
+     * @throws UnsupportedOperationException if Lasso doesn't let us destroy the object.
+     */
+    static void delete(Object object) {
+        long start = System.nanoTime();
+        try {
+            if(object instanceof Login) {
+                ((Login)object).delete();
+            } else if(object instanceof Logout) {
+                ((Logout)object).delete();
+            } else if(object instanceof Server) {
+                ((Server)object).delete();
+            } else if(object instanceof DowncastableNode) {
+                ((DowncastableNode)object).delete();
+            } else {
+                throw new IllegalArgumentException("Unsupported Lasso object: " + object.getClass().getName());
+            }
+        } finally {
+            DELETE.end(start);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package no.feide.client.lasso;
+
+import com.entrouvert.lasso.Server;
+
+/**
+ * A Lasso Server together with the values we read from it. These values never change after
+ * the Server is initialized, so we read them once instead of crossing JNI on every request.
+ * Only values a request actually needs are read, since each one costs a JNI call for every
+ * Server in the pool.
+ */
+class LassoServer {
+
+    /**
+     * The Lasso Server.
+     */
+    private final Server server;
+
+    /**
+     * The provider ID of the IdP.
+     */
+    private final String idpProviderId;
+
+    /**
+     * Wraps a Lasso Server, and reads its invariant values.
+     *
+     * @param server the initialized Lasso Server.
+     */
+    LassoServer(Server server) {
+        this(server, LassoFacade.getFirstProviderId(server));
+    }
+
+    /**
+     * Wraps a Lasso Server whose invariant values are already known.
+     *
+     * @param server the initialized Lasso Server.
+     * @param idpProviderId the provider ID of the IdP.
+     */
+    LassoServer(Server server, String idpProviderId) {
+        this.server = server;
+        this.idpProviderId = idpProviderId;
+    }
+
+    /**
+     * Retrieves the Lasso Server.
+     *
+     * @return the Lasso Server.
+     */
+    Server getServer() {
+        return this.server;
+    }
+
+    /**
+     * Retrieves the provider ID of the IdP. This is the first (and only) provider loaded into
+     * the Server.
+     *
+     * @return the provider ID of the IdP.
+     */
+    String getIdPProviderId() {
+        return this.idpProviderId;
+    }
+}
@@ -0,0 +1,250 @@
+package no.feide.client.lasso;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+
+/**
+ * A Lasso worker process. The servlet starts a number of these when it is configured to run
+ * Lasso out of process, so that a crash in native code only costs the calls in flight on one
+ * worker, instead of the whole servlet container.
+ *
+ * The worker reads a secret from standard input, listens on an ephemeral port on the loopback
+ * interface, and writes "PORT &lt;port&gt;" to standard output. It accepts a single connection,
+ * which must start with a hello call carrying the secret. Calls are executed concurrently by a
+ * fixed number of threads, and the replies are written as soon as they are ready. The worker
+ * exits when the connection or standard input is closed.
+ *
+ * Usage: java no.feide.client.lasso.LassoWorker &lt;context root&gt; &lt;concurrency&gt;
+ */
+public final class LassoWorker {
+
+    /**
+     * The backend which does the work.
+     */
+    private final LassoBackend backend;
+
+    /**
+     * The artifact resolution requests which haven't been released, by handle.
+     */
+    private final Map<Integer, LassoBackend.ArtifactRequest> artifactRequests =
+        new ConcurrentHashMap<Integer, LassoBackend.ArtifactRequest>();
+
+    /**
+     * The next artifact request handle.
+     */
+    private final AtomicInteger nextHandle = new AtomicInteger();
+
+    /**
+     * The stream we write replies to.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Creates a worker.
+     *
+     * @param backend the backend which does the work.
+     * @param out the stream we write replies to.
+     */
+    private LassoWorker(LassoBackend backend, DataOutputStream out) {
+        this.backend = backend;
+        this.out = out;
+    }
+
+    /**
+     * Starts the worker.
+     *
+     * @param args the context root and the number of concurrent calls.
+     * @throws Exception if the worker fails to start.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length != 2) {
+            System.err.println("Usage: java " + LassoWorker.class.getName() + " <context root> <concurrency>");
+            System.exit(2);
+        }
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "US-ASCII"));
+        final String secret = stdin.readLine();
+        if(secret == null) {
+            System.exit(2);
+        }
+
+        LassoBackend backend = new InProcessBackend(new Config(new File(args[0])));
+        int concurrency = Integer.parseInt(args[1]);
+
+        ServerSocket listener = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        System.out.println("PORT " + listener.getLocalPort());
+        System.out.flush();
+
+        // The servlet closes our standard input when it stops, or when it dies.
+        Thread watchdog = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(System.in.read() >= 0) {
+                        // Nothing more is sent on standard input.
+                    }
+                } catch(IOException e) {
+                    // Treat this as end of input.
+                }
+                System.exit(0);
+            }
+        }, "lasso-worker-stdin");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        Socket socket = listener.accept();
+        listener.close();
+        socket.setTcpNoDelay(true);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        WorkerProtocol.Frame hello = WorkerProtocol.readFrame(in);
+        if(hello == null || hello.op != WorkerProtocol.OP_HELLO
+                || !secret.equals(WorkerProtocol.readString(hello.body))) {
+            System.err.println("Invalid hello from " + socket.getRemoteSocketAddress());
+            System.exit(1);
+        }
+        WorkerProtocol.writeFrame(out, hello.id, WorkerProtocol.STATUS_OK, new byte[0]);
+
+        new LassoWorker(backend, out).serve(in, concurrency);
+        System.exit(0);
+    }
+
+    /**
+     * Reads calls until the connection is closed, and executes them on a thread pool.
+     *
+     * @param in the stream we read calls from.
+     * @param concurrency the number of calls we execute at a time.
+     * @throws IOException if we fail to read a call.
+     */
+    private void serve(DataInputStream in, int concurrency) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new DaemonThreadFactory("lasso-worker"));
+
+        WorkerProtocol.Frame frame;
+        while((frame = WorkerProtocol.readFrame(in)) != null) {
+            final WorkerProtocol.Frame call = frame;
+            executor.execute(new Runnable() {
+                public void run() {
+                    LassoWorker.this.execute(call);
+                }
+            });
+        }
+    }
+
+    /**
+     * Executes a call, and writes the reply.
+     *
+     * @param call the call.
+     */
+    private void execute(WorkerProtocol.Frame call) {
+        int status;
+        byte[] reply;
+        LassoFacade.startRequest();
+        try {
+            reply = this.dispatch(call);
+            status = WorkerProtocol.STATUS_OK;
+        } catch(Throwable e) {
+            status = WorkerProtocol.STATUS_ERROR;
+            reply = new WorkerProtocol.Body().writeString(String.valueOf(e.getMessage())).toByteArray();
+        } finally {
+            LassoFacade.endRequest();
+        }
+
+        try {
+            synchronized(this.out) {
+                WorkerProtocol.writeFrame(this.out, call.id, status, reply);
+            }
+        } catch(IOException e) {
+            // The connection is gone. The servlet will start a new worker.
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Executes a call.
+     *
+     * @param call the call.
+     * @return the body of the reply.
+     * @throws ServletException if the call fails.
+     * @throws IOException if the call is malformed.
+     */
+    private byte[] dispatch(WorkerProtocol.Frame call) throws ServletException, IOException {
+        WorkerProtocol.Body reply = new WorkerProtocol.Body();
+
+        switch(call.op) {
+        case WorkerProtocol.OP_BUILD_AUTHN_REQUEST:
+            reply.writeString(this.backend.buildAuthnRequestURL(WorkerProtocol.readString(call.body),
+                    call.body.readInt() != 0));
+            break;
+        case WorkerProtocol.OP_INIT_ARTIFACT_REQUEST: {
+            LassoBackend.ArtifactRequest request =
+                this.backend.initArtifactRequest(WorkerProtocol.readString(call.body));
+            int handle = this.nextHandle.incrementAndGet();
+            this.artifactRequests.put(handle, request);
+            reply.writeInt(handle).writeString(request.getMsgUrl()).writeString(request.getMsgBody());
+            break;
+        }
+        case WorkerProtocol.OP_PROCESS_ARTIFACT_RESPONSE: {
+            LassoBackend.ArtifactRequest request = this.findArtifactRequest(call.body.readInt());
+            reply.writeLogin(this.backend.processArtifactResponse(request,
+                    WorkerProtocol.readString(call.body)));
+            break;
+        }
+        case WorkerProtocol.OP_RELEASE_ARTIFACT_REQUEST: {
+            LassoBackend.ArtifactRequest request = this.artifactRequests.remove(call.body.readInt());
+            if(request != null) {
+                this.backend.releaseArtifactRequest(request);
+            }
+            break;
+        }
+        case WorkerProtocol.OP_PROCESS_AUTHN_RESPONSE:
+            reply.writeLogin(this.backend.processAuthnResponse(WorkerProtocol.readString(call.body)));
+            break;
+        case WorkerProtocol.OP_BUILD_PAOS_REQUEST:
+            reply.writeString(this.backend.buildPaosRequest(call.body.readInt() != 0));
+            break;
+        case WorkerProtocol.OP_PROCESS_PAOS_RESPONSE:
+            reply.writeLogin(this.backend.processPaosResponse(WorkerProtocol.readString(call.body)));
+            break;
+        case WorkerProtocol.OP_PROCESS_LOGOUT_REQUEST:
+            reply.writeLogout(this.backend.processLogoutRequest(WorkerProtocol.readString(call.body)));
+            break;
+        default:
+            throw new ServletException("Unknown operation: " + call.op);
+        }
+
+        return reply.toByteArray();
+    }
+
+    /**
+     * Finds an artifact resolution request which hasn't been released.
+     *
+     * @param handle the handle of the request.
+     * @return the request.
+     * @throws ServletException if there is no such request.
+     */
+    private LassoBackend.ArtifactRequest findArtifactRequest(int handle) throws ServletException {
+        LassoBackend.ArtifactRequest request = this.artifactRequests.get(handle);
+        if(request == null) {
+            throw new ServletException("Unknown artifact request: " + handle);
+        }
+        return request;
+    }
+}
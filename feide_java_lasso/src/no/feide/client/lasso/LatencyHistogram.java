@@ -0,0 +1,253 @@
+package no.feide.client.lasso;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets. Each power of two is split into
+ * eight sub-buckets, which gives percentiles with an error of at most 12.5%.
+ *
+ * Percentiles are calculated over a sliding window, which consists of the current and the
+ * previous time interval. This lets percentiles follow changes in latency. The count, the
+ * total and the maximum cover the lifetime of the histogram.
+ */
+class LatencyHistogram {
+
+    /**
+     * Number of bits used for the sub-buckets of each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of sub-buckets for each power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Total number of buckets. This covers every positive long value.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The default length of a window interval, in nanoseconds.
+     */
+    private static final long DEFAULT_INTERVAL = 60L * 1000 * 1000 * 1000;
+
+    /**
+     * The length of a window interval, in nanoseconds.
+     */
+    private final long interval;
+
+    /**
+     * The interval we are currently recording values in.
+     */
+    private volatile Window current;
+
+    /**
+     * The previous interval.
+     */
+    private volatile Window previous;
+
+    /**
+     * Number of values recorded over the lifetime of this histogram.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of all values recorded over the lifetime of this histogram, in microseconds.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The largest value recorded over the lifetime of this histogram, in microseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram with the default window interval of one minute.
+     */
+    LatencyHistogram() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates a histogram with the given window interval.
+     *
+     * @param intervalNanos the length of each window interval, in nanoseconds.
+     */
+    LatencyHistogram(long intervalNanos) {
+        this.interval = intervalNanos;
+        this.current = new Window(System.nanoTime());
+        this.previous = new Window(this.current.start - intervalNanos);
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency, in nanoseconds.
+     */
+    void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+
+        Window w = this.currentWindow();
+        w.counts.incrementAndGet(bucketIndex(micros));
+        w.total.incrementAndGet();
+
+        this.count.incrementAndGet();
+        this.total.addAndGet(micros);
+
+        long m;
+        while(micros > (m = this.max.get())) {
+            if(this.max.compareAndSet(m, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Calculates a percentile over the sliding window.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the upper bound of the bucket containing the percentile, in microseconds, or
+     *         -1 if no values have been recorded in the window.
+     */
+    long getPercentile(double percentile) {
+        Window c = this.currentWindow();
+        Window p = this.previous;
+
+        long[] merged = new long[BUCKETS];
+        long n = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            merged[i] = c.counts.get(i) + p.counts.get(i);
+            n += merged[i];
+        }
+        if(n == 0) {
+            return -1;
+        }
+
+        long rank = (long)Math.ceil(percentile / 100.0 * n);
+        if(rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += merged[i];
+            if(seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+
+        return bucketUpperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Returns the number of values recorded in the sliding window.
+     *
+     * @return the number of values in the sliding window.
+     */
+    long getWindowCount() {
+        Window c = this.currentWindow();
+        return c.total.get() + this.previous.total.get();
+    }
+
+    /**
+     * Returns the number of values recorded over the lifetime of this histogram.
+     *
+     * @return the number of values recorded.
+     */
+    long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Returns the mean of all values recorded, in microseconds.
+     *
+     * @return the mean value, or 0 if no values have been recorded.
+     */
+    long getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : this.total.get() / n;
+    }
+
+    /**
+     * Returns the largest value recorded, in microseconds.
+     *
+     * @return the largest value recorded.
+     */
+    long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the current window interval, rotating the intervals if the current one has
+     * expired.
+     *
+     * @return the current window interval.
+     */
+    private Window currentWindow() {
+        Window c = this.current;
+        long now = System.nanoTime();
+        if(now - c.start < this.interval) {
+            return c;
+        }
+
+        synchronized(this) {
+            c = this.current;
+            if(now - c.start >= this.interval) {
+                // If more than one interval has passed, the current interval is too old to
+                // be a part of the sliding window.
+                this.previous = (now - c.start < 2 * this.interval) ? c : new Window(now - this.interval);
+                c = new Window(now);
+                this.current = c;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Finds the bucket a value belongs in.
+     *
+     * @param value the value.
+     * @return the index of the bucket.
+     */
+    private static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int)value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int)((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Finds the largest value which belongs in a bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the largest value in the bucket.
+     */
+    private static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * The bucket counts of a single window interval.
+     */
+    private static class Window {
+        final long start;
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong total = new AtomicLong();
+
+        Window(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,689 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Remembers the result of a login in the HttpSession of the user, so that a user who logged in
+ * recently can be let in by /login without another round trip to the IdP.
+ *
+ * If no.feide.test.cookie.keys is set, the login is kept in a signed cookie instead, as
+ * described in SessionCookie, so that any node can let the user in. A login which doesn't fit
+ * in the cookie is kept in the HttpSession.
+ *
+ * If no.feide.test.session.file is set, a login which isn't kept in the signed cookie is kept
+ * in a MappedSessionStore instead of the HttpSession, and found by a random ID in a cookie. The
+ * logins in the file survive a restart of the node. The file is keyed by the SHA-256 of the ID,
+ * so the file doesn't hold IDs which can be used to log in.
+ *
+ * Every login is also added to a SessionRegistry, so that a logout request from the IdP logs
+ * out every session of the user on this node, including copies of a cookie.
+ *
+ * A tenant keeps its logins under a session attribute and cookie names of its own, and its
+ * cookies are only sent to its own path, so tenants never read each other's logins.
+ */
+class LocalSessions {
+
+    /**
+     * The name of the session attribute which holds the login. A tenant adds its name.
+     */
+    private static final String ATTRIBUTE = LocalSessions.class.getName() + ".login";
+
+    /**
+     * The name of the cookie with the ID of a login in the session file. A tenant adds its
+     * name, as described in SessionCookie.
+     */
+    static final String FILE_COOKIE = "feide_session_id";
+
+    /**
+     * The first field of a login in the session file. It is followed by the time of the login,
+     * and the attributes, the NameID and the SessionIndex, in the field format of WorkerProtocol.
+     */
+    static final String FILE_FORMAT = "login/2";
+
+    /**
+     * The first letter of the tags of logins in the session file.
+     */
+    private static final String FILE_TAG = "f";
+
+    /**
+     * The hex digits.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Hashes the IDs of logins in the session file.
+     */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException e) {
+                throw new RuntimeException("This java implementation doesn't implement SHA-256.", e);
+            }
+        }
+    };
+
+    /**
+     * Numbers the logins, so that each login gets its own tag.
+     */
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The result of a login, as stored in the session.
+     */
+    static final class Login implements Serializable {
+
+        /**
+         * Serial version UID, default value.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The time of the login, in milliseconds since the epoch.
+         */
+        private final long time;
+
+        /**
+         * The attributes of the user.
+         */
+        private final Map<String, Attribute> attributes;
+
+        /**
+         * A string which is different for every login. The attributes of a login never change,
+         * so this is also a tag for the attributes.
+         */
+        private final String tag;
+
+        /**
+         * The NameID of the user, or null if the IdP sent none.
+         */
+        private final Attribute nameId;
+
+        /**
+         * Creates a login.
+         *
+         * @param time the time of the login.
+         * @param attributes the attributes of the user.
+         * @param nameId the NameID of the user, or null.
+         */
+        Login(long time, Map<String, Attribute> attributes, Attribute nameId) {
+            this.time = time;
+            this.attributes = attributes;
+            this.nameId = nameId;
+            this.tag = Long.toString(time, 36) + "-" + Long.toString(sequence.incrementAndGet(), 36);
+        }
+
+        /**
+         * Creates a login with a given tag.
+         *
+         * @param time the time of the login.
+         * @param attributes the attributes of the user.
+         * @param nameId the NameID of the user, or null.
+         * @param tag the tag of the login.
+         */
+        Login(long time, Map<String, Attribute> attributes, Attribute nameId, String tag) {
+            this.time = time;
+            this.attributes = attributes;
+            this.nameId = nameId;
+            this.tag = tag;
+        }
+
+        /**
+         * Gets the attributes of the user.
+         *
+         * @return the attributes.
+         */
+        Map<String, Attribute> getAttributes() {
+            return this.attributes;
+        }
+
+        /**
+         * Gets the NameID of the user, as described in {@link Attribute#NAME_ID}.
+         *
+         * @return the NameID, or null if the IdP sent none.
+         */
+        Attribute getNameId() {
+            return this.nameId;
+        }
+
+        /**
+         * Gets the tag of this login.
+         *
+         * @return the tag.
+         */
+        String getTag() {
+            return this.tag;
+        }
+    }
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The number of milliseconds a login is reused, or 0 if logins aren't reused.
+     */
+    private final long maxAge;
+
+    /**
+     * The signed cookie the login is kept in, or null if logins are kept in the HttpSession.
+     */
+    private final SessionCookie cookie;
+
+    /**
+     * The session file, or null if logins aren't kept in a file.
+     */
+    private MappedSessionStore file;
+
+    /**
+     * The generator of the IDs of logins in the session file.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The logins made on this node, or null if logins aren't reused.
+     */
+    private SessionRegistry registry;
+
+    /**
+     * The scope of the NameIDs of the logins in the registry: the context root.
+     */
+    private final String scope;
+
+    /**
+     * The largest number of logins of a user in the registry, or 0 for no limit.
+     */
+    private final int perUser;
+
+    /**
+     * The tenant the logins belong to, or null if the servlet serves a single SP.
+     */
+    private final String tenant;
+
+    /**
+     * The name of the session attribute which holds the login of this SP.
+     */
+    private final String attribute;
+
+    /**
+     * The name of the cookie with the ID of a login in the session file of this SP.
+     */
+    private final String fileCookie;
+
+    /**
+     * The gauges of the sessions, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong expired;
+    private final AtomicLong forced;
+    private final AtomicLong savedRoundTrips;
+    private final AtomicLong recovered;
+
+    /**
+     * Creates the session store from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    LocalSessions(Config config) throws ServletException {
+        this.maxAge = config.getLongProperty("no.feide.test.session.maxage", 3600000);
+        this.cookie = this.maxAge > 0 ? SessionCookie.create(config) : null;
+        this.perUser = (int)config.getLongProperty("no.feide.test.session.peruser", 20);
+        this.scope = config.getRootPath() == null ? "" : config.getRootPath();
+        this.tenant = config.getTenant();
+        this.attribute = this.tenant == null ? ATTRIBUTE : ATTRIBUTE + "." + this.tenant;
+        this.fileCookie = SessionCookie.cookieName(FILE_COOKIE, this.tenant);
+
+        Metrics metrics = Metrics.getInstance();
+        this.hits = metrics.counter(config.getMetricName("session.local.hits"));
+        this.misses = metrics.counter(config.getMetricName("session.local.misses"));
+        this.expired = metrics.counter(config.getMetricName("session.local.expired"));
+        this.forced = metrics.counter(config.getMetricName("session.local.forced"));
+        this.savedRoundTrips = metrics.counter(config.getMetricName("session.local.idp_roundtrips_saved"));
+        this.recovered = metrics.counter(config.getMetricName("session.file.recovered"));
+
+        this.registry = this.maxAge > 0 ? SessionRegistry.acquire() : null;
+
+        String path = config.getProperty("no.feide.test.session.file");
+        if(this.maxAge > 0 && path != null) {
+            File f = new File(path);
+            if(!f.isAbsolute() && config.getRootPath() != null) {
+                f = new File(config.getRootPath(), path);
+            }
+            this.file = MappedSessionStore.open(f,
+                    (int)config.getLongProperty("no.feide.test.session.file.slots", 100000),
+                    (int)config.getLongProperty("no.feide.test.session.file.slotsize", 1024));
+            if(this.file.takeRecovered()) {
+                // The logins are served from the file at once. The registry learns about them in
+                // the background, so that logout requests from the IdP find them.
+                new DaemonThreadFactory("session-file-recovery").newThread(new Runnable() {
+                    public void run() {
+                        LocalSessions.this.recover();
+                    }
+                }).start();
+            }
+        }
+
+        this.gauges.put(config.getMetricName("session.local.hit_rate"), new Metrics.Gauge() {
+            public long getValue() {
+                long h = LocalSessions.this.hits.get();
+                long total = h + LocalSessions.this.misses.get();
+                return total == 0 ? 0 : h * 100 / total;
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Finds a recent login of the user who sent a request.
+     *
+     * @param request the request.
+     * @param forceAuthn whether the user must authenticate again. If true, the login is
+     *        forgotten, and null is returned.
+     * @return the attributes of the user, or null if the user must log in.
+     */
+    Map<String, Attribute> lookup(HttpServletRequest request, boolean forceAuthn) {
+        if(this.maxAge <= 0) {
+            return null;
+        }
+
+        if(this.cookie != null) {
+            Login login = this.cookie.read(request);
+            if(login != null && !this.registry.isLoggedOut(login.tag)) {
+                if(forceAuthn) {
+                    // The cookie is replaced when the user has logged in again.
+                    this.forced.incrementAndGet();
+                    this.misses.incrementAndGet();
+                    return null;
+                }
+                this.hits.incrementAndGet();
+                this.savedRoundTrips.addAndGet(2);
+                return login.attributes;
+            }
+        }
+
+        if(this.file != null) {
+            Login login = this.readFile(request);
+            if(login != null) {
+                if(forceAuthn) {
+                    // The record is replaced when the user has logged in again.
+                    this.forced.incrementAndGet();
+                    this.misses.incrementAndGet();
+                    return null;
+                }
+                this.hits.incrementAndGet();
+                this.savedRoundTrips.addAndGet(2);
+                return login.attributes;
+            }
+        }
+
+        HttpSession session = request.getSession(false);
+        Login login = session == null ? null : (Login)session.getAttribute(this.attribute);
+        if(login == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        if(this.registry.isLoggedOut(login.tag)) {
+            this.misses.incrementAndGet();
+            session.removeAttribute(this.attribute);
+            return null;
+        }
+        if(forceAuthn) {
+            this.forced.incrementAndGet();
+            this.misses.incrementAndGet();
+            session.removeAttribute(this.attribute);
+            return null;
+        }
+        if(System.currentTimeMillis() - login.time > this.maxAge) {
+            this.expired.incrementAndGet();
+            this.misses.incrementAndGet();
+            session.removeAttribute(this.attribute);
+            return null;
+        }
+
+        // The redirect to the IdP, and the response back to us.
+        this.hits.incrementAndGet();
+        this.savedRoundTrips.addAndGet(2);
+        return login.attributes;
+    }
+
+    /**
+     * Finds the login of the user who sent a request, for a request which reads the attributes
+     * of the user. Unlike lookup(), this doesn't count as a reused login.
+     *
+     * @param request the request.
+     * @return the login, or null if the user isn't logged in, or the login has expired.
+     */
+    Login current(HttpServletRequest request) {
+        if(this.maxAge <= 0) {
+            return null;
+        }
+        if(this.cookie != null) {
+            Login login = this.cookie.read(request);
+            if(login != null && !this.registry.isLoggedOut(login.tag)) {
+                return login;
+            }
+        }
+        if(this.file != null) {
+            Login login = this.readFile(request);
+            if(login != null) {
+                return login;
+            }
+        }
+
+        HttpSession session = request.getSession(false);
+        Login login = session == null ? null : (Login)session.getAttribute(this.attribute);
+        if(login == null || System.currentTimeMillis() - login.time > this.maxAge
+                || this.registry.isLoggedOut(login.tag)) {
+            return null;
+        }
+        return login;
+    }
+
+    /**
+     * Remembers a login in the cookie, the session file, or a new session, so that the session
+     * ID used before the login can't be used to reach the login. The login is added to the
+     * registry by NameID and SessionIndex.
+     *
+     * @param request the request which finished the login.
+     * @param response the response, which sets the cookie.
+     * @param result the login.
+     * @throws ServletException if we fail to make the cookie.
+     */
+    void store(HttpServletRequest request, HttpServletResponse response, LassoBackend.LoginResult result)
+    throws ServletException {
+        if(this.maxAge <= 0) {
+            return;
+        }
+
+        HttpSession old = request.getSession(false);
+        if(old != null) {
+            old.invalidate();
+        }
+        long now = System.currentTimeMillis();
+        if(this.file != null) {
+            Login previous = this.readFile(request);
+            if(previous != null) {
+                this.removeFromFile(previous.tag);
+            }
+        }
+        Attribute nameId = result.getNameId();
+        String tag = this.cookie == null ? null
+                : this.cookie.issue(request, response, result.getAttributes(), nameId);
+        if(tag == null && this.file != null) {
+            tag = this.storeInFile(request, response, result, now);
+        }
+        if(tag == null) {
+            Login login = new Login(now, result.getAttributes(), nameId);
+            request.getSession(true).setAttribute(this.attribute, login);
+            tag = login.tag;
+        }
+        List<String> evicted = this.registry.add(tag, this.scope, nameId == null ? null : nameId.getValue(0),
+                result.getSessionIndex(), now + this.maxAge, this.perUser);
+        for(String t : evicted) {
+            this.removeFromFile(t);
+        }
+    }
+
+    /**
+     * Keeps a login in the session file, and sets the cookie with its ID.
+     *
+     * @param request the request which finished the login.
+     * @param response the response, which sets the cookie.
+     * @param result the login.
+     * @param now the current time.
+     * @return the tag of the login, or null if the login doesn't fit in a slot, or the file is
+     *         full.
+     */
+    private String storeInFile(HttpServletRequest request, HttpServletResponse response,
+            LassoBackend.LoginResult result, long now) {
+        byte[] data = new WorkerProtocol.Body().writeString(FILE_FORMAT).writeString(Long.toString(now))
+            .writeLogin(result).toByteArray();
+
+        byte[] id = new byte[MappedSessionStore.KEY_LENGTH];
+        this.random.nextBytes(id);
+        byte[] key = fileKey(id);
+        if(!this.file.put(key, now + this.maxAge, data, now)) {
+            this.debug.warning("Unable to keep a login of " + data.length + " bytes in the session file, "
+                    + "which is full, or holds " + this.file.getMaxDataLength() + " bytes in each slot. "
+                    + "Keeping it in the session instead.");
+            return null;
+        }
+        SessionCookie.writeCookie(request, response, this.fileCookie, toHex(id), this.maxAge / 1000, this.tenant);
+        return FILE_TAG + toHex(key);
+    }
+
+    /**
+     * Reads the login in the session file of the user who sent a request. A login which was
+     * logged out is removed from the file.
+     *
+     * @param request the request.
+     * @return the login, or null if the user has none in the file.
+     */
+    private Login readFile(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        byte[] id = null;
+        if(cookies != null) {
+            for(Cookie c : cookies) {
+                if(this.fileCookie.equals(c.getName())) {
+                    id = fromHex(c.getValue(), MappedSessionStore.KEY_LENGTH);
+                }
+            }
+        }
+        if(id == null) {
+            return null;
+        }
+        byte[] key = fileKey(id);
+        byte[] data = this.file.get(key, System.currentTimeMillis());
+        if(data == null) {
+            return null;
+        }
+        String tag = FILE_TAG + toHex(key);
+        if(this.registry.isLoggedOut(tag)) {
+            this.file.remove(key);
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if(!FILE_FORMAT.equals(WorkerProtocol.readString(in))) {
+                // Written by an older version, which kept the NameID among the attributes.
+                this.file.remove(key);
+                return null;
+            }
+            long time = Long.parseLong(WorkerProtocol.readString(in));
+            LassoBackend.LoginResult result = WorkerProtocol.readLogin(in);
+            return new Login(time, result.getAttributes(), result.getNameId(), tag);
+        } catch(IOException e) {
+            this.debug.warning("Unable to decode a login in the session file: " + e);
+            return null;
+        } catch(NumberFormatException e) {
+            this.debug.warning("Unable to decode a login in the session file: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes a login from the session file, if it is kept there.
+     *
+     * @param tag the tag of the login.
+     */
+    private void removeFromFile(String tag) {
+        if(this.file != null && tag.startsWith(FILE_TAG)) {
+            byte[] key = fromHex(tag.substring(FILE_TAG.length()), MappedSessionStore.KEY_LENGTH);
+            if(key != null) {
+                this.file.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Adds the logins in the session file to the registry, after a restart.
+     */
+    private void recover() {
+        final SessionRegistry registry = this.registry;
+        final MappedSessionStore store = this.file;
+        if(registry == null || store == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        store.scan(new MappedSessionStore.Visitor() {
+            public void visit(byte[] key, long expires, byte[] data) {
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                    if(!FILE_FORMAT.equals(WorkerProtocol.readString(in))) {
+                        // Removed by readFile() when the user comes back.
+                        return;
+                    }
+                    WorkerProtocol.readString(in);
+                    LassoBackend.LoginResult result = WorkerProtocol.readLogin(in);
+                    Attribute nameId = result.getNameId();
+                    List<String> evicted = registry.add(FILE_TAG + toHex(key), LocalSessions.this.scope,
+                            nameId == null ? null : nameId.getValue(0), result.getSessionIndex(), expires,
+                            LocalSessions.this.perUser);
+                    for(String t : evicted) {
+                        LocalSessions.this.removeFromFile(t);
+                    }
+                    LocalSessions.this.recovered.incrementAndGet();
+                } catch(IOException e) {
+                    LocalSessions.this.debug.warning("Unable to decode a login in the session file: " + e);
+                }
+            }
+        }, start);
+        this.debug.message("Added " + this.recovered.get() + " logins from the session file to the registry in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Finds the key of a login in the session file.
+     *
+     * @param id the ID of the login, from the cookie.
+     * @return the key: the first 16 bytes of the SHA-256 of the ID.
+     */
+    private static byte[] fileKey(byte[] id) {
+        byte[] hash = digests.get().digest(id);
+        byte[] key = new byte[MappedSessionStore.KEY_LENGTH];
+        System.arraycopy(hash, 0, key, 0, key.length);
+        return key;
+    }
+
+    /**
+     * Encodes bytes as lowercase hex.
+     *
+     * @param bytes the bytes.
+     * @return the hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a hex string.
+     *
+     * @param s the string.
+     * @param length the number of bytes the string should have.
+     * @return the bytes, or null if the string isn't hex of the right length.
+     */
+    private static byte[] fromHex(String s, int length) {
+        if(s == null || s.length() != length * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            int high = Character.digit(s.charAt(2 * i), 16);
+            int low = Character.digit(s.charAt(2 * i + 1), 16);
+            if(high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte)(high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Forgets the login of the user who sent a request.
+     *
+     * @param request the request.
+     * @param response the response, which removes the cookie.
+     */
+    void invalidate(HttpServletRequest request, HttpServletResponse response) {
+        Login login = this.current(request);
+        if(login != null) {
+            // Also rejects copies of the cookie.
+            this.registry.logOut(login.tag);
+            this.removeFromFile(login.tag);
+        }
+        HttpSession session = request.getSession(false);
+        if(session != null) {
+            session.invalidate();
+        }
+        if(this.cookie != null) {
+            this.cookie.clear(request, response);
+        }
+        if(this.file != null) {
+            SessionCookie.writeCookie(request, response, this.fileCookie, "", 0, this.tenant);
+        }
+    }
+
+    /**
+     * Logs out the sessions named by a logout request from the IdP, which the backend has
+     * accepted.
+     *
+     * @param logout the NameID and the SessionIndexes from the logout request.
+     * @return the number of sessions logged out.
+     */
+    int logOut(LassoBackend.LogoutResult logout) {
+        if(this.registry == null) {
+            return 0;
+        }
+        List<String> tags = this.registry.logOut(this.scope, logout.getNameId(), logout.getSessionIndexes());
+        for(String tag : tags) {
+            this.removeFromFile(tag);
+        }
+        return tags.size();
+    }
+
+    /**
+     * Releases the registry of logins and the session file, and removes the gauges.
+     */
+    synchronized void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        if(this.registry != null) {
+            SessionRegistry.release();
+            this.registry = null;
+        }
+        if(this.file != null) {
+            this.file.close();
+            this.file = null;
+        }
+    }
+}
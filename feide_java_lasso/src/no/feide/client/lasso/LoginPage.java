@@ -0,0 +1,102 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Renders the page which lists the attributes of the user after a login. The markup is encoded
+ * once, when the page is created, and the attribute names and values are HTML escaped as they
+ * are written to the output stream.
+ */
+class LoginPage {
+
+    private static final byte[] HEAD = Utf8Output.encode(
+            "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\" \"http://www.w3.org/TR/html4/strict.dtd\">\n"
+            + "<html><head><title>Feide Lasso client API Test Servlet</title></head>\n"
+            + "<body><h1>OK</h1>\n"
+            + "<table><tr><th>Name</th><th>Values</th></tr>\n");
+    private static final byte[] ROW_START = Utf8Output.encode("<tr><td>");
+    private static final byte[] CELL = Utf8Output.encode("</td><td>");
+    private static final byte[] BREAK = Utf8Output.encode("<br>");
+    private static final byte[] ROW_END = Utf8Output.encode("</td></tr>\n");
+
+    /**
+     * The escaped form of the characters which are special in HTML text and attribute values.
+     */
+    static final byte[][] HTML_ESCAPES = Utf8Output.escapes("<&>\"'", "&lt;", "&amp;", "&gt;", "&quot;", "&#39;");
+
+    /**
+     * The end of the page, with the logout link.
+     */
+    private final byte[] tail;
+
+    /**
+     * Creates the page.
+     *
+     * @param logoutURL the URL the logout link points to.
+     */
+    LoginPage(String logoutURL) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("</table>\n<p><a href=\"");
+        escape(sb, logoutURL == null ? "" : logoutURL);
+        sb.append("\">Logout</a></p>\n</body></html>\n");
+        this.tail = Utf8Output.encode(sb.toString());
+    }
+
+    /**
+     * Writes the page.
+     *
+     * @param out the stream we write the page to. The stream isn't closed.
+     * @param attributes the attributes of the user.
+     * @throws IOException if we fail to write the page.
+     */
+    void render(OutputStream out, Map<String, Attribute> attributes) throws IOException {
+        Utf8Output output = Utf8Output.start(out);
+        boolean done = false;
+        try {
+            output.write(HEAD);
+            for(Map.Entry<String, Attribute> a : attributes.entrySet()) {
+                output.write(ROW_START);
+                output.writeEscaped(a.getKey(), HTML_ESCAPES);
+                output.write(CELL);
+                boolean first = true;
+                for(String value : a.getValue()) {
+                    if(!first) {
+                        output.write(BREAK);
+                    }
+                    output.writeEscaped(value, HTML_ESCAPES);
+                    first = false;
+                }
+                output.write(ROW_END);
+            }
+            output.write(this.tail);
+            output.finish();
+            done = true;
+        } finally {
+            if(!done) {
+                output.discard();
+            }
+        }
+    }
+
+    /**
+     * HTML escapes a string. Only used for the fixed parts of the page.
+     *
+     * @param sb the builder we append the escaped string to.
+     * @param s the string.
+     */
+    private static void escape(StringBuilder sb, String s) {
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            byte[] escaped = c < 128 ? HTML_ESCAPES[c] : null;
+            if(escaped == null) {
+                sb.append(c);
+            } else {
+                for(byte b : escaped) {
+                    sb.append((char)b);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the throughput and the allocation of the login page, compared with the PrintWriter
+ * based page it replaced. The attributes are a few single valued attributes and one attribute
+ * with many group values, like the attributes of a user who is a member of many groups.
+ *
+ * Usage: java no.feide.client.lasso.LoginPageBenchmark [values] [iterations]
+ *
+ * The allocation is only measured on Java implementations with
+ * com.sun.management.ThreadMXBean.
+ */
+public final class LoginPageBenchmark {
+
+    /**
+     * A stream which counts and throws away what is written to it.
+     */
+    private static final class NullOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.count += len;
+        }
+    }
+
+    /**
+     * A page renderer.
+     */
+    private interface Renderer {
+        /**
+         * Writes the page.
+         *
+         * @param out the stream we write the page to.
+         * @param attributes the attributes.
+         * @throws IOException if we fail to write the page.
+         */
+        void render(OutputStream out, Map<String, Attribute> attributes) throws IOException;
+    }
+
+    /**
+     * This class only has a main method.
+     */
+    private LoginPageBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of group values and the number of iterations.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        int values = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Map<String, Attribute> attributes = new LinkedHashMap<String, Attribute>();
+        add(attributes, "eduPersonPrincipalName", "olanormann@uninett.no");
+        add(attributes, "cn", "Ola Nordmann");
+        add(attributes, "displayName", "\u00d8la N\u00f8rdmann <ola@example.org>");
+        Attribute groups = new Attribute("isMemberOf");
+        for(int i = 0; i < values; i++) {
+            groups.addValue("urn:mace:feide.no:go:group:u:uninett.no:gruppe-" + i + ":member & owner");
+        }
+        attributes.put(groups.getName(), groups);
+
+        final String logoutURL = "https://sam.feide.no/amserver/saml2/jsp/idpSingleLogoutInit.jsp?binding=x";
+        final LoginPage page = new LoginPage(logoutURL);
+
+        Renderer printWriter = new Renderer() {
+            public void render(OutputStream out, Map<String, Attribute> attributes) throws IOException {
+                renderWithPrintWriter(out, attributes, logoutURL);
+            }
+        };
+        Renderer loginPage = new Renderer() {
+            public void render(OutputStream out, Map<String, Attribute> attributes) throws IOException {
+                page.render(out, attributes);
+            }
+        };
+
+        System.out.println(values + " group values, " + iterations + " iterations");
+        run("PrintWriter", printWriter, attributes, iterations);
+        run("LoginPage  ", loginPage, attributes, iterations);
+    }
+
+    /**
+     * Adds a single valued attribute.
+     *
+     * @param attributes the attributes.
+     * @param name the name of the attribute.
+     * @param value the value of the attribute.
+     */
+    private static void add(Map<String, Attribute> attributes, String name, String value) {
+        Attribute a = new Attribute(name);
+        a.addValue(value);
+        attributes.put(name, a);
+    }
+
+    /**
+     * Measures a renderer, and prints the result.
+     *
+     * @param name the name of the renderer.
+     * @param renderer the renderer.
+     * @param attributes the attributes.
+     * @param iterations the number of pages to render.
+     * @throws IOException if rendering fails.
+     */
+    private static void run(String name, Renderer renderer, Map<String, Attribute> attributes, int iterations)
+    throws IOException {
+        NullOutputStream out = new NullOutputStream();
+
+        // Warm up, so that we measure compiled code.
+        for(int i = 0; i < iterations; i++) {
+            renderer.render(out, attributes);
+        }
+
+        out.count = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            renderer.render(out, attributes);
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        long allocatedAfter = allocatedBytes();
+
+        long pageSize = out.count / iterations;
+        System.out.println(name + ": " + (iterations * 1000000000L / elapsed) + " pages/s, "
+                + (out.count * 1000L / elapsed) + " MB/s, " + pageSize + " bytes/page, "
+                + (allocatedBefore < 0 ? "n/a" : String.valueOf((allocatedAfter - allocatedBefore) / iterations))
+                + " bytes allocated/page");
+    }
+
+    /**
+     * Renders the page the way it was rendered before LoginPage.
+     *
+     * @param stream the stream we write the page to.
+     * @param attributes the attributes.
+     * @param logoutURL the URL the logout link points to.
+     * @throws IOException if we fail to write the page.
+     */
+    private static void renderWithPrintWriter(OutputStream stream, Map<String, Attribute> attributes,
+            String logoutURL) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+        out.println("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\" \"http://www.w3.org/TR/html4/strict.dtd\">");
+        out.println("<html<head><title>Feide Lasso client API Test Servlet</title></head>");
+        out.println("<body><h1>OK</h1>");
+        out.println("<table><tr><th>Name</th><th>Values</th></tr>");
+        for(Map.Entry<String, Attribute> a : attributes.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            for(String value : a.getValue()) {
+                if(sb.length() != 0) {
+                    sb.append("<br>");
+                }
+                sb.append(value);
+            }
+            out.println("<tr><td>"+a.getKey() + "</td><td>" + sb.toString() + "</td></tr>");
+        }
+        out.println("</table>");
+        out.println("<p><a href=\"" + logoutURL + "\">Logout</a></p>");
+        out.flush();
+    }
+
+    /**
+     * Reads the number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes, or -1 if the Java implementation can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long)m.invoke(bean, Thread.currentThread().getId());
+        } catch(Exception e) {
+            return -1;
+        }
+    }
+}
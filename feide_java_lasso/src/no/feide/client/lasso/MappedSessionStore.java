@@ -0,0 +1,870 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletException;
+
+/**
+ * Keeps records of logins in a memory-mapped file, off the Java heap, so that the logins survive
+ * a restart of the node and can be used at once, without being loaded first.
+ *
+ * The file has a header, an index and a fixed number of fixed-size slots:
+ *
+ * - header: magic, version, slot size, number of slots, capacity of the index, and the
+ *   approximate number of records.
+ * - index: a hash table with linear probing. Each entry is the first 12 bytes of a key and the
+ *   number of its slot plus one, or 0 for an empty entry. An entry is removed by moving the
+ *   entries after it back, so the index has no tombstones.
+ * - slots: each slot holds one record: the length of the data, the CRC32 of the rest of the
+ *   record, the expiry time, the 16 byte key and the data.
+ *
+ * A record is written before the index entry which points to it, and the length of the record is
+ * written last. A crash while writing leaves an unused slot, or a record which fails its check.
+ * A lookup checks the key, the expiry and the CRC32 of the record, so a torn record or a stale
+ * index entry is a miss, and never the record of another key. Records which have expired are
+ * reclaimed when their slots are needed, so the store needs no cleanup. The file is flushed to
+ * disk every second, so a crash of the machine loses at most the last second of writes.
+ *
+ * When an existing file is opened, the index is repaired in the background: records which fail
+ * their check are freed, index entries which don't point to a record with their key, or which
+ * can't be found since an entry before them was lost, are removed, so that they don't pile up in
+ * the index over many crashes, and records without an index entry get one. The store can be used
+ * while this runs.
+ *
+ * The Java heap only holds the mappings, whatever the number of records. A file is opened once in
+ * each JVM, and shared by every servlet which uses it.
+ */
+class MappedSessionStore {
+
+    /**
+     * The length of a key.
+     */
+    static final int KEY_LENGTH = 16;
+
+    /**
+     * "FSS1", the first four bytes of a session file.
+     */
+    private static final int MAGIC = 0x46535331;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the header, and the offsets of its fields.
+     */
+    private static final int HEADER = 4096;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOT_SIZE = 8;
+    private static final int HEADER_SLOTS = 12;
+    private static final int HEADER_INDEX_CAPACITY = 16;
+    private static final int HEADER_RECORDS = 24;
+
+    /**
+     * The size of an index entry.
+     */
+    private static final int ENTRY = 16;
+
+    /**
+     * The offsets of the fields of a record in its slot. The CRC32 covers the expiry, the key and
+     * the data.
+     */
+    private static final int RECORD_LENGTH = 0;
+    private static final int RECORD_CRC = 4;
+    private static final int RECORD_EXPIRES = 8;
+    private static final int RECORD_KEY = 16;
+    private static final int RECORD_DATA = 32;
+
+    /**
+     * The file is mapped in chunks of 1 GiB, since a mapping is at most 2 GiB. Slots and index
+     * entries never cross a chunk.
+     */
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /**
+     * The number of slots or index entries repaired at a time, while holding the write lock.
+     */
+    private static final int REPAIR_BATCH = 4096;
+
+    /**
+     * Called for each record by scan().
+     */
+    interface Visitor {
+
+        /**
+         * Handles a record.
+         *
+         * @param key the key of the record.
+         * @param expires the time the record expires, in milliseconds since the epoch.
+         * @param data the data of the record.
+         */
+        void visit(byte[] key, long expires, byte[] data);
+    }
+
+    /**
+     * The open stores, by path.
+     */
+    private static final Map<String, MappedSessionStore> stores = new HashMap<String, MappedSessionStore>();
+
+    /**
+     * The number of servlets which use this store. Guarded by the class.
+     */
+    private int users = 0;
+
+    /**
+     * Whether the file held records when it was opened, and nobody has taken them yet.
+     */
+    private boolean recovered;
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] chunks;
+    private final int slotSize;
+    private final int slots;
+    private final long indexCapacity;
+    private final long slotsOffset;
+
+    /**
+     * Guards the index and the slots. Lookups share the lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The next slot we look at for a free slot. Guarded by the write lock.
+     */
+    private int cursor = 0;
+
+    /**
+     * Until this time, every slot is in use, so no slot is looked for. Set when a search for a
+     * free slot fails, to the earliest time a record expires, and cleared when a slot is freed.
+     * Guarded by the write lock.
+     */
+    private long fullUntil = Long.MIN_VALUE;
+
+    /**
+     * The repair of the file after it is opened, or null for a new file.
+     */
+    private final FutureTask<Void> repair;
+
+    /**
+     * Set when the file is closed, to stop the repair.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Flushes the file to disk.
+     */
+    private final ScheduledExecutorService syncer =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("session-file"));
+
+    private final AtomicLong full = Metrics.getInstance().counter("session.file.full");
+    private final AtomicLong corrupt = Metrics.getInstance().counter("session.file.corrupt");
+
+    /**
+     * Opens a session file, and creates it if it doesn't exist. An existing file keeps the slot
+     * size and the number of slots it was made with.
+     *
+     * @param f the file.
+     * @param slots the number of slots of a new file.
+     * @param slotSize the size of each slot of a new file: a power of two from 128 to 65536.
+     * @return the store.
+     * @throws ServletException if the file isn't a session file, or we fail to map it.
+     */
+    static MappedSessionStore open(File f, int slots, int slotSize) throws ServletException {
+        String path = f.getAbsolutePath();
+        synchronized(MappedSessionStore.class) {
+            MappedSessionStore store = stores.get(path);
+            if(store == null) {
+                store = new MappedSessionStore(path, slots, slotSize);
+                stores.put(path, store);
+            }
+            store.users++;
+            return store;
+        }
+    }
+
+    /**
+     * Maps a session file.
+     *
+     * @param path the path of the file.
+     * @param slots the number of slots of a new file.
+     * @param slotSize the slot size of a new file.
+     * @throws ServletException if the file isn't a session file, or we fail to map it.
+     */
+    private MappedSessionStore(String path, int slots, int slotSize) throws ServletException {
+        this.path = path;
+        Debug debug = Debug.getInstance();
+        boolean created;
+        try {
+            this.file = new RandomAccessFile(path, "rw");
+            // The magic number is written last, so a file which was cut short while it was made
+            // is made again.
+            created = this.file.length() < HEADER;
+            if(!created) {
+                this.file.seek(HEADER_MAGIC);
+                created = this.file.readInt() == 0;
+            }
+            if(created) {
+                if(slotSize < 128 || slotSize > 65536 || Integer.bitCount(slotSize) != 1) {
+                    throw new ServletException("The slot size of a session file must be a power of two from 128 "
+                            + "to 65536. Got: " + slotSize);
+                }
+                if(slots <= 0) {
+                    throw new ServletException("A session file needs at least one slot.");
+                }
+                this.slotSize = slotSize;
+                this.slots = slots;
+                this.indexCapacity = Math.max(1024, Long.highestOneBit(2L * slots - 1) << 1);
+            } else {
+                this.file.seek(HEADER_MAGIC);
+                if(this.file.readInt() != MAGIC || this.file.readInt() != VERSION) {
+                    throw new ServletException("Not a session file, or a session file of another version: " + path);
+                }
+                this.slotSize = this.file.readInt();
+                this.slots = this.file.readInt();
+                this.indexCapacity = this.file.readLong();
+                if(this.slotSize != slotSize || this.slots != slots) {
+                    debug.warning("The session file " + path + " was made with " + this.slots + " slots of "
+                            + this.slotSize + " bytes. Remove it to change the size.");
+                }
+            }
+            this.slotsOffset = align(HEADER + this.indexCapacity * ENTRY, Math.max(this.slotSize, HEADER));
+            long size = this.slotsOffset + (long)this.slots * this.slotSize;
+            if(created) {
+                this.file.setLength(0);
+                this.file.setLength(size);
+            } else if(this.file.length() < size) {
+                throw new ServletException("The session file " + path + " is truncated.");
+            }
+
+            FileChannel channel = this.file.getChannel();
+            this.chunks = new MappedByteBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for(int i = 0; i < this.chunks.length; i++) {
+                long start = (long)i << CHUNK_BITS;
+                this.chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(CHUNK_MASK + 1, size - start));
+            }
+        } catch(IOException e) {
+            throw new ServletException("Unable to open the session file " + path + ": " + e.getMessage(), e);
+        }
+
+        if(created) {
+            this.putInt(HEADER_VERSION, VERSION);
+            this.putInt(HEADER_SLOT_SIZE, this.slotSize);
+            this.putInt(HEADER_SLOTS, this.slots);
+            this.putLong(HEADER_INDEX_CAPACITY, this.indexCapacity);
+            this.putInt(HEADER_RECORDS, 0);
+            this.putInt(HEADER_MAGIC, MAGIC);
+            this.sync();
+        }
+        this.recovered = this.getRecordCount() > 0;
+        debug.message("Mapped the session file " + path + ": " + this.slots + " slots of " + this.slotSize
+                + " bytes, about " + this.getRecordCount() + " records.");
+
+        if(created) {
+            this.repair = null;
+        } else {
+            this.repair = new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    MappedSessionStore.this.repair();
+                }
+            }, null);
+            new DaemonThreadFactory("session-file-repair").newThread(this.repair).start();
+        }
+        this.syncer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                MappedSessionStore.this.sync();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Metrics.getInstance().gauge("session.file.records", new Metrics.Gauge() {
+            public long getValue() {
+                return MappedSessionStore.this.getRecordCount();
+            }
+        });
+        Metrics.getInstance().gauge("session.file.slots", new Metrics.Gauge() {
+            public long getValue() {
+                return MappedSessionStore.this.slots;
+            }
+        });
+    }
+
+    /**
+     * Rounds a number up to a multiple of a power of two.
+     *
+     * @param n the number.
+     * @param alignment the power of two.
+     * @return the rounded number.
+     */
+    private static long align(long n, long alignment) {
+        return (n + alignment - 1) & -alignment;
+    }
+
+    /**
+     * Releases the store. The file is flushed and closed when no servlet uses it.
+     */
+    void close() {
+        synchronized(MappedSessionStore.class) {
+            this.users--;
+            if(this.users > 0) {
+                return;
+            }
+            stores.remove(this.path);
+        }
+        this.closed = true;
+        this.syncer.shutdownNow();
+        this.sync();
+        try {
+            // The mappings stay valid until they are garbage collected.
+            this.file.close();
+        } catch(IOException e) {
+            Debug.getInstance().warning("Unable to close the session file " + this.path + ": " + e);
+        }
+    }
+
+    /**
+     * Checks whether the file held records when it was opened, the first time this is called.
+     * The servlet which gets true adds the records to the SessionRegistry.
+     *
+     * @return true if the caller should recover the records.
+     */
+    synchronized boolean takeRecovered() {
+        boolean r = this.recovered;
+        this.recovered = false;
+        return r;
+    }
+
+    /**
+     * Gets the largest data a record can hold.
+     *
+     * @return the number of bytes.
+     */
+    int getMaxDataLength() {
+        return this.slotSize - RECORD_DATA;
+    }
+
+    /**
+     * Gets the number of records, which may be off by a few after a crash.
+     *
+     * @return the number of records.
+     */
+    long getRecordCount() {
+        return Math.max(0, this.getInt(HEADER_RECORDS));
+    }
+
+    /**
+     * Finds the data of a record.
+     *
+     * @param key the key of the record.
+     * @param now the current time.
+     * @return the data, or null if there is no record with the key which hasn't expired.
+     */
+    byte[] get(byte[] key, long now) {
+        this.lock.readLock().lock();
+        try {
+            long mask = this.indexCapacity - 1;
+            long key0 = readLong(key, 0);
+            int key1 = readInt(key, 8);
+            for(long i = key0 & mask;; i = (i + 1) & mask) {
+                long entry = HEADER + i * ENTRY;
+                int slot = this.getInt(entry + 12);
+                if(slot == 0) {
+                    return null;
+                }
+                if(this.getLong(entry) != key0 || this.getInt(entry + 8) != key1) {
+                    continue;
+                }
+                byte[] data = this.read(slot - 1, key, now);
+                if(data != null) {
+                    return data;
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a record, and checks it.
+     *
+     * @param slot the slot of the record.
+     * @param key the key the record should have, or null for any key.
+     * @param now the current time.
+     * @return the data, or null if the slot is free, the record has another key, has expired, or
+     *         fails its check.
+     */
+    private byte[] read(int slot, byte[] key, long now) {
+        if(slot < 0 || slot >= this.slots) {
+            // An index entry which was torn by a crash.
+            this.corrupt.incrementAndGet();
+            return null;
+        }
+        long offset = this.slotOffset(slot);
+        int length = this.getInt(offset + RECORD_LENGTH);
+        if(length <= 0 || this.getLong(offset + RECORD_EXPIRES) <= now) {
+            return null;
+        }
+        if(length > this.getMaxDataLength()) {
+            this.corrupt.incrementAndGet();
+            return null;
+        }
+        byte[] record = new byte[RECORD_DATA - RECORD_EXPIRES + length];
+        this.get(offset + RECORD_EXPIRES, record);
+        if(key != null) {
+            for(int i = 0; i < KEY_LENGTH; i++) {
+                if(record[RECORD_KEY - RECORD_EXPIRES + i] != key[i]) {
+                    return null;
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        if((int)crc.getValue() != this.getInt(offset + RECORD_CRC)) {
+            this.corrupt.incrementAndGet();
+            return null;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(record, RECORD_DATA - RECORD_EXPIRES, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Adds a record.
+     *
+     * @param key the key of the record, which must not be in the store.
+     * @param expires the time the record expires, in milliseconds since the epoch.
+     * @param data the data.
+     * @param now the current time.
+     * @return true if the record was added, or false if the data is too large for a slot, or no
+     *         slot is free.
+     */
+    boolean put(byte[] key, long expires, byte[] data, long now) {
+        if(data.length > this.getMaxDataLength()) {
+            return false;
+        }
+        byte[] record = new byte[RECORD_DATA - RECORD_EXPIRES + data.length];
+        writeLong(record, 0, expires);
+        System.arraycopy(key, 0, record, RECORD_KEY - RECORD_EXPIRES, KEY_LENGTH);
+        System.arraycopy(data, 0, record, RECORD_DATA - RECORD_EXPIRES, data.length);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        this.lock.writeLock().lock();
+        try {
+            int slot = this.allocate(now);
+            if(slot < 0) {
+                this.full.incrementAndGet();
+                return false;
+            }
+            long offset = this.slotOffset(slot);
+            this.put(offset + RECORD_EXPIRES, record);
+            this.putInt(offset + RECORD_CRC, (int)crc.getValue());
+            // The length makes the record valid, so it is written last.
+            this.putInt(offset + RECORD_LENGTH, data.length);
+
+            this.addEntry(readLong(key, 0), readInt(key, 8), slot);
+            this.putInt(HEADER_RECORDS, this.getInt(HEADER_RECORDS) + 1);
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an index entry. The caller holds the write lock.
+     *
+     * @param key0 the first 8 bytes of the key.
+     * @param key1 the next 4 bytes of the key.
+     * @param slot the slot of the record.
+     */
+    private void addEntry(long key0, int key1, int slot) {
+        long mask = this.indexCapacity - 1;
+        long i = key0 & mask;
+        while(this.getInt(HEADER + i * ENTRY + 12) != 0) {
+            i = (i + 1) & mask;
+        }
+        long entry = HEADER + i * ENTRY;
+        this.putLong(entry, key0);
+        this.putInt(entry + 8, key1);
+        this.putInt(entry + 12, slot + 1);
+    }
+
+    /**
+     * Removes a record.
+     *
+     * @param key the key of the record.
+     */
+    void remove(byte[] key) {
+        this.lock.writeLock().lock();
+        try {
+            long mask = this.indexCapacity - 1;
+            long key0 = readLong(key, 0);
+            int key1 = readInt(key, 8);
+            for(long i = key0 & mask;; i = (i + 1) & mask) {
+                long entry = HEADER + i * ENTRY;
+                int slot = this.getInt(entry + 12);
+                if(slot == 0) {
+                    return;
+                }
+                if(this.getLong(entry) == key0 && this.getInt(entry + 8) == key1
+                        && this.read(slot - 1, key, Long.MIN_VALUE) != null) {
+                    this.free(slot - 1, i);
+                    return;
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds a free slot, and reclaims the slot of an expired record if needed. The search goes
+     * round every slot once, from where the last one ended. The caller holds the write lock.
+     *
+     * @param now the current time.
+     * @return the slot, or -1 if no slot is free.
+     */
+    private int allocate(long now) {
+        if(now < this.fullUntil) {
+            return -1;
+        }
+        long nextExpiry = Long.MAX_VALUE;
+        for(int n = 0; n < this.slots; n++) {
+            int slot = this.cursor;
+            this.cursor = slot + 1 == this.slots ? 0 : slot + 1;
+            long offset = this.slotOffset(slot);
+            if(this.getInt(offset + RECORD_LENGTH) <= 0) {
+                return slot;
+            }
+            long expires = this.getLong(offset + RECORD_EXPIRES);
+            if(expires <= now) {
+                this.free(slot, this.findEntry(slot));
+                return slot;
+            }
+            nextExpiry = Math.min(nextExpiry, expires);
+        }
+        this.fullUntil = nextExpiry;
+        return -1;
+    }
+
+    /**
+     * Finds the index entry of the record in a slot. The entry must hold the key of the record,
+     * since after a crash another entry may point to the same slot.
+     *
+     * @param slot the slot.
+     * @return the index entry, or -1 if the record has none, which happens after a crash.
+     */
+    private long findEntry(int slot) {
+        long offset = this.slotOffset(slot);
+        long mask = this.indexCapacity - 1;
+        long key0 = this.getLong(offset + RECORD_KEY);
+        int key1 = this.getInt(offset + RECORD_KEY + 8);
+        for(long i = key0 & mask;; i = (i + 1) & mask) {
+            long entry = HEADER + i * ENTRY;
+            int s = this.getInt(entry + 12);
+            if(s == 0) {
+                return -1;
+            }
+            if(s == slot + 1 && this.getLong(entry) == key0 && this.getInt(entry + 8) == key1) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Frees a slot, and removes its index entry. The caller holds the write lock.
+     *
+     * @param slot the slot.
+     * @param entry the index entry of the slot, or -1 if it has none.
+     */
+    private void free(int slot, long entry) {
+        this.putInt(this.slotOffset(slot) + RECORD_LENGTH, 0);
+        this.putInt(HEADER_RECORDS, this.getInt(HEADER_RECORDS) - 1);
+        this.fullUntil = Long.MIN_VALUE;
+        if(entry >= 0) {
+            this.removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes an index entry. The caller holds the write lock.
+     *
+     * @param entry the index entry.
+     */
+    private void removeEntry(long entry) {
+        // Moves back the entries which would no longer be found past the hole.
+        long mask = this.indexCapacity - 1;
+        long hole = entry;
+        for(long j = (entry + 1) & mask;; j = (j + 1) & mask) {
+            long from = HEADER + j * ENTRY;
+            int s = this.getInt(from + 12);
+            if(s == 0) {
+                break;
+            }
+            long home = this.getLong(from) & mask;
+            boolean stays = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+            if(!stays) {
+                long to = HEADER + hole * ENTRY;
+                this.putLong(to, this.getLong(from));
+                this.putInt(to + 8, this.getInt(from + 8));
+                this.putInt(to + 12, s);
+                hole = j;
+            }
+        }
+        this.putInt(HEADER + hole * ENTRY + 12, 0);
+    }
+
+    /**
+     * Repairs the file after it is opened. Records which fail their check are freed, since they
+     * would hold their slots until a time which may be garbage, stale index entries are removed,
+     * and the records left without an index entry are added to the index again. The write lock is
+     * taken for a batch at a time, so lookups go on while this runs.
+     */
+    private void repair() {
+        long start = System.currentTimeMillis();
+        long freed = 0;
+        long removed = 0;
+        long added = 0;
+        for(int first = 0; first < this.slots && !this.closed; first += REPAIR_BATCH) {
+            this.lock.writeLock().lock();
+            try {
+                for(int slot = first; slot < Math.min(first + REPAIR_BATCH, this.slots); slot++) {
+                    if(this.getInt(this.slotOffset(slot) + RECORD_LENGTH) != 0
+                            && this.read(slot, null, Long.MIN_VALUE) == null) {
+                        this.putInt(this.slotOffset(slot) + RECORD_LENGTH, 0);
+                        this.fullUntil = Long.MIN_VALUE;
+                        freed++;
+                    }
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        for(long first = 0; first < this.indexCapacity && !this.closed; first += REPAIR_BATCH) {
+            this.lock.writeLock().lock();
+            try {
+                long i = first;
+                while(i < Math.min(first + REPAIR_BATCH, this.indexCapacity)) {
+                    if(this.isStale(i)) {
+                        // Another entry may be moved into this one, so look at it again.
+                        this.removeEntry(i);
+                        removed++;
+                    } else {
+                        i++;
+                    }
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        for(int first = 0; first < this.slots && !this.closed; first += REPAIR_BATCH) {
+            this.lock.writeLock().lock();
+            try {
+                for(int slot = first; slot < Math.min(first + REPAIR_BATCH, this.slots); slot++) {
+                    if(this.read(slot, null, Long.MIN_VALUE) != null && this.findEntry(slot) < 0) {
+                        long offset = this.slotOffset(slot);
+                        this.addEntry(this.getLong(offset + RECORD_KEY), this.getInt(offset + RECORD_KEY + 8), slot);
+                        added++;
+                    }
+                }
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        Debug.getInstance().message("Repaired the session file " + this.path + " in "
+                + (System.currentTimeMillis() - start) + " ms: freed " + freed + " broken records, removed "
+                + removed + " stale index entries, added " + added + " records to the index.");
+    }
+
+    /**
+     * Waits until the file is repaired after it was opened.
+     *
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    void awaitRepair() throws InterruptedException {
+        if(this.repair == null) {
+            return;
+        }
+        try {
+            this.repair.get();
+        } catch(ExecutionException e) {
+            Debug.getInstance().warning("Unable to repair the session file " + this.path + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Checks whether an index entry is stale: it doesn't point to a record with its key, or it
+     * can't be found, since there is an empty entry between its home and itself. The caller holds
+     * a lock.
+     *
+     * @param i the number of the index entry.
+     * @return true if the entry is used, and stale.
+     */
+    private boolean isStale(long i) {
+        long entry = HEADER + i * ENTRY;
+        int slot = this.getInt(entry + 12);
+        if(slot == 0) {
+            return false;
+        }
+        if(slot < 0 || slot > this.slots || this.read(slot - 1, null, Long.MIN_VALUE) == null
+                || this.getLong(this.slotOffset(slot - 1) + RECORD_KEY) != this.getLong(entry)
+                || this.getInt(this.slotOffset(slot - 1) + RECORD_KEY + 8) != this.getInt(entry + 8)) {
+            return true;
+        }
+        long mask = this.indexCapacity - 1;
+        for(long j = this.getLong(entry) & mask; j != i; j = (j + 1) & mask) {
+            if(this.getInt(HEADER + j * ENTRY + 12) == 0) {
+                // An entry before this one was lost to a torn write.
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calls a visitor for every record which hasn't expired. Records added or removed while the
+     * scan runs may or may not be seen.
+     *
+     * @param visitor the visitor.
+     * @param now the current time.
+     */
+    void scan(Visitor visitor, long now) {
+        byte[] key = new byte[KEY_LENGTH];
+        for(int slot = 0; slot < this.slots; slot++) {
+            byte[] data;
+            long expires;
+            this.lock.readLock().lock();
+            try {
+                data = this.read(slot, null, now);
+                if(data == null) {
+                    continue;
+                }
+                long offset = this.slotOffset(slot);
+                expires = this.getLong(offset + RECORD_EXPIRES);
+                this.get(offset + RECORD_KEY, key);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            visitor.visit(key.clone(), expires, data);
+        }
+    }
+
+    /**
+     * Checks the index against the slots, as after a crash.
+     *
+     * @param now the current time.
+     * @return the number of records, the number of records without an index entry, and the
+     *         number of stale index entries.
+     */
+    long[] check(long now) {
+        this.lock.readLock().lock();
+        try {
+            long records = 0;
+            long unindexed = 0;
+            long stale = 0;
+            for(int slot = 0; slot < this.slots; slot++) {
+                if(this.read(slot, null, Long.MIN_VALUE) == null) {
+                    continue;
+                }
+                records++;
+                if(this.findEntry(slot) < 0) {
+                    unindexed++;
+                }
+            }
+            for(long i = 0; i < this.indexCapacity; i++) {
+                if(this.isStale(i)) {
+                    stale++;
+                }
+            }
+            return new long[] { records, unindexed, stale };
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the file to disk.
+     */
+    private void sync() {
+        for(MappedByteBuffer chunk : this.chunks) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Finds the offset of a slot in the file.
+     *
+     * @param slot the slot.
+     * @return the offset.
+     */
+    private long slotOffset(int slot) {
+        return this.slotsOffset + (long)slot * this.slotSize;
+    }
+
+    private int getInt(long offset) {
+        return this.chunks[(int)(offset >>> CHUNK_BITS)].getInt((int)(offset & CHUNK_MASK));
+    }
+
+    private long getLong(long offset) {
+        return this.chunks[(int)(offset >>> CHUNK_BITS)].getLong((int)(offset & CHUNK_MASK));
+    }
+
+    private void putInt(long offset, int value) {
+        this.chunks[(int)(offset >>> CHUNK_BITS)].putInt((int)(offset & CHUNK_MASK), value);
+    }
+
+    private void putLong(long offset, long value) {
+        this.chunks[(int)(offset >>> CHUNK_BITS)].putLong((int)(offset & CHUNK_MASK), value);
+    }
+
+    private void get(long offset, byte[] dst) {
+        ByteBuffer b = this.chunks[(int)(offset >>> CHUNK_BITS)].duplicate();
+        b.position((int)(offset & CHUNK_MASK));
+        b.get(dst);
+    }
+
+    private void put(long offset, byte[] src) {
+        ByteBuffer b = this.chunks[(int)(offset >>> CHUNK_BITS)].duplicate();
+        b.position((int)(offset & CHUNK_MASK));
+        b.put(src);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return ((long)readInt(b, offset) << 32) | (readInt(b, offset + 4) & 0xffffffffL);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+            | (b[offset + 3] & 0xff);
+    }
+
+    private static void writeLong(byte[] b, int offset, long value) {
+        writeInt(b, offset, (int)(value >>> 32));
+        writeInt(b, offset + 4, (int)value);
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte)(value >>> 24);
+        b[offset + 1] = (byte)(value >>> 16);
+        b[offset + 2] = (byte)(value >>> 8);
+        b[offset + 3] = (byte)value;
+    }
+}
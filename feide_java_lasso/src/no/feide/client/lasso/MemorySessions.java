@@ -0,0 +1,265 @@
+package no.feide.client.lasso;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Keeps the HttpSessions of the standalone server in memory, in place of the sessions of a
+ * servlet container. Sessions which haven't been used for a while are removed once a minute.
+ */
+class MemorySessions {
+
+    /**
+     * The name of the session cookie. The same as the servlet containers use.
+     */
+    static final String COOKIE = "JSESSIONID";
+
+    /**
+     * The generator of session IDs.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The sessions, by session ID.
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The number of seconds a session is kept after it was last used.
+     */
+    private final int maxInactiveInterval;
+
+    /**
+     * The thread which removes sessions which are no longer used.
+     */
+    private final ScheduledExecutorService cleaner =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("standalone-sessions"));
+
+    /**
+     * Creates the session store from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    MemorySessions(Config config) throws ServletException {
+        this.maxInactiveInterval =
+            (int)(config.getLongProperty("no.feide.test.standalone.session.timeout", 1800000) / 1000);
+
+        this.cleaner.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                MemorySessions.this.removeExpired();
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        Metrics.getInstance().gauge("standalone.sessions", new Metrics.Gauge() {
+            public long getValue() {
+                return MemorySessions.this.sessions.size();
+            }
+        });
+    }
+
+    /**
+     * Finds a session, and marks it as used.
+     *
+     * @param id the session ID from the cookie of the request.
+     * @return the session, or null if the session doesn't exist, or has expired.
+     */
+    HttpSession find(String id) {
+        Session session = this.sessions.get(id);
+        if(session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if(session.isExpired(now)) {
+            session.valid = false;
+            this.sessions.remove(id);
+            return null;
+        }
+        session.lastAccessedTime = now;
+        session.isNew = false;
+        return session;
+    }
+
+    /**
+     * Creates a session.
+     *
+     * @return the new session.
+     */
+    HttpSession create() {
+        byte[] bytes = new byte[16];
+        StringBuilder id = new StringBuilder();
+        synchronized(this.random) {
+            this.random.nextBytes(bytes);
+        }
+        for(byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        Session session = new Session(id.toString());
+        this.sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Stops the thread which removes sessions.
+     */
+    void shutdown() {
+        this.cleaner.shutdownNow();
+    }
+
+    /**
+     * Removes the sessions which haven't been used for a while.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for(Iterator<Session> i = this.sessions.values().iterator(); i.hasNext(); ) {
+            Session session = i.next();
+            if(session.isExpired(now)) {
+                session.valid = false;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * A session kept in memory.
+     */
+    private final class Session implements HttpSession {
+
+        private final String id;
+        private final long creationTime = System.currentTimeMillis();
+        private volatile long lastAccessedTime = this.creationTime;
+        private volatile int maxInactiveInterval = MemorySessions.this.maxInactiveInterval;
+        private volatile boolean isNew = true;
+        private volatile boolean valid = true;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+        /**
+         * Creates a session.
+         *
+         * @param id the session ID.
+         */
+        Session(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Checks whether the session has expired.
+         *
+         * @param now the current time.
+         * @return true if the session hasn't been used for longer than it is kept.
+         */
+        boolean isExpired(long now) {
+            return this.maxInactiveInterval >= 0 && now - this.lastAccessedTime > this.maxInactiveInterval * 1000L;
+        }
+
+        /**
+         * Throws IllegalStateException if the session has been invalidated.
+         */
+        private void checkValid() {
+            if(!this.valid) {
+                throw new IllegalStateException("The session has been invalidated.");
+            }
+        }
+
+        public long getCreationTime() {
+            this.checkValid();
+            return this.creationTime;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public long getLastAccessedTime() {
+            this.checkValid();
+            return this.lastAccessedTime;
+        }
+
+        public ServletContext getServletContext() {
+            // There is no servlet container.
+            return null;
+        }
+
+        public void setMaxInactiveInterval(int interval) {
+            this.maxInactiveInterval = interval;
+        }
+
+        public int getMaxInactiveInterval() {
+            return this.maxInactiveInterval;
+        }
+
+        @SuppressWarnings("deprecation")
+        public javax.servlet.http.HttpSessionContext getSessionContext() {
+            return null;
+        }
+
+        public Object getAttribute(String name) {
+            this.checkValid();
+            return this.attributes.get(name);
+        }
+
+        @SuppressWarnings("deprecation")
+        public Object getValue(String name) {
+            return this.getAttribute(name);
+        }
+
+        public Enumeration<String> getAttributeNames() {
+            this.checkValid();
+            return Collections.enumeration(this.attributes.keySet());
+        }
+
+        @SuppressWarnings("deprecation")
+        public String[] getValueNames() {
+            this.checkValid();
+            return this.attributes.keySet().toArray(new String[0]);
+        }
+
+        public void setAttribute(String name, Object value) {
+            this.checkValid();
+            if(value == null) {
+                this.attributes.remove(name);
+            } else {
+                this.attributes.put(name, value);
+            }
+        }
+
+        @SuppressWarnings("deprecation")
+        public void putValue(String name, Object value) {
+            this.setAttribute(name, value);
+        }
+
+        public void removeAttribute(String name) {
+            this.checkValid();
+            this.attributes.remove(name);
+        }
+
+        @SuppressWarnings("deprecation")
+        public void removeValue(String name) {
+            this.removeAttribute(name);
+        }
+
+        public void invalidate() {
+            this.checkValid();
+            this.valid = false;
+            MemorySessions.this.sessions.remove(this.id);
+            this.attributes.clear();
+        }
+
+        public boolean isNew() {
+            this.checkValid();
+            return this.isNew;
+        }
+    }
+}
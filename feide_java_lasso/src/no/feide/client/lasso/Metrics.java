@@ -0,0 +1,132 @@
+package no.feide.client.lasso;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simple registry of counters, gauges and latency histograms. The metrics are written as
+ * plain text by the metrics endpoint of the servlet, one "name value" pair on each line.
+ */
+class Metrics {
+
+    /**
+     * A value which is read when the metrics are written.
+     */
+    interface Gauge {
+        /**
+         * Reads the current value of this gauge.
+         *
+         * @return the current value.
+         */
+        long getValue();
+    }
+
+    /**
+     * The shared metrics registry.
+     */
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * Counters, by name.
+     */
+    private final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+
+    /**
+     * Gauges, by name.
+     */
+    private final Map<String, Gauge> gauges = new TreeMap<String, Gauge>();
+
+    /**
+     * Latency histograms, by name.
+     */
+    private final Map<String, LatencyHistogram> histograms = new TreeMap<String, LatencyHistogram>();
+
+    /**
+     * Retrieves the shared metrics registry.
+     *
+     * @return the shared metrics registry.
+     */
+    static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Finds or creates the counter with the given name.
+     *
+     * @param name the name of the counter.
+     * @return the counter.
+     */
+    synchronized AtomicLong counter(String name) {
+        AtomicLong counter = this.counters.get(name);
+        if(counter == null) {
+            counter = new AtomicLong();
+            this.counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Finds or creates the latency histogram with the given name.
+     *
+     * @param name the name of the histogram.
+     * @return the histogram.
+     */
+    synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = this.histograms.get(name);
+        if(histogram == null) {
+            histogram = new LatencyHistogram();
+            this.histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge. Replaces any gauge previously registered with the same name.
+     *
+     * @param name the name of the gauge.
+     * @param gauge the gauge.
+     */
+    synchronized void gauge(String name, Gauge gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes gauges, so that they no longer keep the objects they read alive. A gauge which
+     * has since been replaced by another gauge with the same name is kept.
+     *
+     * @param gauges the gauges, by name.
+     */
+    synchronized void remove(Map<String, Gauge> gauges) {
+        for(Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            if(this.gauges.get(e.getKey()) == e.getValue()) {
+                this.gauges.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Writes all metrics as plain text. Latencies are written in microseconds.
+     *
+     * @param out the writer we should write the metrics to.
+     */
+    synchronized void write(PrintWriter out) {
+        for(Map.Entry<String, AtomicLong> e : this.counters.entrySet()) {
+            out.println(e.getKey() + " " + e.getValue().get());
+        }
+        for(Map.Entry<String, Gauge> e : this.gauges.entrySet()) {
+            out.println(e.getKey() + " " + e.getValue().getValue());
+        }
+        for(Map.Entry<String, LatencyHistogram> e : this.histograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            String name = e.getKey();
+            out.println(name + ".count " + h.getCount());
+            out.println(name + ".mean_us " + h.getMean());
+            out.println(name + ".p50_us " + h.getPercentile(50));
+            out.println(name + ".p95_us " + h.getPercentile(95));
+            out.println(name + ".p99_us " + h.getPercentile(99));
+            out.println(name + ".max_us " + h.getMax());
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package no.feide.client.lasso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the Lasso objects created while handling a request, and destroys them when
+ * the request is finished. The Java wrappers of Lasso objects own native Lasso and libxml2
+ * memory, which is otherwise only released when the garbage collector finalizes the wrappers.
+ * The Java heap doesn't see this memory, so during bursts the native memory may grow long
+ * before the garbage collector runs.
+ *
+ * Every tracked object is counted by type, together with an approximation of the native memory
+ * it holds. The counts are exported through {@link Metrics}.
+ *
+ * Objects are destroyed in the reverse order they were tracked, so an object which is owned by
+ * another object (like the response of a Login) should be tracked after its owner.
+ */
+class NativeResources {
+
+    /**
+     * Approximate native size of a Login or Logout object without any messages, in bytes.
+     */
+    static final long PROFILE_SIZE = 4096;
+
+    /**
+     * Approximate number of bytes libxml2 and Lasso use for each byte of a parsed XML message.
+     */
+    private static final long XML_FACTOR = 8;
+
+    /**
+     * The counts of each type, by type name.
+     */
+    private static final ConcurrentMap<String, TypeStats> stats = new ConcurrentHashMap<String, TypeStats>();
+
+    /**
+     * Approximate native memory held by all tracked objects, in bytes.
+     */
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    static {
+        Metrics.getInstance().gauge("lasso.native.bytes", new Metrics.Gauge() {
+            public long getValue() {
+                return totalBytes.get();
+            }
+        });
+    }
+
+    /**
+     * The objects tracked by this instance.
+     */
+    private final List<Object> objects = new ArrayList<Object>();
+
+    /**
+     * The approximate native size of each tracked object.
+     */
+    private final List<long[]> sizes = new ArrayList<long[]>();
+
+    /**
+     * Approximates the native memory used by a parsed XML message.
+     *
+     * @param message the message, or null.
+     * @return the approximate size in bytes.
+     */
+    static long estimateXml(String message) {
+        return message == null ? 0 : message.length() * XML_FACTOR;
+    }
+
+    /**
+     * Approximates the native memory used by a parsed XML file.
+     *
+     * @param length the length of the file, in bytes.
+     * @return the approximate size in bytes.
+     */
+    static long estimateXml(long length) {
+        return length * XML_FACTOR;
+    }
+
+    /**
+     * Starts tracking a Lasso object.
+     *
+     * @param object the Lasso object. May be null, in which case nothing is tracked.
+     * @param approxBytes the approximate native memory owned by the object, in bytes. Objects
+     *        which are owned by another object should pass 0.
+     * @return the object.
+     */
+    <T> T track(T object, long approxBytes) {
+        if(object == null) {
+            return null;
+        }
+
+        this.objects.add(object);
+        this.sizes.add(new long[] { approxBytes });
+
+        TypeStats s = getStats(object);
+        s.live.incrementAndGet();
+        s.created.incrementAndGet();
+        s.bytes.addAndGet(approxBytes);
+        totalBytes.addAndGet(approxBytes);
+
+        return object;
+    }
+
+    /**
+     * Adds to the approximate native memory held by a tracked object. Used when an object
+     * grows, for example when a Login parses a message.
+     *
+     * @param object the tracked object.
+     * @param approxBytes the number of bytes to add.
+     */
+    void grow(Object object, long approxBytes) {
+        for(int i = this.objects.size() - 1; i >= 0; i--) {
+            if(this.objects.get(i) == object) {
+                this.sizes.get(i)[0] += approxBytes;
+                getStats(object).bytes.addAndGet(approxBytes);
+                totalBytes.addAndGet(approxBytes);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("The object isn't tracked.");
+    }
+
+    /**
+     * Destroys every tracked object, in the reverse order they were tracked.
+     */
+    void close() {
+        for(int i = this.objects.size() - 1; i >= 0; i--) {
+            Object object = this.objects.get(i);
+            long bytes = this.sizes.get(i)[0];
+
+            delete(object);
+
+            TypeStats s = getStats(object);
+            s.live.decrementAndGet();
+            s.bytes.addAndGet(-bytes);
+            totalBytes.addAndGet(-bytes);
+        }
+
+        this.objects.clear();
+        this.sizes.clear();
+    }
+
+    /**
+     * Destroys a Lasso object.
+     *
+     * @param object the object.
+     */
+    private static void delete(Object object) {
+        try {
+            // For nodes which are owned by another object, this only clears the pointer, so
+            // that the wrapper can't be used after its owner is destroyed.
+            LassoFacade.delete(object);
+        } catch(UnsupportedOperationException e) {
+            // Lasso doesn't let us destroy this node. It will be released by the garbage
+            // collector.
+        }
+    }
+
+    /**
+     * Finds or creates the counts for the type of an object.
+     *
+     * @param object the object.
+     * @return the counts for the type of the object.
+     */
+    private static TypeStats getStats(Object object) {
+        String type = object.getClass().getSimpleName();
+        TypeStats s = stats.get(type);
+        if(s == null) {
+            TypeStats created = new TypeStats();
+            s = stats.putIfAbsent(type, created);
+            if(s == null) {
+                s = created;
+                s.register(type);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The counts for a single type of Lasso object.
+     */
+    private static class TypeStats {
+        final AtomicLong live = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong created = new AtomicLong();
+
+        void register(String type) {
+            Metrics metrics = Metrics.getInstance();
+            metrics.gauge("lasso.native." + type + ".live", new Metrics.Gauge() {
+                public long getValue() {
+                    return TypeStats.this.live.get();
+                }
+            });
+            metrics.gauge("lasso.native." + type + ".bytes", new Metrics.Gauge() {
+                public long getValue() {
+                    return TypeStats.this.bytes.get();
+                }
+            });
+            metrics.gauge("lasso.native." + type + ".created", new Metrics.Gauge() {
+                public long getValue() {
+                    return TypeStats.this.created.get();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A cheap check of a decoded SAML response before it is handed to Lasso. Lasso parses the whole
+ * message and verifies its signature before it finds out that the message is expired, sent to
+ * another service provider, or a copy of a message we have just processed. This filter scans the
+ * raw bytes for the few attributes it needs, without building a tree, and rejects messages
+ * which can't be accepted anyway.
+ *
+ * The filter never accepts a message on its own. It only rejects messages which Lasso would
+ * reject, or which are exact duplicates of a recent message. Each reason is counted. A message
+ * which passes is remembered at once, so that a copy which arrives while it is processed is
+ * rejected. If the processing fails for a reason which has nothing to do with the message, the
+ * caller forgets it again, so that the browser may send it once more.
+ */
+class ResponsePreFilter {
+
+    /**
+     * The encoding of the messages.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The largest message we accept, in bytes.
+     */
+    private final int maxSize;
+
+    /**
+     * The maximum age of a message, from its IssueInstant, in milliseconds.
+     */
+    private final long maxAge;
+
+    /**
+     * The clock skew we accept between us and the IdP, in milliseconds.
+     */
+    private final long skew;
+
+    /**
+     * How long we remember a message to reject duplicates, in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * The maximum number of messages we remember.
+     */
+    private final int maxEntries;
+
+    /**
+     * The AssertionConsumerService locations in the meta data for the service provider.
+     */
+    private final List<String> destinations = new ArrayList<String>();
+
+    /**
+     * The hashes of recent messages, with the time they expire from the window, oldest first.
+     */
+    private final LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>();
+
+    /**
+     * Parses times which aren't in the plain UTC form.
+     */
+    private final DatatypeFactory datatypeFactory;
+
+    private final AtomicLong passed;
+    private final AtomicLong tooLarge;
+    private final AtomicLong malformed;
+    private final AtomicLong misaddressed;
+    private final AtomicLong expired;
+    private final AtomicLong duplicates;
+
+    /**
+     * Creates the filter from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    ResponsePreFilter(Config config) throws ServletException {
+        this.maxSize = (int)config.getLongProperty("no.feide.test.prefilter.maxsize", 262144);
+        this.maxAge = config.getLongProperty("no.feide.test.prefilter.maxage", 300000);
+        this.skew = config.getLongProperty("no.feide.test.prefilter.skew", 180000);
+        this.window = config.getLongProperty("no.feide.test.prefilter.window", 300000);
+        this.maxEntries = (int)config.getLongProperty("no.feide.test.prefilter.entries", 100000);
+        Metrics metrics = Metrics.getInstance();
+        this.passed = metrics.counter(config.getMetricName("prefilter.passed"));
+        this.tooLarge = metrics.counter(config.getMetricName("prefilter.rejected.too_large"));
+        this.malformed = metrics.counter(config.getMetricName("prefilter.rejected.malformed"));
+        this.misaddressed = metrics.counter(config.getMetricName("prefilter.rejected.destination"));
+        this.expired = metrics.counter(config.getMetricName("prefilter.rejected.expired"));
+        this.duplicates = metrics.counter(config.getMetricName("prefilter.rejected.duplicate"));
+
+        try {
+            this.datatypeFactory = DatatypeFactory.newInstance();
+        } catch(DatatypeConfigurationException e) {
+            throw new ServletException("Unable to create a DatatypeFactory.", e);
+        }
+
+        // The meta data is only parsed once, so a DOM is fine here.
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            Document d = factory.newDocumentBuilder().parse(new File(config.getSPMetadataPath()));
+            NodeList nl = d.getElementsByTagNameNS("urn:oasis:names:tc:SAML:2.0:metadata",
+                    "AssertionConsumerService");
+            for(int i = 0; i < nl.getLength(); i++) {
+                this.destinations.add(((Element)nl.item(i)).getAttribute("Location"));
+            }
+        } catch(SAXException e) {
+            throw new ServletException("Unable to parse the meta data for the SP.", e);
+        } catch(IOException e) {
+            throw new ServletException("Unable to read the meta data for the SP.", e);
+        } catch(ParserConfigurationException e) {
+            throw new ServletException("ParserConfigurationException while creating a DocumentBuilder", e);
+        }
+    }
+
+    /**
+     * Checks a decoded SAML response.
+     *
+     * @param message a buffer holding the decoded response.
+     * @param length the length of the response.
+     * @return the hash the response is remembered by.
+     * @throws ServletException if the response is rejected.
+     */
+    String check(byte[] message, int length) throws ServletException {
+        return this.check(message, length, false);
+    }
+
+    /**
+     * Checks a SAML response an ECP client relayed to us in the Body of a SOAP envelope.
+     *
+     * @param message a buffer holding the SOAP envelope.
+     * @param length the length of the envelope.
+     * @return the hash the response is remembered by.
+     * @throws ServletException if the response is rejected.
+     */
+    String checkSoap(byte[] message, int length) throws ServletException {
+        return this.check(message, length, true);
+    }
+
+    /**
+     * Checks a SAML response.
+     *
+     * @param message a buffer holding the message.
+     * @param length the length of the message.
+     * @param soap whether the response is in the Body of a SOAP envelope.
+     * @return the hash the response is remembered by.
+     * @throws ServletException if the response is rejected.
+     */
+    private String check(byte[] message, int length, boolean soap) throws ServletException {
+        if(length > this.maxSize) {
+            this.tooLarge.incrementAndGet();
+            throw new ServletException("SAML response is too large: " + length + " bytes.");
+        }
+
+        // ID, Destination and IssueInstant are attributes of the root element of the response.
+        int rootStart = soap ? findBodyChild(message, length) : findElement(message, 0, length);
+        int rootEnd = rootStart < 0 ? -1 : findTagEnd(message, rootStart, length);
+        String id = rootEnd < 0 ? null : findAttribute(message, "ID", rootStart, rootEnd);
+        if(id == null) {
+            this.malformed.incrementAndGet();
+            throw new ServletException("SAML response has no ID.");
+        }
+
+        // The locations in the meta data have been through an XML parser, so the entities in
+        // the Destination must be decoded before we compare them. If we can't decode them, we
+        // leave the check to Lasso.
+        String destination = findAttribute(message, "Destination", rootStart, rootEnd);
+        if(destination != null && destination.indexOf('&') >= 0) {
+            destination = decodeEntities(destination);
+        }
+        if(destination != null && !this.destinations.contains(destination)) {
+            this.misaddressed.incrementAndGet();
+            throw new ServletException("SAML response " + id + " was sent to " + destination);
+        }
+
+        long now = System.currentTimeMillis();
+        String issueInstant = findAttribute(message, "IssueInstant", rootStart, rootEnd);
+        if(issueInstant != null) {
+            long issued = this.parseTime(issueInstant);
+            if(issued < 0) {
+                this.malformed.incrementAndGet();
+                throw new ServletException("SAML response " + id + " has an invalid IssueInstant.");
+            }
+            if(issued + this.maxAge + this.skew < now) {
+                this.expired.incrementAndGet();
+                throw new ServletException("SAML response " + id + " was issued at " + issueInstant);
+            }
+        }
+
+        // The assertion has expired if every NotOnOrAfter in it has passed.
+        long latest = Long.MIN_VALUE;
+        int from = rootEnd;
+        int[] position = new int[1];
+        String notOnOrAfter;
+        while((notOnOrAfter = findAttribute(message, "NotOnOrAfter", from, length, position)) != null) {
+            latest = Math.max(latest, this.parseTime(notOnOrAfter));
+            from = position[0];
+        }
+        if(latest != Long.MIN_VALUE && latest + this.skew <= now) {
+            this.expired.incrementAndGet();
+            throw new ServletException("SAML response " + id + " has expired.");
+        }
+
+        String hash = hash(message, length);
+        if(!this.remember(hash, now)) {
+            this.duplicates.incrementAndGet();
+            throw new ServletException("SAML response " + id + " is a duplicate of a recent response.");
+        }
+
+        this.passed.incrementAndGet();
+        return hash;
+    }
+
+    /**
+     * Removes a message from the window of recent messages, after it failed for a reason which
+     * has nothing to do with the message, so that it isn't rejected as a duplicate when it is
+     * sent again.
+     *
+     * @param hash the hash check() returned for the message.
+     */
+    synchronized void forget(String hash) {
+        this.recent.remove(hash);
+    }
+
+    /**
+     * Adds a message to the window of recent messages.
+     *
+     * @param hash the hash of the message.
+     * @param now the current time.
+     * @return false if the message is already in the window.
+     */
+    private synchronized boolean remember(String hash, long now) {
+        // Entries are added in time order, so the expired entries are the oldest.
+        Iterator<Map.Entry<String, Long>> it = this.recent.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if(e.getValue() > now && this.recent.size() <= this.maxEntries) {
+                break;
+            }
+            it.remove();
+        }
+
+        Long expires = this.recent.get(hash);
+        if(expires != null && expires > now) {
+            return false;
+        }
+        this.recent.put(hash, now + this.window);
+        return true;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of a message.
+     *
+     * @param message a buffer holding the message.
+     * @param length the length of the message.
+     * @return the hash, as a string.
+     */
+    private static String hash(byte[] message, int length) {
+        byte[] digest;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(message, 0, length);
+            digest = md.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException("This java implementation doesn't implement SHA-256.", e);
+        }
+        return Base64.encodeBytes(digest, Base64.DONT_BREAK_LINES);
+    }
+
+    /**
+     * Finds the start of the next element, skipping the XML declaration, comments, processing
+     * instructions and end tags.
+     *
+     * @param data the message.
+     * @param from the index we start at.
+     * @param length the length of the message.
+     * @return the index of the '&lt;' of the element, or -1 if there is none.
+     */
+    private static int findElement(byte[] data, int from, int length) {
+        for(int i = from; i < length - 1; i++) {
+            if(data[i] == '<' && data[i + 1] != '?' && data[i + 1] != '!' && data[i + 1] != '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first element in the Body of a SOAP envelope.
+     *
+     * @param data the envelope.
+     * @param length the length of the envelope.
+     * @return the index of the '&lt;' of the element, or -1 if there is none.
+     */
+    private static int findBodyChild(byte[] data, int length) {
+        int start = findElement(data, 0, length);
+        while(start >= 0) {
+            int end = findTagEnd(data, start, length);
+            if(end < 0) {
+                return -1;
+            }
+
+            // Compare the local name of the element with "Body".
+            int nameEnd = start + 1;
+            while(nameEnd < end && data[nameEnd] != '/' && data[nameEnd] > ' ') {
+                nameEnd++;
+            }
+            if(nameEnd - start > 4 && data[nameEnd - 4] == 'B' && data[nameEnd - 3] == 'o'
+                    && data[nameEnd - 2] == 'd' && data[nameEnd - 1] == 'y'
+                    && (nameEnd - start == 5 || data[nameEnd - 5] == ':')) {
+                return findElement(data, end + 1, length);
+            }
+            start = findElement(data, end + 1, length);
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the end of a start tag.
+     *
+     * @param data the message.
+     * @param start the index of the '&lt;' of the tag.
+     * @param length the length of the message.
+     * @return the index of the '&gt;' which ends the tag, or -1 if it isn't found.
+     */
+    private static int findTagEnd(byte[] data, int start, int length) {
+        byte quote = 0;
+        for(int i = start; i < length; i++) {
+            byte b = data[i];
+            if(quote != 0) {
+                if(b == quote) {
+                    quote = 0;
+                }
+            } else if(b == '"' || b == '\'') {
+                quote = b;
+            } else if(b == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the value of the first attribute with the given name in a range of a message.
+     *
+     * @param data the message.
+     * @param name the name of the attribute, without prefix.
+     * @param from the index we start at.
+     * @param to the index we stop at.
+     * @return the value of the attribute, or null if it isn't found.
+     */
+    private static String findAttribute(byte[] data, String name, int from, int to) {
+        return findAttribute(data, name, from, to, new int[1]);
+    }
+
+    /**
+     * Finds the value of the first attribute with the given name in a range of a message.
+     *
+     * @param data the message.
+     * @param name the name of the attribute, without prefix.
+     * @param from the index we start at.
+     * @param to the index we stop at.
+     * @param end receives the index after the value.
+     * @return the value of the attribute, or null if it isn't found.
+     */
+    private static String findAttribute(byte[] data, String name, int from, int to, int[] end) {
+        int n = name.length();
+        for(int i = from + 1; i + n < to; i++) {
+            // The name must follow whitespace, so that "ID" doesn't match "ResponseID".
+            byte before = data[i - 1];
+            if(before != ' ' && before != '\t' && before != '\n' && before != '\r') {
+                continue;
+            }
+            boolean match = true;
+            for(int j = 0; j < n; j++) {
+                if(data[i + j] != name.charAt(j)) {
+                    match = false;
+                    break;
+                }
+            }
+            if(!match) {
+                continue;
+            }
+
+            int k = i + n;
+            while(k < to && (data[k] == ' ' || data[k] == '\t' || data[k] == '\n' || data[k] == '\r')) {
+                k++;
+            }
+            if(k >= to || data[k] != '=') {
+                continue;
+            }
+            k++;
+            while(k < to && (data[k] == ' ' || data[k] == '\t' || data[k] == '\n' || data[k] == '\r')) {
+                k++;
+            }
+            if(k >= to || (data[k] != '"' && data[k] != '\'')) {
+                continue;
+            }
+            byte quote = data[k];
+            int valueStart = k + 1;
+            int valueEnd = valueStart;
+            while(valueEnd < to && data[valueEnd] != quote) {
+                valueEnd++;
+            }
+            if(valueEnd >= to) {
+                return null;
+            }
+
+            end[0] = valueEnd + 1;
+            // The values we look for are ASCII, except for Destination, which may be any UTF-8
+            // string.
+            char[] value = new char[valueEnd - valueStart];
+            for(int j = 0; j < value.length; j++) {
+                if(data[valueStart + j] < 0) {
+                    return new String(data, valueStart, valueEnd - valueStart, UTF8);
+                }
+                value[j] = (char)data[valueStart + j];
+            }
+            return new String(value);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the predefined entities and the character references in an attribute value.
+     *
+     * @param value the attribute value, as it is in the message.
+     * @return the decoded value, or null if it has an entity we don't know.
+     */
+    private static String decodeEntities(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+        while(i < value.length()) {
+            char c = value.charAt(i);
+            if(c != '&') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            int semicolon = value.indexOf(';', i);
+            if(semicolon < 0) {
+                return null;
+            }
+            String name = value.substring(i + 1, semicolon);
+            if(name.equals("amp")) {
+                sb.append('&');
+            } else if(name.equals("lt")) {
+                sb.append('<');
+            } else if(name.equals("gt")) {
+                sb.append('>');
+            } else if(name.equals("quot")) {
+                sb.append('"');
+            } else if(name.equals("apos")) {
+                sb.append('\'');
+            } else if(name.startsWith("#")) {
+                int codePoint;
+                try {
+                    codePoint = name.startsWith("#x") ? Integer.parseInt(name.substring(2), 16)
+                            : Integer.parseInt(name.substring(1));
+                } catch(NumberFormatException e) {
+                    return null;
+                }
+                if(codePoint < 0 || codePoint > Character.MAX_CODE_POINT) {
+                    return null;
+                }
+                sb.appendCodePoint(codePoint);
+            } else {
+                return null;
+            }
+            i = semicolon + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses an xs:dateTime. The plain UTC form used by most IdPs is parsed by hand.
+     *
+     * @param value the time.
+     * @return the time in milliseconds since the epoch, or -1 if it is invalid.
+     */
+    private long parseTime(String value) {
+        // yyyy-MM-ddTHH:mm:ssZ or yyyy-MM-ddTHH:mm:ss.fffZ
+        int length = value.length();
+        if((length == 20 || (length > 21 && value.charAt(19) == '.')) && value.charAt(length - 1) == 'Z'
+                && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == 'T'
+                && value.charAt(13) == ':' && value.charAt(16) == ':') {
+            int year = digits(value, 0, 4);
+            int month = digits(value, 5, 2);
+            int day = digits(value, 8, 2);
+            int hour = digits(value, 11, 2);
+            int minute = digits(value, 14, 2);
+            int second = digits(value, 17, 2);
+            if(year >= 1970 && month >= 1 && month <= 12 && day >= 1 && day <= 31
+                    && hour >= 0 && minute >= 0 && second >= 0) {
+                return (daysFromEpoch(year, month, day) * 86400L + hour * 3600 + minute * 60 + second) * 1000;
+            }
+        }
+
+        try {
+            // DatatypeFactory isn't required to be thread safe.
+            synchronized(this.datatypeFactory) {
+                return this.datatypeFactory.newXMLGregorianCalendar(value).toGregorianCalendar().getTimeInMillis();
+            }
+        } catch(IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a run of decimal digits.
+     *
+     * @param s the string.
+     * @param start the index of the first digit.
+     * @param count the number of digits.
+     * @return the number, or -1 if a character isn't a digit.
+     */
+    private static int digits(String s, int start, int count) {
+        int value = 0;
+        for(int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Counts the days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+     *
+     * @param year the year.
+     * @param month the month, from 1.
+     * @param day the day of the month, from 1.
+     * @return the number of days.
+     */
+    private static long daysFromEpoch(int year, int month, int day) {
+        // From Howard Hinnant's days_from_civil algorithm.
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+}
@@ -0,0 +1,36 @@
+package no.feide.client.lasso;
+
+import javax.servlet.ServletException;
+
+/**
+ * A failure which says nothing about the request itself: the bulkhead was full or too slow, no
+ * Lasso Server or worker was free in time, or the worker died. The same request may succeed if
+ * it is sent again, so a SAML response which failed this way must not be remembered as
+ * processed.
+ */
+class RetryableException extends ServletException {
+
+    /**
+     * Serial version UID, default value.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates an exception.
+     *
+     * @param message the reason.
+     */
+    RetryableException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates an exception with a cause.
+     *
+     * @param message the reason.
+     * @param cause the cause.
+     */
+    RetryableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
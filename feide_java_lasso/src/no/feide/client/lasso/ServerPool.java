@@ -0,0 +1,369 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletException;
+
+import com.entrouvert.lasso.Server;
+import com.entrouvert.lasso.lassoConstants;
+
+/**
+ * A pool of independently initialized Lasso Server objects. The thread safety of a Lasso
+ * Server isn't documented, so every Server in the pool is used by at most one thread at a time.
+ * A request borrows a Server, creates its Login or Logout object from it, and releases it when
+ * it is done with Lasso.
+ *
+ * A Login or Logout object keeps a reference to the Server it was created from. A request
+ * which releases its Server while it waits for something else, like an artifact resolution
+ * request, must borrow the same Server again before it uses the Login object.
+ */
+class ServerPool {
+
+    /**
+     * The Server objects.
+     */
+    private final LassoServer[] servers;
+
+    /**
+     * Whether each Server is borrowed.
+     */
+    private final boolean[] busy;
+
+    /**
+     * Number of Server objects which aren't borrowed.
+     */
+    private int available;
+
+    /**
+     * The index we start at when we look for a free Server.
+     */
+    private int next = 0;
+
+    /**
+     * Set when the pool is shut down. No Server is lent out after that.
+     */
+    private boolean closed = false;
+
+    /**
+     * Protects busy, available, next and closed.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a Server is released.
+     */
+    private final Condition released = this.lock.newCondition();
+
+    /**
+     * Keeps track of the native memory of the Server objects.
+     */
+    private final NativeResources resources = new NativeResources();
+
+    /**
+     * The maximum number of milliseconds we wait for a Server.
+     */
+    private final long timeout;
+
+    /**
+     * The time requests wait for a Server.
+     */
+    private final LatencyHistogram waitTime;
+
+    /**
+     * Number of requests which gave up waiting for a Server.
+     */
+    private final AtomicLong timeouts;
+
+    /**
+     * The gauges of this pool, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * Creates the Server objects of the pool.
+     *
+     * @param config the configuration with the meta data and keys we should load.
+     * @throws ServletException if the configuration is invalid.
+     */
+    ServerPool(Config config) throws ServletException {
+        int size = getPoolSize(config);
+        this.timeout = config.getLongProperty("no.feide.test.lasso.server.pool.timeout", 10000);
+
+        this.servers = new LassoServer[size];
+        this.busy = new boolean[size];
+        this.available = size;
+        for(int i = 0; i < size; i++) {
+            Server server = this.resources.track(createServer(config), estimateSize(config));
+            this.servers[i] = new LassoServer(server);
+        }
+
+        String prefix = config.getMetricName("lasso.server.pool.");
+        this.waitTime = Metrics.getInstance().histogram(prefix + "wait");
+        this.timeouts = Metrics.getInstance().counter(prefix + "timeouts");
+        this.registerMetrics(prefix);
+    }
+
+    /**
+     * Creates a pool of Server objects which are already initialized. The pool doesn't destroy
+     * them. Used by ServerPoolStress, which needs no Lasso.
+     *
+     * @param servers the Server objects.
+     * @param timeout the maximum number of milliseconds we wait for a Server.
+     */
+    ServerPool(LassoServer[] servers, long timeout) {
+        this.timeout = timeout;
+        this.servers = servers.clone();
+        this.busy = new boolean[servers.length];
+        this.available = servers.length;
+        this.waitTime = Metrics.getInstance().histogram("lasso.server.pool.wait");
+        this.timeouts = Metrics.getInstance().counter("lasso.server.pool.timeouts");
+        this.registerMetrics("lasso.server.pool.");
+    }
+
+    /**
+     * Exports the number of free Server objects and the size of the pool.
+     *
+     * @param prefix the prefix of the names of the gauges.
+     */
+    private void registerMetrics(String prefix) {
+        this.gauges.put(prefix + "available", new Metrics.Gauge() {
+            public long getValue() {
+                ServerPool.this.lock.lock();
+                try {
+                    return ServerPool.this.available;
+                } finally {
+                    ServerPool.this.lock.unlock();
+                }
+            }
+        });
+        this.gauges.put(prefix + "size", new Metrics.Gauge() {
+            public long getValue() {
+                return ServerPool.this.servers.length;
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            Metrics.getInstance().gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Reads the number of Server objects in the pool from the configuration.
+     *
+     * @param config the configuration.
+     * @return the number of Server objects.
+     * @throws ServletException if the number is invalid.
+     */
+    static int getPoolSize(Config config) throws ServletException {
+        int size = (int)config.getLongProperty("no.feide.test.lasso.server.pool",
+                Runtime.getRuntime().availableProcessors());
+        if(size < 1) {
+            throw new ServletException("no.feide.test.lasso.server.pool must be at least 1.");
+        }
+        return size;
+    }
+
+    /**
+     * Creates a Lasso Server object with the meta data of the service provider and the IdP.
+     *
+     * @param config the configuration with the meta data and keys we should load.
+     * @return the Server object.
+     */
+    private static Server createServer(Config config) {
+        // Initialize the Server object with the meta data of the service provider.
+        Server server = LassoFacade.newServer(config.getSPMetadataPath(), config.getSPPrivateKeyPath());
+
+        // Load meta data for the IdP.
+        LassoFacade.addProvider(server, lassoConstants.PROVIDER_ROLE_IDP,
+                config.getIdPMetadataPath(), config.getIdpPublicKeyPath());
+
+        return server;
+    }
+
+    /**
+     * Approximates the native memory used by a Server, from the size of the files it loads.
+     *
+     * @param config the configuration with the meta data and keys the Server loads.
+     * @return the approximate size in bytes.
+     */
+    static long estimateSize(Config config) {
+        long length = 0;
+        String[] files = { config.getSPMetadataPath(), config.getSPPrivateKeyPath(),
+                config.getIdPMetadataPath(), config.getIdpPublicKeyPath() };
+        for(String f : files) {
+            if(f != null) {
+                length += new File(f).length();
+            }
+        }
+        return NativeResources.estimateXml(length);
+    }
+
+    /**
+     * Shuts the pool down. Requests waiting for a Server fail, and no Server is lent out after
+     * this. We then wait, for at most the borrow timeout, until every borrowed Server has been
+     * released, and destroy the Server objects. If some are still borrowed after that, they
+     * are left to the garbage collector, since destroying them would free native memory a
+     * request is using. The gauges of the pool are removed at once.
+     *
+     * @return true if every Server was released and destroyed.
+     */
+    boolean shutdown() {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this.timeout);
+
+        Metrics.getInstance().remove(this.gauges);
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.released.signalAll();
+            while(this.available < this.servers.length && remaining > 0) {
+                remaining = this.released.awaitNanos(remaining);
+            }
+            if(this.available < this.servers.length) {
+                this.debug.warning("ServerPool.shutdown: " + (this.servers.length - this.available)
+                        + " Lasso Servers are still borrowed. Leaving them to the garbage collector.");
+                return false;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.lock.unlock();
+        }
+
+        this.resources.close();
+        return true;
+    }
+
+    /**
+     * Borrows any free Server.
+     *
+     * @return the Server.
+     * @throws ServletException if no Server becomes free before the timeout.
+     */
+    LassoServer borrow() throws ServletException {
+        return this.borrow(-1);
+    }
+
+    /**
+     * Borrows the given Server again, after it has been released.
+     *
+     * @param server the Server.
+     * @return the Server.
+     * @throws ServletException if the Server doesn't become free before the timeout.
+     */
+    LassoServer borrow(LassoServer server) throws ServletException {
+        return this.borrow(this.indexOf(server));
+    }
+
+    /**
+     * Releases a borrowed Server.
+     *
+     * @param server the Server.
+     */
+    void release(LassoServer server) {
+        int index = this.indexOf(server);
+
+        this.lock.lock();
+        try {
+            if(!this.busy[index]) {
+                throw new IllegalStateException("Released a Server which wasn't borrowed.");
+            }
+            this.busy[index] = false;
+            this.available++;
+            this.released.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Borrows a Server.
+     *
+     * @param wanted the index of the Server we want, or -1 if any Server will do.
+     * @return the Server.
+     * @throws ServletException if no Server becomes free before the timeout.
+     */
+    private LassoServer borrow(int wanted) throws ServletException {
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this.timeout);
+
+        this.lock.lock();
+        try {
+            int index;
+            while((index = this.findFree(wanted)) < 0) {
+                if(this.closed) {
+                    throw new RetryableException("The Lasso Server pool is shut down.");
+                }
+                if(remaining <= 0) {
+                    this.timeouts.incrementAndGet();
+                    throw new RetryableException("Timed out waiting for a Lasso Server.");
+                }
+                remaining = this.released.awaitNanos(remaining);
+            }
+
+            this.busy[index] = true;
+            this.available--;
+            return this.servers[index];
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetryableException("Interrupted while waiting for a Lasso Server.", e);
+        } finally {
+            this.lock.unlock();
+            this.waitTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Finds a free Server. Must be called with the lock held.
+     *
+     * @param wanted the index of the Server we want, or -1 if any Server will do.
+     * @return the index of the free Server, or -1 if it isn't free.
+     */
+    private int findFree(int wanted) {
+        if(this.closed) {
+            return -1;
+        }
+        if(wanted >= 0) {
+            return this.busy[wanted] ? -1 : wanted;
+        }
+
+        if(this.available == 0) {
+            return -1;
+        }
+
+        // Rotate the start index, so that the Server objects are used evenly.
+        for(int i = 0; i < this.servers.length; i++) {
+            int index = (this.next + i) % this.servers.length;
+            if(!this.busy[index]) {
+                this.next = (index + 1) % this.servers.length;
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the index of a Server in this pool.
+     *
+     * @param server the Server.
+     * @return the index of the Server.
+     */
+    private int indexOf(LassoServer server) {
+        for(int i = 0; i < this.servers.length; i++) {
+            if(this.servers[i] == server) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("The Server doesn't belong to this pool.");
+    }
+}
@@ -0,0 +1,202 @@
+package no.feide.client.lasso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Stresses ServerPool from many threads, and checks that it never lends the same Server to two
+ * requests at once, and that shutdown() drains the pool.
+ *
+ * Each thread borrows a Server, marks it as its own, holds it for a little while and releases
+ * it. Like an artifact login, some requests release their Server in the middle, and borrow the
+ * same Server again. A Server which is already marked when it is borrowed has been lent out
+ * twice. At the end, the pool is shut down while the threads are still running. shutdown()
+ * must wait until every Server is released, and no Server may be lent out after it returns.
+ *
+ * Usage: java no.feide.client.lasso.ServerPoolStress [threads] [servers] [seconds]
+ *
+ * The Servers are placeholders without any Lasso object, so Lasso isn't needed. The exit
+ * status is 1 if a check fails.
+ */
+public final class ServerPoolStress {
+
+    /**
+     * This class only has a main method.
+     */
+    private ServerPoolStress() {
+    }
+
+    /**
+     * Runs the stress test.
+     *
+     * @param args the number of threads, the number of Servers in the pool and the number of
+     *        seconds to run.
+     * @throws Exception if the test fails to run.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length > 3) {
+            System.err.println("Usage: java " + ServerPoolStress.class.getName() + " [threads] [servers] [seconds]");
+            System.exit(2);
+        }
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        final LassoServer[] servers = new LassoServer[size];
+        for(int i = 0; i < size; i++) {
+            servers[i] = new LassoServer(null, "https://idp" + i + ".example.org/");
+        }
+        final ServerPool pool = new ServerPool(servers, 10000);
+
+        // The thread which holds each Server, or 0.
+        final AtomicIntegerArray owners = new AtomicIntegerArray(size);
+        final AtomicLong borrows = new AtomicLong();
+        final AtomicLong reborrows = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong doubleLends = new AtomicLong();
+        final AtomicLong lentAfterShutdown = new AtomicLong();
+        final boolean[] shutdownDone = new boolean[1];
+        final Object shutdownLock = new Object();
+
+        System.out.println(threads + " threads, " + size + " Servers, " + seconds + " seconds");
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("pool-stress"));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for(int t = 0; t < threads; t++) {
+            final int id = t + 1;
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    Random random = new Random(id);
+                    while(true) {
+                        LassoServer server;
+                        try {
+                            server = pool.borrow();
+                        } catch(ServletException e) {
+                            if(isShutDown(e)) {
+                                return null;
+                            }
+                            timeouts.incrementAndGet();
+                            continue;
+                        }
+                        synchronized(shutdownLock) {
+                            if(shutdownDone[0]) {
+                                lentAfterShutdown.incrementAndGet();
+                            }
+                        }
+                        borrows.incrementAndGet();
+                        int index = indexOf(servers, server);
+                        if(!owners.compareAndSet(index, 0, id)) {
+                            doubleLends.incrementAndGet();
+                        }
+                        hold(random);
+
+                        if(random.nextInt(4) == 0) {
+                            // Release the Server while we wait for the IdP, like an artifact login.
+                            owners.compareAndSet(index, id, 0);
+                            pool.release(server);
+                            hold(random);
+                            try {
+                                server = pool.borrow(server);
+                            } catch(ServletException e) {
+                                if(isShutDown(e)) {
+                                    return null;
+                                }
+                                timeouts.incrementAndGet();
+                                continue;
+                            }
+                            reborrows.incrementAndGet();
+                            if(!owners.compareAndSet(index, 0, id)) {
+                                doubleLends.incrementAndGet();
+                            }
+                            hold(random);
+                        }
+
+                        owners.compareAndSet(index, id, 0);
+                        pool.release(server);
+                    }
+                }
+            }));
+        }
+
+        Thread.sleep(seconds * 1000);
+        long start = System.nanoTime();
+        boolean drained = pool.shutdown();
+        long elapsed = System.nanoTime() - start;
+        int stillOwned = 0;
+        synchronized(shutdownLock) {
+            shutdownDone[0] = true;
+            for(int i = 0; i < size; i++) {
+                if(owners.get(i) != 0) {
+                    stillOwned++;
+                }
+            }
+        }
+        for(Future<Void> f : futures) {
+            f.get();
+        }
+        executor.shutdown();
+
+        System.out.println("borrows:  " + borrows.get() + ", of which " + reborrows.get()
+                + " borrowed the same Server again; " + timeouts.get() + " timeouts");
+        System.out.println("shutdown: " + (drained ? "drained" : "NOT drained") + " in " + elapsed / 1000
+                + " us, " + stillOwned + " Servers still held afterwards");
+        System.out.println("checks:   " + doubleLends.get() + " Servers lent out twice, " + lentAfterShutdown.get()
+                + " lent out after shutdown");
+        if(doubleLends.get() != 0 || lentAfterShutdown.get() != 0 || !drained || stillOwned != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks whether a borrow failed because the pool is shut down.
+     *
+     * @param e the exception from the pool.
+     * @return true if the pool is shut down.
+     */
+    private static boolean isShutDown(ServletException e) {
+        return e.getMessage() != null && e.getMessage().indexOf("shut down") >= 0;
+    }
+
+    /**
+     * Holds a Server for a short, random time, as a request does while it uses Lasso.
+     *
+     * @param random the random numbers of the thread.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private static void hold(Random random) throws InterruptedException {
+        int n = random.nextInt(100);
+        if(n < 98) {
+            // Most requests only hold the Server for a few microseconds.
+            long until = System.nanoTime() + random.nextInt(50000);
+            while(System.nanoTime() < until) {
+                // Spin.
+            }
+        } else {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Finds a Server among the Servers of the pool.
+     *
+     * @param servers the Servers of the pool.
+     * @param server the Server.
+     * @return the index of the Server.
+     */
+    private static int indexOf(LassoServer[] servers, LassoServer server) {
+        for(int i = 0; i < servers.length; i++) {
+            if(servers[i] == server) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("The pool lent out a Server it doesn't own.");
+    }
+}
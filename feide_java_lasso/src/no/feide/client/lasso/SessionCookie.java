@@ -0,0 +1,697 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A session cookie which holds the login itself, so that any node with the key can accept it
+ * without shared state. The value of the cookie is
+ *
+ * version.key.expires.payload.mac
+ *
+ * - version: 3 if the payload is only signed, 4 if it is also encrypted. Versions 1 and 2 kept
+ *   the NameID among the attributes, and are no longer accepted.
+ * - key: the ID of the key the cookie was made with.
+ * - expires: the time the login expires, in seconds since the epoch.
+ * - payload: the time of the login, the NameID and the attributes, in the field format of
+ *   WorkerProtocol, base64url encoded. In version 4, the payload is encrypted with AES-128-CBC,
+ *   and prefixed with the IV.
+ * - mac: the first 16 bytes of the HMAC-SHA256 of the name of the cookie, "=" and everything
+ *   before the mac, base64url encoded.
+ *
+ * A tenant has its own cookie, named feide_session_&lt;tenant&gt; and sent only to the path of
+ * the tenant, and its own key file. Since the name is signed, a cookie made for one tenant isn't
+ * accepted by another, even if they share keys.
+ *
+ * The signing and encryption keys are derived from keys listed in the key file, one
+ * "ID base64-key" pair on each line. The first key makes new cookies, and all the keys are
+ * accepted, so a key is rotated by adding a new first line, and removing the old line when
+ * the cookies made with it have expired. The file is read again when it changes.
+ *
+ * Checking a cookie doesn't allocate: it is parsed in place in the Cookie header, and decoded
+ * and signed in buffers kept by each thread. The payload is only decoded when the login is
+ * used.
+ */
+class SessionCookie {
+
+    /**
+     * The name of the cookie. A tenant adds its name.
+     */
+    static final String COOKIE = "feide_session";
+
+    /**
+     * The request attribute SessionCookieFilter sets when the cookie of a request is valid. The
+     * value is the name of the cookie it checked, so that the cookie of a tenant is still
+     * checked with the keys of the tenant.
+     */
+    static final String VERIFIED = SessionCookie.class.getName() + ".verified";
+
+    /**
+     * The version of a cookie with a signed payload.
+     */
+    private static final char SIGNED = '3';
+
+    /**
+     * The version of a cookie with an encrypted payload.
+     */
+    private static final char ENCRYPTED = '4';
+
+    /**
+     * The number of bytes of the HMAC kept in the cookie.
+     */
+    private static final int MAC_LENGTH = 16;
+
+    /**
+     * The longest cookie value we make or accept. Browsers keep cookies up to about 4096 bytes.
+     */
+    private static final int MAX_LENGTH = 3800;
+
+    /**
+     * The number of milliseconds between checks for a changed key file.
+     */
+    private static final long RELOAD_INTERVAL = 60000;
+
+    /**
+     * Decodes base64url characters, or -1 for other characters.
+     */
+    private static final byte[] DECODE = new byte[128];
+    static {
+        Arrays.fill(DECODE, (byte)-1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for(int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte)i;
+        }
+    }
+
+    /**
+     * The buffers of each thread.
+     */
+    private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Buffers used to check a cookie.
+     */
+    private static final class Scratch {
+        final byte[] text = new byte[MAX_LENGTH + 512];
+        final byte[] expected = new byte[32];
+        final byte[] actual = new byte[32];
+        final int[] marks = new int[6];
+    }
+
+    /**
+     * A key from the key file.
+     */
+    private static final class Key {
+        final String id;
+        final SecretKeySpec macKey;
+        final SecretKeySpec encryptionKey;
+        final ThreadLocal<Mac> macs;
+
+        Key(String id, byte[] master) throws GeneralSecurityException {
+            this.id = id;
+            Mac derive = Mac.getInstance("HmacSHA256");
+            derive.init(new SecretKeySpec(master, "HmacSHA256"));
+            this.macKey = new SecretKeySpec(derive.doFinal(Utf8Output.encode("mac")), "HmacSHA256");
+            byte[] encryptionKey = derive.doFinal(Utf8Output.encode("encryption"));
+            this.encryptionKey = new SecretKeySpec(encryptionKey, 0, 16, "AES");
+            this.macs = new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        Mac mac = Mac.getInstance("HmacSHA256");
+                        mac.init(Key.this.macKey);
+                        return mac;
+                    } catch(GeneralSecurityException e) {
+                        // The same key was used to derive the keys.
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The key file.
+     */
+    private final File file;
+
+    /**
+     * The name of the cookie.
+     */
+    private final String name;
+
+    /**
+     * The tenant the cookie belongs to, or null if the servlet serves a single SP.
+     */
+    private final String tenant;
+
+    /**
+     * The number of milliseconds a login lasts.
+     */
+    private final long maxAge;
+
+    /**
+     * Whether new cookies are encrypted.
+     */
+    private final boolean encrypt;
+
+    /**
+     * The names of the attributes kept in the cookie, or null for all attributes.
+     */
+    private final Set<String> attributes;
+
+    /**
+     * The keys, with the key which makes new cookies first.
+     */
+    private volatile Key[] keys;
+
+    /**
+     * The time the key file was last changed, when we read it.
+     */
+    private volatile long keysModified;
+
+    /**
+     * The time we check the key file again.
+     */
+    private volatile long nextReload;
+
+    /**
+     * Generates the IVs.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong issued;
+    private final AtomicLong tooLarge;
+    private final AtomicLong valid;
+    private final AtomicLong invalid;
+    private final AtomicLong expired;
+
+    /**
+     * Creates the cookie from the configuration.
+     *
+     * @param config the configuration of the servlet.
+     * @param file the key file.
+     * @throws ServletException if the configuration or the key file is invalid.
+     */
+    private SessionCookie(Config config, File file) throws ServletException {
+        this.file = file;
+        this.tenant = config.getTenant();
+        this.name = cookieName(COOKIE, this.tenant);
+        this.maxAge = config.getLongProperty("no.feide.test.session.maxage", 3600000);
+        this.encrypt = config.getBooleanProperty("no.feide.test.cookie.encrypt", false);
+        Metrics metrics = Metrics.getInstance();
+        this.issued = metrics.counter(config.getMetricName("session.cookie.issued"));
+        this.tooLarge = metrics.counter(config.getMetricName("session.cookie.too_large"));
+        this.valid = metrics.counter(config.getMetricName("session.cookie.valid"));
+        this.invalid = metrics.counter(config.getMetricName("session.cookie.invalid"));
+        this.expired = metrics.counter(config.getMetricName("session.cookie.expired"));
+
+        String names = config.getProperty("no.feide.test.cookie.attributes");
+        if(names == null) {
+            this.attributes = null;
+        } else {
+            this.attributes = new HashSet<String>();
+            for(String name : names.split(",")) {
+                if(name.trim().length() > 0) {
+                    this.attributes.add(name.trim());
+                }
+            }
+        }
+
+        this.keysModified = file.lastModified();
+        this.keys = readKeys(file);
+        this.nextReload = System.currentTimeMillis() + RELOAD_INTERVAL;
+    }
+
+    /**
+     * Creates the cookie from the configuration, if it is enabled.
+     *
+     * @param config the configuration of the servlet.
+     * @return the cookie, or null if no.feide.test.cookie.keys isn't set.
+     * @throws ServletException if the configuration or the key file is invalid.
+     */
+    static SessionCookie create(Config config) throws ServletException {
+        String path = config.getProperty("no.feide.test.cookie.keys");
+        if(path == null) {
+            return null;
+        }
+        return new SessionCookie(config, new File(config.findRequiredFilePath(path)));
+    }
+
+    /**
+     * Names a cookie of an SP.
+     *
+     * @param name the name of the cookie.
+     * @param tenant the tenant, or null if the servlet serves a single SP.
+     * @return the name of the cookie of the SP.
+     */
+    static String cookieName(String name, String tenant) {
+        return tenant == null ? name : name + "_" + tenant;
+    }
+
+    /**
+     * Gets the name of the cookie.
+     *
+     * @return the name.
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * Reads the key file.
+     *
+     * @param file the key file.
+     * @return the keys, in the order of the file.
+     * @throws ServletException if the file can't be read, or has no valid keys.
+     */
+    private static Key[] readKeys(File file) throws ServletException {
+        List<Key> keys = new ArrayList<Key>();
+        for(String line : SamlCrypto.readFile(file.getAbsolutePath()).split("\n")) {
+            line = line.trim();
+            if(line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            byte[] master = parts.length == 2 ? Base64.decode(parts[1]) : null;
+            if(master == null || master.length < 16 || !parts[0].matches("[A-Za-z0-9]{1,16}")) {
+                throw new ServletException("Each line of " + file + " must be a key ID of up to 16 letters "
+                        + "and digits, and a base64 encoded key of at least 16 bytes.");
+            }
+            try {
+                keys.add(new Key(parts[0], master));
+            } catch(GeneralSecurityException e) {
+                throw new ServletException("Unable to use the key " + parts[0] + " in " + file, e);
+            }
+        }
+        if(keys.isEmpty()) {
+            throw new ServletException("No keys in " + file);
+        }
+        return keys.toArray(new Key[keys.size()]);
+    }
+
+    /**
+     * Reads the key file again if it has changed. If the new file is invalid, the old keys are
+     * kept.
+     *
+     * @param now the current time.
+     */
+    private void reloadKeys(long now) {
+        if(now < this.nextReload) {
+            return;
+        }
+        this.nextReload = now + RELOAD_INTERVAL;
+        long modified = this.file.lastModified();
+        if(modified == this.keysModified) {
+            return;
+        }
+        try {
+            this.keys = readKeys(this.file);
+            this.keysModified = modified;
+            this.debug.message("Read the session cookie keys from " + this.file);
+        } catch(ServletException e) {
+            this.debug.error("Keeping the old session cookie keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets a cookie with a login on a response.
+     *
+     * @param request the request which finished the login.
+     * @param response the response.
+     * @param attributes the attributes of the user.
+     * @param nameId the NameID of the user, or null.
+     * @return the tag of the login in the cookie, as returned by read(), or null if the
+     *         attributes don't fit in a cookie.
+     * @throws ServletException if we fail to sign or encrypt the cookie.
+     */
+    String issue(HttpServletRequest request, HttpServletResponse response, Map<String, Attribute> attributes,
+            Attribute nameId) throws ServletException {
+        long now = System.currentTimeMillis();
+        this.reloadKeys(now);
+        Key key = this.keys[0];
+
+        Map<String, Attribute> kept = new LinkedHashMap<String, Attribute>();
+        for(Attribute a : attributes.values()) {
+            if(this.attributes == null || this.attributes.contains(a.getName())) {
+                kept.put(a.getName(), a);
+            }
+        }
+        byte[] payload = new WorkerProtocol.Body().writeString(Long.toString(now)).writeNameId(nameId)
+            .writeAttributes(kept).toByteArray();
+
+        StringBuilder sb = new StringBuilder(256);
+        try {
+            if(this.encrypt) {
+                byte[] iv = new byte[16];
+                this.random.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, key.encryptionKey, new IvParameterSpec(iv));
+                byte[] encrypted = new byte[16 + cipher.getOutputSize(payload.length)];
+                System.arraycopy(iv, 0, encrypted, 0, 16);
+                int length = 16 + cipher.doFinal(payload, 0, payload.length, encrypted, 16);
+                sb.append(ENCRYPTED);
+                payload = new byte[length];
+                System.arraycopy(encrypted, 0, payload, 0, length);
+            } else {
+                sb.append(SIGNED);
+            }
+        } catch(GeneralSecurityException e) {
+            throw new ServletException("Unable to encrypt the session cookie.", e);
+        }
+        sb.append('.').append(key.id).append('.').append((now + this.maxAge) / 1000).append('.');
+        sb.append(encode(payload, payload.length));
+
+        byte[] mac = key.macs.get().doFinal(Utf8Output.encode(this.name + "=" + sb));
+        String tag = encode(mac, MAC_LENGTH);
+        sb.append('.').append(tag);
+
+        if(sb.length() > MAX_LENGTH) {
+            this.tooLarge.incrementAndGet();
+            this.debug.warning("The attributes don't fit in a session cookie of " + MAX_LENGTH + " bytes. "
+                    + "Use no.feide.test.cookie.attributes to keep fewer attributes in it.");
+            return null;
+        }
+        this.write(request, response, sb.toString(), this.maxAge / 1000);
+        this.issued.incrementAndGet();
+        return "c" + tag;
+    }
+
+    /**
+     * Removes the cookie from the client.
+     *
+     * @param request the request.
+     * @param response the response.
+     */
+    void clear(HttpServletRequest request, HttpServletResponse response) {
+        this.write(request, response, "", 0);
+    }
+
+    /**
+     * Writes the cookie header. The cookie is HttpOnly, which Servlet 2.4 can't set.
+     *
+     * @param request the request.
+     * @param response the response.
+     * @param value the value of the cookie.
+     * @param maxAge the number of seconds the client keeps the cookie.
+     */
+    private void write(HttpServletRequest request, HttpServletResponse response, String value, long maxAge) {
+        writeCookie(request, response, this.name, value, maxAge, this.tenant);
+    }
+
+    /**
+     * Writes the header of an HttpOnly cookie for the context path, or for the servlet path of
+     * a tenant, which ends with the name of the tenant when tenants are chosen by path.
+     *
+     * @param request the request.
+     * @param response the response.
+     * @param name the name of the cookie.
+     * @param value the value of the cookie.
+     * @param maxAge the number of seconds the client keeps the cookie.
+     * @param tenant the tenant, or null if the servlet serves a single SP.
+     */
+    static void writeCookie(HttpServletRequest request, HttpServletResponse response, String name, String value,
+            long maxAge, String tenant) {
+        String path = request.getContextPath() + (tenant == null ? "" : request.getServletPath());
+        if(path.length() == 0) {
+            path = "/";
+        }
+        response.addHeader("Set-Cookie", name + "=" + value + "; Path=" + path + "; Max-Age=" + maxAge
+                + (request.isSecure() ? "; Secure" : "") + "; HttpOnly");
+    }
+
+    /**
+     * Checks whether a request carries the cookie.
+     *
+     * @param header the Cookie header of the request, or null.
+     * @return true if the header has the cookie, whether or not it is valid.
+     */
+    boolean present(String header) {
+        return header != null && find(header, this.name) >= 0;
+    }
+
+    /**
+     * Checks the cookie in a Cookie header. This doesn't allocate.
+     *
+     * @param header the Cookie header of the request, or null.
+     * @return true if the header has a cookie which is signed with one of our keys, and hasn't
+     *         expired.
+     */
+    boolean verify(String header) {
+        return header != null && this.check(header, scratches.get(), true) != null;
+    }
+
+    /**
+     * Reads the login in the cookie of a request.
+     *
+     * @param request the request.
+     * @return the login, or null if the request has no valid cookie.
+     */
+    LocalSessions.Login read(HttpServletRequest request) {
+        String header = request.getHeader("Cookie");
+        if(header == null) {
+            return null;
+        }
+        // SessionCookieFilter has already checked the signature, if it checked this cookie.
+        boolean verified = this.name.equals(request.getAttribute(VERIFIED));
+        Scratch scratch = scratches.get();
+        Key key = this.check(header, scratch, !verified);
+        if(key == null) {
+            return null;
+        }
+
+        int[] marks = scratch.marks;
+        byte[] payload = new byte[(marks[4] - marks[3] - 1) * 3 / 4 + 3];
+        int length = decode(header, marks[3] + 1, marks[4], payload);
+        try {
+            if(header.charAt(marks[0]) == ENCRYPTED) {
+                if(length < 32) {
+                    return null;
+                }
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey, new IvParameterSpec(payload, 0, 16));
+                payload = cipher.doFinal(payload, 16, length - 16);
+                length = payload.length;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+            long time = Long.parseLong(WorkerProtocol.readString(in));
+            Attribute nameId = WorkerProtocol.readNameId(in);
+            Map<String, Attribute> attributes = WorkerProtocol.readAttributes(in);
+            return new LocalSessions.Login(time, attributes, nameId,
+                    "c" + header.substring(marks[4] + 1, marks[5]));
+        } catch(GeneralSecurityException e) {
+            this.debug.warning("Unable to decrypt a signed session cookie: " + e);
+            return null;
+        } catch(IOException e) {
+            this.debug.warning("Unable to decode a signed session cookie: " + e);
+            return null;
+        } catch(NumberFormatException e) {
+            this.debug.warning("Unable to decode a signed session cookie: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Parses the cookie in a Cookie header, and checks the key, the expiry and the signature.
+     * This doesn't allocate. The positions of the dots and the ends of the value are left in
+     * scratch.marks.
+     *
+     * @param header the Cookie header.
+     * @param scratch the buffers of this thread.
+     * @param checkMac whether the signature is checked.
+     * @return the key of the cookie, or null if the cookie is missing or invalid.
+     */
+    private Key check(String header, Scratch scratch, boolean checkMac) {
+        int start = find(header, this.name);
+        if(start < 0) {
+            return null;
+        }
+        int end = header.indexOf(';', start);
+        if(end < 0) {
+            end = header.length();
+        }
+        while(end > start && header.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        int[] marks = scratch.marks;
+        marks[0] = start;
+        marks[5] = end;
+        int dot = start - 1;
+        for(int i = 1; i <= 4; i++) {
+            dot = header.indexOf('.', dot + 1);
+            if(dot < 0 || dot >= end) {
+                this.invalid.incrementAndGet();
+                return null;
+            }
+            marks[i] = dot;
+        }
+        int extra = header.indexOf('.', marks[4] + 1);
+        char version = header.charAt(start);
+        if((extra >= 0 && extra < end) || end - start > MAX_LENGTH || marks[1] != start + 1
+                || (version != SIGNED && version != ENCRYPTED)) {
+            this.invalid.incrementAndGet();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        this.reloadKeys(now);
+        Key key = null;
+        for(Key k : this.keys) {
+            if(k.id.length() == marks[2] - marks[1] - 1 && header.regionMatches(marks[1] + 1, k.id, 0, k.id.length())) {
+                key = k;
+                break;
+            }
+        }
+        if(key == null) {
+            this.invalid.incrementAndGet();
+            return null;
+        }
+
+        long expires = 0;
+        for(int i = marks[2] + 1; i < marks[3]; i++) {
+            char c = header.charAt(i);
+            if(c < '0' || c > '9' || i - marks[2] > 12) {
+                this.invalid.incrementAndGet();
+                return null;
+            }
+            expires = expires * 10 + (c - '0');
+        }
+        if(expires * 1000 <= now) {
+            this.expired.incrementAndGet();
+            return null;
+        }
+
+        if(checkMac) {
+            if(marks[5] - marks[4] - 1 > 24 || decode(header, marks[4] + 1, marks[5], scratch.actual) != MAC_LENGTH) {
+                this.invalid.incrementAndGet();
+                return null;
+            }
+            // The name of the cookie is signed with the value.
+            int from = start - this.name.length() - 1;
+            int length = marks[4] - from;
+            for(int i = 0; i < length; i++) {
+                scratch.text[i] = (byte)header.charAt(from + i);
+            }
+            Mac mac = key.macs.get();
+            mac.update(scratch.text, 0, length);
+            try {
+                mac.doFinal(scratch.expected, 0);
+            } catch(GeneralSecurityException e) {
+                // The buffer holds a whole HMAC-SHA256.
+                throw new IllegalStateException(e);
+            }
+
+            // Compare every byte, so that the time doesn't tell how much of the MAC is right.
+            int difference = 0;
+            for(int i = 0; i < MAC_LENGTH; i++) {
+                difference |= scratch.expected[i] ^ scratch.actual[i];
+            }
+            if(difference != 0) {
+                this.invalid.incrementAndGet();
+                return null;
+            }
+            this.valid.incrementAndGet();
+        }
+        return key;
+    }
+
+    /**
+     * Finds the value of a cookie in a Cookie header.
+     *
+     * @param header the Cookie header.
+     * @param name the name of the cookie.
+     * @return the index of the first character of the value, or -1 if the header doesn't have
+     *         the cookie.
+     */
+    private static int find(String header, String name) {
+        int i = 0;
+        while((i = header.indexOf(name, i)) >= 0) {
+            int after = i + name.length();
+            boolean startsName = i == 0 || header.charAt(i - 1) == ' ' || header.charAt(i - 1) == ';';
+            if(startsName && after < header.length() && header.charAt(after) == '=') {
+                return after + 1;
+            }
+            i = after;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes bytes as base64url, without padding.
+     *
+     * @param bytes the bytes.
+     * @param length the number of bytes to encode.
+     * @return the encoded bytes.
+     */
+    private static String encode(byte[] bytes, int length) {
+        String s = Base64.encodeBytes(bytes, 0, length, Base64.URL_SAFE | Base64.DONT_BREAK_LINES);
+        int end = s.length();
+        while(end > 0 && s.charAt(end - 1) == '=') {
+            end--;
+        }
+        return s.substring(0, end);
+    }
+
+    /**
+     * Decodes base64url without padding. This doesn't allocate.
+     *
+     * @param s the string.
+     * @param from the index of the first character.
+     * @param to the index after the last character.
+     * @param out the buffer we decode to, which must be large enough.
+     * @return the number of bytes decoded, or -1 if the string isn't valid base64url.
+     */
+    private static int decode(String s, int from, int to, byte[] out) {
+        if((to - from) % 4 == 1) {
+            return -1;
+        }
+        int bits = 0;
+        int count = 0;
+        int length = 0;
+        for(int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            int value = c < 128 ? DECODE[c] : -1;
+            if(value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            count += 6;
+            if(count >= 8) {
+                count -= 8;
+                out[length++] = (byte)(bits >> count);
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,89 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks the signed session cookie before a request reaches TestServlet or GatewayServlet. A
+ * valid cookie is marked on the request, so that the login is read from it without checking
+ * the signature again. An invalid or expired cookie is removed from the client, and the request
+ * goes on as if the user wasn't logged in.
+ *
+ * The check doesn't allocate, and needs no state shared with other nodes. The filter does
+ * nothing unless no.feide.test.cookie.keys is set. It only checks the cookie of the top-level
+ * SP; the cookies of tenants are named and signed by each tenant, and checked by the tenant.
+ */
+public class SessionCookieFilter implements Filter {
+
+    /**
+     * Checks the cookies, or null if the cookie is disabled.
+     */
+    private SessionCookie cookie;
+
+    /**
+     * Reads the configuration.
+     *
+     * @see javax.servlet.Filter#init(FilterConfig)
+     */
+    public void init(FilterConfig filterConfig) throws ServletException {
+        this.init(new Config(filterConfig.getServletContext()));
+    }
+
+    /**
+     * Initializes the filter with a configuration which is already loaded. This is used when
+     * the filter runs without a servlet container, in StandaloneServer.
+     *
+     * @param config the configuration.
+     * @throws ServletException if the configuration or the key file is invalid.
+     */
+    void init(Config config) throws ServletException {
+        if(config.getLongProperty("no.feide.test.session.maxage", 3600000) > 0) {
+            this.cookie = SessionCookie.create(config);
+        }
+    }
+
+    /**
+     * Checks the cookie of a request, and passes the request on.
+     *
+     * @see javax.servlet.Filter#doFilter(ServletRequest, ServletResponse, FilterChain)
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+    throws IOException, ServletException {
+        if(request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
+            this.check((HttpServletRequest)request, (HttpServletResponse)response);
+        }
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * Checks the cookie of a request.
+     *
+     * @param request the request.
+     * @param response the response, which removes an invalid cookie.
+     */
+    void check(HttpServletRequest request, HttpServletResponse response) {
+        if(this.cookie == null) {
+            return;
+        }
+        String header = request.getHeader("Cookie");
+        if(this.cookie.verify(header)) {
+            request.setAttribute(SessionCookie.VERIFIED, this.cookie.getName());
+        } else if(this.cookie.present(header)) {
+            this.cookie.clear(request, response);
+        }
+    }
+
+    /**
+     * @see javax.servlet.Filter#destroy()
+     */
+    public void destroy() {
+    }
+}
@@ -0,0 +1,546 @@
+package no.feide.client.lasso;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the logins on this node, so that a logout request from the IdP logs out every
+ * session it names, not only the session of the browser which brought it. There is one registry
+ * for each JVM, shared by TestServlet, GatewayServlet and every tenant, so a logout received by
+ * one of them is seen by all of them.
+ *
+ * A session is found by the tag of its login. It is indexed by its user, which is the NameID in
+ * the scope of the context root of the login, and by the user and the SessionIndex the IdP gave
+ * the login, so that a logout request finds its sessions without a scan. A user has at most a
+ * configured number of sessions; the oldest session is logged out when the user logs in once
+ * more.
+ *
+ * A session which is logged out is kept, marked as logged out, until the login would have
+ * expired, so that a copy of its cookie isn't accepted on this node. Sessions are forgotten
+ * when they expire by a hierarchical timing wheel, so expiry never scans the sessions.
+ *
+ * The sessions of a user are kept in one of many stripes, chosen by the NameID. Each stripe has
+ * its own lock and timing wheel, so logins and logouts of different users rarely contend. The
+ * check made on every request only reads a concurrent map.
+ */
+class SessionRegistry {
+
+    /**
+     * The number of milliseconds in a tick of the timing wheels.
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * The number of bits of a tick which select a slot in each level of a wheel, and the
+     * number of levels. Four levels of 64 slots reach 64^4 ticks, about 194 days.
+     */
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A login.
+     */
+    private static final class Session {
+
+        /**
+         * The tag of the login.
+         */
+        final String tag;
+
+        /**
+         * The user, or null if the IdP sent no NameID.
+         */
+        final String user;
+
+        /**
+         * The SessionIndex of the login at the IdP, or null if the IdP sent none.
+         */
+        final String sessionIndex;
+
+        /**
+         * The tick at which the login expires.
+         */
+        final long expires;
+
+        /**
+         * Whether the session was logged out before it expired.
+         */
+        volatile boolean loggedOut = false;
+
+        /**
+         * The neighbours of this session in its slot of the timing wheel.
+         */
+        Session previous;
+        Session next;
+
+        /**
+         * Creates a session.
+         *
+         * @param tag the tag of the login.
+         * @param user the user, or null.
+         * @param sessionIndex the SessionIndex of the login, or null.
+         * @param expires the tick at which the login expires.
+         */
+        Session(String tag, String user, String sessionIndex, long expires) {
+            this.tag = tag;
+            this.user = user;
+            this.sessionIndex = sessionIndex;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The sessions of some of the users, with a lock and a timing wheel.
+     */
+    private final class Stripe {
+
+        /**
+         * The sessions of each user, oldest first.
+         */
+        private final Map<String, List<Session>> byUser = new HashMap<String, List<Session>>();
+
+        /**
+         * The sessions of each login at the IdP, by user and SessionIndex.
+         */
+        private final Map<String, List<Session>> bySessionIndex = new HashMap<String, List<Session>>();
+
+        /**
+         * The heads of the lists of sessions in each slot of each level of the wheel.
+         */
+        private final Session[][] wheel = new Session[LEVELS][SLOTS];
+
+        /**
+         * The next tick this wheel will process.
+         */
+        private long base = System.currentTimeMillis() / TICK;
+
+        /**
+         * The number of sessions in this stripe which aren't logged out.
+         */
+        private int active = 0;
+
+        /**
+         * Adds a session. Logs out the oldest sessions of the user if the user has too many.
+         *
+         * @param session the session.
+         * @param perUser the largest number of sessions of the user, or 0 for no limit.
+         * @param now the current time.
+         * @return the tags of the sessions which were logged out.
+         */
+        synchronized List<String> add(Session session, int perUser, long now) {
+            this.advance(now);
+            this.schedule(session);
+            this.active++;
+            if(session.user == null) {
+                return Collections.emptyList();
+            }
+
+            List<Session> sessions = this.byUser.get(session.user);
+            if(sessions == null) {
+                sessions = new ArrayList<Session>(2);
+                this.byUser.put(session.user, sessions);
+            }
+            sessions.add(session);
+            if(session.sessionIndex != null) {
+                String key = session.user + '\n' + session.sessionIndex;
+                List<Session> sameIndex = this.bySessionIndex.get(key);
+                if(sameIndex == null) {
+                    sameIndex = new ArrayList<Session>(1);
+                    this.bySessionIndex.put(key, sameIndex);
+                }
+                sameIndex.add(session);
+            }
+
+            List<String> evicted = Collections.emptyList();
+            while(perUser > 0 && sessions.size() > perUser) {
+                Session oldest = sessions.get(0);
+                this.logOut(oldest);
+                SessionRegistry.this.evicted.incrementAndGet();
+                if(evicted.isEmpty()) {
+                    evicted = new ArrayList<String>(1);
+                }
+                evicted.add(oldest.tag);
+            }
+            return evicted;
+        }
+
+        /**
+         * Logs out the sessions of a user.
+         *
+         * @param user the user.
+         * @param sessionIndexes the SessionIndexes of the logins to log out, or an empty list
+         *        to log out every session of the user.
+         * @param now the current time.
+         * @return the tags of the sessions logged out.
+         */
+        synchronized List<String> logOut(String user, List<String> sessionIndexes, long now) {
+            this.advance(now);
+            List<Session> found = new ArrayList<Session>();
+            if(sessionIndexes.isEmpty()) {
+                List<Session> sessions = this.byUser.get(user);
+                if(sessions != null) {
+                    found.addAll(sessions);
+                }
+            } else {
+                for(String sessionIndex : sessionIndexes) {
+                    List<Session> sessions = this.bySessionIndex.get(user + '\n' + sessionIndex);
+                    if(sessions != null) {
+                        found.addAll(sessions);
+                    }
+                }
+            }
+            List<String> tags = new ArrayList<String>(found.size());
+            for(Session s : found) {
+                this.logOut(s);
+                tags.add(s.tag);
+            }
+            return tags;
+        }
+
+        /**
+         * Logs out a session.
+         *
+         * @param session the session.
+         */
+        synchronized void logOut(Session session) {
+            if(session.loggedOut) {
+                return;
+            }
+            session.loggedOut = true;
+            this.active--;
+            this.unindex(session);
+        }
+
+        /**
+         * Removes a session from the indexes by user and SessionIndex. The caller holds the
+         * lock.
+         *
+         * @param session the session.
+         */
+        private void unindex(Session session) {
+            if(session.user == null) {
+                return;
+            }
+            List<Session> sessions = this.byUser.get(session.user);
+            if(sessions != null && sessions.remove(session) && sessions.isEmpty()) {
+                this.byUser.remove(session.user);
+            }
+            if(session.sessionIndex != null) {
+                String key = session.user + '\n' + session.sessionIndex;
+                List<Session> sameIndex = this.bySessionIndex.get(key);
+                if(sameIndex != null && sameIndex.remove(session) && sameIndex.isEmpty()) {
+                    this.bySessionIndex.remove(key);
+                }
+            }
+        }
+
+        /**
+         * Expires the sessions whose ticks have passed.
+         *
+         * @param now the current time.
+         */
+        synchronized void advance(long now) {
+            long target = now / TICK;
+            while(this.base <= target) {
+                int index = (int)(this.base & MASK);
+                // When a level wraps, the next slot of the level above is spread over the
+                // levels below.
+                for(int level = 1; level < LEVELS && index == 0; level++) {
+                    index = this.cascade(level);
+                }
+
+                Session s = this.wheel[0][(int)(this.base & MASK)];
+                this.wheel[0][(int)(this.base & MASK)] = null;
+                while(s != null) {
+                    Session next = s.next;
+                    s.previous = null;
+                    s.next = null;
+                    this.expire(s);
+                    s = next;
+                }
+                this.base++;
+            }
+        }
+
+        /**
+         * Moves the sessions in the current slot of a level to the levels below.
+         *
+         * @param level the level.
+         * @return the index of the slot.
+         */
+        private int cascade(int level) {
+            int index = (int)((this.base >> (BITS * level)) & MASK);
+            Session s = this.wheel[level][index];
+            this.wheel[level][index] = null;
+            while(s != null) {
+                Session next = s.next;
+                s.previous = null;
+                s.next = null;
+                this.schedule(s);
+                s = next;
+            }
+            return index;
+        }
+
+        /**
+         * Puts a session in the slot of the wheel for its expiry. The caller holds the lock.
+         *
+         * @param session the session.
+         */
+        private void schedule(Session session) {
+            long expires = session.expires;
+            long delta = expires - this.base;
+            int level;
+            int index;
+            if(delta < 0) {
+                // Already expired; the next tick removes it.
+                level = 0;
+                index = (int)(this.base & MASK);
+            } else {
+                if(delta >= 1L << (BITS * LEVELS)) {
+                    // Beyond the wheel. It is moved down when it reaches the top slot.
+                    expires = this.base + (1L << (BITS * LEVELS)) - 1;
+                    delta = expires - this.base;
+                }
+                level = 0;
+                while(delta >= 1L << (BITS * (level + 1))) {
+                    level++;
+                }
+                index = (int)((expires >> (BITS * level)) & MASK);
+            }
+
+            Session head = this.wheel[level][index];
+            session.next = head;
+            if(head != null) {
+                head.previous = session;
+            }
+            this.wheel[level][index] = session;
+        }
+
+        /**
+         * Forgets a session which has expired. The caller holds the lock.
+         *
+         * @param session the session.
+         */
+        private void expire(Session session) {
+            SessionRegistry.this.sessions.remove(session.tag, session);
+            if(!session.loggedOut) {
+                this.active--;
+                this.unindex(session);
+                SessionRegistry.this.expired.incrementAndGet();
+            }
+        }
+
+        /**
+         * Gets the number of sessions in this stripe which aren't logged out.
+         *
+         * @return the number of sessions.
+         */
+        synchronized int getActive() {
+            return this.active;
+        }
+    }
+
+    /**
+     * The registry, or null if no servlet uses it.
+     */
+    private static SessionRegistry instance;
+
+    /**
+     * The number of servlets which use the registry.
+     */
+    private static int users = 0;
+
+    /**
+     * Every session, by tag, until it expires.
+     */
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    /**
+     * The stripes. The length is a power of two.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * The stripe of sessions without a NameID, which are only found by tag.
+     */
+    private final Stripe anonymous;
+
+    /**
+     * Advances the wheels of stripes which aren't used.
+     */
+    private final ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("session-expiry"));
+
+    private final AtomicLong loggedOutByIdp = Metrics.getInstance().counter("session.registry.idp_logouts");
+    private final AtomicLong expired = Metrics.getInstance().counter("session.registry.expired");
+    private final AtomicLong evicted = Metrics.getInstance().counter("session.registry.evicted");
+
+    /**
+     * Creates the registry.
+     */
+    private SessionRegistry() {
+        int count = 1;
+        while(count < 4 * Runtime.getRuntime().availableProcessors()) {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        for(int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.anonymous = new Stripe();
+
+        this.ticker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for(Stripe s : SessionRegistry.this.stripes) {
+                    s.advance(now);
+                }
+                SessionRegistry.this.anonymous.advance(now);
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        Metrics.getInstance().gauge("session.registry.active", new Metrics.Gauge() {
+            public long getValue() {
+                long active = SessionRegistry.this.anonymous.getActive();
+                for(Stripe s : SessionRegistry.this.stripes) {
+                    active += s.getActive();
+                }
+                return active;
+            }
+        });
+        Metrics.getInstance().gauge("session.registry.tracked", new Metrics.Gauge() {
+            public long getValue() {
+                return SessionRegistry.this.sessions.size();
+            }
+        });
+    }
+
+    /**
+     * Gets the registry, and starts it if no other servlet uses it. Every call must be followed
+     * by a call to release().
+     *
+     * @return the registry.
+     */
+    static synchronized SessionRegistry acquire() {
+        if(instance == null) {
+            instance = new SessionRegistry();
+        }
+        users++;
+        return instance;
+    }
+
+    /**
+     * Releases the registry. The thread which expires sessions is stopped, and the sessions
+     * are forgotten, when no servlet uses the registry.
+     */
+    static synchronized void release() {
+        users--;
+        if(users == 0) {
+            instance.ticker.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Makes the key of a user.
+     *
+     * @param scope the context root of the login.
+     * @param nameId the NameID of the user.
+     * @return the user.
+     */
+    private static String user(String scope, String nameId) {
+        return scope + '\n' + nameId;
+    }
+
+    /**
+     * Finds the stripe of a user.
+     *
+     * @param user the user, or null.
+     * @return the stripe.
+     */
+    private Stripe stripe(String user) {
+        if(user == null) {
+            return this.anonymous;
+        }
+        int h = user.hashCode();
+        h ^= h >>> 16;
+        return this.stripes[h & (this.stripes.length - 1)];
+    }
+
+    /**
+     * Adds a login, unless a login with the tag is already known.
+     *
+     * @param tag the tag of the login.
+     * @param scope the context root of the login.
+     * @param nameId the NameID of the user, or null if the IdP sent none.
+     * @param sessionIndex the SessionIndex of the login at the IdP, or null.
+     * @param expires the time the login expires, in milliseconds since the epoch.
+     * @param perUser the largest number of sessions of the user, or 0 for no limit.
+     * @return the tags of the older logins of the user which were logged out to make room.
+     */
+    List<String> add(String tag, String scope, String nameId, String sessionIndex, long expires, int perUser) {
+        String user = nameId == null ? null : user(scope, nameId);
+        Session session = new Session(tag, user, sessionIndex, (expires + TICK - 1) / TICK);
+        if(this.sessions.putIfAbsent(tag, session) != null) {
+            return Collections.emptyList();
+        }
+        return this.stripe(user).add(session, perUser, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether a login has been logged out. This is checked on every request with a
+     * login, and only reads a concurrent map.
+     *
+     * @param tag the tag of the login.
+     * @return true if the login was logged out on this node, and hasn't expired yet.
+     */
+    boolean isLoggedOut(String tag) {
+        Session session = this.sessions.get(tag);
+        return session != null && session.loggedOut;
+    }
+
+    /**
+     * Logs out a login.
+     *
+     * @param tag the tag of the login.
+     */
+    void logOut(String tag) {
+        Session session = this.sessions.get(tag);
+        if(session != null) {
+            this.stripe(session.user).logOut(session);
+        }
+    }
+
+    /**
+     * Logs out the sessions named by a logout request from the IdP. The NameID and the
+     * SessionIndexes must come from a request the backend has accepted, after it checked the
+     * signature and the issuer.
+     *
+     * @param scope the context root which received the logout request.
+     * @param nameId the value of the NameID in the request, or null if it has none.
+     * @param sessionIndexes the SessionIndexes in the request. If there are none, every session
+     *        of the user is logged out.
+     * @return the tags of the sessions logged out.
+     */
+    List<String> logOut(String scope, String nameId, List<String> sessionIndexes) {
+        if(nameId == null) {
+            // An encrypted or other kind of identifier, which we never index.
+            return Collections.emptyList();
+        }
+        String user = user(scope, nameId);
+        List<String> tags = this.stripe(user).logOut(user, sessionIndexes, System.currentTimeMillis());
+        this.loggedOutByIdp.addAndGet(tags.size());
+        return tags;
+    }
+}
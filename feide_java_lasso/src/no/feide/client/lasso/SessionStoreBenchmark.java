@@ -0,0 +1,260 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the MappedSessionStore with many sessions, and checks session files.
+ *
+ * 1. Fill: makes a new session file, and adds the sessions, each with a few attributes, a NameID
+ *    and a SessionIndex, like LocalSessions does. The Java heap used is reported before and
+ *    after, to show that it doesn't grow with the number of sessions.
+ * 2. Lookup: looks up random sessions from many threads, and reports lookups/sec.
+ * 3. Restart: closes the file, opens it again, and reports the time until the first session is
+ *    found, and lookups/sec again, while the file is repaired. The index is then checked against
+ *    the slots.
+ *
+ * Usage: java no.feide.client.lasso.SessionStoreBenchmark &lt;new file&gt; [sessions] [slot size]
+ *     [threads] [seconds]
+ *    or: java no.feide.client.lasso.SessionStoreBenchmark -check &lt;session file&gt;
+ *
+ * With -check, an existing session file is opened, for example after a crash, which repairs it:
+ * the broken records and stale index entries it removed, and the records it added to the index,
+ * are logged. The records without an index entry and the stale index entries which are left,
+ * which should be none, are then counted.
+ */
+public final class SessionStoreBenchmark {
+
+    /**
+     * This class only has a main method.
+     */
+    private SessionStoreBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark, or checks a file.
+     *
+     * @param args the file, the number of sessions, the slot size, the number of threads and the
+     *        number of seconds to look up sessions; or -check and a file.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length == 2 && "-check".equals(args[0])) {
+            check(new File(args[1]));
+            return;
+        }
+        if(args.length < 1 || args.length > 5) {
+            System.err.println("Usage: java " + SessionStoreBenchmark.class.getName()
+                    + " <new file> [sessions] [slot size] [threads] [seconds]");
+            System.err.println("   or: java " + SessionStoreBenchmark.class.getName() + " -check <session file>");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        final int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
+        int slotSize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 10;
+        if(file.exists()) {
+            System.err.println(file + " exists. The benchmark makes a new file; remove it first.");
+            System.exit(2);
+        }
+
+        try {
+            System.out.println(sessions + " sessions in slots of " + slotSize + " bytes, " + threads + " threads");
+            long heapBefore = usedHeap();
+            MappedSessionStore store = MappedSessionStore.open(file, sessions, slotSize);
+            long now = System.currentTimeMillis();
+            long expires = now + 24 * 3600 * 1000L;
+            long start = System.nanoTime();
+            for(int i = 0; i < sessions; i++) {
+                if(!store.put(key(i), expires, data(i, now), now)) {
+                    throw new IllegalStateException("Session " + i + " didn't fit.");
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println("fill:    " + elapsed / 1000000 + " ms, " + rate(sessions, elapsed) + " puts/sec; "
+                    + file.length() / (1024 * 1024) + " MiB file; heap used " + heapBefore / 1024 + " KiB before, "
+                    + usedHeap() / 1024 + " KiB after");
+
+            lookups("lookup: ", store, sessions, threads, seconds);
+            store.close();
+
+            start = System.nanoTime();
+            store = MappedSessionStore.open(file, sessions, slotSize);
+            if(store.get(key(sessions / 2), System.currentTimeMillis()) == null) {
+                throw new IllegalStateException("Session " + sessions / 2 + " is missing after the restart.");
+            }
+            elapsed = System.nanoTime() - start;
+            System.out.println("restart: first session found " + elapsed / 1000 + " us after the file was opened");
+            lookups("lookup: ", store, sessions, threads, seconds);
+            store.awaitRepair();
+            report(store.check(System.currentTimeMillis()));
+            System.out.println("heap used " + usedHeap() / 1024 + " KiB");
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checks a session file.
+     *
+     * @param file the file.
+     * @throws Exception if the file isn't a session file.
+     */
+    private static void check(File file) throws Exception {
+        if(!file.isFile()) {
+            System.err.println(file + " doesn't exist.");
+            System.exit(2);
+        }
+        MappedSessionStore store = MappedSessionStore.open(file, 1, 128);
+        store.awaitRepair();
+        report(store.check(System.currentTimeMillis()));
+        store.close();
+    }
+
+    /**
+     * Writes the result of a check.
+     *
+     * @param result the records, the records without an index entry and the stale index
+     *        entries.
+     */
+    private static void report(long[] result) {
+        System.out.println("check:   " + result[0] + " records, " + result[1] + " without an index entry, "
+                + result[2] + " stale index entries");
+    }
+
+    /**
+     * Looks up random sessions from many threads.
+     *
+     * @param label the label of the result.
+     * @param store the store.
+     * @param sessions the number of sessions in the store.
+     * @param threads the number of threads.
+     * @param seconds the number of seconds to run.
+     * @throws Exception if a session is missing.
+     */
+    private static void lookups(String label, final MappedSessionStore store, final int sessions, int threads,
+            long seconds) throws Exception {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("session-benchmark"));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for(int t = 0; t < threads; t++) {
+                final long seed = 0x9E3779B97F4A7C15L * (t + 1);
+                futures.add(pool.submit(new Callable<Long>() {
+                    public Long call() {
+                        long x = seed;
+                        long count = 0;
+                        long now = System.currentTimeMillis();
+                        while((count & 1023) != 0 || System.nanoTime() < deadline) {
+                            x ^= x << 13;
+                            x ^= x >>> 7;
+                            x ^= x << 17;
+                            int i = (int)((x >>> 1) % sessions);
+                            if(store.get(key(i), now) == null) {
+                                throw new IllegalStateException("Session " + i + " is missing.");
+                            }
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            long total = 0;
+            for(Future<Long> f : futures) {
+                total += f.get();
+            }
+            System.out.println(label + " " + rate(total, System.nanoTime() - start) + " lookups/sec");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes the key of a session. The keys are random, like the SHA-256 of the IDs in the
+     * cookies, but can be made again without keeping them on the heap.
+     *
+     * @param i the number of the session.
+     * @return the key.
+     */
+    private static byte[] key(int i) {
+        byte[] key = new byte[MappedSessionStore.KEY_LENGTH];
+        long a = mix(i);
+        long b = mix(i ^ 0x5DEECE66DL);
+        for(int j = 0; j < 8; j++) {
+            key[j] = (byte)(a >>> (56 - 8 * j));
+            key[8 + j] = (byte)(b >>> (56 - 8 * j));
+        }
+        return key;
+    }
+
+    /**
+     * Mixes the bits of a number, with the finalizer of MurmurHash3.
+     *
+     * @param z the number.
+     * @return the mixed number.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Makes the data of a session, as LocalSessions does.
+     *
+     * @param i the number of the session.
+     * @param now the time of the login.
+     * @return the data.
+     */
+    private static byte[] data(int i, long now) {
+        Map<String, Attribute> attributes = new LinkedHashMap<String, Attribute>();
+        Attribute eppn = new Attribute("eduPersonPrincipalName");
+        eppn.addValue("user" + i + "@example.org");
+        attributes.put(eppn.getName(), eppn);
+        Attribute affiliation = new Attribute("eduPersonAffiliation");
+        affiliation.addValue("member");
+        affiliation.addValue("student");
+        attributes.put(affiliation.getName(), affiliation);
+        Attribute nameId = new Attribute(Attribute.NAME_ID);
+        nameId.addValue("_" + Long.toHexString(mix(i)));
+        nameId.addValue("urn:oasis:names:tc:SAML:2.0:nameid-format:transient");
+        nameId.addValue("");
+        nameId.addValue("");
+        LassoBackend.LoginResult login = new LassoBackend.LoginResult(attributes, nameId,
+                "s2" + Long.toHexString(mix(~i)));
+        return new WorkerProtocol.Body().writeString(LocalSessions.FILE_FORMAT).writeString(Long.toString(now))
+            .writeLogin(login).toByteArray();
+    }
+
+    /**
+     * Computes a rate.
+     *
+     * @param count the number of operations.
+     * @param nanos the time they took.
+     * @return the number of operations each second.
+     */
+    private static long rate(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1000000000L / nanos;
+    }
+
+    /**
+     * Measures the Java heap in use, after a garbage collection.
+     *
+     * @return the number of bytes.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,406 @@
+package no.feide.client.lasso;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Kills a process which writes to a MappedSessionStore, again and again, and checks the session
+ * file after each crash.
+ *
+ * Each round starts a writer in a new JVM, which adds and removes sessions at random until the
+ * file is full, and kills it with SIGKILL at a random moment. The writer notes each operation in
+ * a journal before it starts it and after it is done. The file is then opened again, and:
+ *
+ * - every session which was added and not removed must be found, with the data it was added with,
+ * - no session which was removed, or didn't fit, may be found,
+ * - the session of an operation which was cut short may or may not be found, but only with its
+ *   own data,
+ * - after the repair, every record must have an index entry, no index entry may be stale, and
+ *   the repair must not lose any session which was found before it.
+ *
+ * With -tear, a few random blocks of the index and the slots are also overwritten with zeros or
+ * garbage after each crash, like blocks which didn't reach the disk when the machine crashed.
+ * Sessions are then lost, and are only counted, but no session may be found with the wrong data.
+ *
+ * Usage: java no.feide.client.lasso.SessionStoreCrashTest &lt;new file&gt; [rounds] [sessions]
+ *     [-tear]
+ *
+ * The journal is kept next to the file. Both are removed if every check passes; otherwise they
+ * are kept, and the exit status is 1.
+ */
+public final class SessionStoreCrashTest {
+
+    /**
+     * The slot size of the file.
+     */
+    private static final int SLOT_SIZE = 256;
+
+    /**
+     * The lines of the journal: before and after a session is added, after it didn't fit, before
+     * and after it is removed, and after the writer found it lost.
+     */
+    private static final char PUTTING = 'p';
+    private static final char PUT = 'P';
+    private static final char FAILED = 'F';
+    private static final char REMOVING = 'r';
+    private static final char REMOVED = 'R';
+    private static final char LOST = 'L';
+
+    /**
+     * This class only has a main method.
+     */
+    private SessionStoreCrashTest() {
+    }
+
+    /**
+     * Runs the test, or the writer.
+     *
+     * @param args the file, the number of rounds, the number of slots of the file and -tear; or
+     *        -write, the file, the journal, the seed and the number of slots.
+     * @throws Exception if the test fails to run.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length == 5 && "-write".equals(args[0])) {
+            write(new File(args[1]), new File(args[2]), Long.parseLong(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+        List<String> rest = new ArrayList<String>(Arrays.asList(args));
+        boolean tear = rest.remove("-tear");
+        if(rest.size() < 1 || rest.size() > 3) {
+            System.err.println("Usage: java " + SessionStoreCrashTest.class.getName()
+                    + " <new file> [rounds] [sessions] [-tear]");
+            System.exit(2);
+        }
+        File file = new File(rest.get(0));
+        int rounds = rest.size() > 1 ? Integer.parseInt(rest.get(1)) : 20;
+        int sessions = rest.size() > 2 ? Integer.parseInt(rest.get(2)) : 2000;
+        File journal = new File(file.getPath() + ".journal");
+        if(file.exists() || journal.exists()) {
+            System.err.println(file + " or " + journal + " exists. The test makes a new file; remove them first.");
+            System.exit(2);
+        }
+
+        System.out.println(rounds + " rounds, " + sessions + " sessions" + (tear ? ", torn blocks" : ""));
+        Random random = new Random();
+        long failures = 0;
+        for(int round = 1; round <= rounds; round++) {
+            crash(file, journal, random.nextLong(), sessions, random);
+            if(tear) {
+                tear(file, random);
+            }
+            failures += verify(round, file, journal, sessions, tear);
+        }
+        if(failures != 0) {
+            System.out.println(failures + " checks failed. The file and the journal are kept.");
+            System.exit(1);
+        }
+        file.delete();
+        journal.delete();
+    }
+
+    /**
+     * Starts a writer, and kills it while it writes.
+     *
+     * @param file the session file.
+     * @param journal the journal.
+     * @param seed the seed of the writer.
+     * @param sessions the number of slots of the file.
+     * @param random the random numbers of the test.
+     * @throws Exception if the writer fails to start, or stops by itself.
+     */
+    private static void crash(File file, File journal, long seed, int sessions, Random random) throws Exception {
+        long before = journal.length();
+        Process writer = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), SessionStoreCrashTest.class.getName(), "-write",
+                file.getPath(), journal.getPath(), Long.toString(seed), Integer.toString(sessions))
+            .redirectErrorStream(true).start();
+        drain(writer.getInputStream());
+
+        // Wait until the writer is busy, and let it write for a while.
+        long deadline = System.currentTimeMillis() + 60000;
+        while(journal.length() <= before + 1) {
+            if(System.currentTimeMillis() > deadline || hasExited(writer)) {
+                writer.destroy();
+                throw new IllegalStateException("The writer didn't start.");
+            }
+            Thread.sleep(10);
+        }
+        Thread.sleep(random.nextInt(500));
+        kill(writer);
+        writer.waitFor();
+    }
+
+    /**
+     * Reads the output of a writer, so that it doesn't block.
+     *
+     * @param in the output.
+     */
+    private static void drain(final InputStream in) {
+        new DaemonThreadFactory("crash-test-output").newThread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    while(in.read(buffer) >= 0) {
+                        // Discard the output.
+                    }
+                } catch(IOException e) {
+                    // The writer is gone.
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Checks whether a process has exited.
+     *
+     * @param process the process.
+     * @return true if it has exited.
+     */
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch(IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Kills a process with SIGKILL, which Process.destroyForcibly() sends from Java 8. Before,
+     * Process.destroy() sends SIGTERM, which also stops the writer in the middle of what it does,
+     * since it has no shutdown hooks.
+     *
+     * @param process the process.
+     */
+    private static void kill(Process process) {
+        try {
+            Method m = Process.class.getMethod("destroyForcibly");
+            m.invoke(process);
+        } catch(Exception e) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Overwrites a few random blocks after the header of a session file with zeros or garbage.
+     *
+     * @param file the file.
+     * @param random the random numbers of the test.
+     * @throws IOException if the file can't be written.
+     */
+    private static void tear(File file, Random random) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            long blocks = (f.length() - 4096) / 512;
+            for(int n = random.nextInt(4); n >= 0; n--) {
+                byte[] block = new byte[512];
+                if(random.nextBoolean()) {
+                    random.nextBytes(block);
+                }
+                f.seek(4096 + (long)random.nextInt((int)blocks) * 512);
+                f.write(block);
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Checks the session file against the journal, after a crash.
+     *
+     * @param round the number of the round.
+     * @param file the session file.
+     * @param journal the journal.
+     * @param sessions the number of slots of the file.
+     * @param tear whether blocks of the file were overwritten, so that sessions may be lost.
+     * @return the number of checks which failed.
+     * @throws Exception if the file can't be opened.
+     */
+    private static long verify(int round, File file, File journal, int sessions, boolean tear) throws Exception {
+        Map<Integer, Character> state = readJournal(journal);
+        MappedSessionStore store = MappedSessionStore.open(file, sessions, SLOT_SIZE);
+        try {
+            long now = System.currentTimeMillis();
+            int present = 0;
+            int missing = 0;
+            int resurrected = 0;
+            int wrong = 0;
+            List<Integer> found = new ArrayList<Integer>();
+            for(Map.Entry<Integer, Character> e : state.entrySet()) {
+                int i = e.getKey();
+                char op = e.getValue();
+                byte[] data = store.get(key(i), now);
+                if(data != null && !Arrays.equals(data, data(i))) {
+                    wrong++;
+                } else if(data != null) {
+                    found.add(i);
+                    if(op == PUT) {
+                        present++;
+                    } else if(op != PUTTING && op != REMOVING) {
+                        resurrected++;
+                    }
+                } else if(op == PUT) {
+                    missing++;
+                }
+            }
+
+            store.awaitRepair();
+            int lostByRepair = 0;
+            for(int i : found) {
+                if(store.get(key(i), now) == null) {
+                    lostByRepair++;
+                }
+            }
+            long[] check = store.check(now);
+
+            System.out.println("round " + round + ": " + present + " present, " + missing + " missing, "
+                    + resurrected + " resurrected, " + wrong + " wrong, " + lostByRepair + " lost by the repair; "
+                    + check[0] + " records, " + check[1] + " without an index entry, " + check[2]
+                    + " stale index entries");
+            return (tear ? 0 : missing) + resurrected + wrong + lostByRepair + check[1] + check[2];
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Adds and removes sessions until the process is killed.
+     *
+     * @param file the session file.
+     * @param journal the journal.
+     * @param seed the seed of the random numbers.
+     * @param sessions the number of slots of the file.
+     * @throws Exception if the writer fails.
+     */
+    private static void write(File file, File journal, long seed, int sessions) throws Exception {
+        MappedSessionStore store = MappedSessionStore.open(file, sessions, SLOT_SIZE);
+        Map<Integer, Character> state = readJournal(journal);
+        PrintStream out = new PrintStream(new FileOutputStream(journal, true), true, "US-ASCII");
+        // The last line may have been cut short by the crash.
+        out.println();
+
+        // Settle the operations the last crash cut short, and the sessions which were lost.
+        long now = System.currentTimeMillis();
+        List<Integer> live = new ArrayList<Integer>();
+        int next = 0;
+        for(Map.Entry<Integer, Character> e : state.entrySet()) {
+            int i = e.getKey();
+            char op = e.getValue();
+            next = Math.max(next, i + 1);
+            if(op == REMOVING) {
+                store.remove(key(i));
+                out.println(REMOVED + " " + i);
+            } else if(op == PUT || op == PUTTING) {
+                if(store.get(key(i), now) != null) {
+                    live.add(i);
+                    if(op == PUTTING) {
+                        out.println(PUT + " " + i);
+                    }
+                } else {
+                    out.println((op == PUT ? LOST : FAILED) + " " + i);
+                }
+            }
+        }
+
+        Random random = new Random(seed);
+        while(true) {
+            now = System.currentTimeMillis();
+            if(live.isEmpty() || random.nextInt(5) < 3) {
+                int i = next++;
+                out.println(PUTTING + " " + i);
+                if(store.put(key(i), now + 3600000, data(i), now)) {
+                    live.add(i);
+                    out.println(PUT + " " + i);
+                } else {
+                    out.println(FAILED + " " + i);
+                }
+            } else {
+                int i = live.remove(random.nextInt(live.size()));
+                out.println(REMOVING + " " + i);
+                store.remove(key(i));
+                out.println(REMOVED + " " + i);
+            }
+        }
+    }
+
+    /**
+     * Reads the last operation on each session from the journal.
+     *
+     * @param journal the journal.
+     * @return the last operation, by the number of the session.
+     * @throws IOException if the journal can't be read.
+     */
+    private static Map<Integer, Character> readJournal(File journal) throws IOException {
+        Map<Integer, Character> state = new HashMap<Integer, Character>();
+        if(!journal.exists()) {
+            return state;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                // A line cut short by a crash is skipped, and a later line settles its session.
+                if(line.length() < 3 || line.charAt(1) != ' ' || "pPFrRL".indexOf(line.charAt(0)) < 0) {
+                    continue;
+                }
+                try {
+                    state.put(Integer.parseInt(line.substring(2)), line.charAt(0));
+                } catch(NumberFormatException e) {
+                    continue;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return state;
+    }
+
+    /**
+     * Makes the key of a session. The keys share a few entries of the index as their home, so that
+     * the probe chains are long, and a removal moves many entries.
+     *
+     * @param i the number of the session.
+     * @return the key.
+     */
+    private static byte[] key(int i) {
+        byte[] key = new byte[MappedSessionStore.KEY_LENGTH];
+        long a = (i + 1) * 0x9E3779B97F4A7C15L;
+        long b = ~a * 31;
+        for(int j = 0; j < 8; j++) {
+            key[j] = (byte)(a >>> (56 - 8 * j));
+            key[8 + j] = (byte)(b >>> (56 - 8 * j));
+        }
+        key[6] = 0;
+        key[7] = (byte)(i % 64);
+        return key;
+    }
+
+    /**
+     * Makes the data of a session, of a length from 16 to 215 bytes.
+     *
+     * @param i the number of the session.
+     * @return the data.
+     */
+    private static byte[] data(int i) {
+        byte[] data = new byte[16 + i % 200];
+        Arrays.fill(data, (byte)i);
+        data[0] = (byte)(i >>> 24);
+        data[1] = (byte)(i >>> 16);
+        data[2] = (byte)(i >>> 8);
+        return data;
+    }
+}
@@ -0,0 +1,155 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * A minimal SOAP client for the SAML2 SOAP binding. Lasso already builds a complete SOAP
+ * envelope, so this client posts the bytes as they are and returns the reply without
+ * building any DOM tree of the message.
+ */
+class SoapClient {
+
+    /**
+     * The SOAPAction header value recommended by the SAML2 SOAP binding.
+     */
+    private static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
+
+    /**
+     * The size of the read buffer we use when the server doesn't send a Content-Length.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * Posts a SOAP envelope to the given URL, and returns the SOAP envelope we receive
+     * as a reply.
+     *
+     * @param url URL to send the request to.
+     * @param message the complete SOAP envelope, UTF-8 encoded.
+     * @param timeoutMillis the connect timeout and the read timeout, in milliseconds.
+     * @return the reply from the server.
+     * @throws IOException if the request fails, if it times out, or if the server doesn't
+     *         reply with 200 OK.
+     */
+    String call(String url, byte[] message, long timeoutMillis) throws IOException {
+        // A timeout of 0 means no timeout, so we never pass less than 1 ms.
+        int timeout = (int)Math.max(Math.min(timeoutMillis, Integer.MAX_VALUE), 1);
+
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setFixedLengthStreamingMode(message.length);
+        connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+        connection.setRequestProperty("Accept", "text/xml");
+        connection.setRequestProperty("SOAPAction", SOAP_ACTION);
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(message);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        if(status != HttpURLConnection.HTTP_OK) {
+            // Drain the error stream, so that the connection can be reused.
+            InputStream err = connection.getErrorStream();
+            if(err != null) {
+                try {
+                    readFully(err, connection.getContentLength());
+                } finally {
+                    err.close();
+                }
+            }
+            throw new IOException("SOAP request to " + url + " failed with HTTP status " + status);
+        }
+
+        InputStream in = connection.getInputStream();
+        try {
+            return readFully(in, connection.getContentLength()).toString(getCharset(connection));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the character set of the reply. Defaults to UTF-8.
+     *
+     * @param connection the connection we have received a reply on.
+     * @return the character set of the reply.
+     */
+    private static String getCharset(HttpURLConnection connection) {
+        String contentType = connection.getContentType();
+        if(contentType != null) {
+            int i = contentType.toLowerCase().indexOf("charset=");
+            if(i >= 0) {
+                String charset = contentType.substring(i + "charset=".length()).trim();
+                int end = charset.indexOf(';');
+                if(end >= 0) {
+                    charset = charset.substring(0, end);
+                }
+                if(charset.startsWith("\"") && charset.endsWith("\"") && charset.length() > 1) {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+                return charset;
+            }
+        }
+
+        return "UTF-8";
+    }
+
+    /**
+     * Reads an input stream into a single buffer. If the length is known, the buffer is
+     * allocated with the exact size, so that the data is copied only once.
+     *
+     * @param in the stream we should read.
+     * @param length the expected length of the stream, or -1 if it is unknown.
+     * @return a buffer with the contents of the stream.
+     * @throws IOException on read errors.
+     */
+    private static Buffer readFully(InputStream in, int length) throws IOException {
+        Buffer b = new Buffer(length >= 0 ? length : DEFAULT_BUFFER_SIZE);
+        int n;
+        while((n = in.read(b.data, b.length, b.data.length - b.length)) >= 0) {
+            b.length += n;
+            if(b.length == b.data.length) {
+                int next = in.read();
+                if(next < 0) {
+                    break;
+                }
+                b.grow();
+                b.data[b.length++] = (byte)next;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * A growable byte buffer which, unlike ByteArrayOutputStream, lets us build a String
+     * directly from the backing array.
+     */
+    private static class Buffer {
+        byte[] data;
+        int length;
+
+        Buffer(int capacity) {
+            this.data = new byte[Math.max(capacity, 1)];
+        }
+
+        void grow() {
+            byte[] newData = new byte[this.data.length * 2];
+            System.arraycopy(this.data, 0, newData, 0, this.length);
+            this.data = newData;
+        }
+
+        String toString(String charset) throws IOException {
+            return new String(this.data, 0, this.length, charset);
+        }
+    }
+}
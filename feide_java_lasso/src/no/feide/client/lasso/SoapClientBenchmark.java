@@ -0,0 +1,303 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the latency and the allocation of SoapClient, compared with the SAAJ based code
+ * TestServlet.doSoapRequest used before it. Both clients post the same ArtifactResolve envelope
+ * to a local stand-in IdP, which answers with an ArtifactResponse envelope of the given size.
+ *
+ * Usage: java no.feide.client.lasso.SoapClientBenchmark [requests] [response size]
+ *
+ * The SAAJ client needs SAAJ on the class path. It is part of Java 6 to 10; on later versions,
+ * add the saaj-api.jar and saaj-impl.jar this tree used before, and activation.jar, or only
+ * SoapClient is measured. SAAJ is loaded through reflection, so that the tree compiles without
+ * it.
+ * The allocation is only measured on Java implementations with com.sun.management.ThreadMXBean,
+ * and only counts the thread which sends the requests, not the stand-in IdP.
+ */
+public final class SoapClientBenchmark {
+
+    /**
+     * A SOAP client.
+     */
+    private interface Client {
+        /**
+         * Posts a SOAP envelope, and returns the reply.
+         *
+         * @param url the URL to post to.
+         * @param message the SOAP envelope.
+         * @return the SOAP envelope we got back.
+         * @throws Exception if the request fails.
+         */
+        String call(String url, String message) throws Exception;
+    }
+
+    /**
+     * This class only has a main method.
+     */
+    private SoapClientBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the number of requests for each client, and the size of the responses.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length > 2) {
+            System.err.println("Usage: java " + SoapClientBenchmark.class.getName() + " [requests] [response size]");
+            System.exit(2);
+        }
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int responseSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+
+        // Without this, the HTTP server waits for delayed ACKs between the headers and the body.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        final byte[] response = artifactResponse(responseSize).getBytes("UTF-8");
+        HttpServer idp = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 128);
+        idp.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                InputStream in = e.getRequestBody();
+                byte[] buffer = new byte[4096];
+                while(in.read(buffer) >= 0) {
+                    // Discard the request.
+                }
+                e.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+                e.sendResponseHeaders(200, response.length);
+                OutputStream out = e.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        idp.setExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory("soap-idp")));
+        idp.start();
+        String url = "http://127.0.0.1:" + idp.getAddress().getPort() + "/soap";
+
+        final SoapClient soapClient = new SoapClient();
+        Client direct = new Client() {
+            public String call(String url, String message) throws IOException {
+                return soapClient.call(url, message.getBytes("UTF-8"), 10000);
+            }
+        };
+        Client saaj;
+        try {
+            saaj = new SaajClient();
+        } catch(ClassNotFoundException e) {
+            saaj = null;
+            System.out.println("SAAJ      : not on the class path (" + e.getMessage() + "), skipped");
+        } catch(LinkageError e) {
+            // SAAJ without activation.jar.
+            saaj = null;
+            System.out.println("SAAJ      : not on the class path (" + e.getMessage() + "), skipped");
+        }
+
+        String request = artifactResolve();
+        System.out.println(requests + " requests, " + request.length() + " byte requests, " + response.length
+                + " byte responses");
+        try {
+            if(saaj != null) {
+                run("SAAJ      ", saaj, url, request, requests);
+            }
+            run("SoapClient", direct, url, request, requests);
+        } finally {
+            idp.stop(0);
+        }
+    }
+
+    /**
+     * Measures a client, and prints the result.
+     *
+     * @param name the name of the client.
+     * @param client the client.
+     * @param url the URL of the stand-in IdP.
+     * @param request the SOAP envelope we post.
+     * @param requests the number of requests.
+     * @throws Exception if a request fails.
+     */
+    private static void run(String name, Client client, String url, String request, int requests)
+    throws Exception {
+        // Warm up, so that we measure compiled code.
+        for(int i = 0; i < requests; i++) {
+            client.call(url, request);
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < requests; i++) {
+            long t = System.nanoTime();
+            client.call(url, request);
+            latency.record(System.nanoTime() - t);
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        long allocatedAfter = allocatedBytes();
+
+        System.out.println(name + ": " + (requests * 1000000000L / elapsed) + " requests/s, p50 "
+                + latency.getPercentile(50) + " us, p99 " + latency.getPercentile(99) + " us, "
+                + (allocatedBefore < 0 ? "n/a" : String.valueOf((allocatedAfter - allocatedBefore) / requests))
+                + " bytes allocated/request");
+    }
+
+    /**
+     * Posts SOAP envelopes the way TestServlet.doSoapRequest did before SoapClient: the request
+     * and the reply are parsed into SAAJ messages, and the reply is serialized again. The SAAJ
+     * methods are looked up once, so the reflection adds little to each call.
+     */
+    private static final class SaajClient implements Client {
+        private final Object messageFactory;
+        private final Object connectionFactory;
+        private final Constructor<?> newMimeHeaders;
+        private final Method addHeader;
+        private final Method createMessage;
+        private final Method createConnection;
+        private final Method call;
+        private final Method close;
+        private final Method writeTo;
+
+        /**
+         * Looks up the SAAJ classes and methods.
+         *
+         * @throws ClassNotFoundException if SAAJ isn't on the class path.
+         * @throws LinkageError if SAAJ is on the class path, but a class it needs isn't.
+         * @throws Exception if SAAJ fails to create its factories.
+         */
+        SaajClient() throws Exception {
+            Class<?> messageFactoryClass = Class.forName("javax.xml.soap.MessageFactory");
+            Class<?> connectionFactoryClass = Class.forName("javax.xml.soap.SOAPConnectionFactory");
+            Class<?> connectionClass = Class.forName("javax.xml.soap.SOAPConnection");
+            Class<?> messageClass = Class.forName("javax.xml.soap.SOAPMessage");
+            Class<?> mimeHeadersClass = Class.forName("javax.xml.soap.MimeHeaders");
+
+            this.newMimeHeaders = mimeHeadersClass.getConstructor();
+            this.addHeader = mimeHeadersClass.getMethod("addHeader", String.class, String.class);
+            this.createMessage = messageFactoryClass.getMethod("createMessage", mimeHeadersClass,
+                    InputStream.class);
+            this.createConnection = connectionFactoryClass.getMethod("createConnection");
+            this.call = connectionClass.getMethod("call", messageClass, Object.class);
+            this.close = connectionClass.getMethod("close");
+            this.writeTo = messageClass.getMethod("writeTo", OutputStream.class);
+
+            this.messageFactory = invoke(messageFactoryClass.getMethod("newInstance"), null);
+            this.connectionFactory = invoke(connectionFactoryClass.getMethod("newInstance"), null);
+        }
+
+        public String call(String url, String message) throws Exception {
+            Object soapRequestHeaders = this.newMimeHeaders.newInstance();
+            invoke(this.addHeader, soapRequestHeaders, "Content-Type", "text/xml");
+            ByteArrayInputStream soapRequestBuffer = new ByteArrayInputStream(message.getBytes("UTF-8"));
+            Object soapRequest = invoke(this.createMessage, this.messageFactory, soapRequestHeaders,
+                    soapRequestBuffer);
+            Object soapConnection = invoke(this.createConnection, this.connectionFactory);
+            try {
+                Object soapResponse = invoke(this.call, soapConnection, soapRequest, url);
+                ByteArrayOutputStream soapReplyBuffer = new ByteArrayOutputStream();
+                invoke(this.writeTo, soapResponse, soapReplyBuffer);
+                return soapReplyBuffer.toString("UTF-8");
+            } finally {
+                invoke(this.close, soapConnection);
+            }
+        }
+
+        /**
+         * Calls a SAAJ method, and throws what the method threw.
+         *
+         * @param method the method.
+         * @param target the object we call the method on, or null for a static method.
+         * @param args the arguments.
+         * @return the result of the method.
+         * @throws Exception if the method fails.
+         */
+        private static Object invoke(Method method, Object target, Object... args) throws Exception {
+            try {
+                return method.invoke(target, args);
+            } catch(InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof Exception) {
+                    throw (Exception)cause;
+                }
+                throw (Error)cause;
+            }
+        }
+    }
+
+    /**
+     * Makes an ArtifactResolve envelope like the one Lasso builds.
+     *
+     * @return the envelope.
+     */
+    private static String artifactResolve() {
+        return "<?xml version=\"1.0\"?>\n"
+            + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>"
+            + "<samlp:ArtifactResolve xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_6F1A2E7D9C0B4A3E8D5F1C2B3A4E5D6F\""
+            + " Version=\"2.0\" IssueInstant=\"2008-01-01T12:00:00Z\">"
+            + "<saml:Issuer>https://sp.example.org/metadata</saml:Issuer>"
+            + "<samlp:Artifact>AAQAAMh48/1oXIM+sDo7Dh2qMp1HM4IF5DaRNmDj6RdUmllwn9jJHyEgIi8=</samlp:Artifact>"
+            + "</samlp:ArtifactResolve></s:Body></s:Envelope>";
+    }
+
+    /**
+     * Makes an ArtifactResponse envelope, padded with attribute values to about the given size.
+     *
+     * @param size the size of the envelope.
+     * @return the envelope.
+     */
+    private static String artifactResponse(int size) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        sb.append("<?xml version=\"1.0\"?>\n")
+            .append("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>")
+            .append("<samlp:ArtifactResponse xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"")
+            .append(" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"_A1\" InResponseTo=\"_6F1A\"")
+            .append(" Version=\"2.0\" IssueInstant=\"2008-01-01T12:00:01Z\">")
+            .append("<saml:Issuer>https://idp.example.org/metadata</saml:Issuer>")
+            .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>")
+            .append("</samlp:Status><samlp:Response ID=\"_R1\" Version=\"2.0\" IssueInstant=\"2008-01-01T12:00:01Z\">")
+            .append("<saml:Assertion ID=\"_S1\" Version=\"2.0\" IssueInstant=\"2008-01-01T12:00:01Z\">")
+            .append("<saml:Issuer>https://idp.example.org/metadata</saml:Issuer><saml:AttributeStatement>")
+            .append("<saml:Attribute Name=\"isMemberOf\">");
+        String tail = "</saml:Attribute></saml:AttributeStatement></saml:Assertion></samlp:Response>"
+            + "</samlp:ArtifactResponse></s:Body></s:Envelope>";
+        for(int i = 0; sb.length() + tail.length() < size; i++) {
+            sb.append("<saml:AttributeValue>urn:mace:feide.no:go:group:u:example.org:group-").append(i)
+                .append("</saml:AttributeValue>");
+        }
+        return sb.append(tail).toString();
+    }
+
+    /**
+     * Reads the number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes, or -1 if the Java implementation can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long)m.invoke(bean, Thread.currentThread().getId());
+        } catch(Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the servlet on the HTTP server built into the JDK, without a servlet container. The
+ * endpoints are served on the same paths as in the WAR, so the meta data doesn't change.
+ *
+ * Usage: java no.feide.client.lasso.StandaloneServer <context root>
+ *
+ * The context root is a directory laid out like the WAR, with the configuration in
+ * conf/LassoTestServlet.properties. The server speaks plain HTTP, and is meant to run behind a
+ * proxy which terminates TLS.
+ */
+public final class StandaloneServer {
+
+    /**
+     * The servlet path of the servlet, from web.xml.
+     */
+    private static final String SERVLET_PATH = "/endpoint";
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    private final TestServlet servlet;
+    private final GatewayServlet gateway;
+    private final SessionCookieFilter cookieFilter;
+    private final MemorySessions sessions;
+    private final String contextPath;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Starts the servlet and the HTTP server.
+     *
+     * @param config the configuration.
+     * @throws ServletException if the configuration is invalid, or the servlet fails to start.
+     * @throws IOException if we fail to listen on the port.
+     */
+    StandaloneServer(Config config) throws ServletException, IOException {
+        String address = config.getProperty("no.feide.test.standalone.address");
+        int port = (int)config.getLongProperty("no.feide.test.standalone.port", 8080);
+        int threads = (int)config.getLongProperty("no.feide.test.standalone.threads", 32);
+        int queue = (int)config.getLongProperty("no.feide.test.standalone.queue", 100);
+        String path = config.getProperty("no.feide.test.standalone.context");
+        this.contextPath = path == null ? "/feide_java_lasso" : path;
+
+        this.cookieFilter = new SessionCookieFilter();
+        this.cookieFilter.init(config);
+        this.servlet = new TestServlet();
+        this.servlet.init(config);
+        this.gateway = new GatewayServlet();
+        this.gateway.init(config);
+        this.sessions = new MemorySessions(config);
+
+        // When all threads are busy and the queue is full, the thread which accepts connections
+        // runs the request itself, so that it stops accepting more until it is done.
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queue), new DaemonThreadFactory("standalone-http"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        InetSocketAddress socketAddress = address == null ? new InetSocketAddress(port)
+                : new InetSocketAddress(InetAddress.getByName(address), port);
+        this.server = HttpServer.create(socketAddress, queue);
+        this.server.setExecutor(this.executor);
+        this.server.createContext(this.contextPath + SERVLET_PATH + "/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StandaloneServer.this.handle(exchange);
+            }
+        });
+        this.server.createContext(this.contextPath + GatewayServlet.SERVLET_PATH + "/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StandaloneServer.this.handleGateway(exchange);
+            }
+        });
+        this.server.start();
+
+        Metrics.getInstance().gauge("standalone.active", new Metrics.Gauge() {
+            public long getValue() {
+                return StandaloneServer.this.executor.getActiveCount();
+            }
+        });
+        Metrics.getInstance().gauge("standalone.queued", new Metrics.Gauge() {
+            public long getValue() {
+                return StandaloneServer.this.executor.getQueue().size();
+            }
+        });
+    }
+
+    /**
+     * Passes a request to the servlet.
+     *
+     * @param exchange the exchange of the request.
+     * @throws IOException if we fail to send the response.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        ExchangeResponse response = new ExchangeResponse(exchange);
+        ExchangeRequest request = new ExchangeRequest(exchange, response, this.contextPath, SERVLET_PATH,
+                this.sessions);
+        try {
+            this.cookieFilter.check(request, response);
+            String method = exchange.getRequestMethod();
+            if("GET".equals(method)) {
+                this.servlet.doGet(request, response);
+            } else if("POST".equals(method)) {
+                this.servlet.doPost(request, response);
+            } else {
+                response.setHeader("Allow", "GET, POST");
+                response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            }
+        } catch(ServletException e) {
+            this.fail(request, response, e);
+        } catch(RuntimeException e) {
+            this.fail(request, response, e);
+        } finally {
+            try {
+                response.finish();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Passes a request to the gateway.
+     *
+     * @param exchange the exchange of the request.
+     * @throws IOException if we fail to send the response.
+     */
+    private void handleGateway(HttpExchange exchange) throws IOException {
+        ExchangeResponse response = new ExchangeResponse(exchange);
+        ExchangeRequest request = new ExchangeRequest(exchange, response, this.contextPath,
+                GatewayServlet.SERVLET_PATH, this.sessions);
+        try {
+            this.cookieFilter.check(request, response);
+            this.gateway.service(request, response);
+        } catch(ServletException e) {
+            this.fail(request, response, e);
+        } catch(RuntimeException e) {
+            this.fail(request, response, e);
+        } finally {
+            try {
+                response.finish();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Logs a request which failed, and sends 500 Internal Server Error if we still can.
+     *
+     * @param request the request.
+     * @param response the response.
+     * @param e the error.
+     * @throws IOException if we fail to send the error.
+     */
+    private void fail(ExchangeRequest request, ExchangeResponse response, Exception e) throws IOException {
+        this.debug.error("Request to " + request.getRequestURI() + " failed: " + e);
+        if(!response.isCommitted()) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Gets the URL the servlet is served on.
+     *
+     * @return the URL of /endpoint, without a trailing slash.
+     */
+    String getEndpointUrl() {
+        InetSocketAddress address = this.server.getAddress();
+        String host = address.getAddress().getHostAddress();
+        if(address.getAddress().isAnyLocalAddress()) {
+            host = "localhost";
+        } else if(host.indexOf(':') >= 0) {
+            host = "[" + host + "]";
+        }
+        return "http://" + host + ":" + address.getPort() + this.contextPath + SERVLET_PATH;
+    }
+
+    /**
+     * Stops the HTTP server and the servlet.
+     */
+    void stop() {
+        this.server.stop(1);
+        this.executor.shutdown();
+        this.servlet.destroy();
+        this.gateway.destroy();
+        this.sessions.shutdown();
+    }
+
+    /**
+     * Starts the server. The server runs until the process is stopped.
+     *
+     * @param args the context root.
+     * @throws Exception if the server fails to start.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length != 1) {
+            System.err.println("Usage: java " + StandaloneServer.class.getName() + " <context root>");
+            System.exit(2);
+        }
+
+        // The gateway streams responses in several writes, which would otherwise wait for
+        // delayed ACKs from the client.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        Config config = new Config(new File(args[0]).getAbsoluteFile());
+        final StandaloneServer server = new StandaloneServer(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                server.stop();
+            }
+        }, "standalone-shutdown"));
+
+        System.out.println("Listening on " + server.server.getAddress() + server.contextPath + SERVLET_PATH
+                + "/ after " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms.");
+    }
+}
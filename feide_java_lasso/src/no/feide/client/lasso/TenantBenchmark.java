@@ -0,0 +1,214 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the startup of many SP entities served by TenantRegistry with the startup of one
+ * servlet for each entity, like a WAR for each entity. Every tenant is a copy of the
+ * configuration in a template context root.
+ *
+ * 1. Eager: initializes a servlet for every tenant, like the containers of the WARs do at
+ *    startup, and reports the total time and native memory.
+ * 2. Lazy: creates the registry, which is the startup of the shared servlet, then loads one
+ *    tenant with many concurrent first requests, and then touches every tenant once within the
+ *    native memory budget.
+ *
+ * Usage: java no.feide.client.lasso.TenantBenchmark &lt;template context root&gt; [tenants]
+ *     [concurrent first requests] [budget in bytes]
+ *
+ * The Lasso backend of the template is used, so the in-process backend needs the Lasso
+ * library. A WAR for each entity also has the start of the web application in the container,
+ * which isn't counted here, so the eager numbers are a lower bound.
+ */
+public final class TenantBenchmark {
+
+    /**
+     * This class only has a main method.
+     */
+    private TenantBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the template context root, the number of tenants, the number of concurrent
+     *        first requests and the native memory budget.
+     * @throws Exception if the benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1 || args.length > 4) {
+            System.err.println("Usage: java " + TenantBenchmark.class.getName()
+                    + " <template context root> [tenants] [concurrent first requests] [budget in bytes]");
+            System.exit(2);
+        }
+        File template = new File(args[0]).getAbsoluteFile();
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long budget = args.length > 3 ? Long.parseLong(args[3]) : -1;
+
+        // A context root with a tenants directory, and a directory for each tenant.
+        File root = new File(System.getProperty("java.io.tmpdir"), "tenant-benchmark-" + System.nanoTime());
+        File tenants = new File(root, "tenants");
+        List<String> names = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            String name = "sp" + i + ".example.org";
+            copyDirectory(new File(template, "conf"), new File(new File(tenants, name), "conf"));
+            names.add(name);
+        }
+        copyDirectory(new File(template, "conf"), new File(root, "conf"));
+        OutputStream out = new FileOutputStream(new File(root, "conf/LassoTestServlet.properties"), true);
+        out.write(("\nno.feide.test.tenants=tenants\n"
+                + (budget >= 0 ? "no.feide.test.tenants.budget=" + budget + "\n" : "")).getBytes("UTF-8"));
+        out.close();
+
+        try {
+            System.out.println(count + " tenants, " + concurrency + " concurrent first requests");
+            eager(tenants, names);
+            lazy(root, names, concurrency);
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Initializes a servlet for every tenant, and reports the time and native memory.
+     *
+     * @param tenants the tenants directory.
+     * @param names the names of the tenants.
+     * @throws Exception if a servlet fails to start.
+     */
+    private static void eager(File tenants, List<String> names) throws Exception {
+        List<TestServlet> servlets = new ArrayList<TestServlet>();
+        long bytes = 0;
+        long start = System.nanoTime();
+        for(String name : names) {
+            Config config = new Config(new File(tenants, name));
+            TestServlet servlet = new TestServlet();
+            servlet.init(config);
+            servlets.add(servlet);
+            bytes += TenantRegistry.estimateNativeSize(config);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("eager: " + elapsed / 1000000 + " ms before the first request, "
+                + elapsed / 1000 / names.size() + " us per tenant, " + bytes / 1024 + " KiB native memory");
+        for(TestServlet servlet : servlets) {
+            servlet.destroy();
+        }
+    }
+
+    /**
+     * Starts the registry, loads one tenant with concurrent first requests, and then touches
+     * every tenant once.
+     *
+     * @param root the context root.
+     * @param names the names of the tenants.
+     * @param concurrency the number of concurrent first requests.
+     * @throws Exception if a tenant fails to load.
+     */
+    private static void lazy(File root, List<String> names, int concurrency) throws Exception {
+        long start = System.nanoTime();
+        final TenantRegistry registry = new TenantRegistry(new Config(root));
+        long elapsed = System.nanoTime() - start;
+        System.out.println("lazy:  " + elapsed / 1000000 + " ms before the first request");
+
+        final String first = names.get(0);
+        long loadsBefore = Metrics.getInstance().counter("tenants.loads").get();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("tenant-client"));
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for(int i = 0; i < concurrency; i++) {
+                futures.add(clients.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        long s = System.nanoTime();
+                        TenantRegistry.Tenant tenant = registry.acquire(first);
+                        registry.release(tenant);
+                        return System.nanoTime() - s;
+                    }
+                }));
+            }
+            long slowest = 0;
+            for(Future<Long> f : futures) {
+                slowest = Math.max(slowest, f.get());
+            }
+            System.out.println("lazy:  first request to a tenant waited " + slowest / 1000000 + " ms; "
+                    + concurrency + " concurrent first requests loaded it "
+                    + (Metrics.getInstance().counter("tenants.loads").get() - loadsBefore) + " time(s)");
+        } finally {
+            clients.shutdownNow();
+        }
+
+        start = System.nanoTime();
+        for(String name : names) {
+            registry.release(registry.acquire(name));
+        }
+        elapsed = System.nanoTime() - start;
+        Metrics metrics = Metrics.getInstance();
+        System.out.println("lazy:  touching every tenant took " + elapsed / 1000000 + " ms; "
+                + metrics.counter("tenants.evicted").get() + " evicted to stay within the budget");
+        registry.shutdown();
+    }
+
+    /**
+     * Copies the files of a directory.
+     *
+     * @param from the directory we copy.
+     * @param to the directory we create.
+     * @throws IOException if we fail to copy a file.
+     */
+    private static void copyDirectory(File from, File to) throws IOException {
+        if(!to.isDirectory() && !to.mkdirs()) {
+            throw new IOException("Unable to create " + to);
+        }
+        File[] files = from.listFiles();
+        if(files == null) {
+            throw new IOException("Unable to list " + from);
+        }
+        byte[] buffer = new byte[8192];
+        for(File f : files) {
+            if(f.isDirectory()) {
+                copyDirectory(f, new File(to, f.getName()));
+                continue;
+            }
+            InputStream in = new FileInputStream(f);
+            try {
+                OutputStream out = new FileOutputStream(new File(to, f.getName()));
+                try {
+                    int n;
+                    while((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param f the directory.
+     */
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
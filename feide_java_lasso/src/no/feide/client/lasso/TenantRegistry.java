@@ -0,0 +1,577 @@
+package no.feide.client.lasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves many SP entities from one servlet. Each tenant is a directory below
+ * no.feide.test.tenants, laid out like the context root, with its own
+ * conf/LassoTestServlet.properties and meta data. The tenant of a request is chosen by its host
+ * name, or by the first segment of its path below /endpoint/.
+ *
+ * A tenant is loaded the first time it gets a request. Concurrent first requests to a tenant
+ * share a single load. The loaded tenants are kept within a budget for the native memory of
+ * their Lasso Server objects, and a maximum count. When a load goes over the budget, the tenants
+ * which were used longest ago are unloaded. Tenants which haven't been used for
+ * no.feide.test.tenants.idle milliseconds are also unloaded, so an idle tenant only costs its
+ * directory. A tenant which is unloaded while it serves requests is destroyed when the last of
+ * them is done.
+ */
+class TenantRegistry {
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The directory with a directory for each tenant.
+     */
+    private final File directory;
+
+    /**
+     * Whether tenants are chosen by the first path segment instead of the host name.
+     */
+    private final boolean byPath;
+
+    /**
+     * The native memory the loaded tenants may hold, in bytes.
+     */
+    private final long budget;
+
+    /**
+     * The largest number of loaded tenants.
+     */
+    private final int maxTenants;
+
+    /**
+     * The number of milliseconds a tenant may be unused before it is unloaded.
+     */
+    private final long idle;
+
+    /**
+     * The loaded tenants, by name.
+     */
+    private final ConcurrentMap<String, Tenant> loaded = new ConcurrentHashMap<String, Tenant>();
+
+    /**
+     * The loads which are running, by tenant name.
+     */
+    private final ConcurrentMap<String, FutureTask<Tenant>> loading =
+        new ConcurrentHashMap<String, FutureTask<Tenant>>();
+
+    /**
+     * Guards the changes to the set of loaded tenants, and nativeBytes.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The native memory of the loaded tenants, in bytes. Guarded by lock.
+     */
+    private long nativeBytes = 0;
+
+    /**
+     * The time we look for idle tenants again.
+     */
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final AtomicLong loads = Metrics.getInstance().counter("tenants.loads");
+    private final AtomicLong coalesced = Metrics.getInstance().counter("tenants.coalesced");
+    private final AtomicLong evicted = Metrics.getInstance().counter("tenants.evicted");
+    private final AtomicLong idleUnloads = Metrics.getInstance().counter("tenants.idle_unloads");
+    private final AtomicLong unknown = Metrics.getInstance().counter("tenants.unknown");
+    private final AtomicLong failures = Metrics.getInstance().counter("tenants.load_failures");
+    private final LatencyHistogram loadTime = Metrics.getInstance().histogram("tenants.load");
+
+    /**
+     * A loaded tenant.
+     */
+    static final class Tenant {
+
+        /**
+         * The name of the tenant, which is also the name of its directory.
+         */
+        private final String name;
+
+        /**
+         * The servlet which serves the tenant.
+         */
+        private final TestServlet servlet;
+
+        /**
+         * The approximate native memory of the tenant, in bytes.
+         */
+        private final long nativeBytes;
+
+        /**
+         * The time the tenant was last used, in milliseconds since the epoch.
+         */
+        private volatile long lastUsed;
+
+        /**
+         * The number of requests the tenant is serving.
+         */
+        private final AtomicInteger active = new AtomicInteger();
+
+        /**
+         * Whether the tenant has been unloaded. It takes no more requests.
+         */
+        private volatile boolean retired = false;
+
+        /**
+         * Whether the servlet has been destroyed.
+         */
+        private final AtomicBoolean destroyed = new AtomicBoolean();
+
+        private final AtomicLong requests;
+        private final LatencyHistogram latency;
+
+        /**
+         * Creates a tenant.
+         *
+         * @param name the name of the tenant.
+         * @param servlet the servlet, which is initialized.
+         * @param nativeBytes the approximate native memory of the tenant.
+         */
+        Tenant(String name, TestServlet servlet, long nativeBytes) {
+            this.name = name;
+            this.servlet = servlet;
+            this.nativeBytes = nativeBytes;
+            this.lastUsed = System.currentTimeMillis();
+            this.requests = Metrics.getInstance().counter("tenant." + name + ".requests");
+            this.latency = Metrics.getInstance().histogram("tenant." + name + ".latency");
+        }
+
+        /**
+         * Takes the tenant for a request, unless it has been unloaded.
+         *
+         * @return true if the tenant may be used, and must be released afterwards.
+         */
+        private boolean acquire() {
+            this.active.incrementAndGet();
+            if(this.retired) {
+                this.release();
+                return false;
+            }
+            this.lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Gives back the tenant after a request.
+         */
+        private void release() {
+            if(this.active.decrementAndGet() == 0 && this.retired) {
+                this.destroy();
+            }
+        }
+
+        /**
+         * Stops the tenant from taking more requests, and destroys it when it is idle.
+         */
+        private void retire() {
+            this.retired = true;
+            if(this.active.get() == 0) {
+                this.destroy();
+            }
+        }
+
+        /**
+         * Destroys the servlet, once.
+         */
+        private void destroy() {
+            if(this.destroyed.compareAndSet(false, true)) {
+                this.servlet.destroy();
+            }
+        }
+
+        /**
+         * Gets the servlet which serves the tenant.
+         *
+         * @return the servlet.
+         */
+        TestServlet getServlet() {
+            return this.servlet;
+        }
+    }
+
+    /**
+     * Removes the tenant segment from the path of a request, for tenants chosen by path.
+     */
+    private static final class TenantRequest extends HttpServletRequestWrapper {
+        private final String servletPath;
+        private final String pathInfo;
+
+        TenantRequest(HttpServletRequest request, String tenant, String pathInfo) {
+            super(request);
+            this.servletPath = request.getServletPath() + "/" + tenant;
+            this.pathInfo = pathInfo;
+        }
+
+        @Override
+        public String getServletPath() {
+            return this.servletPath;
+        }
+
+        @Override
+        public String getPathInfo() {
+            return this.pathInfo;
+        }
+    }
+
+    /**
+     * Creates the registry from the configuration. No tenant is loaded.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    TenantRegistry(Config config) throws ServletException {
+        String path = config.getRequiredProperty("no.feide.test.tenants");
+        File dir = new File(path);
+        if(!dir.isAbsolute() && config.getRootPath() != null) {
+            dir = new File(config.getRootPath(), path);
+        }
+        if(!dir.isDirectory()) {
+            throw new ServletException("no.feide.test.tenants must be a directory. Was: \"" + dir + "\"");
+        }
+        this.directory = dir;
+
+        String key = config.getProperty("no.feide.test.tenants.key");
+        if(key == null || "host".equals(key)) {
+            this.byPath = false;
+        } else if("path".equals(key)) {
+            this.byPath = true;
+        } else {
+            throw new ServletException("no.feide.test.tenants.key must be host or path. Was: \"" + key + "\"");
+        }
+        this.budget = config.getLongProperty("no.feide.test.tenants.budget", 256L * 1024 * 1024);
+        this.maxTenants = (int)config.getLongProperty("no.feide.test.tenants.max", 1000);
+        this.idle = config.getLongProperty("no.feide.test.tenants.idle", 1800000);
+
+        Metrics.getInstance().gauge("tenants.loaded", new Metrics.Gauge() {
+            public long getValue() {
+                return TenantRegistry.this.loaded.size();
+            }
+        });
+        Metrics.getInstance().gauge("tenants.native_bytes", new Metrics.Gauge() {
+            public long getValue() {
+                synchronized(TenantRegistry.this.lock) {
+                    return TenantRegistry.this.nativeBytes;
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes a request to the servlet of its tenant.
+     *
+     * @param request the request.
+     * @param response the response.
+     * @param post whether the request is a POST request. Otherwise it is a GET request.
+     * @throws ServletException if the tenant fails to load, or the servlet fails.
+     * @throws IOException if the servlet fails to send the response.
+     */
+    void service(HttpServletRequest request, HttpServletResponse response, boolean post)
+    throws ServletException, IOException {
+        String name;
+        if(this.byPath) {
+            String pathInfo = request.getPathInfo();
+            int slash = pathInfo == null ? -1 : pathInfo.indexOf('/', 1);
+            name = slash < 0 ? null : pathInfo.substring(1, slash);
+            if(name != null) {
+                request = new TenantRequest(request, name, pathInfo.substring(slash));
+            }
+        } else {
+            name = request.getServerName();
+        }
+        name = name == null ? null : name.toLowerCase();
+
+        Tenant tenant = this.acquire(name);
+        if(tenant == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            tenant.requests.incrementAndGet();
+            if(post) {
+                tenant.servlet.doPost(request, response);
+            } else {
+                tenant.servlet.doGet(request, response);
+            }
+        } finally {
+            tenant.latency.record(System.nanoTime() - start);
+            tenant.release();
+        }
+    }
+
+    /**
+     * Finds a tenant, and loads it if it isn't loaded.
+     *
+     * @param name the name of the tenant.
+     * @return the tenant, which must be released, or null if there is no such tenant.
+     * @throws ServletException if the tenant fails to load.
+     */
+    Tenant acquire(String name) throws ServletException {
+        this.sweep();
+        if(!isValidName(name)) {
+            this.unknown.incrementAndGet();
+            return null;
+        }
+
+        while(true) {
+            Tenant tenant = this.loaded.get(name);
+            if(tenant == null) {
+                tenant = this.load(name);
+                if(tenant == null) {
+                    return null;
+                }
+            }
+            if(tenant.acquire()) {
+                return tenant;
+            }
+            // It was unloaded after we found it. Load it again.
+        }
+    }
+
+    /**
+     * Gives back a tenant after a request.
+     *
+     * @param tenant the tenant.
+     */
+    void release(Tenant tenant) {
+        tenant.release();
+    }
+
+    /**
+     * Loads a tenant, or waits for the load which is already running.
+     *
+     * @param name the name of the tenant.
+     * @return the tenant, or null if there is no such tenant.
+     * @throws ServletException if the tenant fails to load.
+     */
+    private Tenant load(final String name) throws ServletException {
+        FutureTask<Tenant> task = new FutureTask<Tenant>(new Callable<Tenant>() {
+            public Tenant call() throws ServletException {
+                return TenantRegistry.this.build(name);
+            }
+        });
+        FutureTask<Tenant> running = this.loading.putIfAbsent(name, task);
+        if(running != null) {
+            this.coalesced.incrementAndGet();
+            task = running;
+        } else {
+            try {
+                task.run();
+            } finally {
+                this.loading.remove(name, task);
+            }
+        }
+
+        try {
+            return task.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof ServletException) {
+                throw (ServletException)e.getCause();
+            }
+            throw new ServletException("Failed to load the tenant " + name, e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for the tenant " + name, e);
+        }
+    }
+
+    /**
+     * Builds a tenant, and makes room for it.
+     *
+     * @param name the name of the tenant.
+     * @return the tenant, or null if there is no such tenant.
+     * @throws ServletException if the tenant fails to load.
+     */
+    private Tenant build(String name) throws ServletException {
+        // Another thread may have finished loading it just before we started.
+        Tenant tenant = this.loaded.get(name);
+        if(tenant != null) {
+            return tenant;
+        }
+        File root = new File(this.directory, name);
+        if(!root.isDirectory()) {
+            this.unknown.incrementAndGet();
+            return null;
+        }
+
+        this.loads.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            Config config = new Config(root, name);
+            long bytes = estimateNativeSize(config);
+            TestServlet servlet = this.createServlet(config);
+            tenant = new Tenant(name, servlet, bytes);
+        } catch(ServletException e) {
+            this.failures.incrementAndGet();
+            this.debug.error("Failed to load the tenant " + name + ": " + e.getMessage());
+            throw e;
+        } catch(RuntimeException e) {
+            this.failures.incrementAndGet();
+            this.debug.error("Failed to load the tenant " + name + ": " + e);
+            throw e;
+        } finally {
+            this.loadTime.record(System.nanoTime() - start);
+        }
+
+        List<Tenant> unloaded = new ArrayList<Tenant>();
+        synchronized(this.lock) {
+            this.loaded.put(name, tenant);
+            this.nativeBytes += tenant.nativeBytes;
+            if(this.nativeBytes > this.budget || this.loaded.size() > this.maxTenants) {
+                // The least recently used tenants go first. The new tenant is never unloaded
+                // here, even if it doesn't fit in the budget by itself.
+                List<Tenant> candidates = new ArrayList<Tenant>(this.loaded.values());
+                candidates.remove(tenant);
+                Collections.sort(candidates, new Comparator<Tenant>() {
+                    public int compare(Tenant a, Tenant b) {
+                        return a.lastUsed < b.lastUsed ? -1 : a.lastUsed == b.lastUsed ? 0 : 1;
+                    }
+                });
+                for(Tenant t : candidates) {
+                    if(this.nativeBytes <= this.budget && this.loaded.size() <= this.maxTenants) {
+                        break;
+                    }
+                    this.unloadLocked(t);
+                    unloaded.add(t);
+                }
+            }
+        }
+        for(Tenant t : unloaded) {
+            this.evicted.incrementAndGet();
+            this.debug.message("Unloaded the tenant " + t.name + " to make room for " + name);
+            t.retire();
+        }
+        this.debug.message("Loaded the tenant " + name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return tenant;
+    }
+
+    /**
+     * Unloads the tenants which haven't been used for the idle time. Runs at most once every
+     * tenth of the idle time.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = this.nextSweep.get();
+        if(now < next || !this.nextSweep.compareAndSet(next, now + Math.max(this.idle / 10, 1000))) {
+            return;
+        }
+
+        List<Tenant> unloaded = new ArrayList<Tenant>();
+        synchronized(this.lock) {
+            for(Tenant t : this.loaded.values()) {
+                if(now - t.lastUsed > this.idle && t.active.get() == 0) {
+                    unloaded.add(t);
+                }
+            }
+            for(Tenant t : unloaded) {
+                this.unloadLocked(t);
+            }
+        }
+        for(Tenant t : unloaded) {
+            this.idleUnloads.incrementAndGet();
+            this.debug.message("Unloaded the idle tenant " + t.name);
+            t.retire();
+        }
+    }
+
+    /**
+     * Removes a tenant from the loaded tenants. The caller must hold the lock, and retire the
+     * tenant afterwards.
+     *
+     * @param tenant the tenant.
+     */
+    private void unloadLocked(Tenant tenant) {
+        if(this.loaded.remove(tenant.name, tenant)) {
+            this.nativeBytes -= tenant.nativeBytes;
+        }
+    }
+
+    /**
+     * Creates and initializes the servlet of a tenant.
+     *
+     * @param config the configuration of the tenant.
+     * @return the servlet.
+     * @throws ServletException if the servlet fails to start.
+     */
+    TestServlet createServlet(Config config) throws ServletException {
+        TestServlet servlet = new TestServlet();
+        servlet.init(config);
+        return servlet;
+    }
+
+    /**
+     * Unloads every tenant.
+     */
+    void shutdown() {
+        List<Tenant> unloaded;
+        synchronized(this.lock) {
+            unloaded = new ArrayList<Tenant>(this.loaded.values());
+            for(Tenant t : unloaded) {
+                this.unloadLocked(t);
+            }
+        }
+        for(Tenant t : unloaded) {
+            t.retire();
+        }
+    }
+
+    /**
+     * Approximates the native memory a tenant holds: the Lasso Server objects of its pool when
+     * the Lasso backend runs in the servlet. The other backends hold no native memory in this
+     * process.
+     *
+     * @param config the configuration of the tenant.
+     * @return the approximate size in bytes.
+     * @throws ServletException if the configuration is invalid.
+     */
+    static long estimateNativeSize(Config config) throws ServletException {
+        String backend = config.getProperty("no.feide.test.lasso.backend");
+        if(backend != null && !"inprocess".equals(backend)) {
+            return 0;
+        }
+        return ServerPool.getPoolSize(config) * ServerPool.estimateSize(config);
+    }
+
+    /**
+     * Checks that a tenant name is a host name, so that it can't reach outside the directory.
+     *
+     * @param name the name.
+     * @return true if the name is valid.
+     */
+    private static boolean isValidName(String name) {
+        if(name == null || name.length() == 0 || name.length() > 253 || name.charAt(0) == '.'
+                || name.indexOf("..") >= 0) {
+            return false;
+        }
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if(!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
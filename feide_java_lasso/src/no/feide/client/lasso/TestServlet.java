@@ -19,33 +19,22 @@
 
 package no.feide.client.lasso;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.soap.MessageFactory;
-import javax.xml.soap.MimeHeaders;
-import javax.xml.soap.SOAPConnection;
-import javax.xml.soap.SOAPConnectionFactory;
-import javax.xml.soap.SOAPException;
-import javax.xml.soap.SOAPMessage;
-
-import com.entrouvert.lasso.Login;
-import com.entrouvert.lasso.Logout;
-import com.entrouvert.lasso.Saml2NameID;
-import com.entrouvert.lasso.Samlp2AuthnRequest;
-import com.entrouvert.lasso.Samlp2Response;
-import com.entrouvert.lasso.Server;
-import com.entrouvert.lasso.lasso;
-import com.entrouvert.lasso.lassoConstants;
 
 /**
  * A simple test "web application", using the Lasso client API. Does not really
@@ -59,6 +48,16 @@ extends HttpServlet {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The media type of PAOS messages, which ECP clients list in their Accept header.
+     */
+    private static final String PAOS_MEDIA_TYPE = "application/vnd.paos+xml";
+
+    /**
+     * The ECP service, which ECP clients list in their PAOS header.
+     */
+    private static final String ECP_SERVICE = "urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp";
+
     /**
      * Used for debug logging. Will write to the debug log
      * <code>feideTestServlet</code>.
@@ -68,56 +67,245 @@ extends HttpServlet {
     private Config config;
 
     /**
-     * The Lasso server.
+     * The client we use for SOAP requests to the IdP.
+     */
+    private final SoapClient soapClient = new SoapClient();
+
+    /**
+     * Resolves artifacts against the ArtifactResolutionService endpoints of the IdP.
+     */
+    private ArtifactResolver artifactResolver;
+
+    /**
+     * The number of milliseconds a login may spend on resolving an artifact.
+     */
+    private long artifactDeadline;
+
+    /**
+     * Selects the binding the IdP should use for its response to a login.
+     */
+    private BindingSelector bindingSelector;
+
+    /**
+     * Prebuilt authentication requests, or null if the pool is disabled.
+     */
+    private AuthnRequestPool authnRequestPool = null;
+
+    /**
+     * Runs the Lasso operations, either in this process or in worker processes.
+     */
+    private LassoBackend backend = null;
+
+    /**
+     * Rejects SAML responses which can't be accepted before they reach the backend, or null if
+     * the pre-filter is disabled.
+     */
+    private ResponsePreFilter preFilter = null;
+
+    /**
+     * Reads the SAMLResponse from the body of a POST to the assertion consumer.
+     */
+    private FormBodyDecoder formBodyDecoder;
+
+    /**
+     * Limits the number of concurrent requests to each endpoint, or null if admission control
+     * is disabled.
+     */
+    private AdmissionController admission = null;
+
+    /**
+     * The thread pools the work of each endpoint runs in.
      */
-    private Server lassoServer = null;
+    private Bulkheads bulkheads;
+
+    /**
+     * Remembers recent logins, so that /login can let the user in without going to the IdP.
+     */
+    private LocalSessions localSessions;
+
+    /**
+     * The page which lists the attributes of the user after a login.
+     */
+    private LoginPage loginPage;
+
+    /**
+     * Fetches fresh attributes from the attribute service of the IdP, or null if attribute
+     * queries are disabled.
+     */
+    private AttributeQueryService attributeQuery = null;
+
+    /**
+     * The tenants this servlet passes requests to, or null if the servlet serves the SP in its
+     * own configuration.
+     */
+    private TenantRegistry tenants = null;
+
+    /**
+     * Warms up the code of a login at startup, or null if the warm-up is disabled.
+     */
+    private WarmUp warmUp = null;
+
+    /**
+     * The latency of the requests which started after the warm-up.
+     */
+    private final LatencyHistogram afterWarmUp = Metrics.getInstance().histogram("requests.after_warmup.latency");
 
 
     /**
      * This method initializes the servlet. Initialization consists of loading the configuration
-     * and initializing the lassoServer object with meta data.
+     * and starting the Lasso backend.
      */
     @Override
     public void init() throws ServletException {
-        this.config = new Config(this.getServletContext());
-
-        // Initialize the lassoServer object with the meta data of the service provider.
-        this.lassoServer = new Server(config.getSPMetadataPath(), config.getSPPrivateKeyPath(),
-                null, null);
-
-        // Load meta data for the IdP.
-        this.lassoServer.addProvider(lassoConstants.PROVIDER_ROLE_IDP,
-                config.getIdPMetadataPath(), config.getIdpPublicKeyPath(), null);
-        System.out.println((new File(".").getAbsolutePath()));
+        this.init(new Config(this.getServletContext()));
     }
 
     /**
-     * This method handles the parts of the request to the assertion consumer which is common between
-     * the GET request and the POST request.
+     * Initializes the servlet with a configuration which is already loaded. This is used when
+     * the servlet runs without a servlet container, in StandaloneServer.
      *
-     * @param response the response we send to the client.
-     * @param loginAttempt the lasso Login object, with information about the user.
-     * @throws ServletException
-     * @throws IOException
+     * @param config the configuration.
+     * @throws ServletException if the configuration is invalid, or the backend fails to start.
      */
-    private void handleLoginResponse(HttpServletResponse response,
-            Login loginAttempt) throws ServletException, IOException {
+    void init(Config config) throws ServletException {
+        this.config = config;
+
+        // With tenants, every SP is loaded by the registry when it gets its first request.
+        if(this.config.getProperty("no.feide.test.tenants") != null) {
+            this.tenants = new TenantRegistry(this.config);
+            return;
+        }
 
-        int rc;
-        // More Lasso preparations.
-        rc = loginAttempt.acceptSso();
-        if(rc != 0) {
-            throw new ServletException("Failed to accept SSO. Lasso error code: " + rc);
+        // Initialize the Lasso servers with the meta data of the service provider and the IdP,
+        // either here or in the worker processes.
+        String backendName = this.config.getProperty("no.feide.test.lasso.backend");
+        if(backendName == null || "inprocess".equals(backendName)) {
+            this.backend = new InProcessBackend(this.config);
+        } else if("worker".equals(backendName)) {
+            this.backend = new WorkerBackend(this.config);
+        } else if("java".equals(backendName)) {
+            this.backend = new JavaBackend(this.config);
+        } else {
+            throw new ServletException("no.feide.test.lasso.backend must be inprocess, worker or java. Was: \""
+                    + backendName + "\"");
         }
+        System.out.println((new File(".").getAbsolutePath()));
 
-        Samlp2Response r = (Samlp2Response)loginAttempt.getResponse();
+        this.artifactResolver = new ArtifactResolver(this.config, this.soapClient);
+        this.artifactDeadline = this.config.getLongProperty("no.feide.test.artifact.deadline", 10000);
+        this.bindingSelector = new BindingSelector(this.config);
 
-        Saml2NameID nameId = (Saml2NameID)loginAttempt.getNameIdentifier();
-        this.debug.message("Got name id: " + nameId.getContent());
+        this.bulkheads = new Bulkheads(this.config);
+        this.localSessions = new LocalSessions(this.config);
+        this.loginPage = new LoginPage(this.config.getProperty("no.feide.test.url.logout"));
+        this.formBodyDecoder = new FormBodyDecoder(this.config);
+        if(this.config.getBooleanProperty("no.feide.test.admission", true)) {
+            this.admission = new AdmissionController(this.config);
+        }
+        if(this.config.getBooleanProperty("no.feide.test.prefilter", true)) {
+            this.preFilter = new ResponsePreFilter(this.config);
+        }
+        if(this.config.getBooleanProperty("no.feide.test.attributequery", false)) {
+            this.attributeQuery = new AttributeQueryService(this.config, this.soapClient);
+        }
 
-        Map<String, Attribute> attributes = AttributeExtractor.extractAttributes(this.config, r);
-        // We're logged in.
-        onLogin(response, attributes);
+        int poolSize = (int)this.config.getLongProperty("no.feide.test.authnrequest.pool", 32);
+        if(poolSize > 0) {
+            this.authnRequestPool = new AuthnRequestPool(this.config, new AuthnRequestPool.Builder() {
+                public String build(String binding) throws ServletException {
+                    return TestServlet.this.backend.buildAuthnRequestURL(binding, false);
+                }
+            }, this.bindingSelector, poolSize,
+            this.config.getLongProperty("no.feide.test.authnrequest.pool.maxage", 60000));
+        }
+
+        // Lets the startup time and memory use of the servlet container and of the standalone
+        // server be compared. The gauges are about the process, so tenants don't replace them.
+        if(this.config.getTenant() == null) {
+            final long startup = ManagementFactory.getRuntimeMXBean().getUptime();
+            Metrics.getInstance().gauge("process.startup_ms", new Metrics.Gauge() {
+                public long getValue() {
+                    return startup;
+                }
+            });
+            Metrics.getInstance().gauge("process.rss_kb", new Metrics.Gauge() {
+                public long getValue() {
+                    return residentSetSize();
+                }
+            });
+        }
+
+        // The servlet isn't ready until the code of a login has been compiled.
+        if(this.config.getBooleanProperty("no.feide.test.warmup", false)) {
+            this.warmUp = new WarmUp(this.config, this.formBodyDecoder, this.preFilter, this.loginPage);
+            this.warmUp.start();
+        }
+    }
+
+    /**
+     * Reads the resident set size of this process. Only works on Linux.
+     *
+     * @return the resident set size in kilobytes, or -1 if it isn't known.
+     */
+    private static long residentSetSize() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while((line = in.readLine()) != null) {
+                    if(line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch(IOException e) {
+            // Not Linux.
+        } catch(NumberFormatException e) {
+            // An unexpected format.
+        }
+        return -1;
+    }
+
+    /**
+     * Stops the threads used by this servlet, and removes its gauges.
+     */
+    @Override
+    public void destroy() {
+        if(this.tenants != null) {
+            this.tenants.shutdown();
+        }
+        if(this.warmUp != null) {
+            this.warmUp.shutdown();
+        }
+        if(this.authnRequestPool != null) {
+            this.authnRequestPool.shutdown();
+        }
+        if(this.artifactResolver != null) {
+            this.artifactResolver.shutdown();
+        }
+        if(this.attributeQuery != null) {
+            this.attributeQuery.shutdown();
+        }
+        if(this.bulkheads != null) {
+            this.bulkheads.shutdown();
+        }
+        if(this.bindingSelector != null) {
+            this.bindingSelector.shutdown();
+        }
+        if(this.formBodyDecoder != null) {
+            this.formBodyDecoder.shutdown();
+        }
+        if(this.admission != null) {
+            this.admission.shutdown();
+        }
+        if(this.localSessions != null) {
+            this.localSessions.shutdown();
+        }
+        if(this.backend != null) {
+            this.backend.shutdown();
+        }
     }
 
     /**
@@ -135,27 +323,63 @@ extends HttpServlet {
             debug.message("doLoginGet(HttpServletRequest, HttpServletResponse)");
 
         // Do we have a SAML artifact?
-        String samlArtifact = request.getParameter("SAMLart");
+        final String samlArtifact = request.getParameter("SAMLart");
         if (samlArtifact == null) {
             throw new ServletException("No SAMLart request parameter to the assertion consumer.");
         }
 
-        // Initialize.
-        Login loginAttempt = new Login(lassoServer);
-        loginAttempt.initRequest(samlArtifact, lassoConstants.HTTP_METHOD_REDIRECT);
-        loginAttempt.buildRequestMsg();
-        
-        String samlResponse = this.doSoapRequest(loginAttempt.getMsgUrl(), loginAttempt.getMsgBody());
-        // Let Lasso check the reply.
+        // The artifact must be resolved before this deadline expires.
+        final Deadline deadline = Deadline.after(this.artifactDeadline);
 
-        loginAttempt.processResponseMsg(samlResponse);
+        // Resolve the artifact in the bulkhead of the IdP which issued it.
+        LassoBackend.LoginResult login = this.bulkheads.callArtifact(samlArtifact,
+                new Callable<LassoBackend.LoginResult>() {
+            public LassoBackend.LoginResult call() throws ServletException, IOException {
+                return TestServlet.this.resolveArtifact(samlArtifact, deadline);
+            }
+        });
 
-        this.handleLoginResponse(response, loginAttempt);
+        // We're logged in.
+        this.localSessions.store(request, response, login);
+        this.onLogin(request, response, login.getAttributes());
 
         debug.message("doLoginGet done");
 
     }
 
+    /**
+     * Resolves a SAML artifact against the IdP, and lets the backend check the reply.
+     *
+     * @param samlArtifact the artifact.
+     * @param deadline the deadline of the login.
+     * @return the login.
+     * @throws ServletException if the artifact can't be resolved, or the reply is invalid.
+     * @throws IOException if the SOAP request fails.
+     */
+    private LassoBackend.LoginResult resolveArtifact(String samlArtifact, Deadline deadline)
+    throws ServletException, IOException {
+        LassoBackend.LoginResult login;
+        LassoBackend.ArtifactRequest artifactRequest = this.backend.initArtifactRequest(samlArtifact);
+        try {
+            String samlResponse;
+            long start = System.nanoTime();
+            try {
+                samlResponse = this.doSoapRequest(artifactRequest.getMsgUrl(), artifactRequest.getMsgBody(), deadline);
+            } catch(ServletException e) {
+                this.bindingSelector.recordArtifactResolution(System.nanoTime() - start, false);
+                throw e;
+            }
+            this.bindingSelector.recordArtifactResolution(System.nanoTime() - start, true);
+
+            // Let Lasso check the reply.
+            login = this.backend.processArtifactResponse(artifactRequest, samlResponse);
+        } finally {
+            this.backend.releaseArtifactRequest(artifactRequest);
+        }
+
+        return login;
+    }
+
     /**
      * Handles requests to the logout handler.
      *
@@ -171,27 +395,24 @@ extends HttpServlet {
             debug.message("doLogoutGet(HttpServletRequest, HttpServletResponse)");
         }
 
-        Logout logout = new Logout(this.lassoServer);
-
-        int rc;
-
-        // Parse and process the logout message.
-        rc = logout.processRequestMsg(request.getQueryString());
-        if(rc != 0 && rc != lasso.DS_ERROR_SIGNATURE_NOT_FOUND) {
-            throw new ServletException("Error processing logout request message. Lasso error: " + rc);
-        }
-
-        // Log the user out.
-        this.onLogout(request);
+        // Parse and process the logout message, and create a response to the IdP.
+        final String queryString = request.getQueryString();
+        LassoBackend.LogoutResult logout = this.bulkheads.call(Bulkheads.LOGOUT,
+                new Callable<LassoBackend.LogoutResult>() {
+            public LassoBackend.LogoutResult call() throws ServletException {
+                return TestServlet.this.backend.processLogoutRequest(queryString);
+            }
+        });
 
-        // Create a response to the IdP.
-        rc = logout.buildResponseMsg();
-        if(rc != 0) {
-            throw new ServletException("Error creating logout response message. Lasso error: " + rc);
+        // Log out every session named by the request, and the user who brought it.
+        int count = this.localSessions.logOut(logout);
+        if(debug.messageEnabled()) {
+            debug.message("Logged out " + count + " session(s) named by the logout request.");
         }
+        this.onLogout(request, response);
 
         // Redirect back to the IdP.
-        response.sendRedirect(logout.getMsgUrl());
+        response.sendRedirect(logout.getRedirectUrl());
 
         if(debug.messageEnabled()) {
             debug.message("doLogoutGet done");
@@ -208,17 +429,42 @@ extends HttpServlet {
      */
     private void doLoginPost(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-        String samlResponse = request.getParameter("SAMLResponse");
+        FormBodyDecoder.Decoded decoded = this.formBodyDecoder.decode(request, "SAMLResponse");
+        if(decoded == null) {
+            throw new ServletException("No SAMLResponse in POST.");
+        }
+        String samlResponse;
+        String hash = null;
         try {
-            samlResponse = new String(Base64.decode(samlResponse), "UTF-8");
+            if(this.preFilter != null) {
+                hash = this.preFilter.check(decoded.getBuffer(), decoded.getLength());
+            }
+            samlResponse = new String(decoded.getBuffer(), 0, decoded.getLength(), "UTF-8");
         } catch(UnsupportedEncodingException e) {
             throw new ServletException("UTF-8 encoding is unsupported.");
+        } finally {
+            decoded.release();
         }
 
-        Login loginAttempt = new Login(this.lassoServer);
-        loginAttempt.processAuthnResponseMsg(samlResponse);
+        final String message = samlResponse;
+        LassoBackend.LoginResult login;
+        try {
+            login = this.bulkheads.call(Bulkheads.ASSERTION, new Callable<LassoBackend.LoginResult>() {
+                public LassoBackend.LoginResult call() throws ServletException {
+                    return TestServlet.this.backend.processAuthnResponse(message);
+                }
+            });
+        } catch(RetryableException e) {
+            // The response was never processed, so the browser may send it again.
+            if(hash != null) {
+                this.preFilter.forget(hash);
+            }
+            throw e;
+        }
 
-        this.handleLoginResponse(response, loginAttempt);
+        // We're logged in.
+        this.localSessions.store(request, response, login);
+        this.onLogin(request, response, login.getAttributes());
     }
 
     /**
@@ -239,21 +485,75 @@ extends HttpServlet {
         debug.message("HTTP request URL was " + request.getRequestURL());
         debug.message("HTTP request query was " + request.getQueryString());
 
-        if("/login".equals(request.getPathInfo())) {
-            this.initLogin(response);
-        } else if("/logout".equals(request.getPathInfo())) {
-            this.doLogoutGet(request, response);
-        } else if("/assertion".equals(request.getPathInfo())) {
-            this.doLoginGet(request, response);
-        } else {
-            throw new ServletException("GET request to unknown url. Path info: "
-                    + request.getPathInfo());
+        if(this.tenants != null) {
+            this.tenants.service(request, response, false);
+            return;
+        }
+
+        // Reject the request at once if its endpoint is overloaded.
+        AdmissionController.Endpoint endpoint = this.admission == null ? null
+                : this.admission.getEndpoint(request.getPathInfo());
+        if(endpoint != null && !this.admit(endpoint, response)) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        // Count the calls this request makes into Lasso.
+        LassoFacade.startRequest();
+        try {
+            if("/login".equals(request.getPathInfo())) {
+                this.initLogin(request, response);
+            } else if("/logout".equals(request.getPathInfo())) {
+                this.doLogoutGet(request, response);
+            } else if("/assertion".equals(request.getPathInfo())) {
+                this.doLoginGet(request, response);
+            } else if("/metrics".equals(request.getPathInfo())) {
+                this.doMetricsGet(response);
+            } else if("/ready".equals(request.getPathInfo())) {
+                this.doReadyGet(response);
+            } else if("/attributes".equals(request.getPathInfo())) {
+                this.doAttributesGet(request, response);
+            } else {
+                throw new ServletException("GET request to unknown url. Path info: "
+                        + request.getPathInfo());
+            }
+        } finally {
+            long calls = LassoFacade.endRequest();
+            if(debug.messageEnabled()) {
+                debug.message("Lasso calls in this request: " + calls);
+            }
+            if(endpoint != null) {
+                this.admission.release(endpoint, System.nanoTime() - start);
+            }
+            this.recordLatency(request.getPathInfo(), start);
         }
 
         debug.message("doGet done");
 
     }
 
+    /**
+     * Admits a request to its endpoint, or rejects it with 503 Service Unavailable if the
+     * endpoint is overloaded. An admitted request must be released when it is finished.
+     *
+     * @param endpoint the endpoint the request is for.
+     * @param response the servlet response.
+     * @return true if the request was admitted, false if it was rejected.
+     * @throws IOException if we fail to send the rejection.
+     */
+    private boolean admit(AdmissionController.Endpoint endpoint, HttpServletResponse response)
+    throws IOException {
+        if(this.admission.acquire(endpoint)) {
+            return true;
+        }
+
+        debug.warning("Rejected request to overloaded endpoint " + endpoint.getName());
+        response.setHeader("Retry-After", String.valueOf(this.admission.getRetryAfter()));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "The server is busy. Please try again in a moment.");
+        return false;
+    }
+
     /**
      * This method handles POST requests to this servlet. The only place we want POST data is in the
      * assertion consumer. All other URLs will result in an ServletException
@@ -266,47 +566,96 @@ extends HttpServlet {
             debug.message("doPost(HttpServletRequest, HttpServletResponse)");
         }
 
-        if("/assertion".equals(request.getPathInfo())) {
-            this.doLoginPost(request, response);
-        } else {
-            throw new ServletException("POST to non-post url. Path info: " + request.getPathInfo());
+        if(this.tenants != null) {
+            this.tenants.service(request, response, true);
+            return;
+        }
+
+        // Reject the request at once if its endpoint is overloaded.
+        AdmissionController.Endpoint endpoint = this.admission == null ? null
+                : this.admission.getEndpoint(request.getPathInfo());
+        if(endpoint != null && !this.admit(endpoint, response)) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        // Count the calls this request makes into Lasso.
+        LassoFacade.startRequest();
+        try {
+            if("/assertion".equals(request.getPathInfo())) {
+                String contentType = request.getContentType();
+                if(contentType != null && contentType.toLowerCase().startsWith(PAOS_MEDIA_TYPE)) {
+                    this.doPaosResponsePost(request, response);
+                } else {
+                    this.doLoginPost(request, response);
+                }
+            } else {
+                throw new ServletException("POST to non-post url. Path info: " + request.getPathInfo());
+            }
+        } finally {
+            long calls = LassoFacade.endRequest();
+            if(debug.messageEnabled()) {
+                debug.message("Lasso calls in this request: " + calls);
+            }
+            if(endpoint != null) {
+                this.admission.release(endpoint, System.nanoTime() - start);
+            }
+            this.recordLatency(request.getPathInfo(), start);
         }
 
         debug.message("doPost done");
     }
 
     /**
-     * Creates a Lasso login attempt based on meta data and redirects to the IdP
-     * with an authentication request.
+     * Redirects to the IdP with an authentication request. The redirect URL is taken from the
+     * pool of prebuilt requests if possible, and built here if the pool is empty.
+     *
+     * If the user logged in recently, the user is let in without going to the IdP, unless the
+     * request has the parameter ForceAuthn=true. Then the IdP is told to authenticate the user
+     * again.
+     *
+     * An ECP client gets the authentication request in a PAOS request instead of a redirect.
      *
      * @param request the servlet request
      * @param response the servlet response
+     * @throws ServletException if we fail to build the authentication request
      * @throws IOException if we fail to redirect the user
      */
-    private void initLogin(HttpServletResponse response) throws IOException {
+    private void initLogin(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
 
         if (debug.messageEnabled())
             debug.message("login(HttpServletRequest, HttpServletResponse)");
 
-        // Create a Lasso login attempt.
-        Login loginAttempt = new Login(lassoServer);
-        loginAttempt.initAuthnRequest(lassoServer.getProviderIds().getItem(0), lassoConstants.HTTP_METHOD_REDIRECT);
-
-        
-        Samlp2AuthnRequest authnRequest = (Samlp2AuthnRequest)loginAttempt.getRequest();
-
-        // Select the HTTP-Redirect binding for the login request.
-        authnRequest.setProtocolBinding(lassoConstants.SAML2_METADATA_BINDING_ARTIFACT);
+        // Let the user in at once if the user has logged in recently.
+        final boolean forceAuthn = "true".equals(request.getParameter("ForceAuthn"));
+        Map<String, Attribute> attributes = this.localSessions.lookup(request, forceAuthn);
+        if(attributes != null) {
+            this.onLogin(request, response, attributes);
+            return;
+        }
 
-        if (debug.messageEnabled()) {
-            debug.message("login: Authentication request: " + authnRequest.dump());
+        if(isPaosClient(request)) {
+            this.doPaosRequest(response, forceAuthn);
+            return;
         }
 
-        // Build the request message.
-        loginAttempt.buildAuthnRequestMsg();
+        // Select the binding the IdP should use for the response. This is HTTP-Artifact unless
+        // artifact resolution is slow or failing.
+        final String binding = this.bindingSelector.selectBinding();
 
-        // Get the URL we should redirect to.
-        String gotoURL = loginAttempt.getMsgUrl();
+        // The prebuilt requests don't ask the IdP to authenticate the user again.
+        String gotoURL = null;
+        if(this.authnRequestPool != null && !forceAuthn) {
+            gotoURL = this.authnRequestPool.take(binding);
+        }
+        if(gotoURL == null) {
+            gotoURL = this.bulkheads.call(Bulkheads.LOGIN, new Callable<String>() {
+                public String call() throws ServletException {
+                    return TestServlet.this.backend.buildAuthnRequestURL(binding, forceAuthn);
+                }
+            });
+        }
 
         // Redirect with authentication request.
         if (debug.messageEnabled()) {
@@ -317,87 +666,291 @@ extends HttpServlet {
     }
 
     /**
-     * This method is called on a successful login.
+     * Checks whether a request comes from a client which supports the ECP profile.
+     *
+     * @param request the servlet request.
+     * @return true if the client accepts PAOS, and offers the ECP service.
+     */
+    private static boolean isPaosClient(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        String paos = request.getHeader("PAOS");
+        return accept != null && accept.toLowerCase().indexOf(PAOS_MEDIA_TYPE) >= 0
+            && paos != null && paos.indexOf(ECP_SERVICE) >= 0;
+    }
+
+    /**
+     * Sends an ECP client an authentication request in a PAOS request. The client passes the
+     * request on to the IdP, and posts the response from the IdP back to the assertion
+     * consumer.
      *
+     * @param response the servlet response.
+     * @param forceAuthn whether the IdP must authenticate the user again.
+     * @throws ServletException if we fail to build the authentication request.
+     * @throws IOException if we fail to send the request.
+     */
+    private void doPaosRequest(HttpServletResponse response, final boolean forceAuthn)
+    throws ServletException, IOException {
+        String envelope = this.bulkheads.call(Bulkheads.LOGIN, new Callable<String>() {
+            public String call() throws ServletException {
+                return TestServlet.this.backend.buildPaosRequest(forceAuthn);
+            }
+        });
+
+        response.setContentType(PAOS_MEDIA_TYPE);
+        response.setHeader("Cache-Control", "no-cache, no-store");
+        OutputStream out = response.getOutputStream();
+        out.write(envelope.getBytes("UTF-8"));
+        out.close();
+    }
+
+    /**
+     * Handles the PAOS response an ECP client posts to the assertion consumer. The client gets
+     * the attributes as data, in the format chosen by its Accept header, and the session
+     * cookie which lets it reach /attributes afterwards.
+     *
+     * @param request the servlet request.
+     * @param response the servlet response.
+     * @throws ServletException if the response isn't accepted.
+     * @throws IOException if we fail to read the request, or to write the output.
+     */
+    private void doPaosResponsePost(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+        FormBodyDecoder.Decoded body = this.formBodyDecoder.read(request);
+        String envelope;
+        String hash = null;
+        try {
+            if(this.preFilter != null) {
+                hash = this.preFilter.checkSoap(body.getBuffer(), body.getLength());
+            }
+            envelope = new String(body.getBuffer(), 0, body.getLength(), "UTF-8");
+        } finally {
+            body.release();
+        }
+
+        final String message = envelope;
+        LassoBackend.LoginResult login;
+        try {
+            login = this.bulkheads.call(Bulkheads.ASSERTION, new Callable<LassoBackend.LoginResult>() {
+                public LassoBackend.LoginResult call() throws ServletException {
+                    return TestServlet.this.backend.processPaosResponse(message);
+                }
+            });
+        } catch(RetryableException e) {
+            // The response was never processed, so the client may send it again.
+            if(hash != null) {
+                this.preFilter.forget(hash);
+            }
+            throw e;
+        }
+
+        // We're logged in.
+        this.localSessions.store(request, response, login);
+        Map<String, Attribute> attributes = login.getAttributes();
+
+        String format = AttributeWriter.selectFormat(request.getHeader("Accept"));
+        if(format == null) {
+            this.onLogin(request, response, attributes);
+            return;
+        }
+        response.setContentType(AttributeWriter.CBOR.equals(format) ? format : format + ";charset=UTF-8");
+        OutputStream out = response.getOutputStream();
+        AttributeWriter.write(out, format, attributes);
+        out.close();
+    }
+
+    /**
+     * This method is called on a successful login. A user who was sent to the login by the
+     * gateway is sent back to the page the user asked for.
+     *
+     * @param request the servlet request.
      * @param response the servlet response we should write to.
      * @param attributes a Map containing the attributes we have received for the user.
      * @throws IOException if we fail to write the output.
      */
-    private void onLogin(HttpServletResponse response, Map<String, Attribute> attributes)
-    throws IOException {
+    private void onLogin(HttpServletRequest request, HttpServletResponse response,
+            Map<String, Attribute> attributes) throws IOException {
+
+        String page = GatewayServlet.takeReturnPath(request, response);
+        if(page != null) {
+            response.sendRedirect(page);
+            return;
+        }
 
         response.setContentType("text/html;charset=UTF-8");
+        OutputStream out = response.getOutputStream();
+        this.loginPage.render(out, attributes);
+        out.close();
+    }
+
+    /**
+     * Records the latency of a request which started after the warm-up. Requests for the
+     * metrics and the readiness aren't counted.
+     *
+     * @param pathInfo the path of the request.
+     * @param start the time the request started, from System.nanoTime().
+     */
+    private void recordLatency(String pathInfo, long start) {
+        if(this.warmUp != null && !this.warmUp.isDone()) {
+            return;
+        }
+        if("/metrics".equals(pathInfo) || "/ready".equals(pathInfo)) {
+            return;
+        }
+        this.afterWarmUp.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Tells a load balancer whether the servlet is ready for logins. It is ready when the
+     * warm-up has finished, or at once if there is no warm-up.
+     *
+     * @param response the servlet response we should write to.
+     * @throws IOException if we fail to write the output.
+     */
+    private void doReadyGet(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache, no-store");
+        if(this.warmUp != null && !this.warmUp.isDone()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "1");
+            PrintWriter out = response.getWriter();
+            out.println("warming up");
+            out.close();
+            return;
+        }
         PrintWriter out = response.getWriter();
-        out.println("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01//EN\" \"http://www.w3.org/TR/html4/strict.dtd\">");
-        out.println("<html<head><title>Feide Lasso client API Test Servlet</title></head>");
-        out.println("<body><h1>OK</h1>");
-        out.println("<table><tr><th>Name</th><th>Values</th></tr>");
-        for(Map.Entry<String, Attribute> a : attributes.entrySet()) {
-            StringBuilder sb = new StringBuilder();
-            for(String value : a.getValue()) {
-                if(sb.length() != 0) {
-                    sb.append("<br>");
-                }
-                sb.append(value);
+        out.println("ready");
+        out.close();
+    }
+
+    /**
+     * Writes the metrics of this servlet as plain text.
+     *
+     * @param response the servlet response we should write to.
+     * @throws IOException if we fail to write the output.
+     */
+    private void doMetricsGet(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain;charset=UTF-8");
+        PrintWriter out = response.getWriter();
+        Metrics.getInstance().write(out);
+        out.close();
+    }
+
+    /**
+     * Writes the attributes of the logged in user as JSON or CBOR, as chosen by the Accept header.
+     * The ETag of the response is the tag of the login, so a client which polls with
+     * If-None-Match gets 304 Not Modified until the user logs in again, without the attributes
+     * being written.
+     *
+     * If attribute queries are enabled, the attributes from the login are updated with the
+     * attributes from the attribute service of the IdP, and the ETag also changes when those
+     * are fetched again. If the query fails, the attributes from the login are used.
+     *
+     * @param request the servlet request.
+     * @param response the servlet response we should write to.
+     * @throws IOException if we fail to write the output.
+     */
+    private void doAttributesGet(HttpServletRequest request, HttpServletResponse response)
+    throws IOException {
+        LocalSessions.Login login = this.localSessions.current(request);
+        if(login == null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Not logged in.");
+            return;
+        }
+
+        String format = AttributeWriter.selectFormat(request.getHeader("Accept"));
+        if(format == null) {
+            response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+                    "Attributes are available as " + AttributeWriter.JSON + " and " + AttributeWriter.CBOR + ".");
+            return;
+        }
+
+        Map<String, Attribute> attributes = login.getAttributes();
+        String tag = login.getTag();
+        if(this.attributeQuery != null && login.getNameId() != null) {
+            try {
+                AttributeQueryService.Result result = this.attributeQuery.query(login.getNameId());
+                attributes = new HashMap<String, Attribute>(attributes);
+                attributes.putAll(result.getAttributes());
+                tag = tag + "." + result.getTag();
+            } catch(ServletException e) {
+                this.debug.warning("Using the attributes from the login: " + e.getMessage());
             }
-            out.println("<tr><td>"+a.getKey() + "</td><td>" + sb.toString() + "</td></tr>");
         }
-        out.println("</table>");
-        out.println("<p><a href=\"" + config.getProperty("no.feide.test.url.logout") + "\">Logout</a></p>");
+
+        String etag = "\"" + tag + (AttributeWriter.CBOR.equals(format) ? "-cbor" : "-json") + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept, Cookie");
+        response.setHeader("Cache-Control", "private, no-cache");
+        if(matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(AttributeWriter.CBOR.equals(format) ? format : format + ";charset=UTF-8");
+        OutputStream out = response.getOutputStream();
+        AttributeWriter.write(out, format, attributes);
         out.close();
     }
 
+    /**
+     * Checks whether an If-None-Match header matches an entity tag.
+     *
+     * @param ifNoneMatch the If-None-Match header, or null if the request has none.
+     * @param etag the entity tag of the response.
+     * @return true if the client already has the response.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        for(String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if(tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if(tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Logs the user out of this web application.
      *
      * @param request the servlet request.
+     * @param response the servlet response.
      */
-    private void onLogout(HttpServletRequest request) {
-        // Nothing is done, since we don't implement sessions.
+    private void onLogout(HttpServletRequest request, HttpServletResponse response) {
+        this.localSessions.invalidate(request, response);
     }
 
     /**
-     * Helper function to do a SOAP request to the specified URL with the specified message.
+     * Helper function to do a SOAP request to the specified URL with the specified message. If
+     * the request fails, it may be retried against the other ArtifactResolutionService
+     * endpoints of the IdP.
      *
      * @param url URL to send the request to.
      * @param message message to send.
+     * @param deadline the deadline for the request.
      * @return answer to the message we sent.
-     * @throws ServletException if the SOAP call failed.
-     * @throws IOException if there was an IO error while executing the request, or if we had problems with the character set conversion.
+     * @throws ServletException if the SOAP call failed, or if the deadline expired.
+     * @throws IOException if we had problems with the character set conversion.
      */
-    private String doSoapRequest(String url, String message) throws ServletException, IOException {
+    private String doSoapRequest(String url, String message, Deadline deadline)
+    throws ServletException, IOException {
         if(this.debug.messageEnabled()) {
             this.debug.message("doSoapRequest(\"" + url + "\", \"" + message + "\");");
         }
 
-        // Set the content-type of the soap request to "text/xml".
-        MimeHeaders soapRequestHeaders = new MimeHeaders();
-        soapRequestHeaders.addHeader("Content-Type", "text/xml");
-
-        // Create an InputStream for the request message.
-        ByteArrayInputStream soapRequestBuffer = new ByteArrayInputStream(message.getBytes("UTF-8"));
+        // Lasso has already built the complete SOAP envelope, so we send it as it is.
+        String reply = this.artifactResolver.resolve(url, message.getBytes("UTF-8"), deadline);
 
-        try {
-            SOAPMessage soapRequest = MessageFactory.newInstance().createMessage(
-                    soapRequestHeaders, soapRequestBuffer);
-            SOAPConnection soapConnection = SOAPConnectionFactory.newInstance().createConnection();
-            
-            // Make the SOAP call.
-            final SOAPMessage soapResponse = soapConnection.call(soapRequest, url);
-
-            // Get the reply.
-            ByteArrayOutputStream soapReplyBuffer = new ByteArrayOutputStream();
-            soapResponse.writeTo(soapReplyBuffer);
-            String reply = soapReplyBuffer.toString("UTF-8");
-
-            if(this.debug.messageEnabled()) {
-                this.debug.message("doSoapRequest got response:\n******\n" + reply + "\n******");
-            }
+        if(this.debug.messageEnabled()) {
+            this.debug.message("doSoapRequest got response:\n******\n" + reply + "\n******");
+        }
 
-            return reply;
-        } catch(SOAPException e) {
-            throw new ServletException("Error executing SOAP request against " + url, e);
-        } 
+        return reply;
     }
 
 }
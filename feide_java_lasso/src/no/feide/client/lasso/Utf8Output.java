@@ -0,0 +1,261 @@
+package no.feide.client.lasso;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Writes UTF-8 text straight to an output stream, through a buffer which is reused by every
+ * response written on the same thread. Fixed markup is written as byte arrays which are encoded
+ * once, and text is escaped and encoded as it is copied into the buffer, with one table lookup
+ * for each ASCII character.
+ *
+ * The buffer is written to the stream and flushed every time it fills up, so that the client
+ * starts receiving a large response before all of it has been produced.
+ */
+final class Utf8Output {
+
+    /**
+     * The size of the buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The output of each thread.
+     */
+    private static final ThreadLocal<Utf8Output> outputs = new ThreadLocal<Utf8Output>() {
+        @Override
+        protected Utf8Output initialValue() {
+            return new Utf8Output();
+        }
+    };
+
+    /**
+     * The buffer.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * The stream we are writing to, or null if we aren't writing.
+     */
+    private OutputStream out = null;
+
+    /**
+     * Use start() to get an output.
+     */
+    private Utf8Output() {
+    }
+
+    /**
+     * Starts writing to a stream. The output must be finished with finish() before the thread
+     * writes another response.
+     *
+     * @param out the stream.
+     * @return the output of this thread.
+     */
+    static Utf8Output start(OutputStream out) {
+        Utf8Output output = outputs.get();
+        output.out = out;
+        output.position = 0;
+        return output;
+    }
+
+    /**
+     * Encodes a string as UTF-8. Used to create the fixed fragments of a response.
+     *
+     * @param s the string.
+     * @return the encoded string.
+     */
+    static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 encoding is unsupported.", e);
+        }
+    }
+
+    /**
+     * Creates an escape table, with an entry for each ASCII character.
+     *
+     * @param characters the characters which are escaped.
+     * @param escapes the escaped form of each character.
+     * @return the table. Entries for characters which aren't escaped are null.
+     */
+    static byte[][] escapes(String characters, String... escapes) {
+        byte[][] table = new byte[128][];
+        for(int i = 0; i < characters.length(); i++) {
+            table[characters.charAt(i)] = encode(escapes[i]);
+        }
+        return table;
+    }
+
+    /**
+     * Counts the bytes of a string encoded as UTF-8, without encoding it.
+     *
+     * @param s the string.
+     * @return the number of bytes.
+     */
+    static int length(String s) {
+        int length = 0;
+        int n = s.length();
+        for(int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // A pair is four bytes, and a lone surrogate is written as '?'.
+                if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes bytes.
+     *
+     * @param bytes the bytes.
+     * @throws IOException if we fail to write to the stream.
+     */
+    void write(byte[] bytes) throws IOException {
+        if(bytes.length > BUFFER_SIZE - this.position) {
+            this.drain();
+            if(bytes.length > BUFFER_SIZE) {
+                this.out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @param b the byte.
+     * @throws IOException if we fail to write to the stream.
+     */
+    void write(int b) throws IOException {
+        if(this.position == BUFFER_SIZE) {
+            this.drain();
+        }
+        this.buffer[this.position++] = (byte)b;
+    }
+
+    /**
+     * Writes a string as UTF-8, without escaping it.
+     *
+     * @param s the string.
+     * @throws IOException if we fail to write to the stream.
+     */
+    void writeText(String s) throws IOException {
+        this.writeEscaped(s, null);
+    }
+
+    /**
+     * Writes a string as UTF-8, with the ASCII characters in the escape table replaced by their
+     * escaped form. A lone surrogate is written as '?'.
+     *
+     * @param s the string.
+     * @param escapes the escape table, or null if nothing is escaped.
+     * @throws IOException if we fail to write to the stream.
+     */
+    void writeEscaped(String s, byte[][] escapes) throws IOException {
+        byte[] buf = this.buffer;
+        int n = s.length();
+        int i = 0;
+        while(i < n) {
+            if(BUFFER_SIZE - this.position < 4) {
+                this.drain();
+            }
+
+            // No character takes more than four bytes, so this many characters fit in the
+            // buffer without checking for room after each one.
+            int end = Math.min(n, i + (BUFFER_SIZE - this.position) / 4);
+            int p = this.position;
+            while(i < end) {
+                char c = s.charAt(i);
+                if(c < 0x80) {
+                    if(escapes != null && escapes[c] != null) {
+                        break;
+                    }
+                    buf[p++] = (byte)c;
+                } else if(c < 0x800) {
+                    buf[p++] = (byte)(0xc0 | (c >> 6));
+                    buf[p++] = (byte)(0x80 | (c & 0x3f));
+                } else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        buf[p++] = (byte)(0xf0 | (cp >> 18));
+                        buf[p++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                        buf[p++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                        buf[p++] = (byte)(0x80 | (cp & 0x3f));
+                    } else {
+                        buf[p++] = '?';
+                    }
+                } else {
+                    buf[p++] = (byte)(0xe0 | (c >> 12));
+                    buf[p++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                    buf[p++] = (byte)(0x80 | (c & 0x3f));
+                }
+                i++;
+            }
+            this.position = p;
+
+            // We stopped at a character which must be escaped.
+            if(i < end) {
+                this.write(escapes[s.charAt(i)]);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Writes the rest of the buffer to the stream, and stops writing to it. The stream isn't
+     * closed.
+     *
+     * @throws IOException if we fail to write to the stream.
+     */
+    void finish() throws IOException {
+        try {
+            if(this.position > 0) {
+                this.out.write(this.buffer, 0, this.position);
+            }
+        } finally {
+            this.discard();
+        }
+    }
+
+    /**
+     * Stops writing to the stream, and throws away what is left in the buffer. Used when
+     * writing to the stream has failed.
+     */
+    void discard() {
+        this.position = 0;
+        this.out = null;
+    }
+
+    /**
+     * Writes the buffer to the stream, and flushes the stream so that the client gets it now.
+     *
+     * @throws IOException if we fail to write to the stream.
+     */
+    private void drain() throws IOException {
+        this.out.write(this.buffer, 0, this.position);
+        this.out.flush();
+        this.position = 0;
+    }
+}
@@ -0,0 +1,578 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Warms up the code of a login before the servlet reports that it is ready. Synthetic responses
+ * go through the same steps as a real login: the form body is decoded and pre-filtered, the
+ * response is checked and its attributes are extracted, and the login page and the attributes
+ * are rendered. Half of the responses come through a stubbed artifact resolution instead, which
+ * builds and processes the SOAP messages without sending them.
+ *
+ * The responses are signed with a key pair generated once, and checked by a JavaBackend which
+ * trusts that key, so nothing the warm-up does is accepted by the backend which handles real
+ * logins. This is also a limit of the warm-up: the configured backend only trusts the IdP, so
+ * it can't be given synthetic responses. With the java backend, the same code is warmed up; with
+ * the inprocess and worker backends, Lasso and the worker protocol aren't, and only the attribute
+ * dumps Lasso produces are parsed like AttributeExtractor parses them.
+ *
+ * The key pair is generated by the first warm-up, and shared by the warm-ups of every tenant,
+ * since generating an RSA key takes a noticeable time.
+ *
+ * The warm-up runs in batches in its own thread, until the JIT compiler has almost stopped
+ * compiling, or the time limit is reached.
+ */
+class WarmUp implements Runnable {
+
+    private static final String POST_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST";
+    private static final String SOAP_BINDING = "urn:oasis:names:tc:SAML:2.0:bindings:SOAP";
+    private static final String METADATA_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+
+    /**
+     * The number of logins in each batch.
+     */
+    private static final int BATCH = 50;
+
+    /**
+     * The number of batches in a row the compiler must be quiet in before we stop.
+     */
+    private static final int QUIET_BATCHES = 3;
+
+    /**
+     * Discards the rendered pages.
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * The attributes of the synthetic user: a name and the values, which are joined with the
+     * attribute separator.
+     */
+    private static final String[][] ATTRIBUTES = {
+        { "eduPersonPrincipalName", "warmup@example.org" },
+        { "mail", "warmup@example.org" },
+        { "cn", "Bj\u00f8rn \u00c5se Warm-Up" },
+        { "displayName", "Bj\u00f8rn <Warm-Up> & \"Co\"" },
+        { "eduPersonAffiliation", "member", "student", "employee" },
+        { "eduPersonEntitlement", "urn:mace:feide.no:go:group:u:warmup:1", "urn:mace:feide.no:go:group:u:warmup:2" },
+        { "norEduPersonNIN", "01010112345" },
+    };
+
+    /**
+     * The key pair of the synthetic IdP, or null until the first warm-up generates it. Guarded
+     * by the class.
+     */
+    private static KeyPair idpKey = null;
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The decoder of the servlet.
+     */
+    private final FormBodyDecoder decoder;
+
+    /**
+     * The pre-filter of the servlet, or null if it is disabled.
+     */
+    private final ResponsePreFilter preFilter;
+
+    /**
+     * The login page of the servlet.
+     */
+    private final LoginPage loginPage;
+
+    /**
+     * Checks the synthetic responses. It trusts only the key we generated.
+     */
+    private final JavaBackend backend;
+
+    /**
+     * Signs the synthetic responses as the IdP.
+     */
+    private final SamlCrypto signer;
+
+    /**
+     * The separator between multiple values in an AttributeValue element.
+     */
+    private final String separator;
+
+    /**
+     * The entity IDs of this service provider and the IdP.
+     */
+    private final String spEntityId;
+    private final String idpEntityId;
+
+    /**
+     * The HTTP-POST AssertionConsumerService location of this service provider.
+     */
+    private final String consumer;
+
+    /**
+     * The index of the SOAP ArtifactResolutionService of the IdP, or -1 if the IdP has none.
+     */
+    private final int artifactIndex;
+
+    /**
+     * The source ID of the artifacts of the IdP.
+     */
+    private final byte[] sourceId;
+
+    /**
+     * The attribute statement of the synthetic responses.
+     */
+    private final String attributeStatement;
+
+    /**
+     * The attributes of the synthetic user as Lasso dumps them.
+     */
+    private final String[] attributeDumps;
+
+    /**
+     * The fewest logins we run, and the number of milliseconds after which we stop.
+     */
+    private final long minIterations;
+    private final long maxTime;
+
+    /**
+     * Formats the times in the synthetic responses. Only used by the warm-up thread.
+     */
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    /**
+     * Generates the message handles of the artifacts.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The number of logins we have run.
+     */
+    private final AtomicLong iterations = new AtomicLong();
+
+    /**
+     * The mean time of a login in the first and the last batch, in microseconds.
+     */
+    private volatile long firstBatch = -1;
+    private volatile long lastBatch = -1;
+
+    /**
+     * The number of milliseconds the warm-up took, or -1 while it is running.
+     */
+    private volatile long duration = -1;
+
+    /**
+     * Whether the warm-up should stop, because the servlet is destroyed.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The gauges of the warm-up, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * The number of warm-ups which failed.
+     */
+    private final AtomicLong failures;
+
+    /**
+     * Prepares the warm-up. The first warm-up also generates the key of the synthetic IdP.
+     *
+     * @param config the configuration of the servlet.
+     * @param decoder the decoder of the servlet.
+     * @param preFilter the pre-filter of the servlet, or null if it is disabled.
+     * @param loginPage the login page of the servlet.
+     * @throws ServletException if the configuration or the meta data is invalid.
+     */
+    WarmUp(Config config, FormBodyDecoder decoder, ResponsePreFilter preFilter, LoginPage loginPage)
+    throws ServletException {
+        this.decoder = decoder;
+        this.preFilter = preFilter;
+        this.loginPage = loginPage;
+        this.separator = config.getAttributeSeparator();
+        this.minIterations = config.getLongProperty("no.feide.test.warmup.iterations", 1000);
+        this.maxTime = config.getLongProperty("no.feide.test.warmup.maxtime", 60000);
+        this.timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        KeyPair idpKey = getIdpKey();
+        this.backend = new JavaBackend(config, idpKey.getPublic());
+        this.signer = new SamlCrypto(null, idpKey.getPrivate());
+
+        // The synthetic responses must pass the checks of the pre-filter and the backend.
+        Element sp = JavaBackend.parse(SamlCrypto.readFile(config.getSPMetadataPath())).getDocumentElement();
+        this.spEntityId = sp.getAttributeNS(null, "entityID");
+        String location = null;
+        Element spDescriptor = JavaBackend.child(sp, METADATA_NS, "SPSSODescriptor");
+        if(spDescriptor != null) {
+            for(Element acs : JavaBackend.children(spDescriptor, METADATA_NS, "AssertionConsumerService")) {
+                if(location == null || POST_BINDING.equals(acs.getAttributeNS(null, "Binding"))) {
+                    location = acs.getAttributeNS(null, "Location");
+                }
+            }
+        }
+        if(location == null) {
+            throw new ServletException("The SP meta data has no AssertionConsumerService.");
+        }
+        this.consumer = location;
+
+        Element idp = JavaBackend.parse(SamlCrypto.readFile(config.getIdPMetadataPath())).getDocumentElement();
+        this.idpEntityId = idp.getAttributeNS(null, "entityID");
+        int index = -1;
+        Element idpDescriptor = JavaBackend.child(idp, METADATA_NS, "IDPSSODescriptor");
+        if(idpDescriptor != null) {
+            for(Element ars : JavaBackend.children(idpDescriptor, METADATA_NS, "ArtifactResolutionService")) {
+                if(SOAP_BINDING.equals(ars.getAttributeNS(null, "Binding"))) {
+                    try {
+                        index = Integer.parseInt(ars.getAttributeNS(null, "index"));
+                    } catch(NumberFormatException e) {
+                        throw new ServletException("Invalid ArtifactResolutionService index in IdP meta data.");
+                    }
+                    break;
+                }
+            }
+        }
+        this.artifactIndex = index;
+        try {
+            this.sourceId = MessageDigest.getInstance("SHA-1").digest(Utf8Output.encode(this.idpEntityId));
+        } catch(GeneralSecurityException e) {
+            throw new ServletException("SHA-1 is unsupported.", e);
+        }
+
+        StringBuilder statement = new StringBuilder(1024);
+        this.attributeDumps = new String[ATTRIBUTES.length];
+        statement.append("<saml:AttributeStatement>");
+        for(int i = 0; i < ATTRIBUTES.length; i++) {
+            StringBuilder value = new StringBuilder();
+            for(int j = 1; j < ATTRIBUTES[i].length; j++) {
+                if(j > 1) {
+                    value.append(this.separator);
+                }
+                value.append(Base64.encodeBytes(Utf8Output.encode(ATTRIBUTES[i][j]), Base64.DONT_BREAK_LINES));
+            }
+            String attribute = "<saml:Attribute Name=\"" + ATTRIBUTES[i][0] + "\"><saml:AttributeValue>"
+                + value + "</saml:AttributeValue></saml:Attribute>";
+            statement.append(attribute);
+            this.attributeDumps[i] = "<saml:Attribute xmlns:saml=\"" + JavaBackend.ASSERTION_NS + "\" Name=\""
+                + ATTRIBUTES[i][0] + "\">\n  <saml:AttributeValue>" + value + "</saml:AttributeValue>\n</saml:Attribute>";
+        }
+        statement.append("</saml:AttributeStatement>");
+        this.attributeStatement = statement.toString();
+
+        this.failures = Metrics.getInstance().counter(config.getMetricName("warmup.failures"));
+        this.gauges.put(config.getMetricName("warmup.ready"), new Metrics.Gauge() {
+            public long getValue() {
+                return WarmUp.this.isDone() ? 1 : 0;
+            }
+        });
+        this.gauges.put(config.getMetricName("warmup.duration_ms"), new Metrics.Gauge() {
+            public long getValue() {
+                return WarmUp.this.duration;
+            }
+        });
+        this.gauges.put(config.getMetricName("warmup.iterations"), new Metrics.Gauge() {
+            public long getValue() {
+                return WarmUp.this.iterations.get();
+            }
+        });
+        this.gauges.put(config.getMetricName("warmup.first_batch_us"), new Metrics.Gauge() {
+            public long getValue() {
+                return WarmUp.this.firstBatch;
+            }
+        });
+        this.gauges.put(config.getMetricName("warmup.last_batch_us"), new Metrics.Gauge() {
+            public long getValue() {
+                return WarmUp.this.lastBatch;
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            Metrics.getInstance().gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Gets the key pair of the synthetic IdP, and generates it the first time.
+     *
+     * @return the key pair.
+     * @throws ServletException if the key pair can't be generated.
+     */
+    private static synchronized KeyPair getIdpKey() throws ServletException {
+        if(idpKey == null) {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                idpKey = generator.generateKeyPair();
+            } catch(GeneralSecurityException e) {
+                throw new ServletException("Unable to generate the key of the warm-up.", e);
+            }
+        }
+        return idpKey;
+    }
+
+    /**
+     * Starts the warm-up in its own thread.
+     */
+    void start() {
+        new DaemonThreadFactory("warmup").newThread(this).start();
+    }
+
+    /**
+     * Checks whether the warm-up has finished.
+     *
+     * @return true if the warm-up has finished, failed or been stopped.
+     */
+    boolean isDone() {
+        return this.duration >= 0;
+    }
+
+    /**
+     * Stops the warm-up after the current login, and removes its gauges.
+     */
+    void shutdown() {
+        this.stopped = true;
+        Metrics.getInstance().remove(this.gauges);
+    }
+
+    /**
+     * Runs batches of logins until the compiler is quiet for a few batches in a row, or the time
+     * limit is reached. The compiler is quiet in a batch if it spent less than a twentieth of the
+     * time of the batch compiling. Without compilation time monitoring, the minimum number of
+     * logins is run.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        int quiet = 0;
+        try {
+            while(!this.stopped) {
+                long compiling = monitored ? compiler.getTotalCompilationTime() : 0;
+                long batchStart = System.nanoTime();
+                for(int i = 0; i < BATCH && !this.stopped; i++) {
+                    this.login(i % 2 == 1);
+                    this.iterations.incrementAndGet();
+                }
+                long batchTime = System.nanoTime() - batchStart;
+                if(this.firstBatch < 0) {
+                    this.firstBatch = batchTime / BATCH / 1000;
+                }
+                this.lastBatch = batchTime / BATCH / 1000;
+
+                if(this.iterations.get() >= this.minIterations) {
+                    if(!monitored) {
+                        break;
+                    }
+                    long compiled = (compiler.getTotalCompilationTime() - compiling) * 1000000;
+                    quiet = compiled * 20 < batchTime ? quiet + 1 : 0;
+                    if(quiet >= QUIET_BATCHES) {
+                        break;
+                    }
+                }
+                if(System.nanoTime() - start > this.maxTime * 1000000) {
+                    this.debug.warning("Warm-up stopped after " + this.maxTime + " ms, before the compiler was quiet.");
+                    break;
+                }
+            }
+        } catch(ServletException e) {
+            this.fail(e);
+        } catch(IOException e) {
+            this.fail(e);
+        } catch(RuntimeException e) {
+            this.fail(e);
+        } finally {
+            this.duration = (System.nanoTime() - start) / 1000000;
+            this.debug.message("Warm-up finished after " + this.iterations.get() + " logins in " + this.duration
+                    + " ms. Mean login time was " + this.firstBatch + " us in the first batch, and "
+                    + this.lastBatch + " us in the last.");
+        }
+    }
+
+    /**
+     * Logs a failed warm-up. The servlet is ready anyway, it just isn't warm.
+     *
+     * @param e the reason the warm-up failed.
+     */
+    private void fail(Exception e) {
+        this.failures.incrementAndGet();
+        this.debug.error("Warm-up failed after " + this.iterations.get() + " logins: " + e);
+    }
+
+    /**
+     * Runs one synthetic login, through the HTTP-POST binding or a stubbed artifact resolution.
+     *
+     * @param artifact whether the login uses the artifact binding.
+     * @throws ServletException if a step rejects the synthetic response.
+     * @throws IOException if we fail to render the output.
+     */
+    private void login(boolean artifact) throws ServletException, IOException {
+        LassoBackend.LoginResult login;
+        if(artifact && this.artifactIndex >= 0) {
+            login = this.resolveArtifact();
+        } else {
+            login = this.post();
+        }
+        Map<String, Attribute> attributes = login.getAttributes();
+
+        // The part of the Lasso backend which runs in Java.
+        for(int i = 0; i < this.attributeDumps.length; i++) {
+            Attribute attribute = new Attribute(ATTRIBUTES[i][0]);
+            for(String value : AttributeExtractor.parseAttributeValues(this.attributeDumps[i])) {
+                AttributeExtractor.addFeideAttributeValue(attribute, value, this.separator);
+            }
+        }
+
+        this.loginPage.render(DISCARD, attributes);
+        AttributeWriter.write(DISCARD, AttributeWriter.JSON, attributes);
+        AttributeWriter.write(DISCARD, AttributeWriter.CBOR, attributes);
+    }
+
+    /**
+     * Posts a synthetic response like a browser would, and processes it.
+     *
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     * @throws IOException if we fail to read the body.
+     */
+    private LassoBackend.LoginResult post() throws ServletException, IOException {
+        Document d = JavaBackend.parse(this.buildResponse());
+        this.signAssertion(d.getDocumentElement());
+        String encoded = Base64.encodeBytes(Utf8Output.encode(JavaBackend.serialize(d)), Base64.DONT_BREAK_LINES);
+        byte[] body = Utf8Output.encode("RelayState=warmup&SAMLResponse=" + URLEncoder.encode(encoded, "UTF-8"));
+
+        FormBodyDecoder.Decoded decoded = this.decoder.decode(new ByteArrayInputStream(body), body.length, "SAMLResponse");
+        if(decoded == null) {
+            throw new ServletException("The decoder didn't find the SAMLResponse of the warm-up.");
+        }
+        String message;
+        try {
+            if(this.preFilter != null) {
+                this.preFilter.check(decoded.getBuffer(), decoded.getLength());
+            }
+            message = new String(decoded.getBuffer(), 0, decoded.getLength(), "UTF-8");
+        } finally {
+            decoded.release();
+        }
+        return this.backend.processAuthnResponse(message);
+    }
+
+    /**
+     * Resolves a synthetic artifact, and answers the artifact resolution request ourselves
+     * instead of sending it to the IdP.
+     *
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    private LassoBackend.LoginResult resolveArtifact() throws ServletException {
+        byte[] artifact = new byte[44];
+        artifact[1] = 4;
+        artifact[2] = (byte)(this.artifactIndex >> 8);
+        artifact[3] = (byte)this.artifactIndex;
+        System.arraycopy(this.sourceId, 0, artifact, 4, 20);
+        byte[] handle = new byte[20];
+        this.random.nextBytes(handle);
+        System.arraycopy(handle, 0, artifact, 24, 20);
+
+        LassoBackend.ArtifactRequest request = this.backend.initArtifactRequest(
+                Base64.encodeBytes(artifact, Base64.DONT_BREAK_LINES));
+        try {
+            // The request is built and signed, but not sent. We answer it like the IdP would.
+            String issueInstant = this.timeFormat.format(new Date());
+            String xml = "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"" + JavaBackend.SOAP_NS + "\"><SOAP-ENV:Body>"
+                + "<samlp:ArtifactResponse xmlns:samlp=\"" + JavaBackend.PROTOCOL_NS
+                + "\" xmlns:saml=\"" + JavaBackend.ASSERTION_NS
+                + "\" ID=\"" + this.backend.newId() + "\" Version=\"2.0\" IssueInstant=\"" + issueInstant
+                + "\" InResponseTo=\"" + request.getState()
+                + "\"><saml:Issuer>" + JavaBackend.escape(this.idpEntityId) + "</saml:Issuer>"
+                + "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>"
+                + "</samlp:Status>" + this.buildResponse() + "</samlp:ArtifactResponse></SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+            Document d = JavaBackend.parse(xml);
+            Element body = JavaBackend.child(d.getDocumentElement(), JavaBackend.SOAP_NS, "Body");
+            Element artifactResponse = JavaBackend.child(body, JavaBackend.PROTOCOL_NS, "ArtifactResponse");
+            this.signAssertion(JavaBackend.child(artifactResponse, JavaBackend.PROTOCOL_NS, "Response"));
+            this.signer.sign(artifactResponse,
+                    JavaBackend.child(artifactResponse, JavaBackend.ASSERTION_NS, "Issuer").getNextSibling());
+            return this.backend.processArtifactResponse(request, JavaBackend.serialize(d));
+        } finally {
+            this.backend.releaseArtifactRequest(request);
+        }
+    }
+
+    /**
+     * Builds a synthetic response, like the ones the IdP sends. The assertion isn't signed.
+     *
+     * @return the response.
+     */
+    private String buildResponse() {
+        long now = System.currentTimeMillis();
+        String issueInstant = this.timeFormat.format(new Date(now));
+        String notOnOrAfter = this.timeFormat.format(new Date(now + 5 * 60 * 1000));
+        String consumer = JavaBackend.escape(this.consumer);
+        String issuer = "<saml:Issuer>" + JavaBackend.escape(this.idpEntityId) + "</saml:Issuer>";
+
+        StringBuilder xml = new StringBuilder(4096);
+        xml.append("<samlp:Response xmlns:samlp=\"").append(JavaBackend.PROTOCOL_NS)
+            .append("\" xmlns:saml=\"").append(JavaBackend.ASSERTION_NS)
+            .append("\" ID=\"").append(this.backend.newId()).append("\" Version=\"2.0\" IssueInstant=\"")
+            .append(issueInstant).append("\" Destination=\"").append(consumer).append("\">").append(issuer)
+            .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/>")
+            .append("</samlp:Status><saml:Assertion ID=\"").append(this.backend.newId())
+            .append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant).append("\">").append(issuer)
+            .append("<saml:Subject><saml:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">")
+            .append(this.backend.newId()).append("</saml:NameID>")
+            .append("<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">")
+            .append("<saml:SubjectConfirmationData NotOnOrAfter=\"").append(notOnOrAfter)
+            .append("\" Recipient=\"").append(consumer).append("\"/></saml:SubjectConfirmation></saml:Subject>")
+            .append("<saml:Conditions NotBefore=\"").append(issueInstant)
+            .append("\" NotOnOrAfter=\"").append(notOnOrAfter)
+            .append("\"><saml:AudienceRestriction><saml:Audience>").append(JavaBackend.escape(this.spEntityId))
+            .append("</saml:Audience></saml:AudienceRestriction></saml:Conditions>")
+            .append("<saml:AuthnStatement AuthnInstant=\"").append(issueInstant)
+            .append("\"><saml:AuthnContext><saml:AuthnContextClassRef>")
+            .append("urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport")
+            .append("</saml:AuthnContextClassRef></saml:AuthnContext></saml:AuthnStatement>")
+            .append(this.attributeStatement)
+            .append("</saml:Assertion></samlp:Response>");
+        return xml.toString();
+    }
+
+    /**
+     * Signs the assertion of a response as the IdP.
+     *
+     * @param response the Response element.
+     * @throws ServletException if we fail to sign the assertion.
+     */
+    private void signAssertion(Element response) throws ServletException {
+        Element assertion = JavaBackend.child(response, JavaBackend.ASSERTION_NS, "Assertion");
+        this.signer.sign(assertion, JavaBackend.child(assertion, JavaBackend.ASSERTION_NS, "Issuer").getNextSibling());
+    }
+}
@@ -0,0 +1,797 @@
+package no.feide.client.lasso;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Runs Lasso in a pool of worker processes (see {@link LassoWorker}). Each worker is connected
+ * through a socket on the loopback interface, and calls are pipelined on the connection: a call
+ * is written as soon as the worker has a free slot, without waiting for the replies to earlier
+ * calls. Each worker runs a limited number of calls at a time.
+ *
+ * A worker which dies, for example because of a crash in native code, fails the calls in
+ * flight on that worker, and is restarted. Calls are sent to the live worker with the most free
+ * slots. An artifact resolution request is bound to the worker which created it.
+ */
+class WorkerBackend implements LassoBackend {
+
+    /**
+     * The longest we wait before we restart a worker which failed to start, in milliseconds.
+     */
+    private static final long MAX_RESTART_DELAY = 30000;
+
+    /**
+     * Used for debug logging.
+     */
+    private final Debug debug = Debug.getInstance();
+
+    /**
+     * The workers.
+     */
+    private final Worker[] workers;
+
+    /**
+     * The maximum number of milliseconds we wait for a free slot, and for a reply.
+     */
+    private final long timeout;
+
+    /**
+     * The command which starts a worker, without the arguments of the worker.
+     */
+    private final List<String> command;
+
+    /**
+     * The context root, which is passed to the workers.
+     */
+    private final String rootPath;
+
+    /**
+     * The number of calls each worker runs at a time.
+     */
+    private final int concurrency;
+
+    /**
+     * The index we start at when we look for a worker.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Set when the backend is shut down.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The time calls take, including the wait for a free slot.
+     */
+    private final LatencyHistogram callTime;
+
+    /**
+     * Number of calls which failed because a worker died, or didn't reply in time.
+     */
+    private final AtomicLong failures;
+
+    /**
+     * Number of times a worker has been started.
+     */
+    private final AtomicLong starts;
+
+    /**
+     * The gauges of this backend, by name.
+     */
+    private final Map<String, Metrics.Gauge> gauges = new HashMap<String, Metrics.Gauge>();
+
+    /**
+     * The state of an artifact resolution request.
+     */
+    private static class ArtifactState {
+        final Worker worker;
+        final int generation;
+        final int handle;
+
+        ArtifactState(Worker worker, int generation, int handle) {
+            this.worker = worker;
+            this.generation = generation;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * Starts the worker processes.
+     *
+     * @param config the configuration of the servlet.
+     * @throws ServletException if the configuration is invalid.
+     */
+    WorkerBackend(Config config) throws ServletException {
+        Metrics metrics = Metrics.getInstance();
+        this.callTime = metrics.histogram(config.getMetricName("lasso.worker.call"));
+        this.failures = metrics.counter(config.getMetricName("lasso.worker.failures"));
+        this.starts = metrics.counter(config.getMetricName("lasso.worker.starts"));
+
+        int count = (int)config.getLongProperty("no.feide.test.lasso.workers",
+                Runtime.getRuntime().availableProcessors());
+        if(count < 1) {
+            throw new ServletException("no.feide.test.lasso.workers must be at least 1.");
+        }
+        this.concurrency = (int)config.getLongProperty("no.feide.test.lasso.worker.concurrency", 4);
+        if(this.concurrency < 1) {
+            throw new ServletException("no.feide.test.lasso.worker.concurrency must be at least 1.");
+        }
+        this.timeout = config.getLongProperty("no.feide.test.lasso.worker.timeout", 10000);
+
+        this.rootPath = config.getRootPath();
+        if(this.rootPath == null) {
+            throw new ServletException("Lasso workers need the servlet to be unpacked to a directory.");
+        }
+        this.command = buildCommand(config);
+
+        this.workers = new Worker[count];
+        for(int i = 0; i < count; i++) {
+            this.workers[i] = new Worker(i);
+            this.workers[i].supervisor.start();
+        }
+
+        this.gauges.put(config.getMetricName("lasso.worker.alive"), new Metrics.Gauge() {
+            public long getValue() {
+                long alive = 0;
+                for(Worker w : WorkerBackend.this.workers) {
+                    if(w.connection != null) {
+                        alive++;
+                    }
+                }
+                return alive;
+            }
+        });
+        this.gauges.put(config.getMetricName("lasso.worker.inflight"), new Metrics.Gauge() {
+            public long getValue() {
+                long inflight = 0;
+                for(Worker w : WorkerBackend.this.workers) {
+                    inflight += WorkerBackend.this.concurrency - w.slots.availablePermits();
+                }
+                return inflight;
+            }
+        });
+        for(Map.Entry<String, Metrics.Gauge> e : this.gauges.entrySet()) {
+            metrics.gauge(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Builds the command which starts a worker.
+     *
+     * @param config the configuration of the servlet.
+     * @return the command, without the arguments of the worker.
+     */
+    private static List<String> buildCommand(Config config) {
+        List<String> command = new ArrayList<String>();
+
+        String java = config.getProperty("no.feide.test.lasso.worker.java");
+        if(java == null) {
+            java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        }
+        command.add(java);
+
+        String jvmArgs = config.getProperty("no.feide.test.lasso.worker.jvmargs");
+        if(jvmArgs != null) {
+            for(String arg : jvmArgs.trim().split("\\s+")) {
+                if(arg.length() > 0) {
+                    command.add(arg);
+                }
+            }
+        }
+
+        String libraryPath = System.getProperty("java.library.path");
+        if(libraryPath != null) {
+            command.add("-Djava.library.path=" + libraryPath);
+        }
+
+        String classPath = config.getProperty("no.feide.test.lasso.worker.classpath");
+        if(classPath == null) {
+            // The worker needs this servlet, the Lasso bindings and the servlet API.
+            StringBuilder sb = new StringBuilder();
+            Class<?>[] classes = { LassoWorker.class, com.entrouvert.lasso.Server.class, ServletException.class };
+            for(Class<?> c : classes) {
+                String location = findLocation(c);
+                if(location != null) {
+                    if(sb.length() > 0) {
+                        sb.append(File.pathSeparator);
+                    }
+                    sb.append(location);
+                }
+            }
+            classPath = sb.toString();
+        }
+        command.add("-cp");
+        command.add(classPath);
+
+        command.add(LassoWorker.class.getName());
+        return command;
+    }
+
+    /**
+     * Finds the directory or jar file a class was loaded from.
+     *
+     * @param c the class.
+     * @return the path, or null if it isn't known.
+     */
+    private static String findLocation(Class<?> c) {
+        CodeSource source = c.getProtectionDomain().getCodeSource();
+        if(source == null) {
+            return null;
+        }
+        URL location = source.getLocation();
+        if(location == null || !"file".equals(location.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(location.toURI()).getPath();
+        } catch(URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops the worker processes, and removes the gauges of the backend.
+     */
+    public void shutdown() {
+        Metrics.getInstance().remove(this.gauges);
+        this.stopped = true;
+        for(Worker w : this.workers) {
+            w.supervisor.interrupt();
+            w.stop();
+        }
+    }
+
+    /**
+     * Builds an authentication request in a worker.
+     *
+     * @param binding the binding the IdP should use for the response.
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the URL we should redirect the user to.
+     * @throws ServletException if the worker fails to build the request.
+     */
+    public String buildAuthnRequestURL(String binding, boolean forceAuthn) throws ServletException {
+        return this.call(this.selectWorker(), -1, WorkerProtocol.OP_BUILD_AUTHN_REQUEST,
+                body().writeString(binding).writeInt(forceAuthn ? 1 : 0)).readString();
+    }
+
+    /**
+     * Builds an artifact resolution request in a worker. The login stays in that worker until it
+     * is released.
+     *
+     * @param artifact the SAML artifact we received.
+     * @return the artifact resolution request.
+     * @throws ServletException if the worker fails to build the request.
+     */
+    public ArtifactRequest initArtifactRequest(String artifact) throws ServletException {
+        Worker worker = this.selectWorker();
+        Reply reply = this.call(worker, -1, WorkerProtocol.OP_INIT_ARTIFACT_REQUEST,
+                body().writeString(artifact));
+
+        int handle = reply.readInt();
+        String msgUrl = reply.readString();
+        String msgBody = reply.readString();
+        return new ArtifactRequest(msgUrl, msgBody, new ArtifactState(worker, reply.generation, handle));
+    }
+
+    /**
+     * Lets the worker which created an artifact resolution request check the response.
+     *
+     * @param request the artifact resolution request.
+     * @param samlResponse the SOAP response from the IdP.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted, or the worker has died.
+     */
+    public LoginResult processArtifactResponse(ArtifactRequest request, String samlResponse)
+    throws ServletException {
+        ArtifactState state = (ArtifactState)request.getState();
+        return this.call(state.worker, state.generation, WorkerProtocol.OP_PROCESS_ARTIFACT_RESPONSE,
+                body().writeInt(state.handle).writeString(samlResponse)).readLogin();
+    }
+
+    /**
+     * Releases an artifact resolution request in the worker which created it.
+     *
+     * @param request the artifact resolution request.
+     */
+    public void releaseArtifactRequest(ArtifactRequest request) {
+        ArtifactState state = (ArtifactState)request.getState();
+        try {
+            this.call(state.worker, state.generation, WorkerProtocol.OP_RELEASE_ARTIFACT_REQUEST,
+                    body().writeInt(state.handle));
+        } catch(ServletException e) {
+            // If the worker has died, the request is gone with it.
+            if(this.debug.messageEnabled()) {
+                this.debug.message("Failed to release artifact request: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lets a worker check a response we received through the HTTP-POST binding.
+     *
+     * @param samlResponse the decoded SAML response.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processAuthnResponse(String samlResponse) throws ServletException {
+        return this.call(this.selectWorker(), -1, WorkerProtocol.OP_PROCESS_AUTHN_RESPONSE,
+                body().writeString(samlResponse)).readLogin();
+    }
+
+    /**
+     * Lets a worker build an authentication request for an ECP client.
+     *
+     * @param forceAuthn whether the IdP must authenticate the user again, even if the user
+     *        has a session at the IdP.
+     * @return the SOAP envelope we send to the client.
+     * @throws ServletException if the worker fails to build the request.
+     */
+    public String buildPaosRequest(boolean forceAuthn) throws ServletException {
+        return this.call(this.selectWorker(), -1, WorkerProtocol.OP_BUILD_PAOS_REQUEST,
+                body().writeInt(forceAuthn ? 1 : 0)).readString();
+    }
+
+    /**
+     * Lets a worker check a response an ECP client relayed to us.
+     *
+     * @param soapMessage the SOAP envelope the client posted.
+     * @return the login.
+     * @throws ServletException if the response isn't accepted.
+     */
+    public LoginResult processPaosResponse(String soapMessage) throws ServletException {
+        return this.call(this.selectWorker(), -1, WorkerProtocol.OP_PROCESS_PAOS_RESPONSE,
+                body().writeString(soapMessage)).readLogin();
+    }
+
+    /**
+     * Lets a worker process a logout request from the IdP.
+     *
+     * @param queryString the query string of the logout request.
+     * @return the logout, with the URL we should redirect the user to.
+     * @throws ServletException if the request isn't accepted.
+     */
+    public LogoutResult processLogoutRequest(String queryString) throws ServletException {
+        return this.call(this.selectWorker(), -1, WorkerProtocol.OP_PROCESS_LOGOUT_REQUEST,
+                body().writeString(queryString)).readLogout();
+    }
+
+    /**
+     * Creates the body of a call.
+     *
+     * @return an empty body.
+     */
+    private static WorkerProtocol.Body body() {
+        return new WorkerProtocol.Body();
+    }
+
+    /**
+     * Selects the live worker with the most free slots.
+     *
+     * @return the worker.
+     * @throws ServletException if no worker is alive.
+     */
+    private Worker selectWorker() throws ServletException {
+        // Rotate the start index, so that the workers are used evenly when they are idle.
+        int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.workers.length;
+        Worker best = null;
+        int bestFree = -1;
+        for(int i = 0; i < this.workers.length; i++) {
+            Worker w = this.workers[(start + i) % this.workers.length];
+            int free = w.slots.availablePermits();
+            if(w.connection != null && free > bestFree) {
+                best = w;
+                bestFree = free;
+            }
+        }
+        if(best == null) {
+            this.failures.incrementAndGet();
+            throw new RetryableException("No Lasso worker is running.");
+        }
+        return best;
+    }
+
+    /**
+     * Sends a call to a worker, and waits for the reply.
+     *
+     * @param worker the worker.
+     * @param generation the generation of the worker the call belongs to, or -1 if any
+     *        generation will do.
+     * @param op the operation.
+     * @param body the body of the call.
+     * @return the reply.
+     * @throws ServletException if the call fails.
+     */
+    private Reply call(Worker worker, int generation, int op, WorkerProtocol.Body body)
+    throws ServletException {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.after(this.timeout);
+        try {
+            if(!worker.slots.tryAcquire(this.timeout, TimeUnit.MILLISECONDS)) {
+                this.failures.incrementAndGet();
+                throw new RetryableException("Timed out waiting for a free Lasso worker slot.");
+            }
+            try {
+                Connection connection = worker.connection;
+                if(connection == null || (generation >= 0 && connection.generation != generation)) {
+                    this.failures.incrementAndGet();
+                    throw new RetryableException("The Lasso worker has been restarted.");
+                }
+                return connection.call(op, body.toByteArray(), deadline);
+            } finally {
+                worker.slots.release();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetryableException("Interrupted while waiting for a Lasso worker.", e);
+        } finally {
+            this.callTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The reply to a call.
+     */
+    private static class Reply {
+        private final WorkerProtocol.Frame frame;
+
+        /**
+         * The generation of the worker which sent the reply.
+         */
+        final int generation;
+
+        Reply(WorkerProtocol.Frame frame, int generation) {
+            this.frame = frame;
+            this.generation = generation;
+        }
+
+        String readString() throws ServletException {
+            try {
+                return WorkerProtocol.readString(this.frame.body);
+            } catch(IOException e) {
+                throw new ServletException("Malformed reply from Lasso worker.", e);
+            }
+        }
+
+        int readInt() throws ServletException {
+            try {
+                return this.frame.body.readInt();
+            } catch(IOException e) {
+                throw new ServletException("Malformed reply from Lasso worker.", e);
+            }
+        }
+
+        LoginResult readLogin() throws ServletException {
+            try {
+                return WorkerProtocol.readLogin(this.frame.body);
+            } catch(IOException e) {
+                throw new ServletException("Malformed reply from Lasso worker.", e);
+            }
+        }
+
+        LogoutResult readLogout() throws ServletException {
+            try {
+                return WorkerProtocol.readLogout(this.frame.body);
+            } catch(IOException e) {
+                throw new ServletException("Malformed reply from Lasso worker.", e);
+            }
+        }
+    }
+
+    /**
+     * A call which is waiting for its reply.
+     */
+    private static class PendingCall {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile WorkerProtocol.Frame reply;
+        volatile String error;
+    }
+
+    /**
+     * A connection to a running worker process.
+     */
+    private class Connection {
+
+        /**
+         * The generation of the worker. Incremented each time the worker is started.
+         */
+        final int generation;
+
+        final Process process;
+        final Socket socket;
+        final OutputStream stdin;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        /**
+         * The calls which are waiting for their reply, by id.
+         */
+        final ConcurrentMap<Integer, PendingCall> pending = new ConcurrentHashMap<Integer, PendingCall>();
+
+        /**
+         * The id of the next call.
+         */
+        final AtomicInteger nextId = new AtomicInteger();
+
+        Connection(int generation, Process process, Socket socket, OutputStream stdin) throws IOException {
+            this.generation = generation;
+            this.process = process;
+            this.socket = socket;
+            this.stdin = stdin;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Sends a call, and waits for the reply.
+         *
+         * @param op the operation.
+         * @param body the body of the call.
+         * @param deadline when we give up waiting for the reply.
+         * @return the reply.
+         * @throws ServletException if the call fails.
+         * @throws InterruptedException if we are interrupted while we wait.
+         */
+        Reply call(int op, byte[] body, Deadline deadline) throws ServletException, InterruptedException {
+            int id = this.nextId.incrementAndGet();
+            PendingCall call = new PendingCall();
+            this.pending.put(id, call);
+            try {
+                try {
+                    synchronized(this.out) {
+                        WorkerProtocol.writeFrame(this.out, id, op, body);
+                    }
+                } catch(IOException e) {
+                    WorkerBackend.this.failures.incrementAndGet();
+                    throw new RetryableException("Failed to send call to Lasso worker.", e);
+                }
+
+                if(!call.done.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+                    WorkerBackend.this.failures.incrementAndGet();
+                    throw new RetryableException("Timed out waiting for the Lasso worker.");
+                }
+            } finally {
+                this.pending.remove(id);
+            }
+
+            if(call.error != null) {
+                // The worker died, whatever the message was.
+                throw new RetryableException(call.error);
+            }
+            if(call.reply.op != WorkerProtocol.STATUS_OK) {
+                throw new ServletException(new Reply(call.reply, this.generation).readString());
+            }
+            return new Reply(call.reply, this.generation);
+        }
+
+        /**
+         * Reads replies until the connection is closed, and hands them to the waiting calls.
+         *
+         * @throws IOException if the connection fails.
+         */
+        void readReplies() throws IOException {
+            WorkerProtocol.Frame frame;
+            while((frame = WorkerProtocol.readFrame(this.in)) != null) {
+                PendingCall call = this.pending.get(frame.id);
+                if(call != null) {
+                    call.reply = frame;
+                    call.done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Fails the calls which are waiting, and stops the worker process.
+         *
+         * @param reason why the calls failed.
+         */
+        void close(String reason) {
+            for(PendingCall call : this.pending.values()) {
+                call.error = reason;
+                call.done.countDown();
+                WorkerBackend.this.failures.incrementAndGet();
+            }
+
+            try {
+                this.socket.close();
+            } catch(IOException e) {
+                // Ignore. We are stopping the worker anyway.
+            }
+            try {
+                // The worker exits when its standard input is closed.
+                this.stdin.close();
+            } catch(IOException e) {
+                // Ignore. We are stopping the worker anyway.
+            }
+            this.process.destroy();
+        }
+    }
+
+    /**
+     * A worker slot. Keeps a worker process running, and starts a new one when it dies.
+     */
+    private class Worker {
+
+        /**
+         * Limits the number of calls in flight on this worker.
+         */
+        final Semaphore slots = new Semaphore(WorkerBackend.this.concurrency, true);
+
+        /**
+         * The connection to the running worker process, or null if it isn't running.
+         */
+        volatile Connection connection = null;
+
+        /**
+         * The generation of the current or next worker process.
+         */
+        volatile int generation = 0;
+
+        /**
+         * Starts the worker processes and reads their replies.
+         */
+        final Thread supervisor;
+
+        Worker(final int index) {
+            this.supervisor = new DaemonThreadFactory("lasso-worker-" + index).newThread(new Runnable() {
+                public void run() {
+                    Worker.this.supervise(index);
+                }
+            });
+        }
+
+        /**
+         * Starts the worker process, and starts it again whenever it dies.
+         *
+         * @param index the index of this worker.
+         */
+        void supervise(int index) {
+            long delay = 1000;
+            while(!WorkerBackend.this.stopped) {
+                String reason = "The Lasso worker died.";
+                try {
+                    Connection c = this.start();
+                    this.connection = c;
+                    delay = 1000;
+                    try {
+                        c.readReplies();
+                    } finally {
+                        this.connection = null;
+                        c.close(reason);
+                    }
+                } catch(IOException e) {
+                    Debug.getInstance().error("Lasso worker " + index + " failed: " + e.getMessage());
+                }
+
+                if(WorkerBackend.this.stopped) {
+                    break;
+                }
+
+                try {
+                    Thread.sleep(delay);
+                } catch(InterruptedException e) {
+                    break;
+                }
+                delay = Math.min(delay * 2, MAX_RESTART_DELAY);
+            }
+        }
+
+        /**
+         * Starts a worker process and connects to it.
+         *
+         * @return the connection.
+         * @throws IOException if the worker fails to start.
+         */
+        Connection start() throws IOException {
+            int gen = ++this.generation;
+
+            List<String> cmd = new ArrayList<String>(WorkerBackend.this.command);
+            cmd.add(WorkerBackend.this.rootPath);
+            cmd.add(String.valueOf(WorkerBackend.this.concurrency));
+
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+            WorkerBackend.this.starts.incrementAndGet();
+
+            try {
+                // Only a process which knows the secret may use the worker.
+                byte[] random = new byte[16];
+                new SecureRandom().nextBytes(random);
+                StringBuilder secret = new StringBuilder();
+                for(byte b : random) {
+                    secret.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+                }
+                OutputStream stdin = process.getOutputStream();
+                stdin.write((secret + "\n").getBytes("US-ASCII"));
+                stdin.flush();
+
+                final BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+                int port = -1;
+                String line;
+                while((line = stdout.readLine()) != null) {
+                    if(line.startsWith("PORT ")) {
+                        port = Integer.parseInt(line.substring(5).trim());
+                        break;
+                    }
+                    Debug.getInstance().error("Lasso worker: " + line);
+                }
+                if(port < 0) {
+                    throw new IOException("The Lasso worker exited before it was ready.");
+                }
+
+                // Forward the rest of the output of the worker to the log.
+                new DaemonThreadFactory("lasso-worker-output").newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            String l;
+                            while((l = stdout.readLine()) != null) {
+                                Debug.getInstance().error("Lasso worker: " + l);
+                            }
+                        } catch(IOException e) {
+                            // The worker has exited.
+                        }
+                    }
+                }).start();
+
+                Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+                socket.setTcpNoDelay(true);
+                Connection c = new Connection(gen, process, socket, stdin);
+
+                WorkerProtocol.writeFrame(c.out, 0, WorkerProtocol.OP_HELLO,
+                        body().writeString(secret.toString()).toByteArray());
+                WorkerProtocol.Frame hello = WorkerProtocol.readFrame(c.in);
+                if(hello == null || hello.op != WorkerProtocol.STATUS_OK) {
+                    throw new IOException("The Lasso worker didn't accept the connection.");
+                }
+
+                if(WorkerBackend.this.debug.messageEnabled()) {
+                    WorkerBackend.this.debug.message("Started Lasso worker on port " + port);
+                }
+                return c;
+            } catch(IOException e) {
+                process.destroy();
+                throw e;
+            } catch(RuntimeException e) {
+                process.destroy();
+                throw e;
+            }
+        }
+
+        /**
+         * Stops the worker process, if it is running.
+         */
+        void stop() {
+            Connection c = this.connection;
+            if(c != null) {
+                c.close("The Lasso backend has been shut down.");
+            }
+        }
+    }
+}
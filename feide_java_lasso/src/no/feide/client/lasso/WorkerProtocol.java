@@ -0,0 +1,337 @@
+package no.feide.client.lasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The protocol between the servlet and the Lasso worker processes.
+ *
+ * Every message is a frame: the length of the rest of the frame (4 bytes), the id of the call
+ * (4 bytes), the operation or status (1 byte), and a body. The body is a sequence of fields,
+ * where strings are written as their length (4 bytes, -1 for null) followed by their UTF-8
+ * bytes. A reply has the same id as the call it answers, so several calls may be sent on a
+ * connection before the first reply arrives, and the replies may come in any order.
+ */
+final class WorkerProtocol {
+
+    /**
+     * The first call on a connection. Body: the secret the worker was started with.
+     */
+    static final int OP_HELLO = 1;
+
+    /**
+     * Body: binding, forceAuthn (int). Reply: redirect URL.
+     */
+    static final int OP_BUILD_AUTHN_REQUEST = 2;
+
+    /**
+     * Body: artifact. Reply: handle, message URL, message body.
+     */
+    static final int OP_INIT_ARTIFACT_REQUEST = 3;
+
+    /**
+     * Body: handle, SOAP response. Reply: login.
+     */
+    static final int OP_PROCESS_ARTIFACT_RESPONSE = 4;
+
+    /**
+     * Body: handle. Reply: empty.
+     */
+    static final int OP_RELEASE_ARTIFACT_REQUEST = 5;
+
+    /**
+     * Body: SAML response. Reply: login.
+     */
+    static final int OP_PROCESS_AUTHN_RESPONSE = 6;
+
+    /**
+     * Body: query string. Reply: logout.
+     */
+    static final int OP_PROCESS_LOGOUT_REQUEST = 7;
+
+    /**
+     * Body: forceAuthn (int). Reply: PAOS request.
+     */
+    static final int OP_BUILD_PAOS_REQUEST = 8;
+
+    /**
+     * Body: PAOS response. Reply: login.
+     */
+    static final int OP_PROCESS_PAOS_RESPONSE = 9;
+
+    /**
+     * Status of a successful reply.
+     */
+    static final int STATUS_OK = 0;
+
+    /**
+     * Status of a failed call. Body: the error message.
+     */
+    static final int STATUS_ERROR = 1;
+
+    /**
+     * The largest frame we accept, in bytes.
+     */
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * This class only has static methods.
+     */
+    private WorkerProtocol() {
+    }
+
+    /**
+     * A single frame.
+     */
+    static final class Frame {
+        final int id;
+        final int op;
+        final DataInputStream body;
+
+        Frame(int id, int op, byte[] body) {
+            this.id = id;
+            this.op = op;
+            this.body = new DataInputStream(new ByteArrayInputStream(body));
+        }
+    }
+
+    /**
+     * Builds the body of a frame. The body is written to memory, so it never throws
+     * IOException.
+     */
+    static final class Body {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+        Body writeString(String value) {
+            try {
+                WorkerProtocol.writeString(this.out, value);
+            } catch(IOException e) {
+                throw new RuntimeException("Failed to write to a ByteArrayOutputStream.", e);
+            }
+            return this;
+        }
+
+        Body writeInt(int value) {
+            try {
+                this.out.writeInt(value);
+            } catch(IOException e) {
+                throw new RuntimeException("Failed to write to a ByteArrayOutputStream.", e);
+            }
+            return this;
+        }
+
+        Body writeAttributes(Map<String, Attribute> attributes) {
+            this.writeInt(attributes.size());
+            for(Attribute a : attributes.values()) {
+                this.writeString(a.getName());
+                this.writeInt(a.getValueCount());
+                for(String value : a) {
+                    this.writeString(value);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Writes a NameID: the number of values (-1 for null), and the values.
+         */
+        Body writeNameId(Attribute nameId) {
+            if(nameId == null) {
+                return this.writeInt(-1);
+            }
+            this.writeInt(nameId.getValueCount());
+            for(String value : nameId) {
+                this.writeString(value);
+            }
+            return this;
+        }
+
+        /**
+         * Writes a login: the attributes, the NameID and the SessionIndex.
+         */
+        Body writeLogin(LassoBackend.LoginResult login) {
+            return this.writeAttributes(login.getAttributes()).writeNameId(login.getNameId())
+                .writeString(login.getSessionIndex());
+        }
+
+        /**
+         * Writes a logout: the redirect URL, the NameID, and the number of SessionIndexes
+         * followed by the SessionIndexes.
+         */
+        Body writeLogout(LassoBackend.LogoutResult logout) {
+            this.writeString(logout.getRedirectUrl()).writeString(logout.getNameId());
+            this.writeInt(logout.getSessionIndexes().size());
+            for(String sessionIndex : logout.getSessionIndexes()) {
+                this.writeString(sessionIndex);
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return this.bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Writes a frame. The caller must make sure that frames from different threads aren't
+     * interleaved.
+     *
+     * @param out the stream we write to.
+     * @param id the id of the call.
+     * @param op the operation or status.
+     * @param body the body.
+     * @throws IOException if we fail to write the frame.
+     */
+    static void writeFrame(DataOutputStream out, int id, int op, byte[] body) throws IOException {
+        out.writeInt(body.length + 5);
+        out.writeInt(id);
+        out.writeByte(op);
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param in the stream we read from.
+     * @return the frame, or null if the stream is closed between frames.
+     * @throws IOException if we fail to read the frame, or the frame is invalid.
+     */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch(EOFException e) {
+            return null;
+        }
+        if(length < 5 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        int id = in.readInt();
+        int op = in.readUnsignedByte();
+        byte[] body = new byte[length - 5];
+        in.readFully(body);
+        return new Frame(id, op, body);
+    }
+
+    /**
+     * Writes a string field.
+     *
+     * @param out the stream we write to.
+     * @param value the string, or null.
+     * @throws IOException if we fail to write the string.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string field.
+     *
+     * @param in the stream we read from.
+     * @return the string, or null.
+     * @throws IOException if we fail to read the string.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) {
+            return null;
+        }
+        if(length > MAX_FRAME) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads the attributes of a user.
+     *
+     * @param in the stream we read from.
+     * @return the attributes, by name.
+     * @throws IOException if we fail to read the attributes.
+     */
+    static Map<String, Attribute> readAttributes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Attribute> attributes = new HashMap<String, Attribute>();
+        for(int i = 0; i < count; i++) {
+            Attribute a = new Attribute(readString(in));
+            int values = in.readInt();
+            for(int j = 0; j < values; j++) {
+                a.addValue(readString(in));
+            }
+            attributes.put(a.getName(), a);
+        }
+        return attributes;
+    }
+
+    /**
+     * Reads a NameID.
+     *
+     * @param in the stream we read from.
+     * @return the NameID, or null.
+     * @throws IOException if we fail to read the NameID.
+     */
+    static Attribute readNameId(DataInputStream in) throws IOException {
+        int values = in.readInt();
+        if(values < 0) {
+            return null;
+        }
+        Attribute nameId = new Attribute(Attribute.NAME_ID);
+        for(int i = 0; i < values; i++) {
+            nameId.addValue(readString(in));
+        }
+        return nameId;
+    }
+
+    /**
+     * Reads a login.
+     *
+     * @param in the stream we read from.
+     * @return the login.
+     * @throws IOException if we fail to read the login.
+     */
+    static LassoBackend.LoginResult readLogin(DataInputStream in) throws IOException {
+        Map<String, Attribute> attributes = readAttributes(in);
+        Attribute nameId = readNameId(in);
+        return new LassoBackend.LoginResult(attributes, nameId, readString(in));
+    }
+
+    /**
+     * Reads a logout.
+     *
+     * @param in the stream we read from.
+     * @return the logout.
+     * @throws IOException if we fail to read the logout.
+     */
+    static LassoBackend.LogoutResult readLogout(DataInputStream in) throws IOException {
+        String redirectUrl = readString(in);
+        String nameId = readString(in);
+        int count = in.readInt();
+        if(count < 0 || count > MAX_FRAME) {
+            throw new IOException("Invalid number of SessionIndexes: " + count);
+        }
+        List<String> sessionIndexes = new ArrayList<String>();
+        for(int i = 0; i < count; i++) {
+            sessionIndexes.add(readString(in));
+        }
+        return new LassoBackend.LogoutResult(redirectUrl, nameId, sessionIndexes);
+    }
+}